@@ -2,15 +2,14 @@ package org.unizin.cmp.oai.harvester.job;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 final class Batch {
     private final int batchSize;
-    private final Map<String, Set<String>> map = new HashMap<>();
+    private final Map<String, Map<String, Integer>> map = new HashMap<>();
     private final List<HarvestedOAIRecord> batch = new ArrayList<>();
+    private int received;
 
     Batch(final int size) {
         this.batchSize = size;
@@ -21,18 +20,25 @@ final class Batch {
     }
 
     boolean add(final HarvestedOAIRecord record) {
+        received++;
         final String uri = record.getBaseURL();
         final String id = record.getIdentifier();
-        Set<String> ids = map.get(uri);
+        Map<String, Integer> ids = map.get(uri);
         if (ids == null) {
-            ids = new HashSet<>();
+            ids = new HashMap<>();
             map.put(uri, ids);
         }
-        if (! ids.contains(id)) {
+        final Integer index = ids.get(id);
+        if (index == null) {
+            ids.put(id, batch.size());
             batch.add(record);
-            ids.add(id);
             return true;
         }
+        /*
+         * A later copy of a record supersedes an earlier one (e.g., when
+         * merging records harvested from different sets).
+         */
+        batch.set(index, record);
         return false;
     }
 
@@ -40,6 +46,14 @@ final class Batch {
         return batch.size();
     }
 
+    /**
+     * @return the number of records added since this batch was last cleared,
+     *         including those superseded by later copies.
+     */
+    int received() {
+        return received;
+    }
+
     boolean isEmpty() {
         return batch.isEmpty();
     }
@@ -47,6 +61,7 @@ final class Batch {
     void clear() {
         map.clear();
         batch.clear();
+        received = 0;
     }
 
     List<HarvestedOAIRecord> toList() {
@@ -1,20 +1,64 @@
 package org.unizin.cmp.oai.harvester.job;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Wrapper around a blocking queue that exposes only {@code poll} and
  * {@code offer} with timeouts.
+ * <p>
+ * Offers may carry a deadline. While the queue is full, offers waiting for
+ * space are admitted one at a time, those with the earliest deadlines first,
+ * and those without deadlines last, in arrival order. This lets producers
+ * that are about to lose something (such as a resumption token about to
+ * expire) go ahead of those that can afford to wait.
+ * </p>
  *
  * @param <T> the type of the blocking queue's elements.
  */
 public final class BlockingQueueWrapper<T> {
+
+    /** An offer waiting for its turn. */
+    private static final class Waiter {
+        private final Instant deadline;
+        private final long sequence;
+
+        private Waiter(final Instant deadline, final long sequence) {
+            this.deadline = deadline == null ? Instant.MAX : deadline;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Waiter> EARLIEST_DEADLINE_FIRST =
+            Comparator.<Waiter, Instant>comparing(w -> w.deadline)
+            .thenComparingLong(w -> w.sequence);
+
+
     private final BlockingQueue<T> queue;
     private final Duration offerTimeout;
     private final Duration pollTimeout;
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    /** Guarded by {@link #lock}. */
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(
+            EARLIEST_DEADLINE_FIRST);
+    /** The waiter now offering to the queue. Guarded by {@link #lock}. */
+    private Waiter admitted;
+    /**
+     * The number of offers waiting or admitted, so that offers can skip the
+     * lock while there are none.
+     */
+    private volatile int contending;
 
 
     public BlockingQueueWrapper(final BlockingQueue<T> queue,
@@ -28,8 +72,104 @@ public final class BlockingQueueWrapper<T> {
         return queue.poll(pollTimeout.toMillis(), TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Offer an element without a deadline, waiting behind any offers with
+     * deadlines if the queue is full.
+     *
+     * @see #offer(Object, Instant)
+     */
     public boolean offer(final T t) throws InterruptedException {
-        return queue.offer(t, offerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        return offer(t, null);
+    }
+
+    /**
+     * Offer an element, waiting up to the offer timeout for space.
+     *
+     * @param t
+     *            the element.
+     * @param deadline
+     *            when the caller would like its offer accepted by, or
+     *            {@code null} if it has no deadline. Offers with earlier
+     *            deadlines are admitted first when the queue is full.
+     * @return {@code true} iff the element was accepted before the timeout.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean offer(final T t, final Instant deadline)
+            throws InterruptedException {
+        if (contending == 0 && queue.offer(t)) {
+            offered.incrementAndGet();
+            return true;
+        }
+        final long end = System.nanoTime() + offerTimeout.toNanos();
+        if (!awaitTurn(new Waiter(deadline, sequence.getAndIncrement()),
+                end)) {
+            return false;
+        }
+        try {
+            final boolean accepted = queue.offer(t,
+                    Math.max(0, end - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+            if (accepted) {
+                offered.incrementAndGet();
+            }
+            return accepted;
+        } finally {
+            endTurn();
+        }
+    }
+
+    /**
+     * Wait until a waiter is the first in line, and admit it.
+     *
+     * @return {@code true} iff the waiter was admitted before {@code end}.
+     */
+    private boolean awaitTurn(final Waiter w, final long end)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            waiting.add(w);
+            contending++;
+            try {
+                while (admitted != null || waiting.peek() != w) {
+                    final long remaining = end - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    turn.awaitNanos(remaining);
+                }
+                admitted = w;
+                return true;
+            } finally {
+                waiting.remove(w);
+                if (admitted != w) {
+                    contending--;
+                    // Another waiter may now be first in line.
+                    turn.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** End the admitted waiter's turn, letting the next one in. */
+    private void endTurn() {
+        lock.lock();
+        try {
+            admitted = null;
+            contending--;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of elements ever successfully offered to the queue.
+     */
+    public long getOfferedCount() {
+        return offered.get();
     }
 
     public int size() {
@@ -0,0 +1,166 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Observer;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+
+/**
+ * Decides when each page of a job's harvests has been durably written, and
+ * reports a {@link HarvestCheckpoint} for it.
+ * <p>
+ * Records from all of a job's harvests pass through a single queue to a single
+ * consumer. When a harvest finishes a page, every record it has produced so
+ * far has already been offered to the queue, so it is among the first
+ * <i>n</i> records ever offered, where <i>n</i> is the queue's offer count at
+ * that moment. Once the consumer has written <i>n</i> records, the page's
+ * checkpoint is durable.
+ * </p>
+ * <p>
+ * If a batch fails, the records in it are lost, so no later checkpoint is
+ * reported for any repository with a record in that batch.
+ * </p>
+ * <p>
+ * Pages are finished in producer threads, and batches are written by the
+ * consumer thread. Instances are safe for use in multiple threads, but
+ * {@link #written(int)} and {@link #failed(List, int)} must be called only by
+ * the consumer.
+ * </p>
+ */
+final class CheckpointTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            CheckpointTracker.class);
+
+    private static final class Pending {
+        private final long position;
+        private final String baseURL;
+        private final HarvestCheckpoint checkpoint;
+
+        Pending(final long position, final String baseURL,
+                final HarvestCheckpoint checkpoint) {
+            this.position = position;
+            this.baseURL = baseURL;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+
+    private final LongSupplier offered;
+    private final Consumer<HarvestCheckpoint> listener;
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>(
+            Comparator.comparingLong(p -> p.position));
+    private final Set<String> failedBaseURLs = ConcurrentHashMap.newKeySet();
+    /** Written only by the consumer thread. */
+    private long written;
+
+
+    /**
+     * Create a new instance.
+     *
+     * @param offered
+     *            supplies the number of records ever offered to the job's
+     *            queue.
+     * @param listener
+     *            receives each durable checkpoint, in the consumer thread.
+     */
+    CheckpointTracker(final LongSupplier offered,
+            final Consumer<HarvestCheckpoint> listener) {
+        this.offered = offered;
+        this.listener = listener;
+    }
+
+    /**
+     * Create an observer that takes a checkpoint each time a harvest finishes
+     * a page.
+     *
+     * @param tags
+     *            the harvest's tags.
+     * @param recordCount
+     *            supplies the number of records the harvest has produced.
+     * @return a new observer, to be added to the harvest's harvester.
+     */
+    Observer observer(final Map<String, String> tags,
+            final LongSupplier recordCount) {
+        return (o, arg) -> {
+            if (arg instanceof HarvestNotification) {
+                final HarvestNotification hn = (HarvestNotification)arg;
+                if (hn.getType() == HarvestNotificationType.RESPONSE_PROCESSED
+                        && !hn.hasError()) {
+                    pageFinished(hn.getBaseURI().toString(),
+                            new HarvestCheckpoint(tags,
+                                    hn.getHarvestParameters(),
+                                    hn.getResumptionToken(),
+                                    recordCount.getAsLong(), Instant.now()));
+                }
+            }
+        };
+    }
+
+    synchronized void pageFinished(final String baseURL,
+            final HarvestCheckpoint checkpoint) {
+        pending.add(new Pending(offered.getAsLong(), baseURL, checkpoint));
+    }
+
+    private synchronized List<Pending> release() {
+        final List<Pending> released = new ArrayList<>();
+        while (!pending.isEmpty() && pending.peek().position <= written) {
+            released.add(pending.poll());
+        }
+        return released;
+    }
+
+    private void report() {
+        for (final Pending p : release()) {
+            if (failedBaseURLs.contains(p.baseURL)) {
+                continue;
+            }
+            try {
+                listener.accept(p.checkpoint);
+            } catch (final Exception e) {
+                LOGGER.error("Error reporting checkpoint " + p.checkpoint, e);
+            }
+        }
+    }
+
+    /**
+     * Record that a batch has been written.
+     *
+     * @param count
+     *            the number of records taken from the queue for the batch.
+     */
+    void written(final int count) {
+        written += count;
+        report();
+    }
+
+    /**
+     * Record that a batch could not be written, or was only partly written.
+     *
+     * @param records
+     *            the records in the batch.
+     * @param count
+     *            the number of records taken from the queue for the batch.
+     */
+    void failed(final List<HarvestedOAIRecord> records, final int count) {
+        records.forEach(r -> {
+            if (failedBaseURLs.add(r.getBaseURL())) {
+                LOGGER.warn("Records from {} were not written. No more " +
+                        "checkpoints will be taken for its harvests.",
+                        r.getBaseURL());
+            }
+        });
+        written(count);
+    }
+}
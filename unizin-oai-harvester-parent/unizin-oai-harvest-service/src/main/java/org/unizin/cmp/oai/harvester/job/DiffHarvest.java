@@ -0,0 +1,262 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+
+/**
+ * Internal-use-only runner for a harvest using
+ * {@link HarvestStrategy#IDENTIFIERS_DIFF}.
+ * <p>
+ * The records already stored for the repository are loaded first. The
+ * repository's identifiers are then listed, and each header is compared with
+ * the stored record of the same identifier:
+ * </p>
+ * <ul>
+ * <li>Headers whose datestamps match are skipped. Since a record's datestamp
+ * changes when it is deleted, this also skips records whose status is
+ * unchanged.</li>
+ * <li>Headers of deleted records are stored directly, just as a
+ * {@code ListRecords} harvest would store them.</li>
+ * <li>Other records are new or changed, and are fetched with
+ * {@code GetRecord}, up to a fixed number at a time. The list harvest waits
+ * for a free slot before continuing, so it never gets far ahead of the
+ * fetches.</li>
+ * </ul>
+ * <p>
+ * {@code GetRecord} harvests are not observed by the job's observers, since
+ * there is one per changed record. Failed fetches are logged and counted
+ * instead. If any fail, the list harvester is stopped after its last
+ * response, so that the harvest is not recorded as complete.
+ * </p>
+ * <p>
+ * Each {@code GetRecord} harvester is registered with the job's
+ * {@link RunningHarvesters} while it runs, and no new fetches are started
+ * once those have been cancelled. Fetches that the executor rejects are run
+ * by the list harvest's thread.
+ * </p>
+ */
+final class DiffHarvest implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            DiffHarvest.class);
+
+    private final HarvestParams params;
+    private final Map<String, String> tags;
+    private final Harvester listHarvester;
+    private final Function<URI, Map<String, String>> storedDatestamps;
+    private final Supplier<Harvester> harvesterFactory;
+    private final Function<Predicate<HarvestedOAIRecord>, OAIResponseHandler>
+        handlerFactory;
+    private final ExecutorService executorService;
+    private final RunningHarvesters runningHarvesters;
+    private final int parallelism;
+    private final Semaphore permits;
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Map<String, String> stored = Collections.emptyMap();
+
+    /**
+     * Create a new instance.
+     *
+     * @param params
+     *            the parameters of the harvest. Its verb is replaced by
+     *            {@code ListIdentifiers}.
+     * @param tags
+     *            tags for each harvest.
+     * @param listHarvester
+     *            the harvester used to list the repository's identifiers.
+     * @param storedDatestamps
+     *            source of the identifiers and datestamps of the records
+     *            stored for a repository.
+     * @param harvesterFactory
+     *            source of a new harvester for each {@code GetRecord}
+     *            request.
+     * @param handlerFactory
+     *            source of a new response handler, given the filter it should
+     *            apply to records.
+     * @param executorService
+     *            the executor that runs {@code GetRecord} requests.
+     * @param runningHarvesters
+     *            the job's running harvesters.
+     * @param parallelism
+     *            the maximum number of {@code GetRecord} requests at once.
+     */
+    DiffHarvest(final HarvestParams params,
+            final Map<String, String> tags,
+            final Harvester listHarvester,
+            final Function<URI, Map<String, String>> storedDatestamps,
+            final Supplier<Harvester> harvesterFactory,
+            final Function<Predicate<HarvestedOAIRecord>, OAIResponseHandler>
+                handlerFactory,
+            final ExecutorService executorService,
+            final RunningHarvesters runningHarvesters,
+            final int parallelism) {
+        Objects.requireNonNull(params, "params");
+        Objects.requireNonNull(tags, "tags");
+        Objects.requireNonNull(listHarvester, "listHarvester");
+        Objects.requireNonNull(storedDatestamps, "storedDatestamps");
+        Objects.requireNonNull(harvesterFactory, "harvesterFactory");
+        Objects.requireNonNull(handlerFactory, "handlerFactory");
+        Objects.requireNonNull(executorService, "executorService");
+        Objects.requireNonNull(runningHarvesters, "runningHarvesters");
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "parallelism must be positive.");
+        }
+        this.params = params.toBuilder(OAIVerb.LIST_IDENTIFIERS).build();
+        this.tags = tags;
+        this.listHarvester = listHarvester;
+        this.storedDatestamps = storedDatestamps;
+        this.harvesterFactory = harvesterFactory;
+        this.handlerFactory = handlerFactory;
+        this.executorService = executorService;
+        this.runningHarvesters = runningHarvesters;
+        this.parallelism = parallelism;
+        this.permits = new Semaphore(parallelism);
+        listHarvester.addObserver(new ListEndObserver());
+    }
+
+    /**
+     * Waits for outstanding fetches once the list has ended, and stops the
+     * list harvester if any failed.
+     */
+    private final class ListEndObserver implements Observer {
+        @Override
+        public void update(final Observable o, final Object arg) {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() != HarvestNotificationType.RESPONSE_PROCESSED ||
+                    hn.isRunning()) {
+                return;
+            }
+            awaitFetches();
+            if (failed.get() > 0) {
+                LOGGER.error("{} GetRecord requests to {} failed. Not " +
+                        "recording the harvest as complete.", failed.get(),
+                        params.getBaseURI());
+                listHarvester.stop();
+            }
+        }
+    }
+
+    private void awaitFetches() {
+        permits.acquireUninterruptibly(parallelism);
+        permits.release(parallelism);
+    }
+
+    /**
+     * Decide what to do with a header from the list.
+     *
+     * @return {@code true} iff the header should be stored as-is.
+     */
+    private boolean diff(final HarvestedOAIRecord header) {
+        final String datestamp = stored.get(header.getIdentifier());
+        if (datestamp != null && datestamp.equals(header.getDatestamp())) {
+            unchanged.incrementAndGet();
+            return false;
+        }
+        if (OAI2Constants.DELETED_STATUS.equals(header.getStatus())) {
+            deleted.incrementAndGet();
+            return true;
+        }
+        fetch(header.getIdentifier());
+        return false;
+    }
+
+    private void fetch(final String identifier) {
+        if (runningHarvesters.isCancelled()) {
+            return;
+        }
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HarvesterException(e);
+        }
+        final HarvestParams p = new HarvestParams.Builder(
+                params.getBaseURI(), OAIVerb.GET_RECORD)
+                .withIdentifier(identifier)
+                .withMetadataPrefix(params.get(
+                        OAIRequestParameter.METADATA_PREFIX))
+                .build();
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        final Runnable getRecord = () -> {
+            try {
+                getRecord(p);
+            } finally {
+                permits.release();
+            }
+        };
+        try {
+            executorService.submit(() -> {
+                if (mdc != null) {
+                    MDC.setContextMap(mdc);
+                }
+                try {
+                    getRecord.run();
+                } finally {
+                    MDC.clear();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            getRecord.run();
+        }
+    }
+
+    private void getRecord(final HarvestParams p) {
+        final Harvester harvester = harvesterFactory.get();
+        final OAIResponseHandler handler = handlerFactory.apply(x -> true);
+        runningHarvesters.wrappedRunnable(harvester, () -> {
+            try {
+                harvester.start(p, handler, tags);
+                fetched.incrementAndGet();
+            } catch (final Exception e) {
+                failed.incrementAndGet();
+                LOGGER.warn("Error getting record " +
+                        p.get(OAIRequestParameter.IDENTIFIER) + ".", e);
+            }
+        }).run();
+    }
+
+    @Override
+    public void run() {
+        stored = storedDatestamps.apply(params.getBaseURI());
+        LOGGER.info("Loaded {} stored records of {}.", stored.size(),
+                params.getBaseURI());
+        try {
+            listHarvester.start(params, handlerFactory.apply(this::diff),
+                    tags);
+        } finally {
+            awaitFetches();
+            stored = Collections.emptyMap();
+            LOGGER.info("Finished diff harvest of {}. {} unchanged, {} " +
+                    "deleted, {} fetched, {} failed.", params.getBaseURI(),
+                    unchanged.get(), deleted.get(), fetched.get(),
+                    failed.get());
+        }
+    }
+}
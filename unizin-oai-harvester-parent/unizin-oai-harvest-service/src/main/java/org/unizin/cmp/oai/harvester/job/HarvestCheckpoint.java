@@ -0,0 +1,107 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+
+/**
+ * The point up to which a harvest's records have been durably written.
+ * <p>
+ * A checkpoint is taken after each page (incomplete list) of a harvest, but
+ * is reported only once every record on that page, and on every page before
+ * it, has been written. A harvest interrupted after a checkpoint can thus be
+ * resumed from the checkpoint's parameters without losing records.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ *
+ * @see HarvestJob.Builder#withCheckpointListener(java.util.function.Consumer)
+ */
+public final class HarvestCheckpoint {
+    private final Map<String, String> tags;
+    private final HarvestParams resumeParams;
+    private final Optional<ResumptionToken> resumptionToken;
+    private final long recordCount;
+    private final Instant taken;
+
+
+    public HarvestCheckpoint(final Map<String, String> tags,
+            final HarvestParams harvestParams,
+            final Optional<ResumptionToken> resumptionToken,
+            final long recordCount, final Instant taken) {
+        Objects.requireNonNull(tags, "tags");
+        Objects.requireNonNull(harvestParams, "harvestParams");
+        Objects.requireNonNull(resumptionToken, "resumptionToken");
+        Objects.requireNonNull(taken, "taken");
+        this.tags = Collections.unmodifiableMap(new HashMap<>(tags));
+        this.resumeParams = harvestParams.getRetryParameters(
+                resumptionToken.orElse(null));
+        this.resumptionToken = resumptionToken;
+        this.recordCount = recordCount;
+        this.taken = taken;
+    }
+
+    /**
+     * @return the tags of the harvest.
+     */
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the parameters with which to resume the harvest after this
+     *         checkpoint.
+     */
+    public HarvestParams getResumeParams() {
+        return resumeParams;
+    }
+
+    /**
+     * @return the resumption token of the checkpoint's page, if it had one.
+     */
+    public Optional<ResumptionToken> getResumptionToken() {
+        return resumptionToken;
+    }
+
+    /**
+     * @return {@code true} iff the harvest has no more pages after this
+     *         checkpoint.
+     */
+    public boolean isFinal() {
+        return !resumptionToken.isPresent() ||
+                resumptionToken.get().getToken().isEmpty();
+    }
+
+    /**
+     * @return the number of records the harvest had produced as of this
+     *         checkpoint, all of which have been written.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return when the checkpoint's page was finished.
+     */
+    public Instant getTaken() {
+        return taken;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getSimpleName())
+                .append("[tags=").append(tags)
+                .append(", resumptionToken=").append(resumptionToken)
+                .append(", recordCount=").append(recordCount)
+                .append(", taken=").append(taken)
+                .append("]")
+                .toString();
+    }
+}
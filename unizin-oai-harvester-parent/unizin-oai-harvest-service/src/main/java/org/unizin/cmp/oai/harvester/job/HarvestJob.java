@@ -1,5 +1,6 @@
 package org.unizin.cmp.oai.harvester.job;
 
+import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
@@ -15,20 +16,30 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.apache.http.Header;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.client.HttpAsyncClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.unizin.cmp.oai.harvester.HarvestParams;
 import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.HostLimiter;
+import org.unizin.cmp.oai.harvester.OverlapFilter;
+import org.unizin.cmp.oai.harvester.RepositoryMetadata;
+import org.unizin.cmp.oai.harvester.RetryPolicy;
 import org.unizin.cmp.oai.harvester.job.JobNotification.JobNotificationType;
 import org.unizin.cmp.oai.harvester.job.JobNotification.JobStatistic;
 import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
@@ -55,6 +66,16 @@ public final class HarvestJob extends Observable {
     public static final Collection<? extends Header> DEFAULT_HEADERS =
             Collections.unmodifiableCollection(Arrays.asList(
                     new BasicHeader("from", "dev@unizin.org")));
+    /**
+     * Default maximum number of sets harvested at once by each harvest using
+     * {@link HarvestStrategy#SET_PARTITIONED}.
+     */
+    public static final int DEFAULT_SET_PARTITION_PARALLELISM = 4;
+    /**
+     * Default maximum number of {@code GetRecord} requests made at once by
+     * each harvest using {@link HarvestStrategy#IDENTIFIERS_DIFF}.
+     */
+    public static final int DEFAULT_GET_RECORD_PARALLELISM = 4;
 
 
     private static void validateBatchSize(final int batchSize) {
@@ -64,6 +85,21 @@ public final class HarvestJob extends Observable {
         }
     }
 
+    private static void validateSetPartitionParallelism(
+            final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "setPartitionParallelism must be positive.");
+        }
+    }
+
+    private static void validateGetRecordParallelism(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "getRecordParallelism must be positive.");
+        }
+    }
+
     public static final class Builder {
         /**
          * Default batch size is the maximum the DynamoDB mapper will try to
@@ -76,6 +112,11 @@ public final class HarvestJob extends Observable {
         private final DynamoDBMapper mapper;
 
         private int batchSize = DEFAULT_BATCH_SIZE;
+        private int setPartitionParallelism =
+                DEFAULT_SET_PARTITION_PARALLELISM;
+        private int getRecordParallelism = DEFAULT_GET_RECORD_PARALLELISM;
+        private Function<URI, Map<String, String>> storedDatestamps;
+        private Function<URI, Optional<RepositoryMetadata>> repositoryMetadata;
         private Duration offerTimeout;
         private Duration pollTimeout;
         private HttpClient httpClient;
@@ -84,6 +125,13 @@ public final class HarvestJob extends Observable {
         private String name;
         private List<JobHarvestSpec> specs;
         private List<Observer> harvestObservers;
+        private HttpAsyncClient asyncHttpClient;
+        private Executor parserExecutor;
+        private boolean rawRecords;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private Consumer<HarvestCheckpoint> checkpointListener;
+        private Duration tokenFallbackOverlap;
+        private HostLimiter hostLimiter;
 
 
         public Builder(final DynamoDBMapper mapper) {
@@ -110,6 +158,114 @@ public final class HarvestJob extends Observable {
             return this;
         }
 
+        /**
+         * Run this job's single-strategy harvests asynchronously.
+         * <p>
+         * Asynchronous harvests hold no thread while waiting for repositories,
+         * so a job harvesting many repositories needs only the given executor
+         * rather than a thread per repository. Set-partitioned harvests are
+         * still run synchronously with the client set by
+         * {@link #withHttpClient(HttpClient)}.
+         * </p>
+         *
+         * @see Harvester.Builder#withAsyncHttpClient(HttpAsyncClient,
+         *      Executor)
+         */
+        public Builder withAsyncHttpClient(
+                final HttpAsyncClient asyncHttpClient,
+                final Executor parserExecutor) {
+            this.asyncHttpClient = Objects.requireNonNull(asyncHttpClient,
+                    "asyncHttpClient");
+            this.parserExecutor = Objects.requireNonNull(parserExecutor,
+                    "parserExecutor");
+            return this;
+        }
+
+        /**
+         * Take each harvested record's bytes directly from the repository's
+         * response, rather than re-serializing the record's XML events.
+         * <p>
+         * This is much cheaper, and preserves each record exactly as sent,
+         * apart from namespace declarations inherited from the record's
+         * ancestors, which are added to the record's start tag.
+         * </p>
+         *
+         * @param rawRecords
+         *            whether to use raw records.
+         * @return this builder.
+         */
+        public Builder withRawRecords(final boolean rawRecords) {
+            this.rawRecords = rawRecords;
+            return this;
+        }
+
+        /**
+         * Set the policy for retrying failed requests in this job's harvests.
+         *
+         * @see Harvester.Builder#withRetryPolicy(RetryPolicy)
+         */
+        public Builder withRetryPolicy(final RetryPolicy retryPolicy) {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy,
+                    "retryPolicy");
+            return this;
+        }
+
+        /**
+         * Report a checkpoint after each page of this job's harvests, once
+         * the page's records have been written.
+         * <p>
+         * Checkpoints are taken only for harvests using
+         * {@link HarvestStrategy#SINGLE}. The listener is called in the
+         * job's consumer thread, in the order the checkpoints became durable,
+         * so it should not block for long.
+         * </p>
+         *
+         * @param checkpointListener
+         *            the listener, or {@code null} to take no checkpoints.
+         * @return this builder.
+         */
+        public Builder withCheckpointListener(
+                final Consumer<HarvestCheckpoint> checkpointListener) {
+            this.checkpointListener = checkpointListener;
+            return this;
+        }
+
+        /**
+         * Restart this job's harvests from their latest datestamps, less an
+         * overlap, when their resumption tokens are rejected or expire.
+         * <p>
+         * Records in the overlap that were already harvested are not written
+         * again.
+         * </p>
+         *
+         * @param overlap
+         *            the overlap, or {@code null} to end harvests whose tokens
+         *            are rejected.
+         * @return this builder.
+         * @see Harvester.Builder#withTokenExpiryFallback(Duration)
+         */
+        public Builder withTokenExpiryFallback(final Duration overlap) {
+            this.tokenFallbackOverlap = overlap;
+            return this;
+        }
+
+        /**
+         * Pace every request made by this job's harvesters with a limiter.
+         * <p>
+         * Jobs given the same limiter share each repository host's request
+         * budget. By default, requests are not limited.
+         * </p>
+         *
+         * @param hostLimiter
+         *            the limiter, or {@code null} for none.
+         * @return this builder.
+         * @see Harvester.Builder#withHostLimiter(HostLimiter)
+         */
+        public Builder withHostLimiter(final HostLimiter hostLimiter) {
+            this.hostLimiter = hostLimiter;
+            return this;
+        }
+
         public Builder withRecordQueue(
                 final BlockingQueue<HarvestedOAIRecord> queue) {
             this.harvestedRecordQueue = queue;
@@ -138,6 +294,73 @@ public final class HarvestJob extends Observable {
             return this;
         }
 
+        /**
+         * Set the maximum number of sets harvested at once by each harvest
+         * using {@link HarvestStrategy#SET_PARTITIONED}.
+         * <p>
+         * Set harvests run on this job's executor service, so it should be
+         * able to run this many additional threads per such harvest.
+         * </p>
+         */
+        public Builder withSetPartitionParallelism(final int parallelism) {
+            validateSetPartitionParallelism(parallelism);
+            this.setPartitionParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of {@code GetRecord} requests made at once
+         * by each harvest using {@link HarvestStrategy#IDENTIFIERS_DIFF}.
+         * <p>
+         * Requests run on this job's executor service, so it should be able
+         * to run this many additional threads per such harvest.
+         * </p>
+         */
+        public Builder withGetRecordParallelism(final int parallelism) {
+            validateGetRecordParallelism(parallelism);
+            this.getRecordParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Set the source of the records already stored for a repository, to
+         * which harvests using {@link HarvestStrategy#IDENTIFIERS_DIFF}
+         * compare its identifiers.
+         * <p>
+         * The default reads the records from DynamoDB with
+         * {@link StoredDatestamps}.
+         * </p>
+         *
+         * @param storedDatestamps
+         *            function from a repository's base URI to a map from the
+         *            identifier of each record stored for it to its
+         *            datestamp.
+         */
+        public Builder withStoredDatestamps(
+                final Function<URI, Map<String, String>> storedDatestamps) {
+            this.storedDatestamps = storedDatestamps;
+            return this;
+        }
+
+        /**
+         * Set the source of cached repository metadata.
+         * <p>
+         * Harvests using {@link HarvestStrategy#SET_PARTITIONED} use the
+         * cached sets of a repository, when there are any, rather than
+         * listing them. The source is only consulted while the job runs, so
+         * it should not make requests itself. By default, nothing is cached.
+         * </p>
+         *
+         * @param repositoryMetadata
+         *            function from a repository's base URI to its cached
+         *            metadata, if any.
+         */
+        public Builder withRepositoryMetadata(final Function<URI,
+                Optional<RepositoryMetadata>> repositoryMetadata) {
+            this.repositoryMetadata = repositoryMetadata;
+            return this;
+        }
+
         public Builder withName(final String name) {
             this.name = name;
             return this;
@@ -178,11 +401,21 @@ public final class HarvestJob extends Observable {
             if (harvestObservers == null) {
                 harvestObservers = Collections.emptyList();
             }
+            if (storedDatestamps == null) {
+                storedDatestamps = new StoredDatestamps(mapper);
+            }
+            if (repositoryMetadata == null) {
+                repositoryMetadata = uri -> Optional.empty();
+            }
             final BlockingQueueWrapper<HarvestedOAIRecord> wrapper =
                     new BlockingQueueWrapper<>(harvestedRecordQueue,
                             offerTimeout, pollTimeout);
-            return new HarvestJob(httpClient, mapper, wrapper,
-                    executorService, batchSize, name, specs, harvestObservers);
+            return new HarvestJob(httpClient, asyncHttpClient,
+                    parserExecutor, mapper, wrapper, executorService,
+                    batchSize, setPartitionParallelism, getRecordParallelism,
+                    storedDatestamps, repositoryMetadata, rawRecords,
+                    retryPolicy, tokenFallbackOverlap, hostLimiter,
+                    checkpointListener, name, specs, harvestObservers);
         }
     }
 
@@ -200,12 +433,33 @@ public final class HarvestJob extends Observable {
 
 
     private final HttpClient httpClient;
+    private final HttpAsyncClient asyncHttpClient;
+    private final Executor parserExecutor;
     private final DynamoDBMapper mapper;
     private final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue;
     private final List<Runnable> tasks = new ArrayList<>();
     private final ExecutorService executorService;
     private final int batchSize;
+    private final int setPartitionParallelism;
+    private final int getRecordParallelism;
+    private final Function<URI, Map<String, String>> storedDatestamps;
+    private final Function<URI, Optional<RepositoryMetadata>>
+        repositoryMetadata;
+    private final boolean rawRecords;
+    private final RetryPolicy retryPolicy;
+    private final Duration tokenFallbackOverlap;
+    private final HostLimiter hostLimiter;
+    private final CheckpointTracker checkpoints;
     private final String name;
+    /**
+     * Each harvest runs in a session of one of these, so that the job's
+     * harvests share parsers and buffers, and the job's observers are added
+     * only once.
+     */
+    private final Harvester harvester;
+    private final Harvester asyncHarvester;
+    /** Runs harvests not observed by the job's observers. */
+    private final Harvester unobservedHarvester;
     private final RunningHarvesters runningHarvesters =
             new RunningHarvesters();
     private final State state = new State();
@@ -245,7 +499,7 @@ public final class HarvestJob extends Observable {
      *            invoked.
      * @param harvestObservers
      *            list of observers. Each observer will observe each producing
-     *            harvester.
+     *            harvester, as a session of one shared by the job.
      *
      * @throws NoSuchAlgorithmException
      *             in the extraordinary event that the JVM in which this is
@@ -260,23 +514,114 @@ public final class HarvestJob extends Observable {
             final List<JobHarvestSpec> harvests,
             final List<Observer> harvestObservers)
                     throws NoSuchAlgorithmException {
+        this(httpClient, mapper, harvestedRecordQueue, executorService,
+                batchSize, DEFAULT_SET_PARTITION_PARALLELISM, name, harvests,
+                harvestObservers);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param setPartitionParallelism
+     *            the maximum number of sets harvested at once by each harvest
+     *            using {@link HarvestStrategy#SET_PARTITIONED}.
+     *
+     * @see #HarvestJob(HttpClient, DynamoDBMapper, BlockingQueueWrapper,
+     *      ExecutorService, int, String, List, List)
+     */
+    public HarvestJob(final HttpClient httpClient,
+            final DynamoDBMapper mapper,
+            final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue,
+            final ExecutorService executorService,
+            final int batchSize,
+            final int setPartitionParallelism,
+            final String name,
+            final List<JobHarvestSpec> harvests,
+            final List<Observer> harvestObservers)
+                    throws NoSuchAlgorithmException {
+        this(httpClient, null, null, mapper, harvestedRecordQueue,
+                executorService, batchSize, setPartitionParallelism,
+                DEFAULT_GET_RECORD_PARALLELISM, new StoredDatestamps(mapper),
+                uri -> Optional.empty(),
+                false, RetryPolicy.NONE, null, null, null, name, harvests,
+                harvestObservers);
+    }
+
+    private HarvestJob(final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBMapper mapper,
+            final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue,
+            final ExecutorService executorService,
+            final int batchSize,
+            final int setPartitionParallelism,
+            final int getRecordParallelism,
+            final Function<URI, Map<String, String>> storedDatestamps,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata,
+            final boolean rawRecords,
+            final RetryPolicy retryPolicy,
+            final Duration tokenFallbackOverlap,
+            final HostLimiter hostLimiter,
+            final Consumer<HarvestCheckpoint> checkpointListener,
+            final String name,
+            final List<JobHarvestSpec> harvests,
+            final List<Observer> harvestObservers)
+                    throws NoSuchAlgorithmException {
         Objects.requireNonNull(httpClient, "httpClient");
         Objects.requireNonNull(mapper, "mapper");
         Objects.requireNonNull(harvestedRecordQueue, "harvestedRecordQueue");
         Objects.requireNonNull(executorService, "executorService");
         Objects.requireNonNull(harvests, "harvests");
         Objects.requireNonNull(harvestObservers, "harvestObservers");
+        Objects.requireNonNull(storedDatestamps, "storedDatestamps");
+        Objects.requireNonNull(repositoryMetadata, "repositoryMetadata");
         validateBatchSize(batchSize);
+        validateSetPartitionParallelism(setPartitionParallelism);
+        validateGetRecordParallelism(getRecordParallelism);
         this.httpClient = httpClient;
+        this.asyncHttpClient = asyncHttpClient;
+        this.parserExecutor = parserExecutor;
         this.mapper = mapper;
         this.harvestedRecordQueue = harvestedRecordQueue;
         this.executorService = executorService;
         this.batchSize = batchSize;
+        this.setPartitionParallelism = setPartitionParallelism;
+        this.getRecordParallelism = getRecordParallelism;
+        this.storedDatestamps = storedDatestamps;
+        this.repositoryMetadata = repositoryMetadata;
+        this.rawRecords = rawRecords;
+        this.retryPolicy = retryPolicy;
+        this.tokenFallbackOverlap = tokenFallbackOverlap;
+        this.hostLimiter = hostLimiter;
+        this.checkpoints = checkpointListener == null ? null :
+            new CheckpointTracker(harvestedRecordQueue::getOfferedCount,
+                    checkpointListener);
         this.name = name;
+        this.harvester = newHarvesterBuilder().build();
+        harvestObservers.forEach(harvester::addObserver);
+        if (asyncHttpClient == null) {
+            this.asyncHarvester = null;
+        } else {
+            this.asyncHarvester = newHarvesterBuilder()
+                    .withAsyncHttpClient(asyncHttpClient, parserExecutor)
+                    .build();
+            harvestObservers.forEach(asyncHarvester::addObserver);
+        }
+        this.unobservedHarvester = newHarvesterBuilder().build();
 
         for (final JobHarvestSpec h: harvests) {
-            final Runnable r = createHarvestRunnable(h.getParams(), h.getTags(),
-                    harvestObservers);
+            final Runnable r;
+            switch (h.getStrategy()) {
+            case SET_PARTITIONED:
+                r = createSetPartitionedRunnable(h.getParams(), h.getTags());
+                break;
+            case IDENTIFIERS_DIFF:
+                r = createDiffRunnable(h.getParams(), h.getTags());
+                break;
+            default:
+                r = createHarvestRunnable(h.getParams(), h.getTags());
+            }
             tasks.add(r);
         }
     }
@@ -293,27 +638,163 @@ public final class HarvestJob extends Observable {
         return MessageDigest.getInstance(DIGEST_ALGORITHM);
     }
 
-    private Runnable createHarvestRunnable(final HarvestParams params,
-            final Map<String, String> tags, final Iterable<Observer> observers)
-                    throws NoSuchAlgorithmException {
-        final Harvester harvester = new Harvester.Builder()
+    private Harvester.Builder newHarvesterBuilder() {
+        final Harvester.Builder builder = new Harvester.Builder()
                 .withHttpClient(httpClient)
-                .build();
-        observers.forEach(harvester::addObserver);
-        final OAIResponseHandler handler = new JobOAIResponseHandler(
-                params.getBaseURI(), harvestedRecordQueue);
+                .withRetryPolicy(retryPolicy);
+        if (tokenFallbackOverlap != null) {
+            builder.withTokenExpiryFallback(tokenFallbackOverlap);
+        }
+        if (hostLimiter != null) {
+            builder.withHostLimiter(hostLimiter);
+        }
+        return builder;
+    }
+
+    private OAIResponseHandler newFilteredHandler(final URI baseURI,
+            final Predicate<HarvestedOAIRecord> filter) {
+        return newFilteredHandler(baseURI, filter, rawRecords);
+    }
+
+    private OAIResponseHandler newFilteredHandler(final URI baseURI,
+            final Predicate<HarvestedOAIRecord> filter,
+            final boolean raw) {
+        try {
+            return new JobOAIResponseHandler(baseURI, harvestedRecordQueue,
+                    JobOAIEventHandler.defaultOutputFactory(), digest(),
+                    filter, raw);
+        } catch (final NoSuchAlgorithmException e) {
+            // Already checked when this job was created.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a handler for a single harvest.
+     * <p>
+     * If token fallback is enabled, the handler drops records repeated when
+     * the harvest restarts its list. Set-partitioned harvests need no such
+     * filter, since their {@link RecordMerger} already drops records seen
+     * before with the same sets and datestamp.
+     * </p>
+     */
+    private JobOAIResponseHandler newHandler(final URI baseURI)
+            throws NoSuchAlgorithmException {
+        final Predicate<HarvestedOAIRecord> filter;
+        if (tokenFallbackOverlap == null) {
+            filter = x -> true;
+        } else {
+            final OverlapFilter overlap = new OverlapFilter(
+                    tokenFallbackOverlap);
+            filter = r -> overlap.accept(r.getIdentifier(), r.getDatestamp());
+        }
+        return new JobOAIResponseHandler(baseURI, harvestedRecordQueue,
+                JobOAIEventHandler.defaultOutputFactory(), digest(),
+                filter, rawRecords);
+    }
+
+    private Runnable createSetPartitionedRunnable(final HarvestParams params,
+            final Map<String, String> tags) throws NoSuchAlgorithmException {
+        // Fail now, rather than in each set's harvest, if MD5 is missing.
+        digest();
+        final Harvester listSetsHarvester = harvester.newSession();
+        final SetPartitionedHarvest partitioned = new SetPartitionedHarvest(
+                params, tags, listSetsHarvester,
+                repositoryMetadata.apply(params.getBaseURI())
+                    .map(RepositoryMetadata::getSets),
+                harvester::newSession,
+                filter -> newFilteredHandler(params.getBaseURI(), filter),
+                // Sessions already notify the job's observers.
+                Collections.emptyList(), executorService, runningHarvesters,
+                setPartitionParallelism);
+        final Runnable harvest = () -> {
+            MDC.put("baseURI", params.getBaseURI().toString());
+            tags.forEach((k, v) -> MDC.put(k, v));
+            try {
+                partitioned.run();
+            } catch (final Exception e) {
+                LOGGER.error("Error in harvester thread.", e);
+            }
+        };
+        return runningHarvesters.wrappedRunnable(listSetsHarvester, harvest);
+    }
+
+    /**
+     * Create the runnable for a harvest using
+     * {@link HarvestStrategy#IDENTIFIERS_DIFF}.
+     * <p>
+     * Raw records are never used for this strategy, since
+     * {@code ListIdentifiers} responses contain headers rather than records.
+     * </p>
+     */
+    private Runnable createDiffRunnable(final HarvestParams params,
+            final Map<String, String> tags) throws NoSuchAlgorithmException {
+        digest();
+        final Harvester listHarvester = harvester.newSession();
+        final DiffHarvest diff = new DiffHarvest(params, tags, listHarvester,
+                storedDatestamps, unobservedHarvester::newSession,
+                filter -> newFilteredHandler(params.getBaseURI(), filter,
+                        false),
+                executorService, runningHarvesters, getRecordParallelism);
+        final Runnable harvest = () -> {
+            MDC.put("baseURI", params.getBaseURI().toString());
+            tags.forEach((k, v) -> MDC.put(k, v));
+            try {
+                diff.run();
+            } catch (final Exception e) {
+                LOGGER.error("Error in harvester thread.", e);
+            }
+        };
+        return runningHarvesters.wrappedRunnable(listHarvester, harvest);
+    }
+
+    /**
+     * Take checkpoints of a harvest, if this job has a checkpoint listener.
+     */
+    private void addCheckpointObserver(final Harvester harvester,
+            final JobOAIResponseHandler handler,
+            final Map<String, String> tags) {
+        if (checkpoints != null) {
+            harvester.addObserver(checkpoints.observer(tags,
+                    handler::getRecordsOffered));
+        }
+    }
+
+    private Runnable createHarvestRunnable(final HarvestParams params,
+            final Map<String, String> tags) throws NoSuchAlgorithmException {
+        if (asyncHttpClient != null) {
+            return createAsyncHarvestRunnable(params, tags);
+        }
+        final Harvester session = harvester.newSession();
+        final JobOAIResponseHandler handler = newHandler(params.getBaseURI());
+        addCheckpointObserver(session, handler, tags);
         final Runnable harvest = () -> {
             final Map<String, String> t = new HashMap<>(tags);
             t.put("jobName", name);
             MDC.put("baseURI", params.getBaseURI().toString());
             tags.forEach((k, v) -> MDC.put(k, v));
             try {
-                harvester.start(params, handler, tags);
+                session.start(params, handler, tags);
             } catch (final Exception e) {
                 LOGGER.error("Error in harvester thread.", e);
             }
         };
-        return runningHarvesters.wrappedRunnable(harvester, harvest);
+        return runningHarvesters.wrappedRunnable(session, harvest);
+    }
+
+    private Runnable createAsyncHarvestRunnable(final HarvestParams params,
+            final Map<String, String> tags) throws NoSuchAlgorithmException {
+        final Harvester session = asyncHarvester.newSession();
+        final JobOAIResponseHandler handler = newHandler(params.getBaseURI());
+        addCheckpointObserver(session, handler, tags);
+        return runningHarvesters.wrappedAsyncRunnable(session, () ->
+            session.startAsync(params, handler, tags)
+                .whenComplete((x, e) -> {
+                    if (e != null) {
+                        LOGGER.error("Error in asynchronous harvest of " +
+                                params.getBaseURI() + ".", e);
+                    }
+                }));
     }
 
     private void sendNotification(
@@ -445,6 +926,13 @@ public final class HarvestJob extends Observable {
             list.forEach(r -> r.setHarvestedTimestamp(batchWritten));
 
             final List<FailedBatch> failed = mapper.batchSave(list);
+            if (checkpoints != null) {
+                if (failed.isEmpty()) {
+                    checkpoints.written(batch.received());
+                } else {
+                    checkpoints.failed(list, batch.received());
+                }
+            }
             if (!failed.isEmpty() && LOGGER.isErrorEnabled()) {
                 final StringBuilder sb = new StringBuilder("Batch failed: "
                         + batch + "\t[");
@@ -461,6 +949,9 @@ public final class HarvestJob extends Observable {
             }
         } catch (final AmazonClientException e) {
             state.exception = e;
+            if (checkpoints != null) {
+                checkpoints.failed(batch.toList(), batch.received());
+            }
             /*
              * Looking at the code, I _think_ this only happens when the mapper
              * is interrupted while sleeping when backing off, but I can't be
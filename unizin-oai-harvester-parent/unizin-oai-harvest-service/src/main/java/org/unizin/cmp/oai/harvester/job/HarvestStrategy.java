@@ -0,0 +1,28 @@
+package org.unizin.cmp.oai.harvester.job;
+
+/**
+ * How a job runs the harvest described by a {@link JobHarvestSpec}.
+ */
+public enum HarvestStrategy {
+    /** Run the harvest as a single sequential list request. */
+    SINGLE,
+    /**
+     * List the repository's sets and harvest each top-level set concurrently,
+     * merging records that appear in more than one set.
+     * <p>
+     * Records that belong to no set at all are not harvested with this
+     * strategy. Repositories that report {@code noSetHierarchy} are harvested
+     * as with {@link #SINGLE}.
+     * </p>
+     */
+    SET_PARTITIONED,
+    /**
+     * List the repository's identifiers, and fetch with {@code GetRecord}
+     * only records that are new or whose datestamps differ from those stored.
+     * <p>
+     * This suits repositories with large records that seldom change. Deleted
+     * records are stored directly from their headers.
+     * </p>
+     */
+    IDENTIFIERS_DIFF;
+}
@@ -34,6 +34,7 @@ public final class HarvestedOAIRecord {
     public static final String CHECKSUM_ATTRIB = "XMLChecksum";
     public static final String STATUS_ATTRIB = "Status";
     public static final String HARVEST_TIMESTAMP = "HarvestTimestamp";
+    public static final String DATESTAMP_INDEX = "DatestampIndex";
 
 
     /**
@@ -60,7 +61,7 @@ public final class HarvestedOAIRecord {
     /**
      * The last modified timestamp of the record, according to the repository.
      */
-    @DynamoDBIndexRangeKey(localSecondaryIndexName = "DatestampIndex")
+    @DynamoDBIndexRangeKey(localSecondaryIndexName = DATESTAMP_INDEX)
     @DynamoDBAttribute(attributeName = DATESTAMP_ATTRIB)
     private String datestamp;
 
@@ -2,6 +2,7 @@ package org.unizin.cmp.oai.harvester.job;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Objects;
 
 import org.unizin.cmp.oai.harvester.HarvestParams;
 
@@ -12,6 +13,7 @@ public final class JobHarvestSpec {
 
     private final HarvestParams params;
     private final Map<String, String> tags;
+    private final HarvestStrategy strategy;
 
     public JobHarvestSpec(final HarvestParams params) {
         this(params, Collections.emptyMap());
@@ -19,10 +21,18 @@ public final class JobHarvestSpec {
 
     public JobHarvestSpec(final HarvestParams params,
             final Map<String, String> tags) {
+        this(params, tags, HarvestStrategy.SINGLE);
+    }
+
+    public JobHarvestSpec(final HarvestParams params,
+            final Map<String, String> tags, final HarvestStrategy strategy) {
+        Objects.requireNonNull(strategy, "strategy");
         this.params = params;
         this.tags = tags;
+        this.strategy = strategy;
     }
 
     public Map<String, String> getTags() { return tags; }
     public HarvestParams getParams() { return params; }
+    public HarvestStrategy getStrategy() { return strategy; }
 }
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -20,11 +21,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unizin.cmp.oai.OAIXMLUtils;
 import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.response.RawRecord;
 import org.unizin.cmp.oai.harvester.response.RecordOAIEventHandler;
 
 /**
  * Record event handler that constructs {@link HarvestedOAIRecord} instances.
- *
+ * <p>
+ * Instances can also construct records from {@link RawRecord RawRecords},
+ * in which case the record's original bytes are compressed and checksummed
+ * directly, rather than re-serialized from events.
+ * </p>
  */
 public final class JobOAIEventHandler
 extends RecordOAIEventHandler<HarvestedOAIRecord> {
@@ -133,6 +139,37 @@ extends RecordOAIEventHandler<HarvestedOAIRecord> {
         }
     }
 
+    /**
+     * Create a record from a raw record's header fields and bytes.
+     * <p>
+     * The bytes are compressed and checksummed in a single pass. The checksum
+     * is of the uncompressed bytes, as for records built from events.
+     * </p>
+     *
+     * @param raw
+     *            the raw record.
+     * @return the new record.
+     */
+    HarvestedOAIRecord createRecord(final RawRecord raw) {
+        final HarvestedOAIRecord record = new HarvestedOAIRecord();
+        record.setBaseURL(baseURL);
+        record.setIdentifier(raw.getIdentifier());
+        record.setDatestamp(raw.getDatestamp());
+        raw.getSets().forEach(record::addSet);
+        record.setStatus(raw.getStatus());
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                raw.size() / 2);
+        try (final DigestOutputStream out = new DigestOutputStream(
+                new GZIPOutputStream(baos), messageDigest)) {
+            raw.writeTo(out);
+        } catch (final IOException e) {
+            throw new HarvesterException(e);
+        }
+        record.setChecksum(messageDigest.digest());
+        record.setXml(baos.toByteArray());
+        return record;
+    }
+
     @Override
     protected HarvestedOAIRecord createRecord(
             final StartElement recordStartElement) {
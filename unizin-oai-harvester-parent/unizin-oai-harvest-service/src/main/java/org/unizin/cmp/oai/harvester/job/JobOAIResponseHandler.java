@@ -3,26 +3,64 @@ package org.unizin.cmp.oai.harvester.job;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import javax.xml.stream.XMLOutputFactory;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.HarvestNotification;
 import org.unizin.cmp.oai.harvester.exception.HarvesterException;
 import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.EventOAIStreamHandler;
 import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIStreamHandler;
+import org.unizin.cmp.oai.harvester.response.RawRecordOAIStreamHandler;
 
 
 /**
  * Response handler that receives {@link HarvestedOAIRecord} instances and
  * offers them to a {@link BlockingQueue} for consumption by another thread.
- *
+ * <p>
+ * If created to use raw records, each record's bytes are taken from the
+ * response as sent, by a {@link RawRecordOAIStreamHandler}, instead of being
+ * re-serialized from events. Aalto must be on the classpath to use raw
+ * records.
+ * </p>
+ * <p>
+ * Records are offered with a deadline: the time by which the resumption
+ * token at the end of the current response is expected to expire. That
+ * token can't be known until the response has been read, so its expiry is
+ * estimated from the lifetime of the previous token, that is, the time
+ * between the previous response's {@code responseDate} and its token's
+ * {@code expirationDate}. When the queue is full, records of harvests whose
+ * tokens expire soonest are accepted first. A warning is logged once per
+ * response if less than a quarter of the estimated lifetime is left while
+ * its records are still being offered.
+ * </p>
  */
 public final class JobOAIResponseHandler extends AbstractOAIResponseHandler
 implements Consumer<HarvestedOAIRecord> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            JobOAIResponseHandler.class);
+
+    private final URI baseURI;
     private final JobOAIEventHandler handler;
     private final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue;
+    private final Predicate<HarvestedOAIRecord> filter;
+    private final OAIStreamHandler streamHandler;
+    private volatile long recordsOffered;
+    /** Estimated expiry of the current response's token, if known. */
+    private volatile Instant tokenDeadline;
+    /** When to warn that the current response's token is at risk. */
+    private volatile Instant tokenRisk;
 
 
     public JobOAIResponseHandler(final URI baseURI,
@@ -36,9 +74,100 @@ implements Consumer<HarvestedOAIRecord> {
             final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue,
             final XMLOutputFactory outputFactory,
             final MessageDigest messageDigest) {
+        this(baseURI, harvestedRecordQueue, outputFactory, messageDigest,
+                x -> true);
+    }
+
+    /**
+     * Create a new instance that offers only some records to the queue.
+     *
+     * @param baseURI
+     *            the base URI of the repository being harvested.
+     * @param harvestedRecordQueue
+     *            the queue to which records are offered.
+     * @param outputFactory
+     *            the factory used to serialize records.
+     * @param messageDigest
+     *            the digest used to checksum records.
+     * @param filter
+     *            records for which this predicate is {@code false} are
+     *            silently dropped.
+     */
+    public JobOAIResponseHandler(final URI baseURI,
+            final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue,
+            final XMLOutputFactory outputFactory,
+            final MessageDigest messageDigest,
+            final Predicate<HarvestedOAIRecord> filter) {
+        this(baseURI, harvestedRecordQueue, outputFactory, messageDigest,
+                filter, false);
+    }
+
+    /**
+     * Create a new instance that offers only some records to the queue,
+     * optionally taking each record's bytes directly from the response.
+     *
+     * @param baseURI
+     *            the base URI of the repository being harvested.
+     * @param harvestedRecordQueue
+     *            the queue to which records are offered.
+     * @param outputFactory
+     *            the factory used to serialize records. Unused if
+     *            {@code rawRecords} is {@code true}.
+     * @param messageDigest
+     *            the digest used to checksum records.
+     * @param filter
+     *            records for which this predicate is {@code false} are
+     *            silently dropped.
+     * @param rawRecords
+     *            whether to use each record's original bytes instead of
+     *            re-serializing it.
+     */
+    public JobOAIResponseHandler(final URI baseURI,
+            final BlockingQueueWrapper<HarvestedOAIRecord> harvestedRecordQueue,
+            final XMLOutputFactory outputFactory,
+            final MessageDigest messageDigest,
+            final Predicate<HarvestedOAIRecord> filter,
+            final boolean rawRecords) {
+        Objects.requireNonNull(filter, "filter");
+        this.baseURI = baseURI;
         handler = new JobOAIEventHandler(baseURI, this, outputFactory,
                 messageDigest);
         this.harvestedRecordQueue = harvestedRecordQueue;
+        this.filter = filter;
+        this.streamHandler = rawRecords ?
+                new RawRecordOAIStreamHandler(
+                        raw -> accept(handler.createRecord(raw))) :
+                    new EventOAIStreamHandler(handler);
+    }
+
+    /**
+     * Estimate when the token at the end of the response about to be
+     * processed will expire.
+     */
+    @Override
+    public void onResponseReceived(final HarvestNotification notification) {
+        final Optional<Instant> expiry = notification.getResumptionToken()
+                .flatMap(ResumptionToken::getExpirationDate);
+        final Optional<Instant> issued = notification.getLastReponseDate();
+        if (!expiry.isPresent() || !issued.isPresent() ||
+                !expiry.get().isAfter(issued.get())) {
+            tokenDeadline = null;
+            tokenRisk = null;
+            return;
+        }
+        final Duration lifetime = Duration.between(issued.get(),
+                expiry.get());
+        final Instant now = Instant.now();
+        tokenDeadline = now.plus(lifetime);
+        tokenRisk = now.plus(lifetime.minus(lifetime.dividedBy(4)));
+    }
+
+    /**
+     * @return the estimated expiry of the resumption token at the end of the
+     *         response being processed, if known.
+     */
+    public Optional<Instant> getTokenDeadline() {
+        return Optional.ofNullable(tokenDeadline);
     }
 
     @Override
@@ -47,14 +176,40 @@ implements Consumer<HarvestedOAIRecord> {
         return handler;
     }
 
+    @Override
+    public OAIStreamHandler getStreamHandler(
+            final HarvestNotification notification) {
+        return streamHandler;
+    }
+
+    /**
+     * @return the number of records this handler has offered to its queue.
+     */
+    public long getRecordsOffered() {
+        return recordsOffered;
+    }
+
     @Override
     public void accept(final HarvestedOAIRecord record) {
+        if (!filter.test(record)) {
+            return;
+        }
         try {
-            if (!harvestedRecordQueue.offer(record)) {
+            final Instant deadline = tokenDeadline;
+            if (!harvestedRecordQueue.offer(record, deadline)) {
                 throw new HarvesterException(String.format(
                         "Timed out after %s trying to offer record.",
                         harvestedRecordQueue.getOfferTimeout()));
             }
+            recordsOffered++;
+            final Instant risk = tokenRisk;
+            if (risk != null && Instant.now().isAfter(risk)) {
+                tokenRisk = null;
+                LOGGER.warn("Resumption token from {} is expected to " +
+                        "expire at {}, and records from its response are " +
+                        "still being queued ({} waiting).", baseURI,
+                        deadline, harvestedRecordQueue.size());
+            }
         } catch (final InterruptedException e) {
             // Interrupting the thread ensures that the harvest ends
             // after the current response is processed.
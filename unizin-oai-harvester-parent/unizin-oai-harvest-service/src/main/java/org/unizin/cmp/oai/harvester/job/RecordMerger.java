@@ -0,0 +1,92 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Internal-use-only filter that merges copies of the same record received from
+ * concurrent harvests of different sets.
+ * <p>
+ * The first copy of each record is always accepted. A later copy is accepted
+ * only if it adds sets not already seen for that identifier, or if its
+ * datestamp is newer than any seen so far. Accepted copies have their sets
+ * replaced by the union of all sets seen for the identifier, so that the last
+ * copy written contains every set.
+ * </p>
+ * <p>
+ * Only the identifier, sets, and datestamp of each record are retained.
+ * Instances are safe for use in multiple threads.
+ * </p>
+ */
+final class RecordMerger implements Predicate<HarvestedOAIRecord> {
+
+    private static final class Seen {
+        private final Set<String> sets;
+        private final String datestamp;
+
+        Seen(final Set<String> sets, final String datestamp) {
+            this.sets = sets;
+            this.datestamp = datestamp;
+        }
+    }
+
+    private final ConcurrentMap<String, Seen> seen =
+            new ConcurrentHashMap<>();
+
+    private static Set<String> setsOf(final HarvestedOAIRecord record) {
+        return record.getSets() == null ? Collections.emptySet() :
+            record.getSets();
+    }
+
+    /**
+     * Compare datestamps. All datestamps from a single repository have the
+     * same granularity, so lexical order is chronological order.
+     */
+    private static boolean isNewer(final String datestamp,
+            final String than) {
+        if (datestamp == null) {
+            return false;
+        }
+        return than == null || datestamp.compareTo(than) > 0;
+    }
+
+    /**
+     * Record that a copy of a record has been received.
+     *
+     * @param record
+     *            the record received. If accepted, its sets are updated to the
+     *            union of all sets seen for its identifier.
+     * @return {@code true} iff the record should be written.
+     */
+    @Override
+    public boolean test(final HarvestedOAIRecord record) {
+        final boolean[] accept = new boolean[1];
+        final Seen current = seen.compute(record.getIdentifier(),
+                (id, previous) -> {
+            final Set<String> sets = setsOf(record);
+            if (previous == null) {
+                accept[0] = true;
+                return new Seen(new HashSet<>(sets), record.getDatestamp());
+            }
+            final boolean newer = isNewer(record.getDatestamp(),
+                    previous.datestamp);
+            if (previous.sets.containsAll(sets) && !newer) {
+                return previous;
+            }
+            accept[0] = true;
+            final Set<String> union = new HashSet<>(previous.sets);
+            union.addAll(sets);
+            return new Seen(union, newer ? record.getDatestamp() :
+                previous.datestamp);
+        });
+        if (accept[0]) {
+            record.setSets(current.sets.isEmpty() ? null :
+                new HashSet<>(current.sets));
+        }
+        return accept[0];
+    }
+}
@@ -2,6 +2,8 @@ package org.unizin.cmp.oai.harvester.job;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 import org.unizin.cmp.oai.harvester.Harvester;
 
@@ -14,6 +16,7 @@ import org.unizin.cmp.oai.harvester.Harvester;
 final class RunningHarvesters {
     private final Object lock = new Object();
     private final Set<Harvester> harvesters = new HashSet<>();
+    private volatile boolean cancelled;
 
     private void add(final Harvester harvester) {
         synchronized(lock) {
@@ -40,13 +43,27 @@ final class RunningHarvesters {
 
     /**
      * Cancel all running harvests.
+     * <p>
+     * After this method is called, {@link #isCancelled()} returns {@code true}
+     * so that code starting harvests dynamically knows not to start more.
+     * </p>
      */
     void cancelAll() {
         synchronized(lock) {
+            cancelled = true;
             harvesters.forEach(Harvester::cancel);
         }
     }
 
+    /**
+     * Have running harvests been cancelled?
+     *
+     * @return {@code true} iff {@link #cancelAll()} has been called.
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
      * Create and return a {@code Runnable} for a managed harvest.
      * <p>
@@ -73,4 +90,32 @@ final class RunningHarvesters {
             }
         };
     }
+
+    /**
+     * Create and return a {@code Runnable} for a managed asynchronous harvest.
+     * <p>
+     * This is like {@link #wrappedRunnable(Harvester, Runnable)}, except that
+     * the harvester is removed when the stage returned by the given supplier
+     * completes, rather than when the {@code Runnable} returns.
+     * </p>
+     *
+     * @param harvester
+     *            the harvester itself.
+     * @param start
+     *            code that starts the harvest and returns a stage that
+     *            completes when it ends.
+     * @return a {@code Runnable} as described above.
+     */
+    Runnable wrappedAsyncRunnable(final Harvester harvester,
+            final Supplier<? extends CompletionStage<?>> start) {
+        add(harvester);
+        return () -> {
+            try {
+                start.get().whenComplete((x, e) -> remove(harvester));
+            } catch (final RuntimeException | Error e) {
+                remove(harvester);
+                throw e;
+            }
+        };
+    }
 }
@@ -0,0 +1,240 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observer;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.ListSetsOAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+
+/**
+ * Internal-use-only runner for a harvest using
+ * {@link HarvestStrategy#SET_PARTITIONED}.
+ * <p>
+ * The repository's sets are listed first, unless they are already known.
+ * Each top-level set is then harvested
+ * with its own {@link Harvester}, up to a fixed number at a time. Nested sets
+ * are not harvested separately, since their records are included in their
+ * top-level set. Copies of a record received from more than one set are merged
+ * by a shared {@link RecordMerger}.
+ * </p>
+ * <p>
+ * The thread running this harvest acts as one of the workers, so that it
+ * cannot deadlock waiting for workers that a bounded executor never starts.
+ * Each per-set harvester is registered with the job's
+ * {@link RunningHarvesters} while it runs, and no new set harvests are started
+ * once those have been cancelled.
+ * </p>
+ */
+final class SetPartitionedHarvest implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            SetPartitionedHarvest.class);
+
+    /** Tag added to each per-set harvest, holding the set's spec. */
+    static final String SET_SPEC_TAG = "setSpec";
+
+    private final HarvestParams params;
+    private final Map<String, String> tags;
+    private final Harvester listSetsHarvester;
+    private final Optional<List<OAISet>> knownSets;
+    private final Supplier<Harvester> harvesterFactory;
+    private final Function<Predicate<HarvestedOAIRecord>, OAIResponseHandler>
+        handlerFactory;
+    private final Iterable<Observer> observers;
+    private final ExecutorService executorService;
+    private final RunningHarvesters runningHarvesters;
+    private final int parallelism;
+
+    /**
+     * Create a new instance.
+     *
+     * @param params
+     *            the parameters of the harvest to partition. Any {@code set}
+     *            parameter is replaced for each per-set harvest.
+     * @param tags
+     *            tags for each harvest.
+     * @param listSetsHarvester
+     *            the harvester used to list the repository's sets.
+     * @param knownSets
+     *            the repository's sets, if already known, in which case they
+     *            are not listed. An empty list means the repository has no
+     *            sets.
+     * @param harvesterFactory
+     *            source of a new harvester for each set.
+     * @param handlerFactory
+     *            source of a new response handler for each set, given the
+     *            filter it should apply to records.
+     * @param observers
+     *            observers added to each harvester.
+     * @param executorService
+     *            the executor that runs additional workers.
+     * @param runningHarvesters
+     *            the job's running harvesters.
+     * @param parallelism
+     *            the maximum number of sets to harvest at once.
+     */
+    SetPartitionedHarvest(final HarvestParams params,
+            final Map<String, String> tags,
+            final Harvester listSetsHarvester,
+            final Optional<List<OAISet>> knownSets,
+            final Supplier<Harvester> harvesterFactory,
+            final Function<Predicate<HarvestedOAIRecord>, OAIResponseHandler>
+                handlerFactory,
+            final Iterable<Observer> observers,
+            final ExecutorService executorService,
+            final RunningHarvesters runningHarvesters,
+            final int parallelism) {
+        Objects.requireNonNull(params, "params");
+        Objects.requireNonNull(tags, "tags");
+        Objects.requireNonNull(listSetsHarvester, "listSetsHarvester");
+        Objects.requireNonNull(knownSets, "knownSets");
+        Objects.requireNonNull(harvesterFactory, "harvesterFactory");
+        Objects.requireNonNull(handlerFactory, "handlerFactory");
+        Objects.requireNonNull(observers, "observers");
+        Objects.requireNonNull(executorService, "executorService");
+        Objects.requireNonNull(runningHarvesters, "runningHarvesters");
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "parallelism must be positive.");
+        }
+        this.params = params;
+        this.tags = tags;
+        this.listSetsHarvester = listSetsHarvester;
+        this.knownSets = knownSets;
+        this.harvesterFactory = harvesterFactory;
+        this.handlerFactory = handlerFactory;
+        this.observers = observers;
+        this.executorService = executorService;
+        this.runningHarvesters = runningHarvesters;
+        this.parallelism = parallelism;
+    }
+
+    private static boolean isNoSetHierarchy(final OAIProtocolException e) {
+        return e.getOAIErrors().stream().anyMatch(x ->
+            x.getErrorCode().equals(
+                    Optional.of(OAIErrorCode.NO_SET_HIERARCHY)));
+    }
+
+    private List<OAISet> listSets() {
+        if (knownSets.isPresent()) {
+            return knownSets.get();
+        }
+        final List<OAISet> sets = new ArrayList<>();
+        final OAIEventHandler eventHandler = new ListSetsOAIEventHandler(
+                sets::add);
+        final OAIResponseHandler handler = new AbstractOAIResponseHandler() {
+            @Override
+            public OAIEventHandler getEventHandler(
+                    final HarvestNotification notification) {
+                return eventHandler;
+            }
+        };
+        listSetsHarvester.start(new HarvestParams.Builder(
+                params.getBaseURI(), OAIVerb.LIST_SETS).build(), handler,
+                tags);
+        return sets;
+    }
+
+    @Override
+    public void run() {
+        final Queue<HarvestParams> queue = new ConcurrentLinkedQueue<>();
+        try {
+            listSets().stream()
+                .filter(OAISet::isTopLevel)
+                .forEach(s -> queue.add(params.toBuilder()
+                        .withSet(s.getSetSpec()).build()));
+        } catch (final OAIProtocolException e) {
+            if (!isNoSetHierarchy(e)) {
+                throw e;
+            }
+            LOGGER.info("Repository {} has no sets. Harvesting it whole.",
+                    params.getBaseURI());
+        }
+        if (queue.isEmpty()) {
+            harvest(params, x -> true);
+            return;
+        }
+        LOGGER.info("Harvesting {} sets from {}.", queue.size(),
+                params.getBaseURI());
+        final RecordMerger merger = new RecordMerger();
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        final Phaser phaser = new Phaser(1);
+        final int workers = Math.min(parallelism, queue.size());
+        for (int i = 1; i < workers; i++) {
+            try {
+                executorService.submit(() -> {
+                    if (phaser.register() < 0) {
+                        return;
+                    }
+                    if (mdc != null) {
+                        MDC.setContextMap(mdc);
+                    }
+                    try {
+                        work(queue, merger);
+                    } finally {
+                        MDC.clear();
+                        phaser.arriveAndDeregister();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                LOGGER.warn("Could not start set harvest worker.", e);
+                break;
+            }
+        }
+        work(queue, merger);
+        phaser.arriveAndAwaitAdvance();
+    }
+
+    private void work(final Queue<HarvestParams> queue,
+            final RecordMerger merger) {
+        HarvestParams p;
+        while (!runningHarvesters.isCancelled() &&
+                (p = queue.poll()) != null) {
+            harvest(p, merger);
+        }
+    }
+
+    private void harvest(final HarvestParams p,
+            final Predicate<HarvestedOAIRecord> filter) {
+        final Harvester harvester = harvesterFactory.get();
+        observers.forEach(harvester::addObserver);
+        final Map<String, String> t = new HashMap<>(tags);
+        final String setSpec = p.get(OAIRequestParameter.SET);
+        if (setSpec != null) {
+            t.put(SET_SPEC_TAG, setSpec);
+        }
+        final OAIResponseHandler handler = handlerFactory.apply(filter);
+        runningHarvesters.wrappedRunnable(harvester, () -> {
+            try {
+                harvester.start(p, handler, t);
+            } catch (final Exception e) {
+                LOGGER.error("Error harvesting set " + setSpec + ".", e);
+            }
+        }).run();
+    }
+}
@@ -0,0 +1,61 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig.PaginationLoadingStrategy;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.model.Select;
+
+/**
+ * Loads the identifiers and datestamps of the records stored for a
+ * repository.
+ * <p>
+ * Records are read through {@link HarvestedOAIRecord#DATESTAMP_INDEX}, which
+ * projects only keys, so that reading them does not read their XML. The whole
+ * map is held in memory: expect on the order of a hundred bytes per record.
+ * </p>
+ */
+public final class StoredDatestamps
+implements Function<URI, Map<String, String>> {
+    private static final DynamoDBMapperConfig ITERATION_ONLY =
+            new DynamoDBMapperConfig(PaginationLoadingStrategy.ITERATION_ONLY);
+
+    private final DynamoDBMapper mapper;
+
+
+    public StoredDatestamps(final DynamoDBMapper mapper) {
+        this.mapper = Objects.requireNonNull(mapper, "mapper");
+    }
+
+    /**
+     * Load the stored records of a repository.
+     *
+     * @param baseURI
+     *            the repository's base URI.
+     * @return a map from the identifier of each record stored for the
+     *         repository to its datestamp.
+     */
+    @Override
+    public Map<String, String> apply(final URI baseURI) {
+        final HarvestedOAIRecord hashKey = new HarvestedOAIRecord();
+        hashKey.setBaseURL(baseURI.toString());
+        final DynamoDBQueryExpression<HarvestedOAIRecord> query =
+                new DynamoDBQueryExpression<HarvestedOAIRecord>()
+                .withHashKeyValues(hashKey)
+                .withIndexName(HarvestedOAIRecord.DATESTAMP_INDEX)
+                .withSelect(Select.ALL_PROJECTED_ATTRIBUTES)
+                .withConsistentRead(false);
+        final Map<String, String> datestamps = new HashMap<>();
+        for (final HarvestedOAIRecord record : mapper.query(
+                HarvestedOAIRecord.class, query, ITERATION_ONLY)) {
+            datestamps.put(record.getIdentifier(), record.getDatestamp());
+        }
+        return datestamps;
+    }
+}
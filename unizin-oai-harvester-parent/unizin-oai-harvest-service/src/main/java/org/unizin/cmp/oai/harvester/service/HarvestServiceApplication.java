@@ -15,12 +15,18 @@ import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestWatchdog;
+import org.unizin.cmp.oai.harvester.HostLimiter;
 import org.unizin.cmp.oai.harvester.service.client.JIRAClient;
 import org.unizin.cmp.oai.harvester.service.config.DynamoDBConfiguration;
 import org.unizin.cmp.oai.harvester.service.config.HarvestHttpClientBuilder;
 import org.unizin.cmp.oai.harvester.service.config.HarvestJobConfiguration;
 import org.unizin.cmp.oai.harvester.service.config.HarvestServiceConfiguration;
+import org.unizin.cmp.oai.harvester.service.config.HarvestWatchdogConfiguration;
+import org.unizin.cmp.oai.harvester.service.config.HostLimiterConfiguration;
 import org.unizin.cmp.oai.harvester.service.config.JIRAClientConfiguration;
+import org.unizin.cmp.oai.harvester.service.config.JobSchedulerConfiguration;
+import org.unizin.cmp.oai.harvester.service.config.RepositoryMetadataConfiguration;
 import org.unizin.cmp.oai.harvester.service.config.NuxeoClientConfiguration;
 import org.unizin.cmp.oai.harvester.service.db.ManagedH2Server;
 
@@ -39,6 +45,7 @@ import io.dropwizard.java8.Java8Bundle;
 import io.dropwizard.java8.jdbi.DBIFactory;
 import io.dropwizard.jetty.ConnectorFactory;
 import io.dropwizard.jetty.HttpConnectorFactory;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.migrations.MigrationsBundle;
 import io.dropwizard.server.DefaultServerFactory;
 import io.dropwizard.setup.Bootstrap;
@@ -180,6 +187,89 @@ extends Application<HarvestServiceConfiguration> {
     }
 
 
+    /**
+     * Resume harvests interrupted when the service last stopped, if so
+     * configured, or else report that they can be resumed.
+     */
+    private void resumeInterruptedJobs(final Environment env,
+            final HarvestJobConfiguration jobConfig,
+            final JobManager jobManager, final ExecutorService executor) {
+        if (jobConfig.isResumeInterruptedJobs()) {
+            env.lifecycle().manage(new Managed() {
+                @Override
+                public void start() throws Exception {
+                    jobManager.resumeInterruptedJobs(executor);
+                }
+
+                @Override
+                public void stop() {
+                }
+            });
+            return;
+        }
+        final int interrupted = jobManager.findInterruptedHarvests().size();
+        if (interrupted > 0) {
+            LOGGER.warn("{} interrupted harvests can be resumed from their " +
+                    "last checkpoints by a POST to {}resume, or automatically " +
+                    "at startup by enabling resumeInterruptedJobs.",
+                    interrupted, JobResource.PATH);
+        }
+    }
+
+    private void setupJobScheduler(final HarvestServiceConfiguration conf,
+            final Environment env, final DBI dbi, final JobManager jobManager,
+            final ExecutorService executor) {
+        final JobSchedulerConfiguration schedConf =
+                conf.getJobSchedulerConfiguration();
+        if (!schedConf.isScheduleEnabled()) {
+            LOGGER.warn("Scheduled jobs are disabled.");
+            return;
+        }
+        schedConf.schedule(env, dbi, jobManager, executor);
+    }
+
+    private RepositoryMetadataCache setupRepositoryMetadataCache(
+            final HarvestServiceConfiguration conf, final Environment env,
+            final DBI dbi, final HttpClient httpClient) {
+        final RepositoryMetadataConfiguration metadataConf =
+                conf.getRepositoryMetadataConfiguration();
+        final RepositoryMetadataCache cache = metadataConf.build(dbi,
+                httpClient, env.getObjectMapper());
+        if (!metadataConf.isRefreshEnabled()) {
+            LOGGER.warn("Repository metadata refresh is disabled.");
+            return cache;
+        }
+        metadataConf.schedule(env, cache);
+        return cache;
+    }
+
+    private HostLimiter setupHostLimiter(
+            final HarvestServiceConfiguration conf, final Environment env,
+            final DBI dbi) {
+        final HostLimiterConfiguration limiterConf =
+                conf.getHostLimiterConfiguration();
+        if (!limiterConf.isEnabled()) {
+            LOGGER.warn("Repository host limits are disabled.");
+            return null;
+        }
+        final HostLimits limits = limiterConf.build(dbi);
+        limiterConf.schedule(env, limits);
+        return new HostLimiter(limits);
+    }
+
+    private HarvestWatchdog setupWatchdog(
+            final HarvestServiceConfiguration conf, final Environment env) {
+        final HarvestWatchdogConfiguration watchdogConf =
+                conf.getHarvestWatchdogConfiguration();
+        if (!watchdogConf.isEnabled()) {
+            LOGGER.warn("The harvest watchdog is disabled.");
+            return null;
+        }
+        final HarvestWatchdog watchdog = watchdogConf.build();
+        watchdogConf.schedule(env, watchdog);
+        return watchdog;
+    }
+
     @Override
     public void run(final HarvestServiceConfiguration conf,
             final Environment env) throws Exception {
@@ -187,6 +277,8 @@ extends Application<HarvestServiceConfiguration> {
                 conf.getDataSourceFactory(), DBI_NAME);
         final HttpClient httpClient = new HarvestHttpClientBuilder(env)
                 .using(conf.getHttpClientConfiguration())
+                // Harvesters decode responses, counting the bytes received.
+                .disableContentCompression(true)
                 .build(HTTP_CLIENT_NAME);
         final HarvestJobConfiguration jobConfig = conf.getJobConfiguration();
         final ExecutorService executor = jobConfig.executorService(env);
@@ -196,9 +288,26 @@ extends Application<HarvestServiceConfiguration> {
         createDynamoDBTable(dynamoDBConfig, dynamoDBClient);
         setupNuxeoClient(conf, env, dbi);
         startH2Servers(conf, env);
-        final JobManager jobManager = new JobManager(jobConfig, httpClient,
-                dynamoDBClient, dbi, failureListener(env, conf));
+        final RepositoryMetadataCache metadataCache =
+                setupRepositoryMetadataCache(conf, env, dbi, httpClient);
+        final HostLimiter hostLimiter = setupHostLimiter(conf, env, dbi);
+        final HarvestWatchdog watchdog = setupWatchdog(conf, env);
+        final JobManager jobManager;
+        if (jobConfig.isAsync()) {
+            jobManager = new JobManager(jobConfig, httpClient,
+                    jobConfig.asyncHttpClient(env,
+                            conf.getHttpClientConfiguration()),
+                    jobConfig.parserExecutorService(env), dynamoDBClient, dbi,
+                    failureListener(env, conf), metadataCache, hostLimiter,
+                    watchdog);
+        } else {
+            jobManager = new JobManager(jobConfig, httpClient, null, null,
+                    dynamoDBClient, dbi, failureListener(env, conf),
+                    metadataCache, hostLimiter, watchdog);
+        }
         setupDynamoDBMonitor(env, dynamoDBConfig, dynamoDBClient, jobManager);
+        resumeInterruptedJobs(env, jobConfig, jobManager, executor);
+        setupJobScheduler(conf, env, dbi, jobManager, executor);
         final JobResource jr = new JobResource(dbi, jobManager, executor);
         env.jersey().register(jr);
     }
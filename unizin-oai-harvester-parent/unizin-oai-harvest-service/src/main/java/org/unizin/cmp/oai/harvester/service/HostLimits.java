@@ -0,0 +1,119 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.skife.jdbi.v2.DBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.harvester.HostLimiter;
+import org.unizin.cmp.oai.harvester.HostLimiter.Limits;
+import org.unizin.cmp.oai.harvester.service.db.DBIUtils;
+import org.unizin.cmp.oai.harvester.service.db.JobJDBI;
+
+/**
+ * Source of the {@link HostLimiter} limits for each repository host.
+ * <p>
+ * Repositories may override the default limits in the {@code REPOSITORY}
+ * table. Since limits are kept per host, repositories sharing a host share
+ * the strictest of their limits. Lookups only ever consult memory; the limits
+ * are loaded by {@link #refresh()}, which is meant to run periodically in the
+ * background, so changes take effect without restarting the service.
+ * </p>
+ */
+public final class HostLimits implements Runnable,
+        Function<String, Limits> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            HostLimits.class);
+
+    private final DBI dbi;
+    private final Limits defaults;
+    private volatile Map<String, Limits> limits = Collections.emptyMap();
+
+    public HostLimits(final DBI dbi, final Limits defaults) {
+        Objects.requireNonNull(dbi, "dbi");
+        Objects.requireNonNull(defaults, "defaults");
+        this.dbi = dbi;
+        this.defaults = defaults;
+    }
+
+    /**
+     * Get the limits for a host.
+     *
+     * @param hostKey
+     *            the host, as given by {@link HostLimiter#hostKey(URI)}.
+     * @return the host's limits, or the defaults if none of its repositories
+     *         overrides them.
+     */
+    @Override
+    public Limits apply(final String hostKey) {
+        return limits.getOrDefault(hostKey, defaults);
+    }
+
+    /** Reload the limits from the {@code REPOSITORY} table. */
+    public void refresh() {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            limits = limitsByHost(jdbi.findRepositoryLimits(), defaults);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            refresh();
+        } catch (final Exception e) {
+            /* Uncaught exceptions will cause the scheduler to stop running
+             * this task, so catch them all. */
+            LOGGER.error("Error refreshing repository host limits.", e);
+        }
+    }
+
+    private static Limits min(final Limits a, final Limits b) {
+        return new Limits(
+                Math.min(a.getRequestsPerSecond(), b.getRequestsPerSecond()),
+                Math.min(a.getMaxInFlight(), b.getMaxInFlight()));
+    }
+
+    /**
+     * Combine the limits set for each repository into limits for each host.
+     *
+     * @param rows
+     *            rows with each repository's base URI and optional limits.
+     *            Limits that are absent or not positive take their default
+     *            values.
+     * @param defaults
+     *            the default limits.
+     * @return map from host key to the strictest limits of the host's
+     *         repositories.
+     */
+    static Map<String, Limits> limitsByHost(
+            final Iterable<Map<String, Object>> rows, final Limits defaults) {
+        final Map<String, Limits> byHost = new HashMap<>();
+        for (final Map<String, Object> row : rows) {
+            final String baseURI = (String)row.get("REPOSITORY_BASE_URI");
+            final Number rps = (Number)row.get(
+                    "REPOSITORY_MAX_REQUESTS_PER_SECOND");
+            final Number inFlight = (Number)row.get(
+                    "REPOSITORY_MAX_IN_FLIGHT");
+            final String key;
+            try {
+                key = HostLimiter.hostKey(new URI(baseURI));
+            } catch (final Exception e) {
+                LOGGER.warn("Skipping repository with invalid base URI.", e);
+                continue;
+            }
+            final Limits l = new Limits(
+                    rps == null || !(rps.doubleValue() > 0) ?
+                            defaults.getRequestsPerSecond() :
+                            rps.doubleValue(),
+                    inFlight == null || inFlight.intValue() <= 0 ?
+                            defaults.getMaxInFlight() : inFlight.intValue());
+            byHost.merge(key, l, HostLimits::min);
+        }
+        return Collections.unmodifiableMap(byHost);
+    }
+}
@@ -1,38 +1,66 @@
 package org.unizin.cmp.oai.harvester.service;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Observer;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.nio.client.HttpAsyncClient;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
 import org.unizin.cmp.oai.harvester.HarvestNotification;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.HarvestListener;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
 import org.unizin.cmp.oai.harvester.HarvestParams;
+import org.unizin.cmp.oai.harvester.HarvestStateRecorder;
+import org.unizin.cmp.oai.harvester.HarvestStateStore;
+import org.unizin.cmp.oai.harvester.HarvestWatchdog;
 import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.HostLimiter;
+import org.unizin.cmp.oai.harvester.NotificationBus;
+import org.unizin.cmp.oai.harvester.NotificationBus.OverflowPolicy;
+import org.unizin.cmp.oai.harvester.RepositoryMetadata;
+import org.unizin.cmp.oai.harvester.job.HarvestCheckpoint;
 import org.unizin.cmp.oai.harvester.job.HarvestJob;
+import org.unizin.cmp.oai.harvester.job.HarvestStrategy;
 import org.unizin.cmp.oai.harvester.job.JobHarvestSpec;
 import org.unizin.cmp.oai.harvester.job.JobNotification;
 import org.unizin.cmp.oai.harvester.job.JobNotification.JobNotificationType;
 import org.unizin.cmp.oai.harvester.service.config.HarvestJobConfiguration;
 import org.unizin.cmp.oai.harvester.service.db.DBIUtils;
 import org.unizin.cmp.oai.harvester.service.db.H2Functions.HarvestInfo;
+import org.unizin.cmp.oai.harvester.service.db.H2HarvestStateStore;
 import org.unizin.cmp.oai.harvester.service.db.H2Functions.JobInfo;
+import org.unizin.cmp.oai.harvester.service.db.JobJDBI;
 
 /**
  * Responsible for creating and providing status on all running jobs in the
@@ -42,6 +70,8 @@ import org.unizin.cmp.oai.harvester.service.db.H2Functions.JobInfo;
  * </p>
  */
 public final class JobManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            JobManager.class);
 
     public static final class JobCreationException extends RuntimeException {
         private static final long serialVersionUID = 1L;
@@ -64,24 +94,134 @@ public final class JobManager {
 
     private final HarvestJobConfiguration jobConfig;
     private final HttpClient httpClient;
+    private final HttpAsyncClient asyncHttpClient;
+    private final Executor parserExecutor;
     private final DynamoDBClient dynamoClient;
     private final DBI dbi;
+    private final HarvestStateStore stateStore;
     private final Consumer<HarvestNotification> harvestFailureListener;
+    private final Function<URI, Optional<RepositoryMetadata>>
+        repositoryMetadata;
+    private final HostLimiter hostLimiter;
+    private final HarvestWatchdog watchdog;
+    /**
+     * Delivers the notifications that update job status, which writes to the
+     * database, on its own thread.
+     */
+    private final NotificationBus statusUpdates = new NotificationBus();
     private final ConcurrentMap<String, JobStatus> jobStatus =
             new ConcurrentHashMap<>();
     private final ConcurrentMap<String, HarvestJob> jobs =
             new ConcurrentHashMap<>();
+    /** Base URIs of the repositories harvested by each running job. */
+    private final ConcurrentMap<String, Set<URI>> runningRepositories =
+            new ConcurrentHashMap<>();
 
 
     public JobManager(final HarvestJobConfiguration jobConfig,
             final HttpClient httpClient, final DynamoDBClient dynamoClient,
             final DBI dbi,
             final Consumer<HarvestNotification> harvestFailureListener) {
+        this(jobConfig, httpClient, null, null, dynamoClient, dbi,
+                harvestFailureListener);
+    }
+
+    /**
+     * Create a new instance whose jobs run harvests asynchronously.
+     *
+     * @param asyncHttpClient
+     *            the client for asynchronous harvests, or {@code null} to run
+     *            harvests synchronously.
+     * @param parserExecutor
+     *            the executor on which asynchronous harvests parse responses.
+     */
+    public JobManager(final HarvestJobConfiguration jobConfig,
+            final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBClient dynamoClient,
+            final DBI dbi,
+            final Consumer<HarvestNotification> harvestFailureListener) {
+        this(jobConfig, httpClient, asyncHttpClient, parserExecutor,
+                dynamoClient, dbi, harvestFailureListener,
+                uri -> Optional.empty());
+    }
+
+    /**
+     * Create a new instance that plans jobs with cached repository metadata.
+     *
+     * @param repositoryMetadata
+     *            function from a repository's base URI to its cached
+     *            metadata, if any. It is called while creating and running
+     *            jobs, so it should not make requests itself.
+     */
+    public JobManager(final HarvestJobConfiguration jobConfig,
+            final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBClient dynamoClient,
+            final DBI dbi,
+            final Consumer<HarvestNotification> harvestFailureListener,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata) {
+        this(jobConfig, httpClient, asyncHttpClient, parserExecutor,
+                dynamoClient, dbi, harvestFailureListener, repositoryMetadata,
+                null);
+    }
+
+    /**
+     * Create a new instance whose jobs share a limiter that paces requests to
+     * each repository host.
+     *
+     * @param hostLimiter
+     *            the limiter, or {@code null} to leave requests unlimited.
+     */
+    public JobManager(final HarvestJobConfiguration jobConfig,
+            final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBClient dynamoClient,
+            final DBI dbi,
+            final Consumer<HarvestNotification> harvestFailureListener,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata,
+            final HostLimiter hostLimiter) {
+        this(jobConfig, httpClient, asyncHttpClient, parserExecutor,
+                dynamoClient, dbi, harvestFailureListener, repositoryMetadata,
+                hostLimiter, null);
+    }
+
+    /**
+     * Create a new instance whose harvests are watched by a watchdog that
+     * cancels those that run too long or stall.
+     *
+     * @param watchdog
+     *            the watchdog, or {@code null} to leave harvests unwatched.
+     *            It must be run periodically by the caller.
+     */
+    public JobManager(final HarvestJobConfiguration jobConfig,
+            final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBClient dynamoClient,
+            final DBI dbi,
+            final Consumer<HarvestNotification> harvestFailureListener,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata,
+            final HostLimiter hostLimiter,
+            final HarvestWatchdog watchdog) {
+        Objects.requireNonNull(repositoryMetadata, "repositoryMetadata");
         this.jobConfig = jobConfig;
         this.httpClient = httpClient;
+        this.asyncHttpClient = asyncHttpClient;
+        this.parserExecutor = parserExecutor;
         this.dynamoClient = dynamoClient;
         this.dbi = dbi;
+        this.stateStore = new H2HarvestStateStore(dbi);
         this.harvestFailureListener = harvestFailureListener;
+        this.repositoryMetadata = repositoryMetadata;
+        this.hostLimiter = hostLimiter;
+        this.watchdog = watchdog;
     }
 
     private JobInfo addJobToDatabase(final List<HarvestParams> harvests) {
@@ -94,7 +234,8 @@ public final class JobManager {
     }
 
     private List<JobHarvestSpec> buildSpecs(final String jobName,
-            final JobInfo jobInfo, final List<HarvestParams> params) {
+            final JobInfo jobInfo, final List<HarvestParams> params,
+            final Map<HarvestParams, HarvestStrategy> strategies) {
         final List<JobHarvestSpec> specs = new ArrayList<>();
         final Iterator<HarvestInfo> harvests = jobInfo.getHarvests().iterator();
         params.forEach(x -> {
@@ -105,36 +246,94 @@ public final class JobManager {
                     harvestInfo.getRepositoryInstitution());
             tags.put(REPOSITORY_NAME, harvestInfo.getRepositoryName());
             tags.put(JOB_NAME, jobName);
-            specs.add(new JobHarvestSpec(x, tags));
+            specs.add(new JobHarvestSpec(x, tags,
+                    strategies.getOrDefault(x, HarvestStrategy.SINGLE)));
         });
         return specs;
     }
 
-    private void harvestUpdate(final String jobName, final Object o,
-            final Object arg) {
-        if (o instanceof Harvester && arg instanceof HarvestNotification) {
-            final JobStatus status = jobStatus.get(jobName);
-            final HarvestNotification hn = (HarvestNotification)arg;
-            if (hn.getType() == HarvestNotificationType.HARVEST_ENDED &&
-                    hn.hasError()) {
-                harvestFailureListener.accept(hn);
-            }
-            status.harvestUpdate(hn);
+    private static boolean isProgress(final Object notification) {
+        if (notification instanceof HarvestNotification) {
+            final HarvestNotificationType type =
+                    ((HarvestNotification)notification).getType();
+            return type == HarvestNotificationType.RESPONSE_RECEIVED ||
+                    type == HarvestNotificationType.RESPONSE_PROCESSED;
+        }
+        if (notification instanceof JobNotification) {
+            final JobNotificationType type =
+                    ((JobNotification)notification).getType();
+            return type == JobNotificationType.BATCH_STARTED ||
+                    type == JobNotificationType.BATCH_FINISHED;
+        }
+        return false;
+    }
+
+    /**
+     * Progress is coalesced per harvest name, since job status keeps only
+     * the latest notification of each.
+     */
+    private static Object subject(final Object notification) {
+        if (notification instanceof HarvestNotification) {
+            return ((HarvestNotification)notification).getTag(HARVEST_NAME);
+        }
+        return JobNotification.class;
+    }
+
+    /**
+     * Update a job's status from a harvest or job notification. Called on the
+     * status update bus's dispatcher thread, so that database writes don't
+     * hold up harvests or the job's writes to DynamoDB.
+     */
+    private void statusUpdate(final String jobName,
+            final HarvestListener recorder, final Object notification) {
+        if (notification instanceof HarvestNotification) {
+            final HarvestNotification hn = (HarvestNotification)notification;
+            recorder.onNotification(hn);
+            harvestUpdate(jobName, hn);
+        } else if (notification instanceof JobNotification) {
+            jobUpdate(jobName, (JobNotification)notification);
+        }
+    }
+
+    private void harvestUpdate(final String jobName,
+            final HarvestNotification hn) {
+        final JobStatus status = jobStatus.get(jobName);
+        if (status == null) {
+            return;
+        }
+        if (hn.getType() == HarvestNotificationType.HARVEST_ENDED &&
+                hn.hasError()) {
+            harvestFailureListener.accept(hn);
+        }
+        if (hn.getType() == HarvestNotificationType.HARVEST_ENDED &&
+                hn.isCancelled()) {
+            LOGGER.info("Harvest in job {} cancelled in {} ms.", jobName,
+                    hn.getStat(HarvestStatistic.CANCEL_LATENCY_MILLIS));
+        }
+        status.harvestUpdate(hn);
+        jobStatus.put(jobName, status);
+    }
+
+    private void jobUpdate(final String jobName,
+            final JobNotification notification) {
+        final JobStatus status = jobStatus.get(jobName);
+        if (status == null) {
+            return;
+        }
+        status.jobUpdate(notification);
+        if (notification.getType() == JobNotificationType.STOPPED) {
+            jobStatus.remove(jobName);
+            runningRepositories.remove(jobName);
+        } else {
             jobStatus.put(jobName, status);
         }
     }
 
-    private void jobUpdate(final String jobName, final Object o,
-            final Object arg) {
-        if (o instanceof HarvestJob && arg instanceof JobNotification) {
-            final JobStatus status = jobStatus.get(jobName);
-            final JobNotification notification = (JobNotification)arg;
-            status.jobUpdate(notification);
-            if (notification.getType() == JobNotificationType.STOPPED) {
-                jobStatus.remove(jobName);
-            } else {
-                jobStatus.put(jobName, status);
-            }
+    private void harvestCheckpoint(final String jobName,
+            final HarvestCheckpoint checkpoint) {
+        final JobStatus status = jobStatus.get(jobName);
+        if (status != null) {
+            status.harvestCheckpoint(checkpoint);
         }
     }
 
@@ -159,27 +358,276 @@ public final class JobManager {
     public String newJob(final ExecutorService executor,
             final List<HarvestParams> params)
                     throws NoSuchAlgorithmException {
+        return newJob(executor, params, Collections.emptyMap());
+    }
+
+    /**
+     * Create a new harvest job, choosing how each harvest is run.
+     *
+     * @param executor
+     *            the executor service that will manage the job's threads.
+     * @param params
+     *            parameters of harvests to include in the job.
+     * @param strategies
+     *            the strategy for each harvest. Harvests not in this map use
+     *            {@link HarvestStrategy#SINGLE}.
+     * @return the name of the newly-created job.
+     *
+     * @throws NoSuchAlgorithmException
+     *             if the JDK in use does not support the standard MD5 hashing
+     *             algorithm (very unlikely).
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the executor cannot run the new job for some reason.
+     * @throws JobCreationException
+     *             if any of the harvests specify an invalid repository base
+     *             URI.
+     */
+    public String newJob(final ExecutorService executor,
+            final List<HarvestParams> params,
+            final Map<HarvestParams, HarvestStrategy> strategies)
+                    throws NoSuchAlgorithmException {
+        return String.valueOf(startJob(executor, params, strategies).getID());
+    }
+
+    /**
+     * Create a new incremental harvest job.
+     * <p>
+     * Each harvest starts from the {@code responseDate} of the last complete
+     * harvest of the same repository, metadata format, and set, less the
+     * configured overlap. Harvests of lists never completely harvested
+     * before, harvests that already start later, and harvests that are not
+     * of lists are unchanged.
+     * </p>
+     * <p>
+     * Set-partitioned harvests record each set separately, so incremental
+     * harvests of a whole repository start where the last complete
+     * <em>single</em> harvest of it ended.
+     * </p>
+     *
+     * @param executor
+     *            the executor service that will manage the job's threads.
+     * @param params
+     *            parameters of harvests to include in the job.
+     * @param strategies
+     *            the strategy for each harvest. Harvests not in this map use
+     *            {@link HarvestStrategy#SINGLE}.
+     * @return the name of the newly-created job.
+     *
+     * @throws NoSuchAlgorithmException
+     *             if the JDK in use does not support the standard MD5 hashing
+     *             algorithm (very unlikely).
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the executor cannot run the new job for some reason.
+     * @throws JobCreationException
+     *             if any of the harvests specify an invalid repository base
+     *             URI.
+     * @see HarvestParams.Builder#withIncrementalFrom(HarvestStateStore,
+     *      java.time.Duration, org.unizin.cmp.oai.OAIDateGranularity)
+     */
+    public String newIncrementalJob(final ExecutorService executor,
+            final List<HarvestParams> params,
+            final Map<HarvestParams, HarvestStrategy> strategies)
+                    throws NoSuchAlgorithmException {
+        final List<HarvestParams> incremental = new ArrayList<>(
+                params.size());
+        final Map<HarvestParams, HarvestStrategy> incrementalStrategies =
+                new HashMap<>(strategies.size());
+        for (final HarvestParams p : params) {
+            // Only lists can be harvested selectively.
+            final HarvestParams ip = p.getVerb() != OAIVerb.LIST_RECORDS ? p :
+                p.toBuilder()
+                    .withIncrementalFrom(stateStore,
+                            jobConfig.getIncrementalOverlap(),
+                            incrementalGranularity(p.getBaseURI()))
+                    .build();
+            incremental.add(ip);
+            if (strategies.containsKey(p)) {
+                incrementalStrategies.put(ip, strategies.get(p));
+            }
+        }
+        return newJob(executor, incremental, incrementalStrategies);
+    }
+
+    /**
+     * Get the granularity in which to send a repository's incremental
+     * {@code from} dates: the finest it supports, if its metadata is cached,
+     * or the configured granularity otherwise.
+     */
+    private OAIDateGranularity incrementalGranularity(final URI baseURI) {
+        return repositoryMetadata.apply(baseURI)
+                .map(m -> m.getIdentity().getGranularity())
+                .orElseGet(jobConfig::getIncrementalGranularity);
+    }
+
+    private void warnUnsupportedFormats(final List<HarvestParams> params) {
+        for (final HarvestParams p : params) {
+            final String prefix = p.get(OAIRequestParameter.METADATA_PREFIX);
+            if (prefix != null && repositoryMetadata.apply(p.getBaseURI())
+                    .map(m -> !m.supportsMetadataPrefix(prefix))
+                    .orElse(false)) {
+                LOGGER.warn("Repository {} did not list metadata format {} " +
+                        "when its metadata was last fetched.",
+                        p.getBaseURI(), prefix);
+            }
+        }
+    }
+
+    private JobInfo startJob(final ExecutorService executor,
+            final List<HarvestParams> params,
+            final Map<HarvestParams, HarvestStrategy> strategies)
+                    throws NoSuchAlgorithmException {
         final JobInfo jobInfo = addJobToDatabase(params);
         final List<String> invalidURIs = jobInfo.getInvalidRepositoryBaseURIs();
         if (! invalidURIs.isEmpty()) {
             throw new JobCreationException(invalidURIs);
         }
         final String jobName = String.valueOf(jobInfo.getID());
-        final List<JobHarvestSpec> specs = buildSpecs(jobName, jobInfo, params);
-        final Observer observeHarvests = (o, arg) -> {
-            harvestUpdate(jobName, o, arg);
-        };
-        final HarvestJob job = jobConfig.job(httpClient,
-                dynamoClient.getMapper(), executor,
-                jobName, specs, Collections.singletonList(observeHarvests));
-        job.addObserver((o, arg) -> jobUpdate(jobName, o, arg));
+        warnUnsupportedFormats(params);
+        final List<JobHarvestSpec> specs = buildSpecs(jobName, jobInfo, params,
+                strategies);
+        /*
+         * Harvest and job notifications share one subscription, so that
+         * they're handled in the order they were sent. Its observer takes
+         * each harvest notification's phase timings as it is sent, so job
+         * status doesn't report those of later responses.
+         */
+        final HarvestListener recorder = new HarvestStateRecorder(stateStore);
+        final Observer updates = statusUpdates.subscribe(
+                (Object n) -> statusUpdate(jobName, recorder, n),
+                OverflowPolicy.COALESCE, JobManager::isProgress,
+                JobManager::subject).asObserver(Object.class);
+        final List<Observer> harvestObservers = new ArrayList<>();
+        harvestObservers.add(updates);
+        if (watchdog != null) {
+            harvestObservers.add(watchdog);
+        }
+        final HarvestJob job = jobConfig.job(httpClient, asyncHttpClient,
+                parserExecutor, dynamoClient.getMapper(), executor,
+                jobName, specs, harvestObservers,
+                checkpoint -> harvestCheckpoint(jobName, checkpoint),
+                repositoryMetadata, hostLimiter);
+        job.addObserver(updates);
         jobStatus.put(jobName, new JobStatus(dbi));
         jobs.put(jobName, job);
-        executor.submit(() -> {
-            MDC.put(JOB_NAME, jobName);
-            job.start();
-        });
-        return jobName;
+        runningRepositories.put(jobName, params.stream()
+                .map(HarvestParams::getBaseURI)
+                .collect(Collectors.toSet()));
+        try {
+            executor.submit(() -> {
+                MDC.put(JOB_NAME, jobName);
+                job.start();
+            });
+        } catch (final RejectedExecutionException e) {
+            runningRepositories.remove(jobName);
+            throw e;
+        }
+        return jobInfo;
+    }
+
+    /**
+     * Find harvests that were interrupted by the service stopping after
+     * their last checkpoint.
+     * <p>
+     * These are harvests that never ended, whose last checkpoint was not the
+     * last page of their list, and that haven't already been resumed. This
+     * should be called only when no jobs are running (see
+     * {@link #hasRunningJobs()}), since running harvests haven't ended
+     * either.
+     * </p>
+     *
+     * @return the interrupted harvests' database rows, grouped by job.
+     */
+    public List<Map<String, Object>> findInterruptedHarvests() {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            return jdbi.findInterruptedHarvests();
+        }
+    }
+
+    /**
+     * Resume harvests that were interrupted by the service stopping.
+     * <p>
+     * The interrupted harvests of each job are resumed in a new job, each
+     * harvest continuing from the page after its last checkpoint. Every
+     * record on the pages before it has already been written. Each new
+     * harvest records which harvest it resumed, so no harvest is resumed
+     * twice.
+     * </p>
+     *
+     * @param executor
+     *            the executor service that will manage the jobs' threads.
+     * @return the names of the newly-created jobs.
+     *
+     * @throws NoSuchAlgorithmException
+     *             if the JDK in use does not support the standard MD5 hashing
+     *             algorithm (very unlikely).
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the executor cannot run a new job for some reason.
+     * @see #findInterruptedHarvests()
+     */
+    public List<String> resumeInterruptedJobs(final ExecutorService executor)
+            throws NoSuchAlgorithmException {
+        final Map<Long, Map<HarvestParams, Long>> byJob =
+                new LinkedHashMap<>();
+        for (final Map<String, Object> row : findInterruptedHarvests()) {
+            final long harvestID = (Long)row.get("HARVEST_ID");
+            try {
+                final HarvestParams params = new HarvestParams.Builder(
+                        new URI((String)row.get("REPOSITORY_BASE_URI")),
+                        OAIVerb.valueOf((String)row.get("HARVEST_VERB")))
+                        .withResumptionToken(
+                                (String)row.get("HARVEST_CHECKPOINT_TOKEN"))
+                        .build();
+                byJob.computeIfAbsent((Long)row.get("JOB_ID"),
+                        k -> new LinkedHashMap<>()).put(params, harvestID);
+            } catch (final URISyntaxException | IllegalArgumentException e) {
+                LOGGER.error("Cannot resume harvest " + harvestID + ".", e);
+            }
+        }
+        final List<String> resumed = new ArrayList<>();
+        for (final Map.Entry<Long, Map<HarvestParams, Long>> job :
+            byJob.entrySet()) {
+            final Map<HarvestParams, Long> harvests = job.getValue();
+            final List<HarvestParams> params = new ArrayList<>(
+                    harvests.keySet());
+            final JobInfo jobInfo;
+            try {
+                jobInfo = startJob(executor, params, Collections.emptyMap());
+            } catch (final JobCreationException e) {
+                LOGGER.error("Cannot resume job {}. Repositories no longer " +
+                        "exist: {}", job.getKey(), e.getInvalidBaseURIs());
+                continue;
+            }
+            final Iterator<HarvestInfo> infos = jobInfo.getHarvests()
+                    .iterator();
+            try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+                params.forEach(p -> jdbi.setHarvestResumedFrom(
+                        Long.valueOf(infos.next().getName()),
+                        harvests.get(p)));
+            }
+            LOGGER.info("Resumed {} harvests of job {} in job {}.",
+                    params.size(), job.getKey(), jobInfo.getID());
+            resumed.add(String.valueOf(jobInfo.getID()));
+        }
+        return resumed;
+    }
+
+    /**
+     * @return {@code true} iff any job started by this instance is still
+     *         running.
+     */
+    public boolean hasRunningJobs() {
+        return !runningRepositories.isEmpty();
+    }
+
+    /**
+     * @param baseURI
+     *            a repository's base URI.
+     * @return {@code true} iff a job started by this instance that harvests
+     *         the given repository is still running.
+     */
+    public boolean isHarvesting(final URI baseURI) {
+        return runningRepositories.values().stream()
+                .anyMatch(uris -> uris.contains(baseURI));
     }
 
     public HarvestJob getJob(final String jobName) {
@@ -26,6 +26,7 @@ import org.skife.jdbi.v2.DBI;
 import org.unizin.cmp.oai.OAIVerb;
 import org.unizin.cmp.oai.harvester.HarvestParams;
 import org.unizin.cmp.oai.harvester.job.HarvestJob;
+import org.unizin.cmp.oai.harvester.job.HarvestStrategy;
 import org.unizin.cmp.oai.harvester.service.JobManager.JobCreationException;
 
 /**
@@ -38,6 +39,7 @@ public final class JobResource {
     private static final class Harvests {
         List<Map<String, String>> invalid = new ArrayList<>();
         List<HarvestParams> valid = new ArrayList<>();
+        Map<HarvestParams, HarvestStrategy> strategies = new HashMap<>();
     }
 
     public static final String PATH = "/job/";
@@ -64,11 +66,25 @@ public final class JobResource {
         }
     }
 
+    static HarvestStrategy strategyOf(final String string) {
+        if (string == null) {
+            return HarvestStrategy.SINGLE;
+        }
+        switch(string) {
+        case "single": return HarvestStrategy.SINGLE;
+        case "setPartitioned": return HarvestStrategy.SET_PARTITIONED;
+        case "identifiersDiff": return HarvestStrategy.IDENTIFIERS_DIFF;
+        default: return null;
+        }
+    }
+
     private static Harvests params(final List<Map<String, String>> harvests) {
         final Harvests h = new Harvests();
         for (final Map<String, String> harvest : harvests) {
             final OAIVerb verb = verbOf(harvest.remove("verb"));
-            if (verb == null) {
+            final HarvestStrategy strategy = strategyOf(
+                    harvest.remove("strategy"));
+            if (verb == null || strategy == null) {
                 h.invalid.add(harvest);
                 continue;
             }
@@ -80,6 +96,7 @@ public final class JobResource {
                     h.invalid.add(harvest);
                 } else {
                     h.valid.add(params);
+                    h.strategies.put(params, strategy);
                 }
             } catch (final URISyntaxException e) {
                 h.invalid.add(harvest);
@@ -94,9 +111,15 @@ public final class JobResource {
         return new ArrayList<>(new HashSet<>(harvests));
     }
 
-    @POST
-    @Consumes(MediaType.APPLICATION_JSON)
-    public Response newJob(final List<Map<String, String>> request)
+    @FunctionalInterface
+    private interface JobCreator {
+        String create(List<HarvestParams> params,
+                Map<HarvestParams, HarvestStrategy> strategies)
+                        throws NoSuchAlgorithmException;
+    }
+
+    private Response newJob(final List<Map<String, String>> request,
+            final JobCreator creator)
             throws NoSuchAlgorithmException, URISyntaxException {
         final Harvests h = params(request);
         if (!h.invalid.isEmpty()) {
@@ -105,8 +128,8 @@ public final class JobResource {
             return Response.status(Status.BAD_REQUEST).entity(m).build();
         }
         try {
-            final String jobName = jobManager.newJob(executor,
-                    removeDuplicates(h.valid));
+            final String jobName = creator.create(removeDuplicates(h.valid),
+                    h.strategies);
             return Response.created(new URI(PATH + jobName)).build();
         } catch (final RejectedExecutionException e) {
             return Response.status(Status.SERVICE_UNAVAILABLE).build();
@@ -117,6 +140,53 @@ public final class JobResource {
         }
     }
 
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response newJob(final List<Map<String, String>> request)
+            throws NoSuchAlgorithmException, URISyntaxException {
+        return newJob(request, (params, strategies) ->
+            jobManager.newJob(executor, params, strategies));
+    }
+
+    /**
+     * Create a job whose harvests start where the last complete harvest of
+     * each list ended.
+     *
+     * @see JobManager#newIncrementalJob(ExecutorService, List, Map)
+     */
+    @POST
+    @Path("incremental")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response newIncrementalJob(final List<Map<String, String>> request)
+            throws NoSuchAlgorithmException, URISyntaxException {
+        return newJob(request, (params, strategies) ->
+            jobManager.newIncrementalJob(executor, params, strategies));
+    }
+
+    /**
+     * Resume harvests interrupted when the service last stopped.
+     * <p>
+     * Running harvests haven't ended either, so this is refused with
+     * {@code 409 Conflict} while any job is running.
+     * </p>
+     *
+     * @see JobManager#resumeInterruptedJobs(ExecutorService)
+     */
+    @POST
+    @Path("resume")
+    public Response resumeInterruptedJobs() throws NoSuchAlgorithmException {
+        if (jobManager.hasRunningJobs()) {
+            return Response.status(Status.CONFLICT).build();
+        }
+        try {
+            final Map<String, Object> m = new HashMap<>(1);
+            m.put("jobs", jobManager.resumeInterruptedJobs(executor));
+            return Response.ok(m).build();
+        } catch (final RejectedExecutionException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
     @GET
     @Path("running")
     public Response runningJobs() {
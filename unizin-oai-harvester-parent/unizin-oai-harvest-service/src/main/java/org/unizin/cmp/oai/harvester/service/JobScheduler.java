@@ -0,0 +1,240 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.skife.jdbi.v2.DBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+import org.unizin.cmp.oai.harvester.job.HarvestStrategy;
+import org.unizin.cmp.oai.harvester.service.JobManager.JobCreationException;
+import org.unizin.cmp.oai.harvester.service.db.DBIUtils;
+import org.unizin.cmp.oai.harvester.service.db.JobJDBI;
+
+/**
+ * Starts recurring {@code ListRecords} jobs defined in the {@code SCHEDULE}
+ * table.
+ * <p>
+ * Each schedule runs at its {@code SCHEDULE_START} (by default, the epoch)
+ * plus every multiple of its {@code SCHEDULE_PERIOD}, an ISO-8601 duration
+ * such as {@code P1D} or {@code P7D}. Each run is delayed by a jitter derived
+ * from the schedule's ID and repository, so that schedules with the same
+ * period don't all start at once, but each always runs at the same time of
+ * its period.
+ * </p>
+ * <p>
+ * A run is skipped if a job harvesting the same repository is still running.
+ * If the service was down when runs were due, only the latest is made up.
+ * Runs due before a schedule was created are never made.
+ * </p>
+ * <p>
+ * Instances are meant to be run periodically, and check for due runs each
+ * time they are run.
+ * </p>
+ */
+public final class JobScheduler implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            JobScheduler.class);
+
+    private final DBI dbi;
+    private final JobManager jobManager;
+    private final ExecutorService executor;
+    private final Duration maxJitter;
+    private final Clock clock;
+
+
+    public JobScheduler(final DBI dbi, final JobManager jobManager,
+            final ExecutorService executor, final Duration maxJitter) {
+        this(dbi, jobManager, executor, maxJitter, Clock.systemUTC());
+    }
+
+    JobScheduler(final DBI dbi, final JobManager jobManager,
+            final ExecutorService executor, final Duration maxJitter,
+            final Clock clock) {
+        this.dbi = Objects.requireNonNull(dbi, "dbi");
+        this.jobManager = Objects.requireNonNull(jobManager, "jobManager");
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.maxJitter = Objects.requireNonNull(maxJitter, "maxJitter");
+        this.clock = Objects.requireNonNull(clock, "clock");
+        if (maxJitter.isNegative()) {
+            throw new IllegalArgumentException("Jitter cannot be negative.");
+        }
+    }
+
+    /**
+     * Get the delay of each run of a schedule.
+     *
+     * @param key
+     *            identifies the schedule. Equal keys always get equal
+     *            delays.
+     * @param period
+     *            the schedule's period.
+     * @param maxJitter
+     *            the longest delay allowed.
+     * @return a delay at least zero and less than both the period and
+     *         {@code maxJitter}, or zero if either is zero.
+     */
+    static Duration jitter(final String key, final Duration period,
+            final Duration maxJitter) {
+        final long bound = Math.min(period.toMillis(), maxJitter.toMillis());
+        if (bound <= 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofMillis(
+                new SplittableRandom(key.hashCode()).nextLong(bound));
+    }
+
+    /**
+     * Get the latest run of a schedule that is due.
+     *
+     * @param start
+     *            the time of the schedule's first run, before jitter.
+     * @param period
+     *            the time between runs.
+     * @param jitter
+     *            the delay of each run.
+     * @param now
+     *            the current time.
+     * @return the time of the latest run not after {@code now}, if any.
+     */
+    static Optional<Instant> latestRun(final Instant start,
+            final Duration period, final Duration jitter, final Instant now) {
+        final Instant first = start.plus(jitter);
+        if (now.isBefore(first)) {
+            return Optional.empty();
+        }
+        final long periodMillis = period.toMillis();
+        final long runs = Duration.between(first, now).toMillis() /
+                periodMillis;
+        return Optional.of(first.plusMillis(runs * periodMillis));
+    }
+
+    private void updateRun(final long id, final Instant run,
+            final Optional<Long> jobID) {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            jdbi.updateScheduleRun(id, run, jobID);
+        }
+    }
+
+    private static HarvestParams params(final URI baseURI,
+            final Map<String, Object> schedule) {
+        // Null values are ignored, leaving the default metadata prefix.
+        return new HarvestParams.Builder(baseURI, OAIVerb.LIST_RECORDS)
+                .withMetadataPrefix(
+                        (String)schedule.get("SCHEDULE_METADATA_PREFIX"))
+                .withSet((String)schedule.get("SCHEDULE_SET_SPEC"))
+                .build();
+    }
+
+    private String startJob(final HarvestParams params,
+            final HarvestStrategy strategy, final boolean incremental)
+                    throws NoSuchAlgorithmException {
+        final List<HarvestParams> list = Collections.singletonList(params);
+        final Map<HarvestParams, HarvestStrategy> strategies =
+                Collections.singletonMap(params, strategy);
+        return incremental ?
+                jobManager.newIncrementalJob(executor, list, strategies) :
+                    jobManager.newJob(executor, list, strategies);
+    }
+
+    private void check(final Map<String, Object> schedule, final Instant now)
+            throws NoSuchAlgorithmException {
+        final long id = (Long)schedule.get("SCHEDULE_ID");
+        final String baseURIString = (String)schedule.get(
+                "REPOSITORY_BASE_URI");
+        final Duration period;
+        final URI baseURI;
+        try {
+            period = Duration.parse((String)schedule.get("SCHEDULE_PERIOD"));
+            baseURI = new URI(baseURIString);
+        } catch (final DateTimeParseException | URISyntaxException e) {
+            LOGGER.error("Invalid schedule " + id + ".", e);
+            return;
+        }
+        final HarvestStrategy strategy = JobResource.strategyOf(
+                (String)schedule.get("SCHEDULE_STRATEGY"));
+        if (period.isZero() || period.isNegative() || strategy == null) {
+            LOGGER.error("Invalid period or strategy in schedule {}.", id);
+            return;
+        }
+        final Instant start = (Instant)schedule.get("SCHEDULE_START");
+        final Optional<Instant> run = latestRun(start == null ?
+                Instant.EPOCH : start, period,
+                jitter(id + baseURIString, period, maxJitter), now);
+        final Instant lastRun = (Instant)schedule.get("SCHEDULE_LAST_RUN");
+        final Instant after = lastRun == null ?
+                (Instant)schedule.get("SCHEDULE_CREATED") : lastRun;
+        if (!run.isPresent() || !run.get().isAfter(after)) {
+            return;
+        }
+        if (jobManager.isHarvesting(baseURI)) {
+            LOGGER.warn("Skipping run of schedule {} due at {}. {} is " +
+                    "still being harvested.", id, run.get(), baseURI);
+            updateRun(id, run.get(), Optional.empty());
+            return;
+        }
+        final HarvestParams params = params(baseURI, schedule);
+        final boolean incremental = (Boolean)schedule.get(
+                "SCHEDULE_INCREMENTAL");
+        try {
+            final String jobName = startJob(params, strategy, incremental);
+            updateRun(id, run.get(), Optional.of(Long.valueOf(jobName)));
+            LOGGER.info("Started job {} for schedule {} due at {}.", jobName,
+                    id, run.get());
+        } catch (final JobCreationException e) {
+            LOGGER.error("Cannot run schedule {}. Repository no longer " +
+                    "exists: {}", id, e.getInvalidBaseURIs());
+            updateRun(id, run.get(), Optional.empty());
+        }
+    }
+
+    /**
+     * Start jobs for every schedule with a run due.
+     */
+    public void check() {
+        final Instant now = clock.instant();
+        final List<Map<String, Object>> schedules;
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            schedules = jdbi.findEnabledSchedules();
+        }
+        for (final Map<String, Object> schedule : schedules) {
+            try {
+                check(schedule, now);
+            } catch (final RejectedExecutionException e) {
+                /* The run is still due, so will be tried again next time. */
+                LOGGER.warn("Job executor is full. Deferring schedule {}.",
+                        schedule.get("SCHEDULE_ID"));
+                return;
+            } catch (final Exception e) {
+                LOGGER.error("Error running schedule " +
+                        schedule.get("SCHEDULE_ID") + ".", e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            check();
+        } catch (final Exception e) {
+            /* Uncaught exceptions will cause the scheduler to stop running
+             * this task, so catch them all. */
+            LOGGER.error("Error checking harvest schedules.", e);
+        }
+    }
+}
@@ -24,10 +24,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unizin.cmp.oai.OAIError;
 import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.HarvestProgress;
 import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
 import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.job.HarvestCheckpoint;
 import org.unizin.cmp.oai.harvester.job.JobNotification;
 import org.unizin.cmp.oai.harvester.job.JobNotification.JobStatistic;
 import org.unizin.cmp.oai.harvester.service.db.DBIUtils;
@@ -50,6 +54,13 @@ public final class JobStatus {
 
     private final ConcurrentMap<String, Object> lastHarvestNotifications =
             new ConcurrentHashMap<>();
+    /**
+     * Record counts of the last complete harvests of the lists being
+     * harvested, by harvest name, used to estimate the sizes of lists whose
+     * repositories don't report them. Zero if there is no estimate.
+     */
+    private final ConcurrentMap<String, Long> estimatedListSizes =
+            new ConcurrentHashMap<>();
 
     @JsonProperty
     private volatile Map<String, Object> lastJobNotification;
@@ -110,6 +121,12 @@ public final class JobStatus {
                     (Long)x.get("HARVEST_RESPONSE_COUNT"));
             harvestStats.put(HarvestStatistic.XML_EVENT_COUNT,
                     (Long)x.get("HARVEST_XML_EVENT_COUNT"));
+            harvestStats.put(HarvestStatistic.WIRE_BYTES,
+                    (Long)x.get("HARVEST_WIRE_BYTES"));
+            harvestStats.put(HarvestStatistic.DECODED_BYTES,
+                    (Long)x.get("HARVEST_DECODED_BYTES"));
+            harvestStats.put(HarvestStatistic.RECORD_COUNT,
+                    (Long)x.get("HARVEST_RECORD_COUNT"));
             @SuppressWarnings("unchecked")
             final List<OAIError> protocolErrors =
                     (List<OAIError>)x.get("HARVEST_PROTOCOL_ERRORS");
@@ -124,6 +141,8 @@ public final class JobStatus {
                     (Blob)x.get("HARVEST_HTTP_ERROR_RESPONSE_BODY"));
             final Map<String, Object> harvest = harvestStatusMap(harvestStarted,
                     harvestEnded, false, (Boolean)x.get("HARVEST_CANCELLED"),
+                    Optional.ofNullable((String)x.get(
+                            "HARVEST_CANCEL_REASON")),
                     (Boolean)x.get("HARVEST_INTERRUPTED"),
                     (Boolean)x.get("HARVEST_EXPLICITLY_STOPPED"),
                     harvestStackTrace.isPresent(), harvestStackTrace,
@@ -160,6 +179,7 @@ public final class JobStatus {
     private static Map<String, Object> harvestStatusMap(
             final Instant harvestStarted, final Optional<Instant> harvestEnded,
             final boolean isRunning, final boolean isCancelled,
+            final Optional<String> cancelReason,
             final boolean isInterrupted, final boolean isExplicitlyStopped,
             final boolean hasError, final Optional<String> stackTrace,
             final String baseURI, final OAIVerb verb,
@@ -181,6 +201,7 @@ public final class JobStatus {
         addIfPresent(formatInstant(harvestEnded), "ended", status);
         status.put("isRunning", isRunning);
         status.put("isCancelled", isCancelled);
+        addIfPresent(cancelReason, "cancelReason", status);
         status.put("isInterrupted", isInterrupted);
         status.put("isExplicitlyStopped", isExplicitlyStopped);
         status.put("hasError", hasError);
@@ -253,7 +274,7 @@ public final class JobStatus {
         final Map<String, Object> status = harvestStatusMap(
                 notification.getStarted(), notification.getEnded(),
                 notification.isRunning(), notification.isCancelled(),
-                notification.isInterrupted(),
+                notification.getCancelReason(), notification.isInterrupted(),
                 notification.isExplicitlyStopped(),
                 notification.hasError(), stackTrace,
                 notification.getBaseURI().toString(),
@@ -263,8 +284,18 @@ public final class JobStatus {
                 convertResumptionToken(notification.getResumptionToken()),
                 httpStatus, Arrays.asList(httpHeaders), httpErrorResponseBody,
                 Optional.empty(), Optional.empty(), oaiErrors);
+        final long estimatedListSize = estimatedListSizes.computeIfAbsent(
+                harvestName, k -> findLastRecordCount(notification,
+                        initialParameters));
+        final HarvestProgress progress = notification.getProgress()
+                .withEstimatedListSize(estimatedListSize);
+        status.put("progress", progress.toMap());
+        status.put("phaseTimings", notification.getPhaseTimings().toMap());
         // Update running harvest status.
         lastHarvestNotifications.put(harvestName, status);
+        if (notification.getType() == HarvestNotificationType.HARVEST_ENDED) {
+            estimatedListSizes.remove(harvestName);
+        }
         try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
             jdbi.harvestDatabaseUpdate(harvestID, lastRequestURI,
                     lastRequestParameters, stackTrace, notification, LOGGER);
@@ -273,6 +304,52 @@ public final class JobStatus {
         }
     }
 
+    /**
+     * Find the number of records received by the last complete harvest of
+     * the same list as a harvest.
+     * <p>
+     * Only harvests with identical initial parameters count as harvests of
+     * the same list, so incremental harvests rarely have an estimate.
+     * </p>
+     *
+     * @return the number of records, or zero if unknown.
+     */
+    private long findLastRecordCount(final HarvestNotification notification,
+            final String initialParameters) {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            final Long count = jdbi.findLastRecordCount(
+                    notification.getBaseURI().toString(),
+                    notification.getVerb().name(), initialParameters);
+            return count == null ? 0 : count;
+        } catch (final Exception e) {
+            LOGGER.warn("Error finding previous record count.", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Write a harvest's checkpoint to the database, so that the harvest can
+     * be resumed from it if the service stops before the harvest ends.
+     *
+     * @param checkpoint
+     *            the checkpoint.
+     */
+    void harvestCheckpoint(final HarvestCheckpoint checkpoint) {
+        final long harvestID = Long.valueOf(checkpoint.getTags().get(
+                JobManager.HARVEST_NAME));
+        final Optional<ResumptionToken> token =
+                checkpoint.getResumptionToken();
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            jdbi.updateHarvestCheckpoint(harvestID,
+                    token.map(ResumptionToken::getToken),
+                    token.flatMap(ResumptionToken::getCursor),
+                    token.flatMap(ResumptionToken::getCompleteListSize),
+                    checkpoint.getRecordCount(), checkpoint.getTaken());
+        } catch (final Exception e) {
+            LOGGER.error("Error writing harvest checkpoint to database.", e);
+        }
+    }
+
     private static Map<String, Object> jobStatusMap(final String jobName,
             final Instant jobStarted, final Optional<Instant> jobEnded,
             final boolean isRunning, final boolean hasError,
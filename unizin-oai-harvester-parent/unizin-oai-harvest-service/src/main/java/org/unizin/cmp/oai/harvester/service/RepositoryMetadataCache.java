@@ -0,0 +1,256 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.skife.jdbi.v2.DBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIDeletedRecord;
+import org.unizin.cmp.oai.OAIIdentity;
+import org.unizin.cmp.oai.OAIMetadataFormat;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.RepositoryMetadata;
+import org.unizin.cmp.oai.harvester.service.db.DBIUtils;
+import org.unizin.cmp.oai.harvester.service.db.JobJDBI;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cache of each enabled repository's {@link RepositoryMetadata}.
+ * <p>
+ * Lookups only ever consult memory, so planning and running jobs never
+ * costs extra requests to a repository. The cache is filled by
+ * {@link #refresh()}, which is meant to run periodically in the background:
+ * it loads metadata persisted in the {@code REPOSITORY} table, and fetches
+ * and persists metadata for repositories whose copy is missing or older than
+ * the time-to-live. Repositories whose metadata cannot be fetched keep
+ * whatever copy they had.
+ * </p>
+ */
+public final class RepositoryMetadataCache implements Runnable,
+        Function<URI, Optional<RepositoryMetadata>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            RepositoryMetadataCache.class);
+
+    private static final class Entry {
+        private final RepositoryMetadata metadata;
+        private final Instant updated;
+
+        private Entry(final RepositoryMetadata metadata,
+                final Instant updated) {
+            this.metadata = metadata;
+            this.updated = updated;
+        }
+    }
+
+    private final DBI dbi;
+    private final Supplier<Harvester> harvesterFactory;
+    private final ObjectMapper mapper;
+    private final Duration ttl;
+    private final Clock clock;
+    private final ConcurrentMap<URI, Entry> cache = new ConcurrentHashMap<>();
+
+    public RepositoryMetadataCache(final DBI dbi,
+            final Supplier<Harvester> harvesterFactory,
+            final ObjectMapper mapper, final Duration ttl) {
+        this(dbi, harvesterFactory, mapper, ttl, Clock.systemUTC());
+    }
+
+    RepositoryMetadataCache(final DBI dbi,
+            final Supplier<Harvester> harvesterFactory,
+            final ObjectMapper mapper, final Duration ttl,
+            final Clock clock) {
+        Objects.requireNonNull(dbi, "dbi");
+        Objects.requireNonNull(harvesterFactory, "harvesterFactory");
+        Objects.requireNonNull(mapper, "mapper");
+        Objects.requireNonNull(ttl, "ttl");
+        Objects.requireNonNull(clock, "clock");
+        this.dbi = dbi;
+        this.harvesterFactory = harvesterFactory;
+        this.mapper = mapper;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the cached metadata for a repository.
+     *
+     * @param baseURI
+     *            the repository's base URI.
+     * @return the cached metadata, or nothing if none has been fetched yet.
+     */
+    public Optional<RepositoryMetadata> get(final URI baseURI) {
+        return Optional.ofNullable(cache.get(baseURI)).map(e -> e.metadata);
+    }
+
+    /** Equivalent to {@link #get(URI)}. */
+    @Override
+    public Optional<RepositoryMetadata> apply(final URI baseURI) {
+        return get(baseURI);
+    }
+
+    private boolean isStale(final Instant updated, final Instant now) {
+        return updated == null || !updated.plus(ttl).isAfter(now);
+    }
+
+    private void load(final URI baseURI, final String json,
+            final Instant updated) {
+        final Entry current = cache.get(baseURI);
+        if (json == null || (current != null &&
+                !current.updated.isBefore(updated))) {
+            return;
+        }
+        try {
+            cache.put(baseURI, new Entry(fromJSON(mapper, json), updated));
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring unreadable metadata stored for " +
+                    baseURI + ".", e);
+        }
+    }
+
+    private void fetch(final JobJDBI jdbi, final URI baseURI) {
+        LOGGER.info("Fetching repository metadata from {}.", baseURI);
+        final RepositoryMetadata metadata = RepositoryMetadata.fetch(
+                harvesterFactory.get(), baseURI);
+        final Instant now = clock.instant();
+        try {
+            jdbi.updateRepositoryMetadata(baseURI.toString(),
+                    toJSON(mapper, metadata), now);
+        } catch (final IOException e) {
+            LOGGER.error("Error storing metadata for " + baseURI + ".", e);
+        }
+        cache.put(baseURI, new Entry(metadata, now));
+    }
+
+    /**
+     * Bring the cache up to date with the {@code REPOSITORY} table, fetching
+     * metadata for any repository whose copy is missing or stale.
+     */
+    public void refresh() {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            for (final Map<String, Object> row :
+                jdbi.findRepositoryMetadata()) {
+                final URI baseURI;
+                try {
+                    baseURI = new URI((String)row.get("REPOSITORY_BASE_URI"));
+                } catch (final Exception e) {
+                    LOGGER.warn("Skipping repository with invalid base URI.",
+                            e);
+                    continue;
+                }
+                final Instant updated =
+                        (Instant)row.get("REPOSITORY_METADATA_UPDATED");
+                load(baseURI, (String)row.get("REPOSITORY_METADATA"),
+                        updated);
+                if (isStale(updated, clock.instant())) {
+                    try {
+                        fetch(jdbi, baseURI);
+                    } catch (final Exception e) {
+                        LOGGER.warn("Error fetching repository metadata " +
+                                "from " + baseURI + ".", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            refresh();
+        } catch (final Exception e) {
+            /* Uncaught exceptions will cause the scheduler to stop running
+             * this task, so catch them all. */
+            LOGGER.error("Error refreshing repository metadata.", e);
+        }
+    }
+
+    static String toJSON(final ObjectMapper mapper,
+            final RepositoryMetadata metadata) throws IOException {
+        final OAIIdentity identity = metadata.getIdentity();
+        final Map<String, Object> id = new HashMap<>();
+        id.put("repositoryName", identity.getRepositoryName());
+        id.put("baseURL", identity.getBaseURL());
+        id.put("protocolVersion", identity.getProtocolVersion());
+        id.put("earliestDatestamp", identity.getEarliestDatestamp());
+        id.put("deletedRecord", identity.getDeletedRecord() == null ? null :
+            identity.getDeletedRecord().value());
+        id.put("granularity", identity.getGranularity().name());
+        id.put("adminEmails", identity.getAdminEmails());
+        id.put("compressions", identity.getCompressions());
+
+        final List<Map<String, Object>> sets = new ArrayList<>();
+        metadata.getSets().forEach(s -> {
+            final Map<String, Object> set = new HashMap<>();
+            set.put("setSpec", s.getSetSpec());
+            set.put("setName", s.getSetName());
+            sets.add(set);
+        });
+
+        final List<Map<String, Object>> formats = new ArrayList<>();
+        metadata.getMetadataFormats().forEach(f -> {
+            final Map<String, Object> format = new HashMap<>();
+            format.put("metadataPrefix", f.getMetadataPrefix());
+            format.put("schema", f.getSchema());
+            format.put("metadataNamespace", f.getMetadataNamespace());
+            formats.add(format);
+        });
+
+        final Map<String, Object> json = new HashMap<>();
+        json.put("identity", id);
+        json.put("sets", sets);
+        json.put("metadataFormats", formats);
+        return mapper.writeValueAsString(json);
+    }
+
+    @SuppressWarnings("unchecked")
+    static RepositoryMetadata fromJSON(final ObjectMapper mapper,
+            final String string) throws IOException {
+        final Map<String, Object> json = mapper.readValue(string, Map.class);
+
+        final Map<String, Object> id = (Map<String, Object>)json.get(
+                "identity");
+        final OAIIdentity.Builder builder = new OAIIdentity.Builder()
+                .withRepositoryName((String)id.get("repositoryName"))
+                .withBaseURL((String)id.get("baseURL"))
+                .withProtocolVersion((String)id.get("protocolVersion"))
+                .withEarliestDatestamp((String)id.get("earliestDatestamp"))
+                .withDeletedRecord(OAIDeletedRecord.fromValue(
+                        (String)id.get("deletedRecord")))
+                .withGranularity(OAIDateGranularity.valueOf(
+                        (String)id.get("granularity")));
+        ((List<String>)id.get("adminEmails")).forEach(builder::withAdminEmail);
+        ((List<String>)id.get("compressions")).forEach(
+                builder::withCompression);
+
+        final List<OAISet> sets = new ArrayList<>();
+        ((List<Map<String, Object>>)json.get("sets")).forEach(s ->
+            sets.add(new OAISet((String)s.get("setSpec"),
+                    (String)s.get("setName"))));
+
+        final List<OAIMetadataFormat> formats = new ArrayList<>();
+        ((List<Map<String, Object>>)json.get("metadataFormats")).forEach(f ->
+            formats.add(new OAIMetadataFormat(
+                    (String)f.get("metadataPrefix"),
+                    (String)f.get("schema"),
+                    (String)f.get("metadataNamespace"))));
+
+        return new RepositoryMetadata(builder.build(), sets, formats);
+    }
+}
@@ -1,16 +1,35 @@
 package org.unizin.cmp.oai.harvester.service.config;
 
+import java.io.IOException;
+import java.net.URI;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 import java.util.Observer;
+import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import javax.validation.constraints.Min;
 
+import org.apache.http.Header;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
 import org.hibernate.validator.constraints.NotEmpty;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.HostLimiter;
+import org.unizin.cmp.oai.harvester.RepositoryMetadata;
+import org.unizin.cmp.oai.harvester.RetryPolicy;
+import org.unizin.cmp.oai.harvester.job.HarvestCheckpoint;
 import org.unizin.cmp.oai.harvester.job.HarvestJob;
 import org.unizin.cmp.oai.harvester.job.HarvestedOAIRecord;
 import org.unizin.cmp.oai.harvester.job.JobHarvestSpec;
@@ -18,6 +37,8 @@ import org.unizin.cmp.oai.harvester.job.JobHarvestSpec;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import io.dropwizard.client.HttpClientConfiguration;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.lifecycle.setup.ExecutorServiceBuilder;
 import io.dropwizard.setup.Environment;
 
@@ -38,6 +59,69 @@ public final class HarvestJobConfiguration {
     @Min(1)
     private Integer recordQueueCapacity;
 
+    @JsonProperty
+    @Min(1)
+    private Integer setPartitionParallelism;
+
+    @JsonProperty
+    @Min(1)
+    private Integer getRecordParallelism;
+
+    /**
+     * Whether to store each record's bytes as sent by the repository, rather
+     * than re-serializing them.
+     */
+    @JsonProperty
+    private boolean rawRecords;
+
+    /**
+     * Maximum number of times each failed request is retried. If absent,
+     * failed requests end their harvests.
+     */
+    @JsonProperty
+    @Min(0)
+    private Integer maxRetries;
+
+    /** Delay before the first retry of a request, if retries are enabled. */
+    @JsonProperty
+    private Duration retryInitialDelay;
+
+    /** Longest delay before any retry, if retries are enabled. */
+    @JsonProperty
+    private Duration retryMaxDelay;
+
+    /**
+     * How far before the latest datestamp seen to restart a harvest whose
+     * resumption token is rejected or has expired. If absent, such harvests
+     * end with an error.
+     */
+    @JsonProperty
+    private Duration tokenFallbackOverlap;
+
+    /**
+     * How far before the {@code responseDate} of the last complete harvest of
+     * a list to start an incremental harvest of it, to allow for clock skew.
+     */
+    @JsonProperty
+    private Duration incrementalOverlap = Duration.ofHours(1);
+
+    /**
+     * Granularity in which incremental harvests' {@code from} dates are sent,
+     * in the format of an {@code Identify} response, for repositories whose
+     * granularity is not yet cached. Every repository supports
+     * {@code YYYY-MM-DD}.
+     */
+    @JsonProperty
+    @NotEmpty
+    private String incrementalGranularity = "YYYY-MM-DD";
+
+    /**
+     * Whether to resume, when the service starts, harvests that were
+     * interrupted by the service stopping, from their last checkpoints.
+     */
+    @JsonProperty
+    private boolean resumeInterruptedJobs;
+
     @JsonProperty
     private Duration pollTimeout;
 
@@ -60,6 +144,63 @@ public final class HarvestJobConfiguration {
     @NotEmpty
     private String nameFormat = "harvest-job-%s";
 
+    /**
+     * Number of threads used to parse responses of asynchronous harvests. If
+     * absent, harvests are run synchronously, each in its own thread.
+     */
+    @JsonProperty
+    @Min(1)
+    private Integer parserThreads;
+
+    @JsonProperty
+    @NotEmpty
+    private String parserNameFormat = "harvest-parser-%s";
+
+    /**
+     * @return the retry policy for harvests, built from this configuration.
+     */
+    public RetryPolicy retryPolicy() {
+        if (maxRetries == null) {
+            return RetryPolicy.NONE;
+        }
+        final RetryPolicy.Builder builder = new RetryPolicy.Builder()
+                .withMaxRetries(maxRetries);
+        if (retryInitialDelay != null) {
+            builder.withInitialDelay(retryInitialDelay);
+        }
+        if (retryMaxDelay != null) {
+            builder.withMaxDelay(retryMaxDelay);
+        }
+        return builder.build();
+    }
+
+    public Duration getIncrementalOverlap() {
+        return incrementalOverlap;
+    }
+
+    /**
+     * @return the granularity of incremental harvests' {@code from} dates.
+     * @throws IllegalStateException
+     *             if the configured granularity is not a standard one.
+     */
+    public OAIDateGranularity getIncrementalGranularity() {
+        final OAIDateGranularity granularity = OAIDateGranularity.fromFormat(
+                incrementalGranularity);
+        if (granularity == null) {
+            throw new IllegalStateException(String.format(
+                    "Unknown granularity %s.", incrementalGranularity));
+        }
+        return granularity;
+    }
+
+    /**
+     * @return {@code true} iff interrupted harvests should be resumed when
+     *         the service starts.
+     */
+    public boolean isResumeInterruptedJobs() {
+        return resumeInterruptedJobs;
+    }
+
     public ExecutorService executorService(final Environment env) {
         final ExecutorServiceBuilder b = env.lifecycle()
                 .executorService(nameFormat);
@@ -75,18 +216,200 @@ public final class HarvestJobConfiguration {
         return b.build();
     }
 
+    /**
+     * @return {@code true} iff harvests should be run asynchronously.
+     */
+    public boolean isAsync() {
+        return parserThreads != null;
+    }
+
+    /**
+     * Build the executor on which asynchronous harvests parse responses.
+     *
+     * @param env
+     *            the environment that will manage the executor.
+     * @return a new executor with a fixed number of threads.
+     * @throws IllegalStateException
+     *             if asynchronous harvesting is not configured.
+     */
+    public ExecutorService parserExecutorService(final Environment env) {
+        if (!isAsync()) {
+            throw new IllegalStateException(
+                    "Asynchronous harvesting is not configured.");
+        }
+        return env.lifecycle().executorService(parserNameFormat)
+                .minThreads(parserThreads)
+                .maxThreads(parserThreads)
+                .build();
+    }
+
+    /**
+     * Build and start an asynchronous HTTP client for harvesting.
+     * <p>
+     * The client uses the connection limits, timeouts, and default headers of
+     * the given configuration, and is closed when the environment stops.
+     * </p>
+     *
+     * @param env
+     *            the environment that will manage the client.
+     * @param httpConfig
+     *            the configuration of the synchronous harvest client.
+     * @return a new, started client.
+     */
+    public CloseableHttpAsyncClient asyncHttpClient(final Environment env,
+            final HttpClientConfiguration httpConfig) {
+        final int timeout = (int)httpConfig.getTimeout().toMilliseconds();
+        final int connectTimeout = (int)httpConfig.getConnectionTimeout()
+                .toMilliseconds();
+        final HttpAsyncClientBuilder builder = Harvester
+                .defaultAsyncHttpClient()
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setSoTimeout(timeout)
+                        .setConnectTimeout(connectTimeout)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setSocketTimeout(timeout)
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout((int)httpConfig
+                                .getConnectionRequestTimeout()
+                                .toMilliseconds())
+                        .build())
+                .setMaxConnTotal(httpConfig.getMaxConnections())
+                .setMaxConnPerRoute(httpConfig.getMaxConnectionsPerRoute());
+        if (httpConfig instanceof HarvestHttpClientConfiguration) {
+            final Collection<? extends Header> headers =
+                    ((HarvestHttpClientConfiguration)httpConfig)
+                    .getDefaultHeaders();
+            if (headers != null) {
+                builder.setDefaultHeaders(headers);
+            }
+        }
+        final CloseableHttpAsyncClient client = builder.build();
+        env.lifecycle().manage(new Managed() {
+            @Override
+            public void start() {
+                client.start();
+            }
+
+            @Override
+            public void stop() throws IOException {
+                client.close();
+            }
+        });
+        return client;
+    }
+
+    public HarvestJob job(final HttpClient httpClient,
+            final DynamoDBMapper mapper,
+            final ExecutorService executor,
+            final String name,
+            final List<JobHarvestSpec> specs,
+            final List<Observer> harvestObservers)
+            throws NoSuchAlgorithmException {
+        return job(httpClient, null, null, mapper, executor, name, specs,
+                harvestObservers);
+    }
+
+    /**
+     * Build a job.
+     *
+     * @param asyncHttpClient
+     *            the client for asynchronous harvests, or {@code null} to run
+     *            harvests synchronously.
+     * @param parserExecutor
+     *            the executor for asynchronous harvests. Ignored if
+     *            {@code asyncHttpClient} is {@code null}.
+     */
     public HarvestJob job(final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
             final DynamoDBMapper mapper,
             final ExecutorService executor,
             final String name,
             final List<JobHarvestSpec> specs,
             final List<Observer> harvestObservers)
             throws NoSuchAlgorithmException {
+        return job(httpClient, asyncHttpClient, parserExecutor, mapper,
+                executor, name, specs, harvestObservers, null);
+    }
+
+    /**
+     * Build a job that reports checkpoints of its harvests.
+     *
+     * @param checkpointListener
+     *            the listener for checkpoints, or {@code null} to take none.
+     *
+     * @see HarvestJob.Builder#withCheckpointListener(Consumer)
+     */
+    public HarvestJob job(final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBMapper mapper,
+            final ExecutorService executor,
+            final String name,
+            final List<JobHarvestSpec> specs,
+            final List<Observer> harvestObservers,
+            final Consumer<HarvestCheckpoint> checkpointListener)
+            throws NoSuchAlgorithmException {
+        return job(httpClient, asyncHttpClient, parserExecutor, mapper,
+                executor, name, specs, harvestObservers, checkpointListener,
+                null);
+    }
+
+    /**
+     * Build a job that uses cached repository metadata.
+     *
+     * @param repositoryMetadata
+     *            the source of cached metadata, or {@code null} to use none.
+     *
+     * @see HarvestJob.Builder#withRepositoryMetadata(Function)
+     */
+    public HarvestJob job(final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBMapper mapper,
+            final ExecutorService executor,
+            final String name,
+            final List<JobHarvestSpec> specs,
+            final List<Observer> harvestObservers,
+            final Consumer<HarvestCheckpoint> checkpointListener,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata)
+            throws NoSuchAlgorithmException {
+        return job(httpClient, asyncHttpClient, parserExecutor, mapper,
+                executor, name, specs, harvestObservers, checkpointListener,
+                repositoryMetadata, null);
+    }
+
+    /**
+     * Build a job whose requests are paced by a shared limiter.
+     *
+     * @param hostLimiter
+     *            the limiter, or {@code null} to use none.
+     *
+     * @see HarvestJob.Builder#withHostLimiter(HostLimiter)
+     */
+    public HarvestJob job(final HttpClient httpClient,
+            final HttpAsyncClient asyncHttpClient,
+            final Executor parserExecutor,
+            final DynamoDBMapper mapper,
+            final ExecutorService executor,
+            final String name,
+            final List<JobHarvestSpec> specs,
+            final List<Observer> harvestObservers,
+            final Consumer<HarvestCheckpoint> checkpointListener,
+            final Function<URI, Optional<RepositoryMetadata>>
+                repositoryMetadata,
+            final HostLimiter hostLimiter)
+            throws NoSuchAlgorithmException {
         final HarvestJob.Builder builder = new HarvestJob.Builder(mapper)
                 .withHttpClient(httpClient)
                 .withExecutorService(executor)
                 .withHarvestObservers(harvestObservers.toArray(EMPTY_OBS))
                 .withSpecs(specs.toArray(EMPTY_SPECS));
+        if (asyncHttpClient != null) {
+            builder.withAsyncHttpClient(asyncHttpClient, parserExecutor);
+        }
 
         if (recordQueueCapacity != null) {
             builder.withRecordQueue(new ArrayBlockingQueue<HarvestedOAIRecord>(
@@ -101,6 +424,19 @@ public final class HarvestJobConfiguration {
         if (batchSize != null) {
             builder.withBatchSize(batchSize);
         }
-        return builder.withName(name).build();
+        if (setPartitionParallelism != null) {
+            builder.withSetPartitionParallelism(setPartitionParallelism);
+        }
+        if (getRecordParallelism != null) {
+            builder.withGetRecordParallelism(getRecordParallelism);
+        }
+        return builder.withRawRecords(rawRecords)
+                .withRetryPolicy(retryPolicy())
+                .withTokenExpiryFallback(tokenFallbackOverlap)
+                .withCheckpointListener(checkpointListener)
+                .withRepositoryMetadata(repositoryMetadata)
+                .withHostLimiter(hostLimiter)
+                .withName(name)
+                .build();
     }
 }
@@ -43,6 +43,26 @@ public final class HarvestServiceConfiguration extends Configuration {
     @JsonProperty("jiraClient")
     private JIRAClientConfiguration jiraClient;
 
+    @Valid
+    @JsonProperty("scheduler")
+    private JobSchedulerConfiguration scheduler =
+        new JobSchedulerConfiguration();
+
+    @Valid
+    @JsonProperty("repositoryMetadata")
+    private RepositoryMetadataConfiguration repositoryMetadata =
+        new RepositoryMetadataConfiguration();
+
+    @Valid
+    @JsonProperty("hostLimits")
+    private HostLimiterConfiguration hostLimits =
+        new HostLimiterConfiguration();
+
+    @Valid
+    @JsonProperty("watchdog")
+    private HarvestWatchdogConfiguration watchdog =
+        new HarvestWatchdogConfiguration();
+
 
     public DataSourceFactory getDataSourceFactory() {
         return dsFactory;
@@ -71,4 +91,21 @@ public final class HarvestServiceConfiguration extends Configuration {
     public JIRAClientConfiguration getJIRAClientConfiguration() {
         return jiraClient;
     }
+
+    public JobSchedulerConfiguration getJobSchedulerConfiguration() {
+        return scheduler;
+    }
+
+    public RepositoryMetadataConfiguration
+    getRepositoryMetadataConfiguration() {
+        return repositoryMetadata;
+    }
+
+    public HostLimiterConfiguration getHostLimiterConfiguration() {
+        return hostLimits;
+    }
+
+    public HarvestWatchdogConfiguration getHarvestWatchdogConfiguration() {
+        return watchdog;
+    }
 }
@@ -0,0 +1,81 @@
+package org.unizin.cmp.oai.harvester.service.config;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.validation.constraints.Min;
+
+import org.unizin.cmp.oai.harvester.HarvestWatchdog;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.setup.Environment;
+
+
+/**
+ * Dropwizard configuration class for the {@link HarvestWatchdog} watching
+ * every job's harvests.
+ */
+public final class HarvestWatchdogConfiguration {
+    private static final String NAME = "harvest-watchdog";
+
+    /**
+     * Longest a single harvest may run before it is cancelled, or
+     * {@code null} for no deadline.
+     */
+    @JsonProperty
+    private Duration deadline = Duration.ofDays(1);
+
+    /**
+     * Amount of time in which a harvest must receive at least
+     * {@link #minProgressBytes} response bytes, or be cancelled.
+     */
+    @JsonProperty
+    @Nonnull
+    private Duration stallWindow = Duration.ofMinutes(10);
+
+    @JsonProperty
+    @Min(1)
+    private long minProgressBytes = 4096;
+
+    /** Amount of time between checks of running harvests. */
+    @JsonProperty
+    @Nonnull
+    private Duration period = Duration.ofMinutes(1);
+
+    @JsonProperty
+    private boolean enabled = true;
+
+
+    public HarvestWatchdog build() {
+        return new HarvestWatchdog.Builder()
+                .withDeadline(deadline)
+                .withStallWindow(stallWindow)
+                .withMinProgressBytes(minProgressBytes)
+                .build();
+    }
+
+    /**
+     * Run a watchdog periodically.
+     *
+     * @param env
+     *            the environment whose lifecycle manages the watchdog thread.
+     * @param watchdog
+     *            the watchdog to run.
+     */
+    public void schedule(final Environment env,
+            final HarvestWatchdog watchdog) {
+        final ScheduledExecutorService ses = env.lifecycle()
+                .scheduledExecutorService(NAME + "-%s")
+                .threads(1)
+                .build();
+        ses.scheduleAtFixedRate(watchdog, period.toMillis(),
+                period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
@@ -0,0 +1,78 @@
+package org.unizin.cmp.oai.harvester.service.config;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+import org.skife.jdbi.v2.DBI;
+import org.unizin.cmp.oai.harvester.HostLimiter;
+import org.unizin.cmp.oai.harvester.HostLimiter.Limits;
+import org.unizin.cmp.oai.harvester.service.HostLimits;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.setup.Environment;
+
+
+/**
+ * Dropwizard configuration class for the {@link HostLimiter} shared by all
+ * jobs, and the {@link HostLimits} it uses.
+ */
+public final class HostLimiterConfiguration {
+    private static final String NAME = "host-limits";
+
+    /**
+     * Default sustained number of requests per second sent to each host.
+     * Repositories may override it in the {@code REPOSITORY} table.
+     */
+    @JsonProperty
+    @DecimalMin(value = "0", inclusive = false)
+    private double requestsPerSecond = 10;
+
+    /**
+     * Default maximum number of requests in flight to each host at once.
+     * Repositories may override it in the {@code REPOSITORY} table.
+     */
+    @JsonProperty
+    @Min(1)
+    private int maxInFlight = 4;
+
+    /** Amount of time between reloads of per-repository limits. */
+    @JsonProperty
+    @Nonnull
+    private Duration period = Duration.ofMinutes(5);
+
+    @JsonProperty
+    private boolean enabled = true;
+
+
+    public HostLimits build(final DBI dbi) {
+        return new HostLimits(dbi, new Limits(requestsPerSecond,
+                maxInFlight));
+    }
+
+    /**
+     * Load per-repository limits now and periodically thereafter.
+     *
+     * @param env
+     *            the environment whose lifecycle manages the refresh thread.
+     * @param limits
+     *            the limits to refresh.
+     */
+    public void schedule(final Environment env, final HostLimits limits) {
+        final ScheduledExecutorService ses = env.lifecycle()
+                .scheduledExecutorService(NAME + "-%s")
+                .threads(1)
+                .build();
+        ses.scheduleAtFixedRate(limits, 0, period.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
@@ -0,0 +1,56 @@
+package org.unizin.cmp.oai.harvester.service.config;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.skife.jdbi.v2.DBI;
+import org.unizin.cmp.oai.harvester.service.JobManager;
+import org.unizin.cmp.oai.harvester.service.JobScheduler;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.setup.Environment;
+
+
+/**
+ * Dropwizard configuration class for the {@link JobScheduler}.
+ */
+public final class JobSchedulerConfiguration {
+    private static final String NAME = "job-scheduler";
+
+    /** Amount of time between checks for due runs. */
+    @JsonProperty
+    @Nonnull
+    private Duration period = Duration.ofMinutes(1);
+
+    /**
+     * Longest amount of time by which runs are delayed to spread them out.
+     * Runs are never delayed by more than their schedule's period.
+     */
+    @JsonProperty
+    @Nonnull
+    private Duration maxJitter = Duration.ofHours(2);
+
+    @JsonProperty
+    private boolean scheduleEnabled = true;
+
+
+    public void schedule(final Environment env, final DBI dbi,
+            final JobManager jobManager, final ExecutorService executor) {
+        final ScheduledExecutorService ses = env.lifecycle()
+                .scheduledExecutorService(NAME + "-%s")
+                .threads(1)
+                .build();
+        ses.scheduleAtFixedRate(new JobScheduler(dbi, jobManager, executor,
+                maxJitter), period.toMillis(), period.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isScheduleEnabled() {
+        return scheduleEnabled;
+    }
+}
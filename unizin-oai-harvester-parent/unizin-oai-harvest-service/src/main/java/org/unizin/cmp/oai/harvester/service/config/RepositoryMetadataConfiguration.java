@@ -0,0 +1,68 @@
+package org.unizin.cmp.oai.harvester.service.config;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.http.client.HttpClient;
+import org.skife.jdbi.v2.DBI;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.service.RepositoryMetadataCache;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.dropwizard.setup.Environment;
+
+
+/**
+ * Dropwizard configuration class for the {@link RepositoryMetadataCache}.
+ */
+public final class RepositoryMetadataConfiguration {
+    private static final String NAME = "repository-metadata";
+
+    /** Age at which cached metadata is fetched again. */
+    @JsonProperty
+    @Nonnull
+    private Duration ttl = Duration.ofDays(1);
+
+    /** Amount of time between checks for missing or stale metadata. */
+    @JsonProperty
+    @Nonnull
+    private Duration period = Duration.ofMinutes(15);
+
+    @JsonProperty
+    private boolean refreshEnabled = true;
+
+
+    public RepositoryMetadataCache build(final DBI dbi,
+            final HttpClient httpClient, final ObjectMapper mapper) {
+        return new RepositoryMetadataCache(dbi,
+                () -> new Harvester.Builder().withHttpClient(httpClient)
+                .build(), mapper, ttl);
+    }
+
+    /**
+     * Refresh the cache now and periodically thereafter.
+     *
+     * @param env
+     *            the environment whose lifecycle manages the refresh thread.
+     * @param cache
+     *            the cache to refresh.
+     */
+    public void schedule(final Environment env,
+            final RepositoryMetadataCache cache) {
+        final ScheduledExecutorService ses = env.lifecycle()
+                .scheduledExecutorService(NAME + "-%s")
+                .threads(1)
+                .build();
+        ses.scheduleAtFixedRate(cache, 0, period.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isRefreshEnabled() {
+        return refreshEnabled;
+    }
+}
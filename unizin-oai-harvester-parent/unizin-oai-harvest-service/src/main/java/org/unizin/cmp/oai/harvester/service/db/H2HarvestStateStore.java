@@ -0,0 +1,52 @@
+package org.unizin.cmp.oai.harvester.service.db;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.skife.jdbi.v2.DBI;
+import org.unizin.cmp.oai.harvester.HarvestStateStore;
+
+/**
+ * {@link HarvestStateStore} backed by the service's database.
+ * <p>
+ * Missing metadata prefixes and sets are stored as empty strings, so that
+ * they can be part of the table's primary key.
+ * </p>
+ */
+public final class H2HarvestStateStore implements HarvestStateStore {
+    private final DBI dbi;
+
+
+    public H2HarvestStateStore(final DBI dbi) {
+        this.dbi = Objects.requireNonNull(dbi, "dbi");
+    }
+
+    private static String column(final Optional<String> value) {
+        return value.orElse("");
+    }
+
+    @Override
+    public Optional<Instant> getLastResponseDate(final Key key) {
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            final Timestamp ts = jdbi.findHarvestState(
+                    key.getBaseURI().toString(),
+                    column(key.getMetadataPrefix()),
+                    column(key.getSet()));
+            return Optional.ofNullable(ts).map(Timestamp::toInstant);
+        }
+    }
+
+    @Override
+    public void setLastResponseDate(final Key key,
+            final Instant responseDate) {
+        Objects.requireNonNull(responseDate, "responseDate");
+        try (final JobJDBI jdbi = DBIUtils.jobDBI(dbi)) {
+            jdbi.mergeHarvestState(key.getBaseURI().toString(),
+                    column(key.getMetadataPrefix()),
+                    column(key.getSet()),
+                    responseDate);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -21,10 +22,12 @@ import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Transaction;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
 import org.skife.jdbi.v2.sqlobject.customizers.OverrideStatementRewriterWith;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapperFactory;
 import org.skife.jdbi.v2.sqlobject.customizers.SingleValueResult;
 import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
+import org.skife.jdbi.v2.util.TimestampMapper;
 import org.slf4j.Logger;
 import org.unizin.cmp.oai.harvester.HarvestNotification;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
@@ -58,15 +61,105 @@ public abstract class JobJDBI implements AutoCloseable, GetHandle {
             "HARVEST_END = #end, " +
             "HARVEST_LAST_UPDATE = now(), " +
             "HARVEST_CANCELLED = #cancelled, " +
+            "HARVEST_CANCEL_REASON = #cancelReason, " +
             "HARVEST_INTERRUPTED = #interrupted, " +
             "HARVEST_LAST_REQUEST_URI = #lastRequestURI," +
             "HARVEST_LAST_REQUEST_PARAMETERS = #lastRequestParameters, " +
             "HARVEST_STACK_TRACE = #stackTrace, " +
             "HARVEST_REQUEST_COUNT = #requestCount, " +
             "HARVEST_RESPONSE_COUNT = #responseCount, " +
-            "HARVEST_XML_EVENT_COUNT = #eventCount " +
+            "HARVEST_XML_EVENT_COUNT = #eventCount, " +
+            "HARVEST_WIRE_BYTES = #wireBytes, " +
+            "HARVEST_DECODED_BYTES = #decodedBytes, " +
+            "HARVEST_RECORD_COUNT = #recordCount " +
             "where HARVEST_ID = #id";
 
+    private static final String HARVEST_CHECKPOINT_UPDATE = "update HARVEST " +
+            "set HARVEST_CHECKPOINT_TOKEN = #token, " +
+            "HARVEST_CHECKPOINT_CURSOR = #cursor, " +
+            "HARVEST_CHECKPOINT_COMPLETE_LIST_SIZE = #completeListSize, " +
+            "HARVEST_CHECKPOINT_RECORD_COUNT = #recordCount, " +
+            "HARVEST_CHECKPOINT_TIME = #time " +
+            "where HARVEST_ID = #id";
+
+    /*
+     * Harvests that never ended, whose last checkpoint has a page after it,
+     * and that haven't already been resumed. Only list harvests can have
+     * checkpoints.
+     */
+    private static final String INTERRUPTED_HARVEST_QUERY = "select " +
+            "H.HARVEST_ID, H.JOB_ID, H.HARVEST_VERB, " +
+            "H.HARVEST_CHECKPOINT_TOKEN, H.HARVEST_CHECKPOINT_RECORD_COUNT, " +
+            "R.REPOSITORY_BASE_URI from HARVEST H " +
+            "inner join REPOSITORY R on R.REPOSITORY_ID = H.REPOSITORY_ID " +
+            "where H.HARVEST_END is null " +
+            "and H.HARVEST_CHECKPOINT_TOKEN is not null " +
+            "and H.HARVEST_CHECKPOINT_TOKEN <> '' " +
+            "and not exists (select 1 from HARVEST N " +
+            "where N.HARVEST_RESUMED_FROM = H.HARVEST_ID) " +
+            "order by H.JOB_ID, H.HARVEST_ID";
+
+    /*
+     * The record count of the latest harvest of the same list to have run to
+     * completion. Resumed harvests count only part of their lists.
+     */
+    private static final String LAST_RECORD_COUNT_QUERY = "select " +
+            "H.HARVEST_RECORD_COUNT from HARVEST H " +
+            "inner join REPOSITORY R on R.REPOSITORY_ID = H.REPOSITORY_ID " +
+            "where R.REPOSITORY_BASE_URI = #baseURI " +
+            "and H.HARVEST_VERB = #verb " +
+            "and cast(H.HARVEST_INITIAL_PARAMETERS as varchar) = " +
+            "#initialParameters " +
+            "and H.HARVEST_END is not null " +
+            "and H.HARVEST_STACK_TRACE is null " +
+            "and not H.HARVEST_CANCELLED " +
+            "and H.HARVEST_RESUMED_FROM is null " +
+            "order by H.HARVEST_END desc limit 1";
+
+    private static final String HARVEST_RESUMED_UPDATE = "update HARVEST " +
+            "set HARVEST_RESUMED_FROM = #resumedFrom where HARVEST_ID = #id";
+
+    private static final String HARVEST_STATE_QUERY = "select " +
+            "HARVEST_STATE_LAST_RESPONSE_DATE from HARVEST_STATE " +
+            "where REPOSITORY_BASE_URI = #baseURI " +
+            "and HARVEST_STATE_METADATA_PREFIX = #metadataPrefix " +
+            "and HARVEST_STATE_SET_SPEC = #set";
+
+    private static final String HARVEST_STATE_MERGE = "merge into " +
+            "HARVEST_STATE(REPOSITORY_BASE_URI, " +
+            "HARVEST_STATE_METADATA_PREFIX, HARVEST_STATE_SET_SPEC, " +
+            "HARVEST_STATE_LAST_RESPONSE_DATE, HARVEST_STATE_LAST_UPDATE) " +
+            "key(REPOSITORY_BASE_URI, HARVEST_STATE_METADATA_PREFIX, " +
+            "HARVEST_STATE_SET_SPEC) " +
+            "values (#baseURI, #metadataPrefix, #set, #responseDate, now())";
+
+    private static final String SCHEDULE_QUERY = "select S.*, " +
+            "R.REPOSITORY_BASE_URI from SCHEDULE S " +
+            "inner join REPOSITORY R on R.REPOSITORY_ID = S.REPOSITORY_ID " +
+            "where S.SCHEDULE_ENABLED and R.REPOSITORY_ENABLED " +
+            "order by S.SCHEDULE_ID";
+
+    private static final String SCHEDULE_RUN_UPDATE = "update SCHEDULE " +
+            "set SCHEDULE_LAST_RUN = #lastRun, " +
+            "SCHEDULE_LAST_JOB_ID = coalesce(#jobID, SCHEDULE_LAST_JOB_ID) " +
+            "where SCHEDULE_ID = #id";
+
+    private static final String REPOSITORY_METADATA_QUERY = "select " +
+            "REPOSITORY_BASE_URI, REPOSITORY_METADATA, " +
+            "REPOSITORY_METADATA_UPDATED from REPOSITORY " +
+            "where REPOSITORY_ENABLED order by REPOSITORY_ID";
+
+    private static final String REPOSITORY_METADATA_UPDATE = "update " +
+            "REPOSITORY set REPOSITORY_METADATA = #metadata, " +
+            "REPOSITORY_METADATA_UPDATED = #updated " +
+            "where REPOSITORY_BASE_URI = #baseURI";
+
+    private static final String REPOSITORY_LIMITS_QUERY = "select " +
+            "REPOSITORY_BASE_URI, REPOSITORY_MAX_REQUESTS_PER_SECOND, " +
+            "REPOSITORY_MAX_IN_FLIGHT from REPOSITORY " +
+            "where REPOSITORY_MAX_REQUESTS_PER_SECOND is not null " +
+            "or REPOSITORY_MAX_IN_FLIGHT is not null";
+
     private static final String INSERT_HARVEST_HTTP_ERROR = "insert into " +
             "HARVEST_HTTP_ERROR(HARVEST_ID, HARVEST_HTTP_ERROR_STATUS_CODE, " +
             "HARVEST_HTTP_ERROR_RESPONSE_BODY, " +
@@ -103,6 +196,7 @@ public abstract class JobJDBI implements AutoCloseable, GetHandle {
             @Bind("start") Instant start,
             @Bind("end") Optional<Instant> end,
             @Bind("cancelled") boolean cancelled,
+            @Bind("cancelReason") Optional<String> cancelReason,
             @Bind("interrupted") boolean interrupted,
             @Bind("lastRequestURI") Optional<String> lastRequestURI,
             @Bind("lastRequestParameters")
@@ -110,7 +204,78 @@ public abstract class JobJDBI implements AutoCloseable, GetHandle {
     @Bind("stackTrace") Optional<String> stackTrace,
     @Bind("requestCount") long requestCount,
     @Bind("responseCount") long responseCount,
-    @Bind("eventCount") long eventCount);
+    @Bind("eventCount") long eventCount,
+    @Bind("wireBytes") long wireBytes,
+    @Bind("decodedBytes") long decodedBytes,
+    @Bind("recordCount") long recordCount);
+
+    @SqlUpdate(HARVEST_CHECKPOINT_UPDATE)
+    public abstract void updateHarvestCheckpoint(@Bind("id") long id,
+            @Bind("token") Optional<String> token,
+            @Bind("cursor") Optional<Long> cursor,
+            @Bind("completeListSize") Optional<Long> completeListSize,
+            @Bind("recordCount") long recordCount,
+            @Bind("time") Instant time);
+
+    @SqlQuery(INTERRUPTED_HARVEST_QUERY)
+    @SingleValueResult(Map.class)
+    @RegisterMapperFactory(CMPMapperFactory.class)
+    public abstract List<Map<String, Object>> findInterruptedHarvests();
+
+    /**
+     * Find the number of records received by the latest complete harvest of
+     * a list.
+     *
+     * @return the number of records, or {@code null} if no harvest of the
+     *         list has run to completion.
+     */
+    @SqlQuery(LAST_RECORD_COUNT_QUERY)
+    public abstract Long findLastRecordCount(@Bind("baseURI") String baseURI,
+            @Bind("verb") String verb,
+            @Bind("initialParameters") String initialParameters);
+
+    @SqlUpdate(HARVEST_RESUMED_UPDATE)
+    public abstract void setHarvestResumedFrom(@Bind("id") long id,
+            @Bind("resumedFrom") long resumedFrom);
+
+    @SqlQuery(HARVEST_STATE_QUERY)
+    @Mapper(TimestampMapper.class)
+    public abstract Timestamp findHarvestState(
+            @Bind("baseURI") String baseURI,
+            @Bind("metadataPrefix") String metadataPrefix,
+            @Bind("set") String set);
+
+    @SqlUpdate(HARVEST_STATE_MERGE)
+    public abstract void mergeHarvestState(@Bind("baseURI") String baseURI,
+            @Bind("metadataPrefix") String metadataPrefix,
+            @Bind("set") String set,
+            @Bind("responseDate") Instant responseDate);
+
+    @SqlQuery(SCHEDULE_QUERY)
+    @SingleValueResult(Map.class)
+    @RegisterMapperFactory(CMPMapperFactory.class)
+    public abstract List<Map<String, Object>> findEnabledSchedules();
+
+    @SqlUpdate(SCHEDULE_RUN_UPDATE)
+    public abstract void updateScheduleRun(@Bind("id") long id,
+            @Bind("lastRun") Instant lastRun,
+            @Bind("jobID") Optional<Long> jobID);
+
+    @SqlQuery(REPOSITORY_METADATA_QUERY)
+    @SingleValueResult(Map.class)
+    @RegisterMapperFactory(CMPMapperFactory.class)
+    public abstract List<Map<String, Object>> findRepositoryMetadata();
+
+    @SqlUpdate(REPOSITORY_METADATA_UPDATE)
+    public abstract void updateRepositoryMetadata(
+            @Bind("baseURI") String baseURI,
+            @Bind("metadata") String metadata,
+            @Bind("updated") Instant updated);
+
+    @SqlQuery(REPOSITORY_LIMITS_QUERY)
+    @SingleValueResult(Map.class)
+    @RegisterMapperFactory(CMPMapperFactory.class)
+    public abstract List<Map<String, Object>> findRepositoryLimits();
 
     @SqlUpdate(INSERT_HARVEST_HTTP_ERROR)
     public abstract void insertHarvestHTTPError(@Bind("id") long harvestID,
@@ -174,13 +339,17 @@ public abstract class JobJDBI implements AutoCloseable, GetHandle {
         updateHarvest(harvestID, notification.getStarted(),
                 notification.getEnded(),
                 notification.isCancelled(),
+                notification.getCancelReason(),
                 notification.isInterrupted(),
                 lastRequestURI,
                 lastRequestParameters,
                 stackTrace,
                 notification.getStat(HarvestStatistic.REQUEST_COUNT),
                 notification.getStat(HarvestStatistic.RESPONSE_COUNT),
-                notification.getStat(HarvestStatistic.XML_EVENT_COUNT));
+                notification.getStat(HarvestStatistic.XML_EVENT_COUNT),
+                notification.getStat(HarvestStatistic.WIRE_BYTES),
+                notification.getStat(HarvestStatistic.DECODED_BYTES),
+                notification.getStat(HarvestStatistic.RECORD_COUNT));
         if (writeExceptionInfo(notification)) {
             final Exception ex = notification.getException().get();
             if (ex instanceof HarvesterHTTPStatusException) {
@@ -0,0 +1,85 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the deadline ordering of offers to a full
+ * {@link BlockingQueueWrapper}.
+ */
+public final class TestBlockingQueueWrapper {
+    private static final long SETTLE_MILLIS = 200;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueueWrapper<String> queue =
+            new BlockingQueueWrapper<>(new ArrayBlockingQueue<>(1),
+                    Duration.ofSeconds(10), Duration.ofMillis(100));
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<Boolean> offerLater(final String element,
+            final Instant deadline) throws InterruptedException {
+        final Future<Boolean> f = executor.submit(
+                () -> queue.offer(element, deadline));
+        // Give the offer time to start waiting.
+        Thread.sleep(SETTLE_MILLIS);
+        return f;
+    }
+
+    /**
+     * Tests that offers waiting for a full queue are accepted earliest
+     * deadline first, and those without deadlines last.
+     */
+    @Test
+    public void testEarliestDeadlineFirst() throws Exception {
+        Assert.assertTrue(queue.offer("full"));
+        final Instant now = Instant.now();
+        // The first offer is admitted at once, and waits for space.
+        final List<Future<Boolean>> offers = new ArrayList<>();
+        offers.add(offerLater("first", null));
+        offers.add(offerLater("none", null));
+        offers.add(offerLater("late", now.plusSeconds(60)));
+        offers.add(offerLater("soon", now.plusSeconds(10)));
+        final List<String> polled = new ArrayList<>();
+        for (int i = 0; i <= offers.size(); i++) {
+            polled.add(queue.poll());
+            Thread.sleep(SETTLE_MILLIS);
+        }
+        for (final Future<Boolean> f : offers) {
+            Assert.assertTrue(f.get());
+        }
+        Assert.assertEquals(Arrays.asList("full", "first", "soon", "late",
+                "none"), polled);
+        Assert.assertEquals(5, queue.getOfferedCount());
+    }
+
+    /**
+     * Tests that an offer that times out leaves no trace, so that later
+     * offers don't wait for it.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        final BlockingQueueWrapper<String> impatient =
+                new BlockingQueueWrapper<>(new ArrayBlockingQueue<>(1),
+                        Duration.ofMillis(100), Duration.ofMillis(100));
+        Assert.assertTrue(impatient.offer("full"));
+        Assert.assertFalse(impatient.offer("late", Instant.now()));
+        Assert.assertEquals("full", impatient.poll());
+        Assert.assertTrue(impatient.offer("next"));
+        Assert.assertEquals(2, impatient.getOfferedCount());
+    }
+}
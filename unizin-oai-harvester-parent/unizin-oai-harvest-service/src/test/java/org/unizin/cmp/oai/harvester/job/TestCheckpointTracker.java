@@ -0,0 +1,96 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+
+public final class TestCheckpointTracker {
+    private static final String FIRST = "http://first.example.org/oai";
+    private static final String SECOND = "http://second.example.org/oai";
+
+    private final AtomicLong offered = new AtomicLong();
+    private final List<HarvestCheckpoint> reported = new ArrayList<>();
+    private final CheckpointTracker tracker = new CheckpointTracker(
+            offered::get, reported::add);
+
+    private static HarvestCheckpoint checkpoint(final String baseURI,
+            final String token, final long records) {
+        final HarvestParams params = new HarvestParams.Builder(
+                URI.create(baseURI), OAIVerb.LIST_RECORDS).build();
+        return new HarvestCheckpoint(Collections.emptyMap(), params,
+                Optional.of(new ResumptionToken(token)), records,
+                Instant.now());
+    }
+
+    private void page(final String baseURI, final String token,
+            final int records) {
+        offered.addAndGet(records);
+        tracker.pageFinished(baseURI, checkpoint(baseURI, token, records));
+    }
+
+    private static HarvestedOAIRecord record(final String baseURI) {
+        final HarvestedOAIRecord record = new HarvestedOAIRecord();
+        record.setBaseURL(baseURI);
+        record.setIdentifier("id");
+        return record;
+    }
+
+    private List<String> reportedTokens() {
+        final List<String> tokens = new ArrayList<>();
+        reported.forEach(c -> tokens.add(c.getResumptionToken().get()
+                .getToken()));
+        return tokens;
+    }
+
+    /**
+     * Tests that a page's checkpoint is reported only once every record
+     * offered before the page was finished has been written.
+     */
+    @Test
+    public void testReportedWhenWritten() {
+        page(FIRST, "a1", 3);
+        page(SECOND, "b1", 2);
+        page(FIRST, "a2", 3);
+        tracker.written(2);
+        Assert.assertTrue(reported.isEmpty());
+        tracker.written(2);
+        Assert.assertEquals(Collections.singletonList("a1"),
+                reportedTokens());
+        tracker.written(4);
+        Assert.assertEquals(Arrays.asList("a1", "b1", "a2"),
+                reportedTokens());
+        Assert.assertEquals("a2", reported.get(2).getResumeParams()
+                .get(OAIRequestParameter.RESUMPTION_TOKEN));
+    }
+
+    /**
+     * Tests that no further checkpoints are reported for a repository once a
+     * batch with its records has failed.
+     */
+    @Test
+    public void testFailedBatch() {
+        page(FIRST, "a1", 2);
+        page(SECOND, "b1", 2);
+        tracker.failed(Collections.singletonList(record(FIRST)), 2);
+        Assert.assertTrue(reported.isEmpty());
+        tracker.written(2);
+        Assert.assertEquals(Collections.singletonList("b1"),
+                reportedTokens());
+        page(FIRST, "a2", 1);
+        tracker.written(1);
+        Assert.assertEquals(Collections.singletonList("b1"),
+                reportedTokens());
+    }
+}
@@ -0,0 +1,121 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestParams;
+
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests harvests using {@link HarvestStrategy#IDENTIFIERS_DIFF}.
+ */
+public final class TestDiffHarvest {
+    @Rule
+    public final WireMockRule wireMockRule = Tests.newWireMockRule();
+
+    private final URI testURI;
+    private final DynamoDBTestClient dynamoDBTestClient =
+            new DynamoDBTestClient(this.getClass().getSimpleName());
+
+
+    public TestDiffHarvest() throws URISyntaxException {
+        testURI = new URI(Tests.MOCK_OAI_BASE_URI);
+    }
+
+    @Before
+    public void beforeEachTest() {
+        try {
+            dynamoDBTestClient.dropTable();
+        } catch (final ResourceNotFoundException e) {
+            // Don't care.
+        }
+        dynamoDBTestClient.createTable();
+    }
+
+    private static String response(final String verb, final String content) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-02-01T00:00:00Z</responseDate>" +
+                "<request verb=\"" + verb + "\">http://an.oa.org/OAI-script" +
+                "</request><" + verb + ">" + content + "</" + verb +
+                "></OAI-PMH>";
+    }
+
+    private static String header(final String identifier,
+            final String datestamp, final boolean deleted) {
+        return "<header" + (deleted ? " status=\"deleted\">" : ">") +
+                "<identifier>" + identifier + "</identifier>" +
+                "<datestamp>" + datestamp + "</datestamp></header>";
+    }
+
+    private static void stub(final String urlRegex, final String body) {
+        stubFor(get(urlMatching(urlRegex))
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withBody(body)));
+    }
+
+    private void run(final HarvestStrategy strategy) throws Exception {
+        new HarvestJob.Builder(dynamoDBTestClient.mapper)
+            .withSpecs(new JobHarvestSpec(new HarvestParams.Builder(testURI,
+                    OAIVerb.LIST_RECORDS).build(), Collections.emptyMap(),
+                    strategy))
+            .build()
+            .start();
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        stub(".*verb=ListRecords.*", Tests.OAI_LIST_RECORDS_RESPONSE);
+        run(HarvestStrategy.SINGLE);
+        Assert.assertEquals(Tests.TEST_RECORD_COUNT,
+                dynamoDBTestClient.countItems());
+
+        // Record 1 is unchanged, 2 is deleted, and 3 has been updated.
+        stub(".*verb=ListIdentifiers.*", response("ListIdentifiers",
+                header("1", "2015-11-02", false) +
+                header("2", "2016-01-15", true) +
+                header("3", "2015-10-10", false)));
+        final InputStream in = this.getClass().getResourceAsStream(
+                "/oai-records/record-3a.xml");
+        stub(".*identifier=3.*verb=GetRecord.*", response("GetRecord",
+                new String(ByteStreams.toByteArray(in),
+                        StandardCharsets.UTF_8)));
+        run(HarvestStrategy.IDENTIFIERS_DIFF);
+
+        verify(1, getRequestedFor(urlMatching(".*verb=GetRecord.*")));
+        final Map<String, HarvestedOAIRecord> records = new HashMap<>();
+        dynamoDBTestClient.scan().forEach(r ->
+            records.put(r.getIdentifier(), r));
+        Assert.assertEquals(Tests.TEST_RECORD_COUNT, records.size());
+        Assert.assertEquals("2015-11-02", records.get("1").getDatestamp());
+        Assert.assertEquals(OAI2Constants.DELETED_STATUS,
+                records.get("2").getStatus());
+        Assert.assertEquals("2016-01-15", records.get("2").getDatestamp());
+        Assert.assertEquals("2015-10-10", records.get("3").getDatestamp());
+        Assert.assertTrue(Tests.decompress(records.get("3").getXml())
+                .contains("New Title for Record 3"));
+    }
+}
@@ -81,8 +81,8 @@ public final class TestJobOAIEventHandler {
         expectedValues.put(identifier, expectedValue);
     }
 
-    @Test
-    public void testHandler() throws Exception {
+    private static BlockingQueue<HarvestedOAIRecord> harvest(
+            final boolean rawRecords) throws Exception {
         stubFor(get(urlMatching(".*"))
                 .willReturn(aResponse()
                         .withStatus(HttpStatus.SC_OK)
@@ -95,10 +95,20 @@ public final class TestJobOAIEventHandler {
                 new ArrayBlockingQueue<>(Tests.TEST_RECORD_COUNT);
         harvester.start(p, new JobOAIResponseHandler(uri,
                 new BlockingQueueWrapper<>(harvestedRecordQueue,
-                        Duration.ofMillis(0), Duration.ofMillis(0))));
+                        Duration.ofMillis(0), Duration.ofMillis(0)),
+                JobOAIEventHandler.defaultOutputFactory(), HarvestJob.digest(),
+                x -> true, rawRecords));
 
         Assert.assertEquals(Tests.TEST_RECORD_COUNT,
                 harvestedRecordQueue.size());
+        return harvestedRecordQueue;
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        final URI uri = new URI(Tests.MOCK_OAI_BASE_URI);
+        final BlockingQueue<HarvestedOAIRecord> harvestedRecordQueue =
+                harvest(false);
 
         final Map<String, Map<String, Object>> expectedValues = new HashMap<>();
         Map<String, Object> expectedValue = new HashMap<>();
@@ -138,4 +148,34 @@ public final class TestJobOAIEventHandler {
                     record.getChecksum());
         }
     }
+
+    /**
+     * Tests that raw records are stored exactly as they appear in the
+     * response, with the namespace declarations of their ancestors added.
+     */
+    @Test
+    public void testRawRecords() throws Exception {
+        final String namespaces =
+                " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"" +
+                " xmlns=\"http://www.openarchives.org/OAI/2.0/\"";
+        final MessageDigest digest = HarvestJob.digest();
+        final Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < Tests.TEST_RECORD_COUNT; i++) {
+            expected.put(String.valueOf(i + 1), Tests.RAW_TEST_RECORDS.get(i)
+                    .trim().replaceFirst("^<record", "<record" + namespaces));
+        }
+        final Map<String, HarvestedOAIRecord> records = new HashMap<>();
+        for (final HarvestedOAIRecord record : harvest(true)) {
+            records.put(record.getIdentifier(), record);
+            final String xml = expected.get(record.getIdentifier());
+            Assert.assertEquals(xml, Tests.decompress(record.getXml()));
+            equals(digest.digest(xml.getBytes(StandardCharsets.UTF_8)),
+                    record.getChecksum());
+        }
+        Assert.assertEquals(OAI2Constants.DELETED_STATUS,
+                records.get("1").getStatus());
+        Assert.assertEquals("2015-11-02", records.get("1").getDatestamp());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("set1", "set2")),
+                records.get("2").getSets());
+    }
 }
@@ -0,0 +1,48 @@
+package org.unizin.cmp.oai.harvester.job;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class TestRecordMerger {
+
+    private static HarvestedOAIRecord record(final String datestamp,
+            final String...sets) {
+        final HarvestedOAIRecord record = new HarvestedOAIRecord();
+        record.setIdentifier("id");
+        record.setDatestamp(datestamp);
+        Arrays.stream(sets).forEach(record::addSet);
+        return record;
+    }
+
+    /**
+     * Tests that copies of a record from different sets are written with the
+     * union of their sets, and that redundant copies are dropped.
+     */
+    @Test
+    public void testMerge() {
+        final RecordMerger merger = new RecordMerger();
+        Assert.assertTrue(merger.test(record("2016-01-01", "a")));
+        final HarvestedOAIRecord second = record("2016-01-01", "b");
+        Assert.assertTrue(merger.test(second));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                second.getSets());
+        Assert.assertFalse(merger.test(record("2016-01-01", "a")));
+    }
+
+    /**
+     * Tests that a newer copy of a record is written even if it adds no sets.
+     */
+    @Test
+    public void testNewer() {
+        final RecordMerger merger = new RecordMerger();
+        Assert.assertTrue(merger.test(record("2016-01-01", "a", "b")));
+        final HarvestedOAIRecord newer = record("2016-01-02", "a");
+        Assert.assertTrue(merger.test(newer));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                newer.getSets());
+        Assert.assertFalse(merger.test(record("2016-01-01", "b")));
+    }
+}
@@ -0,0 +1,42 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HostLimiter.Limits;
+
+/**
+ * Tests how {@link HostLimits} combines the limits set for each repository.
+ */
+public final class TestHostLimits {
+    private static final Limits DEFAULTS = new Limits(10, 4);
+
+    private static Map<String, Object> row(final String baseURI,
+            final Double requestsPerSecond, final Integer maxInFlight) {
+        final Map<String, Object> row = new HashMap<>();
+        row.put("REPOSITORY_BASE_URI", baseURI);
+        row.put("REPOSITORY_MAX_REQUESTS_PER_SECOND", requestsPerSecond);
+        row.put("REPOSITORY_MAX_IN_FLIGHT", maxInFlight);
+        return row;
+    }
+
+    @Test
+    public void testLimitsByHost() {
+        final Map<String, Limits> limits = HostLimits.limitsByHost(
+                Arrays.asList(
+                        row("http://example.org/oai", 2.0, null),
+                        row("http://EXAMPLE.org:80/other/oai", 5.0, 1),
+                        row("https://example.org/oai", null, 8),
+                        row("http://example.com/oai", 0.0, -1),
+                        row("not a URI", 1.0, 1)),
+                DEFAULTS);
+        Assert.assertEquals(3, limits.size());
+        // Repositories sharing a host get the strictest of their limits.
+        Assert.assertEquals(new Limits(2, 1), limits.get("example.org:80"));
+        Assert.assertEquals(new Limits(10, 8), limits.get("example.org:443"));
+        Assert.assertEquals(DEFAULTS, limits.get("example.com:80"));
+    }
+}
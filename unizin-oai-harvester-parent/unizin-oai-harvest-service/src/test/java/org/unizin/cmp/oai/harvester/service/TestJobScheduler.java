@@ -0,0 +1,60 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the run times computed by {@link JobScheduler}.
+ */
+public final class TestJobScheduler {
+    private static final Duration DAY = Duration.ofDays(1);
+    private static final Duration MAX_JITTER = Duration.ofHours(2);
+
+    @Test
+    public void testJitter() {
+        final Set<Duration> jitters = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            final String key = i + "http://example.org/oai";
+            final Duration jitter = JobScheduler.jitter(key, DAY, MAX_JITTER);
+            Assert.assertEquals(jitter, JobScheduler.jitter(key, DAY,
+                    MAX_JITTER));
+            Assert.assertFalse(jitter.isNegative());
+            Assert.assertTrue(jitter.compareTo(MAX_JITTER) < 0);
+            jitters.add(jitter);
+        }
+        // Schedules are spread out, not bunched together.
+        Assert.assertTrue(jitters.size() > 90);
+        // Jitter is bounded by the period, too.
+        Assert.assertTrue(JobScheduler.jitter("x", Duration.ofMinutes(1),
+                MAX_JITTER).compareTo(Duration.ofMinutes(1)) < 0);
+        Assert.assertEquals(Duration.ZERO, JobScheduler.jitter("x", DAY,
+                Duration.ZERO));
+    }
+
+    @Test
+    public void testLatestRun() {
+        final Duration jitter = Duration.ofMinutes(30);
+        final Instant start = Instant.parse("2016-01-01T00:00:00Z");
+        Assert.assertEquals(Optional.empty(), JobScheduler.latestRun(start,
+                DAY, jitter, Instant.parse("2016-01-01T00:29:59Z")));
+        Assert.assertEquals(Optional.of(Instant.parse("2016-01-01T00:30:00Z")),
+                JobScheduler.latestRun(start, DAY, jitter,
+                        Instant.parse("2016-01-01T00:30:00Z")));
+        Assert.assertEquals(Optional.of(Instant.parse("2016-01-01T00:30:00Z")),
+                JobScheduler.latestRun(start, DAY, jitter,
+                        Instant.parse("2016-01-02T00:29:59Z")));
+        // Only the latest of several missed runs is due.
+        Assert.assertEquals(Optional.of(Instant.parse("2016-01-08T00:30:00Z")),
+                JobScheduler.latestRun(start, DAY, jitter,
+                        Instant.parse("2016-01-08T12:00:00Z")));
+        Assert.assertEquals(Optional.of(Instant.parse("2016-01-08T00:30:00Z")),
+                JobScheduler.latestRun(start, Duration.ofDays(7), jitter,
+                        Instant.parse("2016-01-14T12:00:00Z")));
+    }
+}
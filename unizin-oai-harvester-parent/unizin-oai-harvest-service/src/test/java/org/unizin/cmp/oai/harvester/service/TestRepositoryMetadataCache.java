@@ -0,0 +1,56 @@
+package org.unizin.cmp.oai.harvester.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIDeletedRecord;
+import org.unizin.cmp.oai.OAIIdentity;
+import org.unizin.cmp.oai.OAIMetadataFormat;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.harvester.RepositoryMetadata;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests the form in which {@link RepositoryMetadataCache} stores metadata.
+ */
+public final class TestRepositoryMetadataCache {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private void assertRoundTrip(final RepositoryMetadata metadata)
+            throws Exception {
+        Assert.assertEquals(metadata, RepositoryMetadataCache.fromJSON(mapper,
+                RepositoryMetadataCache.toJSON(mapper, metadata)));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(new RepositoryMetadata(new OAIIdentity.Builder()
+                .withRepositoryName("Example Repository")
+                .withBaseURL("http://example.org/oai")
+                .withProtocolVersion("2.0")
+                .withAdminEmail("a@example.org")
+                .withAdminEmail("b@example.org")
+                .withEarliestDatestamp("1990-02-01T12:00:00Z")
+                .withDeletedRecord(OAIDeletedRecord.TRANSIENT)
+                .withGranularity(OAIDateGranularity.SECOND)
+                .withCompression("gzip")
+                .build(),
+                Arrays.asList(new OAISet("music", "Music"),
+                        new OAISet("music:jazz", "Jazz")),
+                Arrays.asList(new OAIMetadataFormat("oai_dc",
+                        "http://www.openarchives.org/OAI/2.0/oai_dc.xsd",
+                        "http://www.openarchives.org/OAI/2.0/oai_dc/"),
+                        new OAIMetadataFormat("marc21", null, null))));
+    }
+
+    @Test
+    public void testRoundTripEmpty() throws Exception {
+        assertRoundTrip(new RepositoryMetadata(
+                new OAIIdentity.Builder().build(), Collections.emptyList(),
+                Collections.emptyList()));
+    }
+}
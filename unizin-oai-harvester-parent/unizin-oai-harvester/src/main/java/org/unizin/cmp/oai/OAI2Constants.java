@@ -89,8 +89,27 @@ public final class OAI2Constants {
     public static final QName RESPONSE_DATE = oai2QName("responseDate");
     public static final QName REQUEST = oai2QName("request");
     public static final QName RESUMPTION_TOKEN = oai2QName("resumptionToken");
+    public static final QName SET = oai2QName("set");
+    public static final QName SET_NAME = oai2QName("setName");
     public static final QName SET_SPEC = oai2QName("setSpec");
 
+    // QNames of tags in Identify and ListMetadataFormats responses.
+    public static final QName ADMIN_EMAIL = oai2QName("adminEmail");
+    public static final QName BASE_URL = oai2QName("baseURL");
+    public static final QName COMPRESSION = oai2QName("compression");
+    public static final QName DELETED_RECORD = oai2QName("deletedRecord");
+    public static final QName DESCRIPTION = oai2QName("description");
+    public static final QName EARLIEST_DATESTAMP =
+            oai2QName("earliestDatestamp");
+    public static final QName GRANULARITY = oai2QName("granularity");
+    public static final QName METADATA_FORMAT = oai2QName("metadataFormat");
+    public static final QName METADATA_NAMESPACE =
+            oai2QName("metadataNamespace");
+    public static final QName METADATA_PREFIX = oai2QName("metadataPrefix");
+    public static final QName PROTOCOL_VERSION = oai2QName("protocolVersion");
+    public static final QName REPOSITORY_NAME = oai2QName("repositoryName");
+    public static final QName SCHEMA = oai2QName("schema");
+
     // QNames of attributes (these have no namespace).
     /** Status code on &lt;error&gt;. */
     public static final QName ERROR_CODE_ATTR = attrQName("code");
@@ -1,7 +1,13 @@
 package org.unizin.cmp.oai;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAccessor;
 
 
@@ -15,16 +21,19 @@ import java.time.temporal.TemporalAccessor;
  * </p>
  */
 public enum OAIDateGranularity {
-    DAY(DateTimeFormatter.ISO_LOCAL_DATE),
+    DAY(DateTimeFormatter.ISO_LOCAL_DATE, ChronoUnit.DAYS),
     SECOND(new DateTimeFormatterBuilder()
             .append(DateTimeFormatter.ISO_LOCAL_DATE)
-            .appendPattern("'T'hh:mm:ss'Z'")
-            .toFormatter());
+            .appendPattern("'T'HH:mm:ss'Z'")
+            .toFormatter(), ChronoUnit.SECONDS);
 
     private final DateTimeFormatter formatter;
+    private final ChronoUnit unit;
 
-    private OAIDateGranularity(final DateTimeFormatter formatter) {
+    private OAIDateGranularity(final DateTimeFormatter formatter,
+            final ChronoUnit unit) {
         this.formatter = formatter;
+        this.unit = unit;
     }
 
     public TemporalAccessor parse(final String string) {
@@ -35,6 +44,71 @@ public enum OAIDateGranularity {
         return formatter.format(ta);
     }
 
+    /**
+     * Format an instant in UTC, truncated to this granularity.
+     *
+     * @param instant
+     *            the instant to format.
+     * @return the formatted datestamp.
+     */
+    public String format(final Instant instant) {
+        return formatter.withZone(ZoneOffset.UTC).format(instant);
+    }
+
+    /**
+     * Parse a datestamp in this granularity as a UTC instant.
+     * <p>
+     * Datestamps with {@link #DAY} granularity are interpreted as the start of
+     * the given day.
+     * </p>
+     *
+     * @param datestamp
+     *            the datestamp to parse.
+     * @return the instant represented by the datestamp.
+     * @throws java.time.format.DateTimeParseException
+     *             if the datestamp cannot be parsed in this granularity.
+     */
+    public Instant parseInstant(final String datestamp) {
+        final TemporalAccessor ta = parse(datestamp);
+        final LocalTime time = ta.isSupported(ChronoField.HOUR_OF_DAY) ?
+                LocalTime.from(ta) : LocalTime.MIDNIGHT;
+        return LocalDate.from(ta).atTime(time).toInstant(ZoneOffset.UTC);
+    }
+
+    /**
+     * Truncate an instant to this granularity, in UTC.
+     * <p>
+     * The result is the instant represented by {@code format(instant)}.
+     * </p>
+     *
+     * @param instant
+     *            the instant to truncate.
+     * @return the latest instant expressible in this granularity that is not
+     *         after the given one.
+     */
+    public Instant truncate(final Instant instant) {
+        return parseInstant(format(instant));
+    }
+
+    /**
+     * @return the smallest unit of time expressible in this granularity.
+     */
+    public ChronoUnit getUnit() {
+        return unit;
+    }
+
+    /**
+     * Get the granularity of a datestamp.
+     *
+     * @param datestamp
+     *            a datestamp in either of the standard granularities.
+     * @return {@link #DAY} if the datestamp contains only a date, and
+     *         {@link #SECOND} otherwise.
+     */
+    public static OAIDateGranularity of(final String datestamp) {
+        return datestamp.indexOf('T') == -1 ? DAY : SECOND;
+    }
+
     /**
      * Get an instance from a format string.
      * <p>
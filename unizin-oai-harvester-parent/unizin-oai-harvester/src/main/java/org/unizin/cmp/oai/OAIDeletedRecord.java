@@ -0,0 +1,50 @@
+package org.unizin.cmp.oai;
+
+/**
+ * Enumeration of the levels of <a href=
+ * "http://www.openarchives.org/OAI/openarchivesprotocol.html#DeletedRecords">
+ * support for deleted records</a> a repository can declare in its
+ * {@code Identify} response.
+ */
+public enum OAIDeletedRecord {
+    /** The repository does not keep information about deletions. */
+    NO("no"),
+    /**
+     * The repository does not guarantee that a list of deletions is
+     * maintained persistently or consistently.
+     */
+    TRANSIENT("transient"),
+    /** The repository keeps information about deletions indefinitely. */
+    PERSISTENT("persistent");
+
+    private final String value;
+
+    private OAIDeletedRecord(final String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value of {@code deletedRecord} declaring this level.
+     */
+    public String value() {
+        return value;
+    }
+
+    /**
+     * Get an instance from the value of a repository's
+     * {@code deletedRecord}.
+     *
+     * @param value
+     *            the value.
+     * @return the corresponding level, or {@code null} if the value is not
+     *         recognized.
+     */
+    public static OAIDeletedRecord fromValue(final String value) {
+        for (final OAIDeletedRecord d : values()) {
+            if (d.value.equals(value)) {
+                return d;
+            }
+        }
+        return null;
+    }
+}
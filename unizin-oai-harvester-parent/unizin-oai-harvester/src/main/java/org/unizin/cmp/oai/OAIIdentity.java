@@ -0,0 +1,206 @@
+package org.unizin.cmp.oai;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Container for the information in a repository's response to an <a href=
+ * "http://www.openarchives.org/OAI/openarchivesprotocol.html#Identify">
+ * {@code Identify}</a> request.
+ * <p>
+ * Descriptions are not included. Instances are immutable.
+ * </p>
+ */
+public final class OAIIdentity implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Builder for {@code OAIIdentity}.
+     * <p>
+     * Unset fields are left empty, except for the granularity, which defaults
+     * to {@link OAIDateGranularity#DAY} since all repositories must support
+     * it.
+     * </p>
+     */
+    public static final class Builder {
+        private String repositoryName = "";
+        private String baseURL = "";
+        private String protocolVersion = "";
+        private String earliestDatestamp = "";
+        private OAIDeletedRecord deletedRecord;
+        private OAIDateGranularity granularity = OAIDateGranularity.DAY;
+        private final List<String> adminEmails = new ArrayList<>();
+        private final List<String> compressions = new ArrayList<>();
+
+        public Builder withRepositoryName(final String repositoryName) {
+            this.repositoryName = repositoryName;
+            return this;
+        }
+
+        public Builder withBaseURL(final String baseURL) {
+            this.baseURL = baseURL;
+            return this;
+        }
+
+        public Builder withProtocolVersion(final String protocolVersion) {
+            this.protocolVersion = protocolVersion;
+            return this;
+        }
+
+        public Builder withEarliestDatestamp(final String earliestDatestamp) {
+            this.earliestDatestamp = earliestDatestamp;
+            return this;
+        }
+
+        public Builder withDeletedRecord(
+                final OAIDeletedRecord deletedRecord) {
+            this.deletedRecord = deletedRecord;
+            return this;
+        }
+
+        public Builder withGranularity(final OAIDateGranularity granularity) {
+            this.granularity = granularity;
+            return this;
+        }
+
+        public Builder withAdminEmail(final String adminEmail) {
+            adminEmails.add(adminEmail);
+            return this;
+        }
+
+        public Builder withCompression(final String compression) {
+            compressions.add(compression);
+            return this;
+        }
+
+        public OAIIdentity build() {
+            return new OAIIdentity(this);
+        }
+    }
+
+    private final String repositoryName;
+    private final String baseURL;
+    private final String protocolVersion;
+    private final String earliestDatestamp;
+    private final OAIDeletedRecord deletedRecord;
+    private final OAIDateGranularity granularity;
+    private final List<String> adminEmails;
+    private final List<String> compressions;
+
+
+    private OAIIdentity(final Builder builder) {
+        this.repositoryName = Objects.requireNonNull(builder.repositoryName,
+                "repositoryName");
+        this.baseURL = Objects.requireNonNull(builder.baseURL, "baseURL");
+        this.protocolVersion = Objects.requireNonNull(builder.protocolVersion,
+                "protocolVersion");
+        this.earliestDatestamp = Objects.requireNonNull(
+                builder.earliestDatestamp, "earliestDatestamp");
+        this.deletedRecord = builder.deletedRecord;
+        this.granularity = Objects.requireNonNull(builder.granularity,
+                "granularity");
+        this.adminEmails = Collections.unmodifiableList(
+                new ArrayList<>(builder.adminEmails));
+        this.compressions = Collections.unmodifiableList(
+                new ArrayList<>(builder.compressions));
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public String getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the repository's earliest datestamp, in its granularity.
+     */
+    public String getEarliestDatestamp() {
+        return earliestDatestamp;
+    }
+
+    /**
+     * @return the repository's support for deleted records, or {@code null}
+     *         if it gave none or an unrecognized value.
+     */
+    public OAIDeletedRecord getDeletedRecord() {
+        return deletedRecord;
+    }
+
+    /**
+     * @return the finest datestamp granularity the repository supports for
+     *         selective harvesting.
+     */
+    public OAIDateGranularity getGranularity() {
+        return granularity;
+    }
+
+    public List<String> getAdminEmails() {
+        return adminEmails;
+    }
+
+    /**
+     * @return the content encodings the repository supports.
+     */
+    public List<String> getCompressions() {
+        return compressions;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(repositoryName, baseURL, protocolVersion,
+                earliestDatestamp, deletedRecord, granularity, adminEmails,
+                compressions);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final OAIIdentity other = (OAIIdentity) obj;
+        return repositoryName.equals(other.repositoryName) &&
+                baseURL.equals(other.baseURL) &&
+                protocolVersion.equals(other.protocolVersion) &&
+                earliestDatestamp.equals(other.earliestDatestamp) &&
+                deletedRecord == other.deletedRecord &&
+                granularity == other.granularity &&
+                adminEmails.equals(other.adminEmails) &&
+                compressions.equals(other.compressions);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append("[")
+                .append("repositoryName=")
+                .append(repositoryName)
+                .append(", baseURL=")
+                .append(baseURL)
+                .append(", protocolVersion=")
+                .append(protocolVersion)
+                .append(", earliestDatestamp=")
+                .append(earliestDatestamp)
+                .append(", deletedRecord=")
+                .append(deletedRecord)
+                .append(", granularity=")
+                .append(granularity)
+                .append(", adminEmails=")
+                .append(adminEmails)
+                .append(", compressions=")
+                .append(compressions)
+                .append("]")
+                .toString();
+    }
+}
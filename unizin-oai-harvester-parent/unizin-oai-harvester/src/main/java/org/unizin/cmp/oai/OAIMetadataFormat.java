@@ -0,0 +1,89 @@
+package org.unizin.cmp.oai;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Container for information about a <a href=
+ * "http://www.openarchives.org/OAI/openarchivesprotocol.html#ListMetadataFormats">
+ * metadata format</a>, as listed in a repository's response to a
+ * {@code ListMetadataFormats} request.
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class OAIMetadataFormat implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String metadataPrefix;
+    private final String schema;
+    private final String metadataNamespace;
+
+    /**
+     * Create a new instance.
+     *
+     * @param metadataPrefix
+     *            the format's {@code metadataPrefix}.
+     * @param schema
+     *            the URL of the format's XML schema, or {@code null} if none
+     *            was given.
+     * @param metadataNamespace
+     *            the format's namespace URI, or {@code null} if none was
+     *            given.
+     * @throws NullPointerException
+     *             if {@code metadataPrefix} is {@code null}.
+     */
+    public OAIMetadataFormat(final String metadataPrefix, final String schema,
+            final String metadataNamespace) {
+        Objects.requireNonNull(metadataPrefix, "metadataPrefix");
+        this.metadataPrefix = metadataPrefix;
+        this.schema = (schema == null) ? "" : schema;
+        this.metadataNamespace = (metadataNamespace == null) ? "" :
+            metadataNamespace;
+    }
+
+    public String getMetadataPrefix() {
+        return metadataPrefix;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public String getMetadataNamespace() {
+        return metadataNamespace;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(metadataPrefix, schema, metadataNamespace);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final OAIMetadataFormat other = (OAIMetadataFormat) obj;
+        return metadataPrefix.equals(other.metadataPrefix) &&
+                schema.equals(other.schema) &&
+                metadataNamespace.equals(other.metadataNamespace);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append("[")
+                .append("metadataPrefix=")
+                .append(metadataPrefix)
+                .append(", schema=")
+                .append(schema)
+                .append(", metadataNamespace=")
+                .append(metadataNamespace)
+                .append("]")
+                .toString();
+    }
+}
@@ -0,0 +1,85 @@
+package org.unizin.cmp.oai;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Container for information about a <a href=
+ * "http://www.openarchives.org/OAI/openarchivesprotocol.html#Set">set</a>, as
+ * listed in a repository's response to a {@code ListSets} request.
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class OAISet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String setSpec;
+    private final String setName;
+
+    /**
+     * Create a new instance.
+     *
+     * @param setSpec
+     *            the set's {@code setSpec}.
+     * @param setName
+     *            the set's {@code setName}, or {@code null} if none was given.
+     * @throws NullPointerException
+     *             if {@code setSpec} is {@code null}.
+     */
+    public OAISet(final String setSpec, final String setName) {
+        Objects.requireNonNull(setSpec, "setSpec");
+        this.setSpec = setSpec;
+        this.setName = (setName == null) ? "" : setName;
+    }
+
+    public String getSetSpec() {
+        return setSpec;
+    }
+
+    public String getSetName() {
+        return setName;
+    }
+
+    /**
+     * Is this set at the top of the set hierarchy?
+     * <p>
+     * Per the protocol, records in a set whose {@code setSpec} is
+     * {@code a:b} are also members of set {@code a}.
+     * </p>
+     *
+     * @return {@code true} iff this set has no parent set.
+     */
+    public boolean isTopLevel() {
+        return setSpec.indexOf(':') == -1;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(setSpec, setName);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final OAISet other = (OAISet) obj;
+        return setSpec.equals(other.setSpec) && setName.equals(other.setName);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append("[")
+                .append("setSpec=")
+                .append(setSpec)
+                .append(", setName=")
+                .append(setName)
+                .append("]")
+                .toString();
+    }
+}
@@ -10,6 +10,7 @@ import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.StartElement;
 
@@ -65,6 +66,46 @@ public final class OAIXMLUtils {
         return (attr == null) ? null : attr.getValue();
     }
 
+    /**
+     * Get the value of an attribute of the start element at which a stream
+     * reader is positioned.
+     *
+     * @param reader
+     *            the reader, positioned at a start element.
+     * @param name
+     *            the name of the attribute.
+     * @return the attribute's value, or {@code null} if the element has no
+     *         such attribute.
+     */
+    public static String attributeValue(final XMLStreamReader reader,
+            final QName name) {
+        final String ns = name.getNamespaceURI();
+        return reader.getAttributeValue(ns.isEmpty() ? null : ns,
+                name.getLocalPart());
+    }
+
+    /**
+     * Is a stream reader positioned at an element with the given name?
+     * <p>
+     * Unlike comparing with {@link XMLStreamReader#getName()}, this does not
+     * create a new {@link QName}.
+     * </p>
+     *
+     * @param reader
+     *            the reader, positioned at a start or end element.
+     * @param name
+     *            the name to check.
+     * @return {@code true} iff the current element has the given name.
+     */
+    public static boolean hasName(final XMLStreamReader reader,
+            final QName name) {
+        if (!name.getLocalPart().equals(reader.getLocalName())) {
+            return false;
+        }
+        final String ns = reader.getNamespaceURI();
+        return name.getNamespaceURI().equals(ns == null ? "" : ns);
+    }
+
     /**
      * Create an event writer that writes UTF-8 encoded events to a stream.
      *
@@ -102,6 +143,24 @@ public final class OAIXMLUtils {
         }
     }
 
+    /**
+     * Close an {@link XMLStreamReader}, logging any exceptions that occur as
+     * warnings.
+     *
+     * @param reader
+     *            the stream reader to close.
+     */
+    public static void closeQuietly(final XMLStreamReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            LOGGER.warn("Ignored exception closing XMLStreamReader.", e);
+        }
+    }
+
 
     /** No instances allowed. */
     private OAIXMLUtils() { }
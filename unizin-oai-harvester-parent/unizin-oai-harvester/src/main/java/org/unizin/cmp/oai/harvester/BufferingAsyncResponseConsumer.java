@@ -0,0 +1,140 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+import java.util.function.ObjLongConsumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Internal-use-only response consumer for the asynchronous HTTP client that
+ * copies the response body into a {@link ResponseBuffer} as it arrives.
+ * <p>
+ * Body bytes are copied on the client's I/O dispatch thread without blocking.
+ * The resulting response's entity reads from the buffer, and closing the
+ * entity's content stream closes the buffer. Callers <em>must</em> close
+ * that stream (e.g., by consuming the entity) so that pooled memory is
+ * returned and any temporary file is deleted.
+ * </p>
+ */
+final class BufferingAsyncResponseConsumer
+extends AbstractAsyncResponseConsumer<HttpResponse> {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final ByteBufferPool pool;
+    private final long memoryLimit;
+    private final LongConsumer progress;
+    private final ObjLongConsumer<PhaseTimings.Phase> timed;
+    /** When the request was sent, from {@code nanoTime}. */
+    private final long sent = System.nanoTime();
+    private long headersReceived;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(
+            READ_BUFFER_SIZE);
+    private HttpResponse response;
+    private ResponseBuffer body;
+    private boolean built;
+
+    /**
+     * Create a new instance.
+     *
+     * @param pool
+     *            the pool from which buffer memory is taken.
+     * @param memoryLimit
+     *            the number of bytes to buffer in memory before spilling to a
+     *            temporary file.
+     * @param progress
+     *            receives the number of body bytes received as they arrive.
+     * @param timed
+     *            receives the time, in nanoseconds, from the creation of this
+     *            instance until the response's headers arrive, and from then
+     *            until its body has arrived.
+     */
+    BufferingAsyncResponseConsumer(final ByteBufferPool pool,
+            final long memoryLimit, final LongConsumer progress,
+            final ObjLongConsumer<PhaseTimings.Phase> timed) {
+        this.pool = pool;
+        this.memoryLimit = memoryLimit;
+        this.progress = progress;
+        this.timed = timed;
+    }
+
+    @Override
+    protected void onResponseReceived(final HttpResponse response) {
+        this.response = response;
+        headersReceived = System.nanoTime();
+        timed.accept(PhaseTimings.Phase.TIME_TO_FIRST_BYTE,
+                headersReceived - sent);
+    }
+
+    @Override
+    protected void onEntityEnclosed(final HttpEntity entity,
+            final ContentType contentType) {
+        body = new ResponseBuffer(pool, memoryLimit);
+    }
+
+    @Override
+    protected void onContentReceived(final ContentDecoder decoder,
+            final IOControl ioctrl) throws IOException {
+        int read;
+        while ((read = decoder.read(readBuffer)) > 0) {
+            body.write(readBuffer.array(), 0, read);
+            readBuffer.clear();
+            progress.accept(read);
+        }
+    }
+
+    @Override
+    protected HttpResponse buildResult(final HttpContext context)
+            throws IOException {
+        final HttpEntity original = response.getEntity();
+        final BasicHttpEntity entity = new BasicHttpEntity();
+        if (body == null) {
+            entity.setContent(new ByteArrayInputStream(new byte[0]));
+            entity.setContentLength(0);
+        } else {
+            body.finishWriting();
+            final ResponseBuffer buffer = body;
+            entity.setContent(new FilterInputStream(buffer.newInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        buffer.close();
+                    }
+                }
+            });
+            entity.setContentLength(buffer.size());
+        }
+        if (original != null) {
+            entity.setContentType(original.getContentType());
+            entity.setContentEncoding(original.getContentEncoding());
+        }
+        response.setEntity(entity);
+        built = true;
+        timed.accept(PhaseTimings.Phase.DOWNLOAD,
+                System.nanoTime() - headersReceived);
+        return response;
+    }
+
+    /**
+     * Release the buffer if the response was never built (that is, if the
+     * exchange failed or was cancelled).
+     */
+    @Override
+    protected void releaseResources() {
+        if (!built && body != null) {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Internal-use-only pool of fixed-size direct byte buffers.
+ * <p>
+ * Buffers are used to hold response bodies in memory (see
+ * {@link ResponseBuffer}). Allocating direct buffers is relatively expensive,
+ * so released buffers are kept for reuse, up to a fixed maximum number. Buffers
+ * released beyond that number are simply dropped and left to the garbage
+ * collector.
+ * </p>
+ * <p>
+ * Instances are safe for use in multiple threads.
+ * </p>
+ */
+final class ByteBufferPool {
+    /** Default size of each buffer, in bytes. */
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Default maximum number of idle buffers retained by the pool. */
+    static final int DEFAULT_MAX_POOLED = 64;
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    ByteBufferPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    ByteBufferPool(final int chunkSize, final int maxPooled) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive.");
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException(
+                    "maxPooled must be nonnegative.");
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, allocating a new one if none is
+     * available.
+     *
+     * @return a cleared buffer with capacity equal to this pool's chunk size.
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * <p>
+     * The caller must not use the buffer after releasing it.
+     * </p>
+     *
+     * @param buffer
+     *            a buffer previously obtained from {@link #acquire()}.
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer.capacity() != chunkSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
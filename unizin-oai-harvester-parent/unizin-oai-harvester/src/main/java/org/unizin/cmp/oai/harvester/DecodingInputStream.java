@@ -0,0 +1,253 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+
+/**
+ * Input stream that decodes the content of an HTTP entity as it is read,
+ * according to the entity's {@code Content-Encoding}, counting the bytes read
+ * both before and after decoding.
+ * <p>
+ * The counts are reported once, when the stream is first closed, along with
+ * the time spent waiting for reads from the entity. Bytes read from the
+ * entity are also reported as they are read, so that the progress of a slow
+ * response can be followed.
+ * </p>
+ */
+final class DecodingInputStream extends FilterInputStream {
+    /** Value of the {@code Accept-Encoding} header for encodings decoded. */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
+    /** Receives a stream's counts when it is closed. */
+    @FunctionalInterface
+    interface CloseListener {
+        /**
+         * @param wire
+         *            the number of bytes read from the entity.
+         * @param decoded
+         *            the number of bytes after decoding.
+         * @param readNanos
+         *            the time spent reading from the entity, in nanoseconds.
+         */
+        void closed(long wire, long decoded, long readNanos);
+    }
+
+    /**
+     * Counts the bytes read from the entity, before decoding, and the time
+     * spent reading them.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final LongConsumer progress;
+        private long count;
+        private long readNanos;
+
+        private CountingInputStream(final InputStream in,
+                final LongConsumer progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        private void counted(final long n) {
+            count += n;
+            progress.accept(n);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = System.nanoTime();
+            final int b = super.read();
+            readNanos += System.nanoTime() - start;
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            final long start = System.nanoTime();
+            final int n = super.read(b, off, len);
+            readNanos += System.nanoTime() - start;
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long start = System.nanoTime();
+            final long skipped = super.skip(n);
+            readNanos += System.nanoTime() - start;
+            if (skipped > 0) {
+                counted(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private final CountingInputStream wire;
+    private final CloseListener onClose;
+    private long decoded;
+    private boolean reported;
+
+    private DecodingInputStream(final InputStream in,
+            final CountingInputStream wire,
+            final CloseListener onClose) {
+        super(in);
+        this.wire = wire;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Create a stream that inflates {@code deflate}-encoded content.
+     * <p>
+     * The encoding is meant to be zlib-wrapped, but some servers send raw
+     * deflate data instead, so the zlib header is checked for.
+     * </p>
+     */
+    private static InputStream inflate(final InputStream in)
+            throws IOException {
+        final PushbackInputStream pb = new PushbackInputStream(in, 2);
+        final byte[] header = new byte[2];
+        int n = 0;
+        while (n < header.length) {
+            final int r = pb.read(header, n, header.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        pb.unread(header, 0, n);
+        final boolean zlib = n == 2 && (header[0] & 0x0F) == 8 &&
+                (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pb, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a stream that decodes an entity's content.
+     *
+     * @param entity
+     *            the entity.
+     * @param progress
+     *            receives the number of bytes read from the entity by each
+     *            read.
+     * @param onClose
+     *            receives the number of bytes read from the entity, the
+     *            number after decoding, and the time spent reading from the
+     *            entity when the stream is closed.
+     * @return the decoding stream.
+     * @throws IOException
+     *             if there's an error getting the entity's content or reading
+     *             its compression header.
+     * @throws HarvesterException
+     *             if the entity's content encoding is not supported.
+     */
+    static DecodingInputStream decode(final HttpEntity entity,
+            final LongConsumer progress,
+            final CloseListener onClose) throws IOException {
+        final Header header = entity.getContentEncoding();
+        final String coding = header == null ? "" :
+            header.getValue().trim().toLowerCase(Locale.ROOT);
+        final CountingInputStream wire = new CountingInputStream(
+                entity.getContent(), progress);
+        try {
+            switch (coding) {
+            case "":
+            case "identity":
+                return new DecodingInputStream(wire, wire, onClose);
+            case "gzip":
+            case "x-gzip":
+                return new DecodingInputStream(new GZIPInputStream(wire,
+                        GZIP_BUFFER_SIZE), wire, onClose);
+            case "deflate":
+                return new DecodingInputStream(inflate(wire), wire, onClose);
+            default:
+                throw new HarvesterException(String.format(
+                        "Unsupported content encoding \"%s\".", coding));
+            }
+        } catch (final IOException | RuntimeException e) {
+            wire.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the time spent so far reading from the entity, in nanoseconds.
+     */
+    long getReadNanos() {
+        return wire.readNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b >= 0) {
+            decoded++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        final int n = super.read(b, off, len);
+        if (n > 0) {
+            decoded += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        decoded += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!reported) {
+                reported = true;
+                onClose.closed(wire.count, decoded, wire.readNanos);
+            }
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package org.unizin.cmp.oai.harvester;
 
 import java.net.URI;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.apache.http.client.methods.HttpUriRequest;
 import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIDateGranularity;
 import org.unizin.cmp.oai.OAIRequestParameter;
 import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
-import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIStreamHandler;
 import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
 
 /**
@@ -24,16 +34,18 @@ import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
 final class Harvest {
 
     /**
-     * Boolean flags associated with the harvest.
+     * Flags associated with the harvest, and the reason it was cancelled.
      * <p>
      * These are grouped solely because it makes implementation slightly simpler
      * (in particular, it simplifies
-     * {@link HarvestNotification#HarvestNotification(HarvestNotificationType, Map, State, Exception, ResumptionToken, Instant, HarvestParams, Map, URI, SortedMap, Instant, Instant)}).
+     * {@link HarvestNotification#HarvestNotification(long, HarvestNotificationType, Map, State, Exception, ResumptionToken, Instant, Instant, HarvestParams, long[], HarvestProgress, Supplier, URI, SortedMap, Instant, Instant)}).
      */
     static final class State {
         volatile boolean running;
         volatile boolean explicitlyStopped;
         volatile boolean cancelled;
+        /** Why the harvest was cancelled, if known. Set before the flag. */
+        volatile String cancelReason;
         /*
          * Doesn't need to be volatile, because this is only written from the
          * same thread in which the harvester runs, and other threads see only
@@ -42,11 +54,30 @@ final class Harvest {
         boolean interrupted;
     }
 
-    private final HarvestParams params;
+    private static final AtomicLong HARVEST_COUNT = new AtomicLong();
+
+    /** Distinguishes this harvest's notifications from others'. */
+    private final long id = HARVEST_COUNT.incrementAndGet();
+    private final HarvestParams initialParams;
+    /**
+     * The parameters of the list being harvested, which differ from the
+     * initial parameters once the harvest has fallen back from a rejected
+     * token.
+     * <p>
+     * Must be {@code volatile} so that {@link #getRetryParams()} can be called
+     * from multiple threads.
+     * </p>
+     */
+    private volatile HarvestParams params;
+    /** The overlap of token fallbacks, or {@code null} if disabled. */
+    private final Duration fallbackOverlap;
     private final OAIResponseHandler responseHandler;
     private final Map<String, String> tags;
     private final State state = new State();
+    /** Notified when the harvest stops, to end any wait to retry. */
+    private final Object retryLock = new Object();
     private HttpUriRequest request;
+    /** Unmodifiable, so that notifications can share it. */
     private SortedMap<String, String> lastRequestParams;
     private Exception exception;
     /**
@@ -57,45 +88,263 @@ final class Harvest {
      * </p>
      */
     private volatile ResumptionToken resumptionToken;
+    private Instant firstResponseDate;
     private Instant lastResponseDate;
+    /** The latest record datestamp seen, and its granularity. */
+    private Instant highWaterMark;
+    private OAIDateGranularity highWaterGranularity;
+    /** The high-water mark from which the list was last restarted. */
+    private Instant lastFallbackMark;
     private Instant started;
     private Instant ended;
     private long requestCount;
     private long responseCount;
     private long xmlEventCount;
+    private long speculativeRequestCount;
+    private long speculativeHitCount;
+    private long retryCount;
+    private long hedgeRequestCount;
+    private long hedgeWinCount;
+    private long tokenFallbackCount;
+    private long retryWaitMillis;
+    private long recordCount;
+    /** Records in the response being parsed. */
+    private long pageRecordCount;
+    /**
+     * Records of the list received before this harvest started, as reported
+     * by the cursors of resumption tokens.
+     */
+    private long listOffset;
+    private Long completeListSize;
+    /**
+     * Samples of {@code nanoTime} and the record count, covering the rate
+     * window.
+     */
+    private final Deque<long[]> rateSamples = new ArrayDeque<>();
+    /* Atomic because bodies may be read by read-ahead threads. */
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    /**
+     * Response bytes received so far, counted as they arrive rather than
+     * when each body has been read.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+    /**
+     * Aborts each request in flight, to be run if the harvest is cancelled.
+     * Requests may be sent and completed from any thread.
+     */
+    private final ConcurrentMap<HttpUriRequest, Runnable> inFlight =
+            new ConcurrentHashMap<>();
+    private final PhaseTimings.Recorder phaseTimings =
+            new PhaseTimings.Recorder();
+    /** Time spent in the handler for the response being parsed. */
+    private long responseHandlerNanos;
+    /** When {@link #cancel(String)} was first called, from {@code nanoTime}. */
+    private volatile long cancelNanos;
 
 
     Harvest() {
-        this(null, null, Collections.emptyMap());
+        this(null, null, Collections.emptyMap(), null);
     }
 
     Harvest(final HarvestParams params,
             final OAIResponseHandler responseHandler,
-            final Map<String, String> tags) {
+            final Map<String, String> tags, final Duration fallbackOverlap) {
+        this.initialParams = params;
         this.params = params;
+        this.fallbackOverlap = fallbackOverlap;
         this.responseHandler = responseHandler;
         this.tags = Collections.unmodifiableMap(new TreeMap<>(tags));
     }
 
     HarvestNotification createNotification(
             final HarvestNotificationType type) {
-        final Map<HarvestStatistic, Long> stats = new TreeMap<>();
-        stats.put(HarvestStatistic.REQUEST_COUNT, requestCount);
-        stats.put(HarvestStatistic.RESPONSE_COUNT, responseCount);
-        stats.put(HarvestStatistic.XML_EVENT_COUNT, xmlEventCount);
+        return createNotification(type, false);
+    }
+
+    /**
+     * Create a notification of the harvest's current state.
+     *
+     * @param type
+     *            the type of notification.
+     * @param snapshotTimings
+     *            whether to take the phase timings now, rather than when
+     *            first requested. They are always taken now when the harvest
+     *            has ended.
+     * @return the notification.
+     */
+    HarvestNotification createNotification(
+            final HarvestNotificationType type,
+            final boolean snapshotTimings) {
+        final long[] stats = new long[HarvestNotification.STATISTIC_COUNT];
+        stat(stats, HarvestStatistic.REQUEST_COUNT, requestCount);
+        stat(stats, HarvestStatistic.RESPONSE_COUNT, responseCount);
+        stat(stats, HarvestStatistic.XML_EVENT_COUNT, xmlEventCount);
+        stat(stats, HarvestStatistic.SPECULATIVE_REQUEST_COUNT,
+                speculativeRequestCount);
+        stat(stats, HarvestStatistic.SPECULATIVE_HIT_COUNT,
+                speculativeHitCount);
+        stat(stats, HarvestStatistic.RETRY_COUNT, retryCount);
+        stat(stats, HarvestStatistic.RETRY_WAIT_MILLIS, retryWaitMillis);
+        stat(stats, HarvestStatistic.HEDGE_REQUEST_COUNT, hedgeRequestCount);
+        stat(stats, HarvestStatistic.HEDGE_WIN_COUNT, hedgeWinCount);
+        stat(stats, HarvestStatistic.TOKEN_FALLBACK_COUNT, tokenFallbackCount);
+        stat(stats, HarvestStatistic.WIRE_BYTES, wireBytes.get());
+        stat(stats, HarvestStatistic.DECODED_BYTES, decodedBytes.get());
+        stat(stats, HarvestStatistic.RECORD_COUNT, recordCount);
+        stat(stats, HarvestStatistic.TIME_TO_FIRST_BYTE_MILLIS,
+                totalMillis(PhaseTimings.Phase.TIME_TO_FIRST_BYTE));
+        stat(stats, HarvestStatistic.DOWNLOAD_MILLIS,
+                totalMillis(PhaseTimings.Phase.DOWNLOAD));
+        stat(stats, HarvestStatistic.PARSE_MILLIS,
+                totalMillis(PhaseTimings.Phase.PARSE));
+        stat(stats, HarvestStatistic.HANDLER_MILLIS,
+                totalMillis(PhaseTimings.Phase.HANDLER));
+        stat(stats, HarvestStatistic.CANCEL_LATENCY_MILLIS,
+                state.cancelled ? TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - cancelNanos) : 0);
         final URI uri = (request == null) ? null : request.getURI();
-        return new HarvestNotification(type, tags, state, exception,
-                resumptionToken, lastResponseDate, params, stats,
-                uri, lastRequestParams, started, ended);
+        /*
+         * Histograms are copied only if someone asks for them, except at the
+         * end, when they are final, or when asked to.
+         */
+        final Supplier<PhaseTimings> timings;
+        if (snapshotTimings ||
+                type == HarvestNotificationType.HARVEST_ENDED) {
+            final PhaseTimings snapshot = phaseTimings.snapshot();
+            timings = () -> snapshot;
+        } else {
+            timings = phaseTimings::snapshot;
+        }
+        return new HarvestNotification(id, type, tags, state, exception,
+                resumptionToken, firstResponseDate, lastResponseDate, params,
+                stats, progress(), timings, uri, lastRequestParams, started,
+                ended);
+    }
+
+    private static void stat(final long[] stats, final HarvestStatistic stat,
+            final long value) {
+        stats[stat.ordinal()] = value;
+    }
+
+    private long totalMillis(final PhaseTimings.Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseTimings.getTotalNanos(
+                phase));
+    }
+
+    /**
+     * Record the time a response spent in a phase.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param phase
+     *            the phase.
+     * @param nanos
+     *            the time, in nanoseconds.
+     */
+    void phaseTimed(final PhaseTimings.Phase phase, final long nanos) {
+        phaseTimings.record(phase, nanos);
+    }
+
+    /**
+     * Record time spent in the response handler for the response being
+     * parsed.
+     *
+     * @param nanos
+     *            the time, in nanoseconds.
+     */
+    void handlerTimed(final long nanos) {
+        responseHandlerNanos += nanos;
+    }
+
+    /**
+     * @return the time spent in the response handler for the response being
+     *         parsed, in nanoseconds.
+     */
+    long getResponseHandlerNanos() {
+        return responseHandlerNanos;
+    }
+
+    PhaseTimings getPhaseTimings() {
+        return phaseTimings.snapshot();
+    }
+
+    private HarvestProgress progress() {
+        double rate = 0;
+        final long[] base = rateSamples.peekFirst();
+        if (base != null) {
+            final long elapsed = System.nanoTime() - base[0];
+            if (elapsed > 0) {
+                rate = (recordCount - base[1]) *
+                        (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+            }
+        }
+        return new HarvestProgress(listOffset + recordCount,
+                completeListSize, rate);
+    }
+
+    /**
+     * Add a sample of the record count, dropping samples no longer needed to
+     * cover the rate window.
+     */
+    private void sampleRate() {
+        final long now = System.nanoTime();
+        final long window = HarvestProgress.RATE_WINDOW.toNanos();
+        rateSamples.addLast(new long[] {now, recordCount});
+        // Keep the newest sample at least a window old, as the base.
+        while (true) {
+            final long[] first = rateSamples.pollFirst();
+            final long[] next = rateSamples.peekFirst();
+            if (next == null || now - next[0] < window) {
+                rateSamples.addFirst(first);
+                break;
+            }
+        }
     }
 
     void setLastResponseDate(final Instant lastResponseDate) {
+        if (firstResponseDate == null) {
+            firstResponseDate = lastResponseDate;
+        }
         this.lastResponseDate = lastResponseDate;
     }
 
+    /**
+     * Record the datestamp of a record in a response.
+     *
+     * @param granularity
+     *            the granularity of the datestamp.
+     * @param datestamp
+     *            the instant represented by the datestamp.
+     */
+    void datestampSeen(final OAIDateGranularity granularity,
+            final Instant datestamp) {
+        if (highWaterMark == null || datestamp.isAfter(highWaterMark)) {
+            highWaterMark = datestamp;
+            highWaterGranularity = granularity;
+        }
+    }
+
+    /**
+     * Record that a record (or header) of the list was received.
+     */
+    void recordSeen() {
+        recordCount++;
+        pageRecordCount++;
+    }
+
     void setResumptionToken(final ResumptionToken resumptionToken) {
         Objects.requireNonNull(resumptionToken, "resumptionToken");
         this.resumptionToken = resumptionToken;
+        /*
+         * The cursor counts the records sent before those in this response,
+         * so it tells us how many were sent before this harvest started.
+         */
+        resumptionToken.getCursor().ifPresent(cursor ->
+            listOffset = Math.max(0, cursor + pageRecordCount - recordCount));
+        resumptionToken.getCompleteListSize().ifPresent(size ->
+            completeListSize = size);
     }
 
     void setRequest(final HttpUriRequest request) {
@@ -111,19 +360,121 @@ final class Harvest {
      * @return the parameters for the next request.
      */
     Map<String, String> getRequestParameters() {
-        if (resumptionToken != null) {
-            lastRequestParams = new TreeMap<>();
-            lastRequestParams.put(
-                    OAIRequestParameter.RESUMPTION_TOKEN.paramName(),
-                    resumptionToken.getToken());
-            lastRequestParams.put(OAI2Constants.VERB_PARAM_NAME,
-                    params.getVerb().localPart());
+        return getRequestParameters(resumptionToken == null ? null :
+            resumptionToken.getToken());
+    }
+
+    /**
+     * Get the parameters for a request using a given resumption token.
+     * <p>
+     * This is used when the next request is issued before the current response
+     * has been fully processed, and so before the token from that response is
+     * set on this harvest.
+     * </p>
+     *
+     * @param token
+     *            the resumption token to use, or {@code null} to get the
+     *            initial parameters.
+     * @return the parameters for the next request.
+     */
+    Map<String, String> getRequestParameters(final String token) {
+        if (token != null) {
+            lastRequestParams = Collections.unmodifiableSortedMap(
+                    getSpeculativeRequestParameters(token));
         } else {
             lastRequestParams = params.getParameters();
         }
         return lastRequestParams;
     }
 
+    /**
+     * Get the parameters for a request using a predicted resumption token.
+     * <p>
+     * Unlike {@link #getRequestParameters(String)}, this does not record the
+     * parameters as those of the last request, since the request may never be
+     * used.
+     * </p>
+     *
+     * @param token
+     *            the predicted resumption token.
+     * @return the parameters for the request.
+     */
+    SortedMap<String, String> getSpeculativeRequestParameters(
+            final String token) {
+        final SortedMap<String, String> parameters = new TreeMap<>();
+        parameters.put(OAIRequestParameter.RESUMPTION_TOKEN.paramName(),
+                token);
+        parameters.put(OAI2Constants.VERB_PARAM_NAME,
+                params.getVerb().localPart());
+        return parameters;
+    }
+
+    /**
+     * @return {@code true} iff the resumption token for the next request is
+     *         known to have expired.
+     */
+    boolean isTokenExpired() {
+        final ResumptionToken token = resumptionToken;
+        return token != null && token.getExpirationDate()
+                .map(d -> d.isBefore(Instant.now())).orElse(false);
+    }
+
+    /**
+     * @return {@code true} iff the last request was sent with a resumption
+     *         token.
+     */
+    boolean lastRequestHadToken() {
+        return lastRequestParams != null && lastRequestParams.containsKey(
+                OAIRequestParameter.RESUMPTION_TOKEN.paramName());
+    }
+
+    /**
+     * Restart the list being harvested from the latest datestamp seen, less
+     * the fallback overlap, in place of its resumption token.
+     * <p>
+     * The new {@code from} date is truncated to the granularity of the latest
+     * datestamp, and is never earlier than that of the initial parameters.
+     * A list is restarted only if records newer than those seen at the last
+     * restart have been seen since, so that a repository that rejects every
+     * token cannot keep the harvest restarting forever.
+     * </p>
+     *
+     * @return {@code true} iff the list was restarted, in which case the next
+     *         request will be an initial request with the new parameters.
+     */
+    boolean fallBack() {
+        if (fallbackOverlap == null || highWaterMark == null ||
+                !state.running) {
+            return false;
+        }
+        if (lastFallbackMark != null &&
+                !highWaterMark.isAfter(lastFallbackMark)) {
+            return false;
+        }
+        final Instant from = highWaterGranularity.truncate(
+                highWaterMark.minus(fallbackOverlap));
+        String fromParam = highWaterGranularity.format(from);
+        final String initialFrom = initialParams.get(OAIRequestParameter.FROM);
+        if (initialFrom != null && isAfter(initialFrom, from)) {
+            fromParam = initialFrom;
+        }
+        params = initialParams.getRestartParameters(fromParam);
+        resumptionToken = null;
+        lastFallbackMark = highWaterMark;
+        tokenFallbackCount++;
+        return true;
+    }
+
+    private static boolean isAfter(final String datestamp,
+            final Instant instant) {
+        try {
+            return OAIDateGranularity.of(datestamp).parseInstant(datestamp)
+                    .isAfter(instant);
+        } catch (final DateTimeParseException e) {
+            return false;
+        }
+    }
+
     URI getBaseURI() {
         return params.getBaseURI();
     }
@@ -131,16 +482,78 @@ final class Harvest {
     void start() {
         state.running = true;
         started = Instant.now();
+        sampleRate();
     }
 
     void stop() {
         state.running = false;
         ended = Instant.now();
+        synchronized (retryLock) {
+            retryLock.notifyAll();
+        }
     }
 
-    void cancel() {
-        state.cancelled = true;
+    /**
+     * Cancel the harvest, aborting any requests in flight.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param reason
+     *            why the harvest is being cancelled, or {@code null} if not
+     *            known. Only the reason given by the first call is kept.
+     */
+    void cancel(final String reason) {
+        synchronized (state) {
+            if (!state.cancelled) {
+                cancelNanos = System.nanoTime();
+                state.cancelReason = reason;
+                state.cancelled = true;
+            }
+        }
         requestStop();
+        inFlight.keySet().forEach(this::abort);
+    }
+
+    private void abort(final HttpUriRequest request) {
+        final Runnable abort = inFlight.remove(request);
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    /**
+     * Record that a request is in flight, so that it can be aborted if the
+     * harvest is cancelled. If the harvest has already been cancelled, the
+     * request is aborted immediately.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param request
+     *            the request.
+     * @param abort
+     *            aborts the request, closing its response stream.
+     */
+    void requestStarted(final HttpUriRequest request, final Runnable abort) {
+        inFlight.put(request, abort);
+        if (state.cancelled) {
+            abort(request);
+        }
+    }
+
+    /**
+     * Record that a request is no longer in flight, because its response has
+     * been read or it failed.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param request
+     *            the request.
+     */
+    void requestEnded(final HttpUriRequest request) {
+        inFlight.remove(request);
     }
 
     boolean isCancelled() {
@@ -155,8 +568,20 @@ final class Harvest {
         stop();
     }
 
+    /**
+     * Record an error that ends the harvest.
+     * <p>
+     * Errors in a cancelled harvest are ignored, since they are most likely
+     * the result of aborting its requests.
+     * </p>
+     *
+     * @param e
+     *            the error.
+     */
     void error(final Exception e) {
-        exception = e;
+        if (!state.cancelled) {
+            exception = e;
+        }
         stop();
     }
 
@@ -164,8 +589,108 @@ final class Harvest {
         requestCount++;
     }
 
+    void speculativeRequestSent() {
+        speculativeRequestCount++;
+    }
+
+    void speculativeHit() {
+        speculativeHitCount++;
+    }
+
+    void hedgeSent() {
+        hedgeRequestCount++;
+    }
+
+    void hedgeWon() {
+        hedgeWinCount++;
+    }
+
+    /**
+     * Record the size of a response body that has been read.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param wire
+     *            the number of bytes received.
+     * @param decoded
+     *            the number of bytes after decoding any content encoding.
+     */
+    void bodyRead(final long wire, final long decoded) {
+        wireBytes.addAndGet(wire);
+        decodedBytes.addAndGet(decoded);
+    }
+
+    /**
+     * Record that response bytes have been received.
+     * <p>
+     * Unlike most methods of this class, this may be called from any thread.
+     * </p>
+     *
+     * @param count
+     *            the number of bytes.
+     */
+    void bytesReceived(final long count) {
+        bytesReceived.addAndGet(count);
+    }
+
+    /**
+     * Get a measure of the harvest's progress that may be read from any
+     * thread while the harvest runs.
+     *
+     * @return the number of response bytes received so far, including those
+     *         of responses not yet fully read. Bodies of asynchronous
+     *         responses are counted both as they arrive and as they are read.
+     */
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Record that a failed request is to be retried.
+     *
+     * @param waitMillis
+     *            the delay before the retry.
+     */
+    void retrying(final long waitMillis) {
+        retryCount++;
+        retryWaitMillis += waitMillis;
+    }
+
+    /**
+     * Wait before retrying a failed request.
+     * <p>
+     * The wait ends early if the harvest is stopped or cancelled, or if the
+     * current thread is interrupted, in which case its interrupt flag is left
+     * set.
+     * </p>
+     *
+     * @param millis
+     *            the number of milliseconds to wait.
+     * @return {@code true} iff the harvest is still running after the wait.
+     */
+    boolean awaitRetry(final long millis) {
+        final long deadline = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (retryLock) {
+            try {
+                long remaining;
+                while (state.running &&
+                        (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(retryLock, remaining);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return hasNext();
+    }
+
     void responseReceived() {
         responseCount++;
+        pageRecordCount = 0;
+        responseHandlerNanos = 0;
+        sampleRate();
     }
 
     void xmlEventReceived() {
@@ -191,8 +716,8 @@ final class Harvest {
     }
 
     HarvestParams getHarvestParams() {
-        if (params != null) {
-            return params;
+        if (initialParams != null) {
+            return initialParams;
         }
         throw new IllegalStateException("No current harvest parameters.");
     }
@@ -201,8 +726,9 @@ final class Harvest {
         return responseHandler;
     }
 
-    OAIEventHandler getEventHandler(final HarvestNotification notification) {
-        return responseHandler.getEventHandler(notification);
+    OAIStreamHandler getStreamHandler(
+            final HarvestNotification notification) {
+        return responseHandler.getStreamHandler(notification);
     }
 }
 
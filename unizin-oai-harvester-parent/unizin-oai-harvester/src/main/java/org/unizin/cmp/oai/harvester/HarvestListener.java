@@ -0,0 +1,27 @@
+package org.unizin.cmp.oai.harvester;
+
+/**
+ * Receives notifications of harvest events asynchronously.
+ * <p>
+ * Unlike observers, which are called on the harvest's own thread, listeners
+ * are called on a {@link NotificationBus}'s dispatcher thread, so the time
+ * they take (e.g., to write harvest status to a database) never delays the
+ * harvest. A listener receives the notifications of each harvester it is
+ * added to in the order they were sent, but, depending on its
+ * {@linkplain NotificationBus.OverflowPolicy overflow policy}, may not
+ * receive all of them if it falls behind. By the time a notification is
+ * received, the harvest may have moved on.
+ * </p>
+ *
+ * @see Harvester#addListener(HarvestListener, NotificationBus.OverflowPolicy)
+ */
+@FunctionalInterface
+public interface HarvestListener {
+    /**
+     * Receive a notification.
+     *
+     * @param notification
+     *            the notification.
+     */
+    void onNotification(HarvestNotification notification);
+}
@@ -4,18 +4,30 @@ import java.net.URI;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.function.Supplier;
 
 import org.unizin.cmp.oai.OAIVerb;
 import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.Harvest.State;
 
 /**
- * Immutable snapshot of harvest state, sent to observers to notify them of
- * harvest events.
+ * Snapshot of harvest state, sent to observers and listeners to notify them
+ * of harvest events.
+ * <p>
+ * Instances are immutable, with one exception. So that notifications nobody
+ * reads cost the harvest little, the phase timings of a notification sent
+ * only to observers are taken when {@link #getPhaseTimings()} is first
+ * called, and so may include responses handled after the notification was
+ * sent. The timings of notifications sent to listeners, or sent when the
+ * harvest ends, are taken when the notification is created. Those offered to
+ * a {@link NotificationBus} by a subscription's
+ * {@linkplain NotificationBus.Subscription#asObserver(Class) observer} are
+ * taken when it is offered.
+ * </p>
  *
  */
 public final class HarvestNotification {
@@ -61,48 +73,195 @@ public final class HarvestNotification {
         RESPONSE_COUNT,
         /** The number of XML events parsed during this harvest. */
         XML_EVENT_COUNT,
+        /**
+         * The number of requests sent with predicted resumption tokens
+         * during this harvest.
+         *
+         * @see Harvester.Builder#withTokenPredictor(TokenPredictor, int)
+         */
+        SPECULATIVE_REQUEST_COUNT,
+        /**
+         * The number of requests sent with predicted resumption tokens whose
+         * predictions proved correct, and whose responses were used.
+         * <p>
+         * Each such request is also counted in {@link #REQUEST_COUNT} when it
+         * is used.
+         * </p>
+         */
+        SPECULATIVE_HIT_COUNT,
+        /**
+         * The number of failed requests sent again during this harvest.
+         * <p>
+         * Each retry is also counted in {@link #REQUEST_COUNT}.
+         * </p>
+         *
+         * @see Harvester.Builder#withRetryPolicy(RetryPolicy)
+         */
+        RETRY_COUNT,
+        /**
+         * The total delay, in milliseconds, before retries of failed requests
+         * during this harvest.
+         */
+        RETRY_WAIT_MILLIS,
+        /**
+         * The number of duplicate requests sent for requests whose responses
+         * were slow to start during this harvest.
+         * <p>
+         * Hedges are not counted in {@link #REQUEST_COUNT}.
+         * </p>
+         *
+         * @see Harvester.Builder#withHedgingPolicy(HedgingPolicy)
+         */
+        HEDGE_REQUEST_COUNT,
+        /**
+         * The number of hedges whose responses started before those of the
+         * requests they duplicated, and so were used, during this harvest.
+         */
+        HEDGE_WIN_COUNT,
+        /**
+         * The number of times this harvest restarted its list from its
+         * datestamp high-water mark because a resumption token was rejected
+         * or had expired.
+         *
+         * @see Harvester.Builder#withTokenExpiryFallback(java.time.Duration)
+         */
+        TOKEN_FALLBACK_COUNT,
+        /**
+         * The number of bytes of response bodies received during this
+         * harvest, as sent by the repository, before any content encoding is
+         * decoded.
+         * <p>
+         * This includes the bodies of speculative and hedged responses that
+         * were not used. Responses decoded by the HTTP client itself are
+         * counted as received decoded.
+         * </p>
+         *
+         * @see Harvester.Builder#withContentCompression(boolean)
+         */
+        WIRE_BYTES,
+        /**
+         * The number of bytes of response bodies received during this
+         * harvest, after any content encoding is decoded.
+         * <p>
+         * Comparing this to {@link #WIRE_BYTES} shows the savings from
+         * compression.
+         * </p>
+         */
+        DECODED_BYTES,
+        /**
+         * The number of milliseconds since this harvest was cancelled, or zero
+         * if it has not been. In the notification sent when the harvest ends,
+         * this is how long the harvest took to stop.
+         *
+         * @see Harvester#cancel()
+         */
+        CANCEL_LATENCY_MILLIS,
+        /**
+         * The number of records (or headers, for {@code ListIdentifiers})
+         * received during this harvest, counting deleted records.
+         *
+         * @see HarvestNotification#getProgress()
+         */
+        RECORD_COUNT,
+        /**
+         * The total time, in milliseconds, from sending requests until their
+         * responses' headers arrived during this harvest.
+         *
+         * @see PhaseTimings.Phase#TIME_TO_FIRST_BYTE
+         */
+        TIME_TO_FIRST_BYTE_MILLIS,
+        /**
+         * The total time, in milliseconds, spent waiting for response bodies
+         * to arrive during this harvest.
+         *
+         * @see PhaseTimings.Phase#DOWNLOAD
+         */
+        DOWNLOAD_MILLIS,
+        /**
+         * The total time, in milliseconds, spent parsing responses during
+         * this harvest.
+         *
+         * @see PhaseTimings.Phase#PARSE
+         */
+        PARSE_MILLIS,
+        /**
+         * The total time, in milliseconds, spent in the response handler
+         * during this harvest, if handler timing is enabled.
+         *
+         * @see PhaseTimings.Phase#HANDLER
+         */
+        HANDLER_MILLIS,
     }
 
 
+    /** Number of harvest statistics. */
+    static final int STATISTIC_COUNT = HarvestStatistic.values().length;
+
+    private final long harvestID;
     private final HarvestNotificationType type;
     private final Map<String, String> tags;
     private final boolean running;
     private final boolean explicitlyStopped;
     private final boolean cancelled;
+    private final Optional<String> cancelReason;
     private final boolean interrupted;
     private final Optional<Exception> exception;
     private final Optional<ResumptionToken> resumptionToken;
+    private final Optional<Instant> firstResponseDate;
     private final Optional<Instant> lastResponseDate;
     private final HarvestParams params;
-    private final Map<HarvestStatistic, Long> stats;
+    /** Statistics, indexed by ordinal. */
+    private final long[] stats;
+    private volatile Map<HarvestStatistic, Long> statsMap;
+    private final HarvestProgress progress;
+    private final Supplier<PhaseTimings> phaseTimingsSupplier;
+    private volatile PhaseTimings phaseTimings;
     private final Optional<URI> lastRequestURI;
     private final Optional<SortedMap<String, String>> lastRequestParameters;
     private final Instant started;
     private final Optional<Instant> ended;
 
-    HarvestNotification(final HarvestNotificationType type,
+    /**
+     * Create a new instance.
+     *
+     * @param stats
+     *            the statistics, indexed by ordinal. Not copied.
+     * @param phaseTimings
+     *            supplies the phase timings, when first requested.
+     * @param lastRequestParameters
+     *            the parameters of the last request. Not copied, so it must
+     *            be unmodifiable.
+     */
+    HarvestNotification(final long harvestID,
+            final HarvestNotificationType type,
             final Map<String, String> tags, final State state,
             final Exception exception, final ResumptionToken resumptionToken,
-            final Instant lastResponseDate, final HarvestParams params,
-            final Map<HarvestStatistic, Long> stats, final URI lastRequestURI,
+            final Instant firstResponseDate, final Instant lastResponseDate,
+            final HarvestParams params,
+            final long[] stats, final HarvestProgress progress,
+            final Supplier<PhaseTimings> phaseTimings,
+            final URI lastRequestURI,
             final SortedMap<String, String> lastRequestParameters,
             final Instant started, final Instant ended) {
+        this.harvestID = harvestID;
         this.type = type;
         this.tags = tags;
         this.running = state.running;
         this.explicitlyStopped = state.explicitlyStopped;
         this.cancelled = state.cancelled;
+        this.cancelReason = Optional.ofNullable(state.cancelReason);
         this.interrupted = state.interrupted;
         this.exception = Optional.ofNullable(exception);
         this.resumptionToken = Optional.ofNullable(resumptionToken);
+        this.firstResponseDate = Optional.ofNullable(firstResponseDate);
         this.lastResponseDate = Optional.ofNullable(lastResponseDate);
         this.params = params;
-        this.stats = Collections.unmodifiableMap(stats);
+        this.stats = stats;
+        this.progress = progress;
+        this.phaseTimingsSupplier = phaseTimings;
         this.lastRequestURI = Optional.ofNullable(lastRequestURI);
-        this.lastRequestParameters = lastRequestParameters == null ?
-                Optional.empty() :
-                Optional.of(Collections.unmodifiableSortedMap(
-                        new TreeMap<>(lastRequestParameters)));
+        this.lastRequestParameters = Optional.ofNullable(
+                lastRequestParameters);
         this.started = started;
         this.ended = Optional.ofNullable(ended);
     }
@@ -114,11 +273,67 @@ public final class HarvestNotification {
      * @return an immutable map containing all the harvest stats.
      */
     public Map<HarvestStatistic, Long> getStats() {
-        return stats;
+        Map<HarvestStatistic, Long> map = statsMap;
+        if (map == null) {
+            final Map<HarvestStatistic, Long> m = new EnumMap<>(
+                    HarvestStatistic.class);
+            for (final HarvestStatistic stat : HarvestStatistic.values()) {
+                m.put(stat, stats[stat.ordinal()]);
+            }
+            map = Collections.unmodifiableMap(m);
+            statsMap = map;
+        }
+        return map;
     }
 
     public Long getStat(final HarvestStatistic stat) {
-        return stats.get(stat);
+        return stats[stat.ordinal()];
+    }
+
+    /**
+     * Get the progress of the harvest through its list at the time this
+     * notification was sent.
+     *
+     * @return the progress of the harvest.
+     */
+    public HarvestProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Get the time the harvest's responses had spent in each phase of their
+     * handling.
+     * <p>
+     * The timings of notifications sent to any listeners, or sent when the
+     * harvest ends, are those when the notification was created. Those of
+     * notifications offered to a bus by a subscription's observer are those
+     * when they were offered. Otherwise, they are taken when this method is
+     * first called, so an observer that keeps a notification and calls this
+     * later may see the timings of later responses.
+     * </p>
+     *
+     * @return the phase timings of the harvest.
+     */
+    public PhaseTimings getPhaseTimings() {
+        PhaseTimings timings = phaseTimings;
+        if (timings == null) {
+            synchronized (phaseTimingsSupplier) {
+                timings = phaseTimings;
+                if (timings == null) {
+                    timings = phaseTimingsSupplier.get();
+                    phaseTimings = timings;
+                }
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * @return a number distinguishing the harvest that sent this notification
+     *         from others run in this JVM.
+     */
+    long getHarvestID() {
+        return harvestID;
     }
 
     public URI getBaseURI() {
@@ -133,6 +348,21 @@ public final class HarvestNotification {
         return type;
     }
 
+    /**
+     * Get the {@code responseDate} of the harvest's first response.
+     * <p>
+     * Every record changed after this date is either included in the harvest
+     * or has a later datestamp, so this is the date from which to start the
+     * next incremental harvest.
+     * </p>
+     *
+     * @return the date of the first response, if any has been received.
+     * @see HarvestStateRecorder
+     */
+    public Optional<Instant> getFirstResponseDate() {
+        return firstResponseDate;
+    }
+
     public Optional<Instant> getLastReponseDate() {
         return lastResponseDate;
     }
@@ -161,6 +391,18 @@ public final class HarvestNotification {
         return cancelled;
     }
 
+    /**
+     * Get the reason the harvest was cancelled.
+     *
+     * @return the reason given when the harvest was cancelled, if it was
+     *         cancelled and a reason was given.
+     * @see Harvester#cancel(String)
+     * @see HarvestWatchdog
+     */
+    public Optional<String> getCancelReason() {
+        return cancelReason;
+    }
+
     public boolean isInterrupted() {
         return interrupted;
     }
@@ -173,6 +415,17 @@ public final class HarvestNotification {
         return exception;
     }
 
+    /**
+     * Get the parameters of the list being harvested.
+     * <p>
+     * These are the parameters with which the harvest was started, unless the
+     * harvest has fallen back from a rejected resumption token, in which case
+     * they are the parameters with which the list was restarted.
+     * </p>
+     *
+     * @return the parameters of the list being harvested.
+     * @see HarvestStatistic#TOKEN_FALLBACK_COUNT
+     */
     public HarvestParams getHarvestParameters() {
         return params;
     }
@@ -181,6 +434,10 @@ public final class HarvestNotification {
         return lastRequestURI;
     }
 
+    /**
+     * @return the parameters of the last request sent, if any, as an
+     *         unmodifiable map the harvest never changes.
+     */
     public Optional<SortedMap<String, String>> getLastRequestParameters() {
         return lastRequestParameters;
     }
@@ -212,7 +469,8 @@ public final class HarvestNotification {
                 .append(", started=").append(DateTimeFormatter.ISO_INSTANT
                         .format(started))
                 .append(", ended=").append(end)
-                .append(", stats=").append(stats).append("]")
+                .append(", stats=").append(getStats())
+                .append(", progress=").append(progress).append("]")
                 .toString();
     }
 }
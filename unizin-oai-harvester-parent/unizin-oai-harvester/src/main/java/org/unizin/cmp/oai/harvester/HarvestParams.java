@@ -2,11 +2,14 @@ package org.unizin.cmp.oai.harvester;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.temporal.TemporalAccessor;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -84,6 +87,61 @@ public final class HarvestParams implements Serializable {
             return this;
         }
 
+        /**
+         * Set {@code from} to the date of the last complete harvest of the
+         * same list, making this an incremental harvest.
+         * <p>
+         * The date recorded in the store is moved back by the given overlap,
+         * to allow for skew between the repository's clock and the times at
+         * which its records' datestamps were set, and then formatted in the
+         * repository's granularity. If nothing has been recorded, or if
+         * {@code from} is already later than that date, it is left as-is.
+         * </p>
+         * <p>
+         * The list is identified by this builder's base URI, metadata prefix,
+         * and set, so this method should be called after those are set.
+         * </p>
+         *
+         * @param store
+         *            the store holding the date of the last complete harvest.
+         * @param overlap
+         *            how far before that date to start this harvest.
+         * @param granularity
+         *            the repository's datestamp granularity.
+         * @return this instance
+         * @see HarvestStateRecorder
+         */
+        public Builder withIncrementalFrom(final HarvestStateStore store,
+                final Duration overlap,
+                final OAIDateGranularity granularity) {
+            Objects.requireNonNull(store, "store");
+            Objects.requireNonNull(overlap, "overlap");
+            Objects.requireNonNull(granularity, "granularity");
+            if (overlap.isNegative()) {
+                throw new IllegalArgumentException(
+                        "Overlap cannot be negative.");
+            }
+            final HarvestStateStore.Key key = new HarvestStateStore.Key(
+                    baseURI,
+                    standardParameters.get(
+                            OAIRequestParameter.METADATA_PREFIX.paramName()),
+                    standardParameters.get(
+                            OAIRequestParameter.SET.paramName()));
+            final Optional<Instant> last = store.getLastResponseDate(key);
+            if (!last.isPresent()) {
+                return this;
+            }
+            final Instant incremental = granularity.truncate(
+                    last.get().minus(overlap));
+            final String from = standardParameters.get(
+                    OAIRequestParameter.FROM.paramName());
+            if (from == null || OAIDateGranularity.of(from).parseInstant(from)
+                    .isBefore(incremental)) {
+                withFrom(granularity.format(incremental));
+            }
+            return this;
+        }
+
         public Builder withIdentifier(final String identifier) {
             put(OAIRequestParameter.IDENTIFIER, identifier);
             return this;
@@ -200,6 +258,39 @@ public final class HarvestParams implements Serializable {
         return parameters;
     }
 
+    /**
+     * Create a builder initialized with this instance's parameters.
+     * <p>
+     * This is useful for deriving new parameters from existing ones, e.g., to
+     * harvest a narrower date range.
+     * </p>
+     *
+     * @return a new builder with this instance's base URI, verb, and
+     *         parameters.
+     */
+    public Builder toBuilder() {
+        return toBuilder(verb);
+    }
+
+    /**
+     * Create a builder initialized with this instance's parameters, but with
+     * a different verb.
+     * <p>
+     * The parameters are copied as-is. Callers should check
+     * {@link Builder#isValid()} if the verbs take different parameters.
+     * </p>
+     *
+     * @param verb
+     *            the verb of the new builder.
+     * @return a new builder with this instance's base URI and parameters, and
+     *         the given verb.
+     */
+    public Builder toBuilder(final OAIVerb verb) {
+        return new Builder(baseURI, verb)
+                .withMap(standardParameters)
+                .withMap(nonstandardParameters);
+    }
+
     public String get(final OAIRequestParameter param) {
         return parameters.get(param.paramName());
     }
@@ -221,6 +312,27 @@ public final class HarvestParams implements Serializable {
         return this;
     }
 
+    /**
+     * Get parameters that restart this instance's list from a given date.
+     * <p>
+     * The new parameters have no resumption token, and their {@code from}
+     * parameter is replaced. All other parameters are kept.
+     * </p>
+     *
+     * @param from
+     *            the new value of the {@code from} parameter.
+     * @return parameters for a new initial request.
+     */
+    public HarvestParams getRestartParameters(final String from) {
+        Objects.requireNonNull(from, "from");
+        final Map<String, String> standard = new HashMap<>(
+                standardParameters);
+        standard.remove(OAIRequestParameter.RESUMPTION_TOKEN.paramName());
+        standard.put(OAIRequestParameter.FROM.paramName(), from);
+        return new HarvestParams(baseURI, verb, standard,
+                nonstandardParameters);
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,154 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * How far a list harvest has got through its list, and how fast it is going.
+ * <p>
+ * A harvest's position is the number of records (or headers) of the list
+ * received so far. When the repository reports a {@code cursor} in its
+ * resumption tokens, the position also counts records received before the
+ * harvest started, as when a harvest is resumed from a checkpoint. The size of
+ * the list comes from the {@code completeListSize} of the latest resumption
+ * token that reported one. For repositories that don't report it, callers
+ * may supply an estimate, such as the size of the same list when it was last
+ * harvested, with {@link #withEstimatedListSize(long)}.
+ * </p>
+ * <p>
+ * The rate is measured over roughly the last
+ * {@linkplain #RATE_WINDOW minute} of the harvest.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ *
+ * @see HarvestNotification#getProgress()
+ */
+public final class HarvestProgress {
+    /** Period over which the rate of a harvest is measured. */
+    public static final Duration RATE_WINDOW = Duration.ofMinutes(1);
+
+    private final long position;
+    private final Optional<Long> listSize;
+    private final boolean listSizeEstimated;
+    private final double recordsPerSecond;
+
+    HarvestProgress(final long position, final Long listSize,
+            final double recordsPerSecond) {
+        this(position, Optional.ofNullable(listSize), false, recordsPerSecond);
+    }
+
+    private HarvestProgress(final long position,
+            final Optional<Long> listSize, final boolean listSizeEstimated,
+            final double recordsPerSecond) {
+        this.position = position;
+        this.listSize = listSize;
+        this.listSizeEstimated = listSizeEstimated;
+        this.recordsPerSecond = recordsPerSecond;
+    }
+
+    /**
+     * Get a copy of this instance using an estimated list size, if the
+     * repository has not reported one.
+     *
+     * @param estimatedListSize
+     *            the estimated number of records in the list.
+     * @return this instance, if the list's size is known; otherwise, a copy
+     *         using the estimate.
+     */
+    public HarvestProgress withEstimatedListSize(
+            final long estimatedListSize) {
+        if (listSize.isPresent() || estimatedListSize <= 0) {
+            return this;
+        }
+        return new HarvestProgress(position, Optional.of(estimatedListSize),
+                true, recordsPerSecond);
+    }
+
+    /**
+     * @return the number of records of the list received so far.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the number of records in the list, if known or estimated.
+     */
+    public Optional<Long> getListSize() {
+        return listSize;
+    }
+
+    /**
+     * @return {@code true} iff the list size is an estimate supplied by the
+     *         caller, rather than one reported by the repository.
+     */
+    public boolean isListSizeEstimated() {
+        return listSizeEstimated;
+    }
+
+    /**
+     * @return the number of records received per second, over the rate
+     *         window.
+     */
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    /**
+     * @return the fraction of the list received so far, between zero and
+     *         one, if the list's size is known or estimated.
+     */
+    public Optional<Double> getFractionComplete() {
+        return listSize.map(size -> size == 0 ? 1.0 :
+            Math.min(1.0, (double)position / size));
+    }
+
+    /**
+     * @return the time remaining until the rest of the list is received at
+     *         the current rate, if the list's size is known or estimated and
+     *         records are being received.
+     */
+    public Optional<Duration> getEstimatedTimeRemaining() {
+        if (!listSize.isPresent()) {
+            return Optional.empty();
+        }
+        final long remaining = listSize.get() - position;
+        if (remaining <= 0) {
+            return Optional.of(Duration.ZERO);
+        }
+        if (!(recordsPerSecond > 0)) {
+            return Optional.empty();
+        }
+        return Optional.of(Duration.ofMillis(
+                (long)Math.ceil(remaining * 1000 / recordsPerSecond)));
+    }
+
+    /**
+     * @return a map of this instance's properties, omitting those that are
+     *         unknown, suitable for serialization.
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new TreeMap<>();
+        map.put("position", position);
+        map.put("recordsPerSecond", recordsPerSecond);
+        if (listSize.isPresent()) {
+            map.put("listSize", listSize.get());
+            map.put("listSizeEstimated", listSizeEstimated);
+        }
+        getFractionComplete().ifPresent(f -> map.put("fractionComplete", f));
+        getEstimatedTimeRemaining().ifPresent(
+                d -> map.put("estimatedTimeRemaining", d.toString()));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append(toMap())
+                .toString();
+    }
+}
@@ -0,0 +1,100 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Observer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+
+/**
+ * Observer or listener that records complete list harvests in a
+ * {@link HarvestStateStore}.
+ * <p>
+ * When a {@code ListRecords} or {@code ListIdentifiers} harvest ends, it is
+ * recorded with the {@code responseDate} of its
+ * {@link HarvestNotification#getFirstResponseDate() first response}, unless:
+ * </p>
+ * <ul>
+ * <li>it ended with an error other than {@code noRecordsMatch}, which means
+ * nothing has changed since the harvest's {@code from} date;</li>
+ * <li>it was stopped, cancelled, or interrupted; or</li>
+ * <li>it was started with a resumption token, and so did not list the records
+ * before that token.</li>
+ * </ul>
+ * <p>
+ * Errors writing to the store are logged, not thrown.
+ * </p>
+ */
+public final class HarvestStateRecorder implements Observer,
+        HarvestListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            HarvestStateRecorder.class);
+
+    private final HarvestStateStore store;
+
+
+    public HarvestStateRecorder(final HarvestStateStore store) {
+        this.store = Objects.requireNonNull(store, "store");
+    }
+
+    private static boolean isListVerb(final OAIVerb verb) {
+        return verb == OAIVerb.LIST_RECORDS ||
+                verb == OAIVerb.LIST_IDENTIFIERS;
+    }
+
+    private static boolean isNoRecordsMatch(final Exception e) {
+        return e instanceof OAIProtocolException &&
+                ((OAIProtocolException)e).getOAIErrors().stream().allMatch(
+                        err -> err.getErrorCode().orElse(null) ==
+                        OAIErrorCode.NO_RECORDS_MATCH);
+    }
+
+    /**
+     * @param hn
+     *            a notification that a harvest has ended.
+     * @return {@code true} iff the harvest listed everything changed since
+     *         its {@code from} date.
+     */
+    static boolean isComplete(final HarvestNotification hn) {
+        if (hn.isExplicitlyStopped() || hn.isCancelled() ||
+                hn.isInterrupted()) {
+            return false;
+        }
+        if (hn.hasError() && !isNoRecordsMatch(hn.getException().get())) {
+            return false;
+        }
+        final HarvestParams params = hn.getHarvestParameters();
+        return isListVerb(params.getVerb()) &&
+                params.get(OAIRequestParameter.RESUMPTION_TOKEN) == null;
+    }
+
+    @Override
+    public void update(final Observable o, final Object arg) {
+        if (arg instanceof HarvestNotification) {
+            onNotification((HarvestNotification)arg);
+        }
+    }
+
+    @Override
+    public void onNotification(final HarvestNotification hn) {
+        if (hn.getType() != HarvestNotificationType.HARVEST_ENDED ||
+                !isComplete(hn) || !hn.getFirstResponseDate().isPresent()) {
+            return;
+        }
+        final HarvestStateStore.Key key = HarvestStateStore.Key.of(
+                hn.getHarvestParameters());
+        try {
+            store.setLastResponseDate(key, hn.getFirstResponseDate().get());
+            LOGGER.debug("Recorded complete harvest of {} as of {}.", key,
+                    hn.getFirstResponseDate().get());
+        } catch (final RuntimeException e) {
+            LOGGER.error("Error recording harvest state for " + key + ".", e);
+        }
+    }
+}
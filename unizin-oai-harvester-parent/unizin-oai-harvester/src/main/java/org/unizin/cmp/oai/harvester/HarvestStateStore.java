@@ -0,0 +1,133 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.unizin.cmp.oai.OAIRequestParameter;
+
+/**
+ * Persistent record of how far each repository has been harvested, for
+ * incremental harvesting.
+ * <p>
+ * A store holds, for each {@link Key}, the {@code responseDate} from which
+ * the next incremental harvest of that repository, metadata format, and set
+ * should start. It is written by a {@link HarvestStateRecorder} when a
+ * harvest completes, and read by
+ * {@link HarvestParams.Builder#withIncrementalFrom(HarvestStateStore, java.time.Duration, org.unizin.cmp.oai.OAIDateGranularity)}.
+ * </p>
+ * <p>
+ * Implementations must be safe for use in multiple threads.
+ * </p>
+ *
+ * @see InMemoryHarvestStateStore
+ */
+public interface HarvestStateStore {
+
+    /**
+     * Identifies what a harvest lists: a repository, a metadata format, and,
+     * optionally, a set.
+     * <p>
+     * Instances are immutable.
+     * </p>
+     */
+    final class Key {
+        private final URI baseURI;
+        private final String metadataPrefix;
+        private final String set;
+
+        /**
+         * Create a new instance.
+         *
+         * @param baseURI
+         *            the repository's base URI.
+         * @param metadataPrefix
+         *            the metadata prefix, or {@code null} if none.
+         * @param set
+         *            the set spec, or {@code null} if the harvest is not
+         *            restricted to a set.
+         */
+        public Key(final URI baseURI, final String metadataPrefix,
+                final String set) {
+            this.baseURI = Objects.requireNonNull(baseURI, "baseURI");
+            this.metadataPrefix = metadataPrefix;
+            this.set = set;
+        }
+
+        /**
+         * Get the key of the list requested by harvest parameters.
+         *
+         * @param params
+         *            the harvest parameters.
+         * @return the key of the list requested.
+         */
+        public static Key of(final HarvestParams params) {
+            return new Key(params.getBaseURI(),
+                    params.get(OAIRequestParameter.METADATA_PREFIX),
+                    params.get(OAIRequestParameter.SET));
+        }
+
+        public URI getBaseURI() {
+            return baseURI;
+        }
+
+        public Optional<String> getMetadataPrefix() {
+            return Optional.ofNullable(metadataPrefix);
+        }
+
+        public Optional<String> getSet() {
+            return Optional.ofNullable(set);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseURI, metadataPrefix, set);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return baseURI.equals(other.baseURI) &&
+                    Objects.equals(metadataPrefix, other.metadataPrefix) &&
+                    Objects.equals(set, other.set);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(this.getClass().getSimpleName())
+                    .append("[baseURI=").append(baseURI)
+                    .append(", metadataPrefix=").append(metadataPrefix)
+                    .append(", set=").append(set)
+                    .append("]")
+                    .toString();
+        }
+    }
+
+    /**
+     * Get the date from which the next incremental harvest should start.
+     *
+     * @param key
+     *            what the harvest lists.
+     * @return the {@code responseDate} recorded for the last complete
+     *         harvest, if any.
+     */
+    Optional<Instant> getLastResponseDate(Key key);
+
+    /**
+     * Record that a harvest has completed.
+     *
+     * @param key
+     *            what the harvest listed.
+     * @param responseDate
+     *            the date from which the next incremental harvest should
+     *            start.
+     */
+    void setLastResponseDate(Key key, Instant responseDate);
+}
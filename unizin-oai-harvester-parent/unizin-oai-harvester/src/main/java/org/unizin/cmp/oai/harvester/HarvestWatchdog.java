@@ -0,0 +1,253 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+
+/**
+ * Cancels harvests that run too long or stop making progress.
+ * <p>
+ * A watchdog watches every harvester it is added to as an observer, from the
+ * start of each harvest until its end. Each time the watchdog is
+ * {@linkplain #run() run}, it cancels any harvest that has been running
+ * longer than its deadline, or that has received fewer than the minimum
+ * number of response bytes within its stall window. The latter catches
+ * repositories that send a few bytes at a time, often enough never to trip a
+ * socket timeout. The reason for each cancellation is reported by
+ * {@link HarvestNotification#getCancelReason()}.
+ * </p>
+ * <p>
+ * The watchdog does not schedule itself; callers should run it periodically,
+ * at intervals much shorter than its stall window. The stall window should
+ * be longer than any wait to retry a failed request, since no bytes are
+ * received while waiting.
+ * </p>
+ * <p>
+ * Instances are thread safe, and one watchdog may watch any number of
+ * harvesters.
+ * </p>
+ */
+public final class HarvestWatchdog implements Observer, Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            HarvestWatchdog.class);
+
+    public static final Duration DEFAULT_STALL_WINDOW = Duration.ofMinutes(10);
+    public static final long DEFAULT_MIN_PROGRESS_BYTES = 1;
+
+
+    /**
+     * Builder for {@code HarvestWatchdog}.
+     */
+    public static final class Builder {
+        private Duration deadline;
+        private Duration stallWindow = DEFAULT_STALL_WINDOW;
+        private long minProgressBytes = DEFAULT_MIN_PROGRESS_BYTES;
+
+        /**
+         * Set the longest a harvest may run before it is cancelled.
+         * <p>
+         * By default, harvests have no deadline.
+         * </p>
+         *
+         * @param deadline
+         *            the deadline, or {@code null} for none.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code deadline} is not positive.
+         */
+        public Builder withDeadline(final Duration deadline) {
+            if (deadline != null && (deadline.isNegative() ||
+                    deadline.isZero())) {
+                throw new IllegalArgumentException(
+                        "deadline must be positive.");
+            }
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Set how long a harvest may go without making progress before it is
+         * cancelled.
+         *
+         * @param stallWindow
+         *            the window, or {@code null} to never cancel stalled
+         *            harvests.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code stallWindow} is not positive.
+         */
+        public Builder withStallWindow(final Duration stallWindow) {
+            if (stallWindow != null && (stallWindow.isNegative() ||
+                    stallWindow.isZero())) {
+                throw new IllegalArgumentException(
+                        "stallWindow must be positive.");
+            }
+            this.stallWindow = stallWindow;
+            return this;
+        }
+
+        /**
+         * Set the number of response bytes a harvest must receive within
+         * each stall window to count as making progress.
+         *
+         * @param minProgressBytes
+         *            the number of bytes.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code minProgressBytes} is not positive.
+         */
+        public Builder withMinProgressBytes(final long minProgressBytes) {
+            if (minProgressBytes <= 0) {
+                throw new IllegalArgumentException(
+                        "minProgressBytes must be positive.");
+            }
+            this.minProgressBytes = minProgressBytes;
+            return this;
+        }
+
+        public HarvestWatchdog build() {
+            return new HarvestWatchdog(deadline, stallWindow,
+                    minProgressBytes);
+        }
+    }
+
+
+    /** The progress of one watched harvest. Guarded by its own monitor. */
+    private static final class Watched {
+        private final Harvest harvest;
+        private final long started = System.nanoTime();
+        private long windowStarted = started;
+        private long windowBytes;
+
+        private Watched(final Harvest harvest) {
+            this.harvest = harvest;
+            this.windowBytes = harvest.getBytesReceived();
+        }
+    }
+
+
+    private final Duration deadline;
+    private final Duration stallWindow;
+    private final long minProgressBytes;
+    private final Map<Harvester, Watched> watched = new ConcurrentHashMap<>();
+
+    private HarvestWatchdog(final Duration deadline,
+            final Duration stallWindow, final long minProgressBytes) {
+        this.deadline = deadline;
+        this.stallWindow = stallWindow;
+        this.minProgressBytes = minProgressBytes;
+    }
+
+    /**
+     * Start or stop watching a harvester's harvest.
+     * <p>
+     * This is called by each harvester this watchdog observes, and should
+     * not be called otherwise.
+     * </p>
+     */
+    @Override
+    public void update(final Observable o, final Object arg) {
+        if (!(o instanceof Harvester && arg instanceof HarvestNotification)) {
+            return;
+        }
+        final Harvester harvester = (Harvester)o;
+        final HarvestNotificationType type =
+                ((HarvestNotification)arg).getType();
+        if (type == HarvestNotificationType.HARVEST_STARTED) {
+            watched.put(harvester, new Watched(harvester.currentHarvest()));
+        } else if (type == HarvestNotificationType.HARVEST_ENDED) {
+            watched.remove(harvester);
+        }
+    }
+
+    /**
+     * @return the number of harvests being watched.
+     */
+    public int getWatchedCount() {
+        return watched.size();
+    }
+
+    /**
+     * Check every watched harvest, cancelling any that has passed its
+     * deadline or stalled.
+     */
+    public void check() {
+        final long now = System.nanoTime();
+        watched.forEach((harvester, w) -> {
+            final String reason = check(w, now);
+            if (reason != null) {
+                LOGGER.warn("Cancelling harvest of {}: {}",
+                        w.harvest.getBaseURI(), reason);
+                watched.remove(harvester, w);
+                w.harvest.cancel(reason);
+            }
+        });
+    }
+
+    /**
+     * Check one harvest.
+     *
+     * @return why the harvest should be cancelled, or {@code null} if it
+     *         should not be.
+     */
+    private String check(final Watched w, final long now) {
+        synchronized (w) {
+            if (deadline != null && now - w.started > deadline.toNanos()) {
+                return String.format("Harvest exceeded its deadline of %s.",
+                        deadline);
+            }
+            if (stallWindow == null) {
+                return null;
+            }
+            final long bytes = w.harvest.getBytesReceived();
+            final long progress = bytes - w.windowBytes;
+            if (progress >= minProgressBytes) {
+                w.windowStarted = now;
+                w.windowBytes = bytes;
+                return null;
+            }
+            if (now - w.windowStarted > stallWindow.toNanos()) {
+                return String.format(
+                        "Harvest stalled: received %d bytes in %s, " +
+                        "fewer than the minimum of %d.", progress,
+                        stallWindow, minProgressBytes);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check every watched harvest, as by {@link #check()}, logging any
+     * exception instead of throwing it, so that this may be scheduled to run
+     * periodically.
+     */
+    @Override
+    public void run() {
+        try {
+            check();
+        } catch (final Exception e) {
+            LOGGER.error("Error checking harvests.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append("[")
+                .append("deadline=")
+                .append(deadline)
+                .append(", stallWindow=")
+                .append(stallWindow)
+                .append(", minProgressBytes=")
+                .append(minProgressBytes)
+                .append("]")
+                .toString();
+    }
+}
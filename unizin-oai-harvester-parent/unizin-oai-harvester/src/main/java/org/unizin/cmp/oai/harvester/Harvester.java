@@ -3,32 +3,67 @@ package org.unizin.cmp.oai.harvester;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Observable;
+import java.util.Observer;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIErrorCode;
 import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
 import org.unizin.cmp.oai.harvester.exception.HarvesterException;
 import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
 import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
 
 /**
@@ -81,13 +116,49 @@ import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
  * harvest will stop after the current response has been fully processed. To
  * stop the harvest more quickly, one could instead call {@code har.cancel()},
  * which will tell {@code har} to stop the next time it looks for more XML to
- * read from the current response.
+ * read from the current response, and abort any request still waiting for a
+ * response.
  * </p>
  * <p>
  * In this simple example, the response handler is not shared between threads,
  * but the harvester's design allows for shared handlers, provided the handlers
  * themselves are safe for use in multiple threads.
  * </p>
+ * <h2>Sessions</h2>
+ * <p>
+ * Each instance runs one harvest at a time. To run many at once, create a
+ * {@linkplain #newSession() session} for each. Sessions share the
+ * harvester's clients, connection pools, XML input factory, and parser, so
+ * they are cheap to create, and the harvester's observers and listeners are
+ * notified of every session's harvests.
+ * </p>
+ * <h2>Asynchronous Harvests</h2>
+ * <p>
+ * A harvester built with
+ * {@link Builder#withAsyncHttpClient(HttpAsyncClient, Executor)} can also run
+ * harvests with
+ * {@link #startAsync(HarvestParams, OAIResponseHandler, Map)}, which returns
+ * immediately. Such harvests hold no thread while waiting for a repository,
+ * so many harvesters sharing one client and one small executor can run at
+ * once.
+ * </p>
+ * <h2>Retrying Failed Requests</h2>
+ * <p>
+ * By default, a harvest ends as soon as a request fails. A harvester built
+ * with {@link Builder#withRetryPolicy(RetryPolicy)} instead sends a request
+ * that failed for a reason that might be temporary, such as an HTTP 503
+ * status or a reset connection, again after a delay, and continues the
+ * harvest from that page.
+ * </p>
+ * <h2>Observers and Listeners</h2>
+ * <p>
+ * Observers added with {@link #addObserver(java.util.Observer)} are notified
+ * of harvest events synchronously, on the harvest's thread, so the harvest
+ * waits for them. Anything slow, such as writing harvest status to a
+ * database, should instead be done by a {@link HarvestListener} added with
+ * {@link #addListener(HarvestListener)}, which is notified on a
+ * {@link NotificationBus}'s dispatcher thread.
+ * </p>
  */
 public final class Harvester extends Observable {
     private static final Logger LOGGER =
@@ -121,11 +192,26 @@ public final class Harvester extends Observable {
      */
     private static final int DEFAULT_CONNECT_TIMEOUT = 1000;
 
+    /**
+     * Default number of bytes of each response held in memory when read-ahead
+     * or asynchronous harvesting is enabled. Bytes beyond this limit are
+     * spilled to a temporary file.
+     *
+     * @see Builder#withReadAheadMemoryLimit(long)
+     */
+    public static final long DEFAULT_READ_AHEAD_MEMORY_LIMIT =
+            4 * 1024 * 1024;
+
     /**
      * Create an HTTP client builder instance.
+     * <p>
+     * The client's own content decompression is disabled, since harvesters
+     * decode responses themselves so that they can count the bytes received.
+     * </p>
      *
      * @return a builder with configured socket, connect, and connection request
      *         timeouts.
+     * @see Builder#withContentCompression(boolean)
      */
     public static HttpClientBuilder defaultHttpClient() {
         /*
@@ -135,15 +221,42 @@ public final class Harvester extends Observable {
         final SocketConfig config = SocketConfig.custom()
                 .setSoTimeout(DEFAULT_SO_TIMEOUT)
                 .build();
-        final RequestConfig rc = RequestConfig.custom()
+        // Retries (honoring Retry-After) are handled by RetryPolicy.
+        return HttpClients.custom()
+                .setDefaultSocketConfig(config)
+                .setDefaultRequestConfig(defaultRequestConfig())
+                .disableContentCompression();
+    }
+
+    /**
+     * Create an asynchronous HTTP client builder instance.
+     * <p>
+     * Clients built from the returned builder must be
+     * {@link CloseableHttpAsyncClient#start() started} before use, and closed
+     * when no longer needed. Note that the default connection pool is small;
+     * clients harvesting many repositories at once should raise its limits.
+     * </p>
+     *
+     * @return a builder with the same timeouts as
+     *         {@link #defaultHttpClient()}.
+     * @see Builder#withAsyncHttpClient(HttpAsyncClient, Executor)
+     */
+    public static HttpAsyncClientBuilder defaultAsyncHttpClient() {
+        final IOReactorConfig config = IOReactorConfig.custom()
+                .setSoTimeout(DEFAULT_SO_TIMEOUT)
+                .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .build();
+        return HttpAsyncClients.custom()
+                .setDefaultIOReactorConfig(config)
+                .setDefaultRequestConfig(defaultRequestConfig());
+    }
+
+    private static RequestConfig defaultRequestConfig() {
+        return RequestConfig.custom()
                 .setConnectionRequestTimeout(DEFAULT_CONN_REQ_TIMEOUT)
                 .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
                 .setSocketTimeout(DEFAULT_SO_TIMEOUT)
                 .build();
-        // TODO add 503 handling when httpclient changes to respect the retry-after header.
-        return HttpClients.custom()
-                .setDefaultSocketConfig(config)
-                .setDefaultRequestConfig(rc);
     }
 
 
@@ -155,6 +268,19 @@ public final class Harvester extends Observable {
         private OAIRequestFactory requestFactory =
                 GetOAIRequestFactory.getInstance();
         private XMLInputFactory inputFactory;
+        private ExecutorService readAheadExecutor;
+        private long readAheadMemoryLimit = DEFAULT_READ_AHEAD_MEMORY_LIMIT;
+        private HttpAsyncClient asyncHttpClient;
+        private Executor parserExecutor;
+        private TokenPredictor tokenPredictor;
+        private int maxSpeculativeRequests;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private HedgingPolicy hedgingPolicy;
+        private Duration tokenFallbackOverlap;
+        private boolean contentCompression = true;
+        private HostLimiter hostLimiter;
+        private boolean handlerTiming;
+        private NotificationBus notificationBus;
 
         /**
          * Set the {@code HttpClient} to use.
@@ -215,48 +341,1042 @@ public final class Harvester extends Observable {
             return this;
         }
 
-        public Harvester build() {
-            if (httpClient == null) {
-                httpClient = defaultHttpClient().build();
+        /**
+         * Enable pipelined read-ahead.
+         * <p>
+         * By default, the harvester issues each request only after the previous
+         * response has been completely parsed and handled, so the network sits
+         * idle while handlers work and handlers sit idle while the network
+         * works. With read-ahead enabled, each response body is read completely
+         * into a buffer (held in memory up to the
+         * {@link #withReadAheadMemoryLimit(long) memory limit}, and in a
+         * temporary file beyond that). As soon as a buffered response is
+         * complete, its resumption token is extracted and the request for the
+         * next page is issued using the given executor, while the buffered
+         * response is parsed and handled in the harvest's own thread. At most
+         * one request is ever outstanding.
+         * </p>
+         * <p>
+         * Handlers see exactly the same events in exactly the same order as
+         * they would without read-ahead. Note, however, that:
+         * </p>
+         * <ul>
+         * <li>The request count and the last request URI and parameters in
+         * notifications may already refer to the request for the <em>next</em>
+         * page.</li>
+         * <li>If the harvest is stopped or cancelled, a request for the next
+         * page may already have been sent. Its response is discarded.</li>
+         * </ul>
+         *
+         * @param executor
+         *            the executor service to use to execute requests and read
+         *            response bodies. The harvester does not shut it down.
+         * @return this builder.
+         */
+        public Builder withReadAhead(final ExecutorService executor) {
+            this.readAheadExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Enable asynchronous harvesting with
+         * {@link Harvester#startAsync(HarvestParams, OAIResponseHandler, Map)}.
+         * <p>
+         * Asynchronous harvests use no thread while waiting for the
+         * repository. Requests are executed by the given non-blocking client,
+         * and each response body is copied into a buffer (as with
+         * {@link #withReadAhead(ExecutorService) read-ahead}) as it arrives.
+         * Once a body is complete, it is parsed and handled by a task run on
+         * the given executor, after which the request for the next page is
+         * sent. Many harvesters can share the same client and executor, so
+         * that a large number of harvests can run on a small, fixed number of
+         * threads.
+         * </p>
+         * <p>
+         * Since handlers run on the executor's threads, handlers that block
+         * (e.g., waiting for space in a queue) hold those threads while they
+         * do. The executor should be sized accordingly.
+         * </p>
+         *
+         * @param asyncHttpClient
+         *            the client used to execute requests. It must already be
+         *            started, and the harvester does not close it.
+         * @param parserExecutor
+         *            the executor on which responses are parsed and handled.
+         *            The harvester does not shut it down.
+         * @return this builder.
+         */
+        public Builder withAsyncHttpClient(
+                final HttpAsyncClient asyncHttpClient,
+                final Executor parserExecutor) {
+            this.asyncHttpClient = Objects.requireNonNull(asyncHttpClient,
+                    "asyncHttpClient");
+            this.parserExecutor = Objects.requireNonNull(parserExecutor,
+                    "parserExecutor");
+            return this;
+        }
+
+        /**
+         * Set the number of bytes of each response to hold in memory when
+         * read-ahead or asynchronous harvesting is enabled.
+         * <p>
+         * If this method is not called, the limit is
+         * {@link Harvester#DEFAULT_READ_AHEAD_MEMORY_LIMIT}. This setting has
+         * no effect on synchronous harvests unless read-ahead is enabled.
+         * </p>
+         *
+         * @param memoryLimit
+         *            the maximum number of bytes of a single response to hold
+         *            in memory.
+         * @return this builder.
+         * @see #withReadAhead(ExecutorService)
+         */
+        public Builder withReadAheadMemoryLimit(final long memoryLimit) {
+            this.readAheadMemoryLimit = memoryLimit;
+            return this;
+        }
+
+        /**
+         * Enable speculative requests for pages further ahead, using
+         * predicted resumption tokens.
+         * <p>
+         * This extends {@link #withReadAhead(ExecutorService) read-ahead},
+         * which must also be enabled. Once the predictor can guess the tokens
+         * to come from those received so far, up to the given number of
+         * requests with predicted tokens are kept outstanding in addition to
+         * the request for the next page, so that a long list is fetched
+         * several pages at a time instead of one page at a time. Each
+         * speculative response is used only if its predicted token turns out
+         * to be the token the repository actually sent for that page; so
+         * handlers see exactly the same responses in the same order as they
+         * would otherwise. At the first wrong prediction, all outstanding
+         * speculative requests are discarded and the rest of the harvest
+         * proceeds with ordinary read-ahead.
+         * </p>
+         * <p>
+         * Note that:
+         * </p>
+         * <ul>
+         * <li>The read-ahead executor, and the {@code HttpClient}'s connection
+         * pool for the repository's host, must be able to run this many
+         * requests, plus one, at once. (The default pool allows only two
+         * connections per host.) Up to that many responses may be held (in
+         * memory up to the {@link #withReadAheadMemoryLimit(long) limit}
+         * each, and in temporary files beyond that) at once.</li>
+         * <li>Repositories will see requests for pages that may never be
+         * used, including, at the end of the list, requests with tokens that
+         * were never issued. Use this only with repositories whose operators
+         * don't mind.</li>
+         * <li>Speculation applies only to synchronous harvests.</li>
+         * </ul>
+         *
+         * @param predictor
+         *            the strategy used to predict tokens.
+         * @param maxSpeculativeRequests
+         *            the maximum number of requests with predicted tokens to
+         *            keep outstanding.
+         * @return this builder.
+         * @see OffsetTokenPredictor
+         * @see HarvestNotification.HarvestStatistic#SPECULATIVE_HIT_COUNT
+         */
+        public Builder withTokenPredictor(final TokenPredictor predictor,
+                final int maxSpeculativeRequests) {
+            Objects.requireNonNull(predictor, "predictor");
+            if (maxSpeculativeRequests <= 0) {
+                throw new IllegalArgumentException(
+                        "maxSpeculativeRequests must be positive.");
+            }
+            this.tokenPredictor = predictor;
+            this.maxSpeculativeRequests = maxSpeculativeRequests;
+            return this;
+        }
+
+        /**
+         * Set the policy for retrying failed requests.
+         * <p>
+         * The default policy, {@link RetryPolicy#NONE}, never retries: the
+         * first failed request ends the harvest with an error. Otherwise,
+         * while the policy allows, a failed request is sent again after a
+         * delay, using the same parameters, and the harvest continues. Only
+         * requests are retried; once a response's content has been passed to
+         * the response handler, errors in it still end the harvest.
+         * </p>
+         * <p>
+         * Synchronous harvests wait in the harvesting thread; stopping or
+         * cancelling the harvest ends the wait, and the harvest ends with the
+         * request's error. Asynchronous harvests wait without holding a
+         * thread.
+         * </p>
+         *
+         * @param retryPolicy
+         *            the retry policy.
+         * @return this builder.
+         * @see HarvestNotification.HarvestStatistic#RETRY_COUNT
+         * @see HarvestNotification.HarvestStatistic#RETRY_WAIT_MILLIS
+         */
+        public Builder withRetryPolicy(final RetryPolicy retryPolicy) {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy,
+                    "retryPolicy");
+            return this;
+        }
+
+        /**
+         * Send duplicates of requests whose responses are slow to start, and
+         * use whichever response starts first.
+         * <p>
+         * This extends {@link #withReadAhead(ExecutorService) read-ahead},
+         * which must also be enabled. It helps with repositories that answer
+         * most requests promptly but occasionally leave one hanging until the
+         * socket times out. The policy decides, from the times to first byte
+         * observed earlier in the harvest, how long to wait before hedging,
+         * and limits how many requests may be hedged. Responses with
+         * predicted tokens (see
+         * {@link #withTokenPredictor(TokenPredictor, int)}) are never hedged.
+         * The read-ahead executor and connection pool must be able to run
+         * one more request at once.
+         * </p>
+         *
+         * @param hedgingPolicy
+         *            the hedging policy.
+         * @return this builder.
+         * @see HarvestNotification.HarvestStatistic#HEDGE_REQUEST_COUNT
+         * @see HarvestNotification.HarvestStatistic#HEDGE_WIN_COUNT
+         */
+        public Builder withHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = Objects.requireNonNull(hedgingPolicy,
+                    "hedgingPolicy");
+            return this;
+        }
+
+        /**
+         * Restart a list from the latest datestamp seen when its resumption
+         * token is rejected or has expired, instead of ending the harvest.
+         * <p>
+         * Repositories may forget resumption tokens after a while (see
+         * {@link ResumptionToken#getExpirationDate()}), so a request sent
+         * again after a long outage often fails with a
+         * {@code badResumptionToken} error. With this option, the harvester
+         * tracks the latest datestamp of the records it has seen and, when a
+         * request with a token fails with that error, or before sending a
+         * request with a token whose expiration date has passed, restarts the
+         * list with its initial parameters, but with {@code from} set to that
+         * datestamp less the overlap. The overlap allows for repositories
+         * whose lists are not strictly in datestamp order, and for records
+         * updated during the harvest. A list is restarted again only if newer
+         * records have been seen since it was last restarted.
+         * </p>
+         * <p>
+         * Records in the overlap are sent to the response handler again.
+         * Handlers that should see each record once can use an
+         * {@link OverlapFilter} with the same overlap. Records outside the
+         * overlap are not repeated, so long as the repository lists records
+         * no later than a restarted list with a later {@code from} date would.
+         * </p>
+         *
+         * @param overlap
+         *            how far before the latest datestamp seen to restart a
+         *            list.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if the overlap is negative.
+         * @see HarvestNotification.HarvestStatistic#TOKEN_FALLBACK_COUNT
+         */
+        public Builder withTokenExpiryFallback(final Duration overlap) {
+            Objects.requireNonNull(overlap, "overlap");
+            if (overlap.isNegative()) {
+                throw new IllegalArgumentException(
+                        "Overlap must be nonnegative.");
+            }
+            this.tokenFallbackOverlap = overlap;
+            return this;
+        }
+
+        /**
+         * Set whether to ask repositories to compress responses.
+         * <p>
+         * When enabled, which is the default, requests are sent with an
+         * {@code Accept-Encoding} header for {@code gzip} and
+         * {@code deflate}, unless the request factory or HTTP client already
+         * set one. OAI-PMH XML typically compresses very well.
+         * </p>
+         * <p>
+         * Responses in either encoding are decoded as they are parsed whether
+         * or not this is enabled. HTTP clients that decode responses
+         * themselves (as Apache HTTP clients do unless content compression is
+         * disabled, as in {@link Harvester#defaultHttpClient()}) hide the
+         * number of bytes actually received.
+         * </p>
+         *
+         * @param contentCompression
+         *            whether to ask for compressed responses.
+         * @return this builder.
+         * @see HarvestNotification.HarvestStatistic#WIRE_BYTES
+         * @see HarvestNotification.HarvestStatistic#DECODED_BYTES
+         */
+        public Builder withContentCompression(
+                final boolean contentCompression) {
+            this.contentCompression = contentCompression;
+            return this;
+        }
+
+        /**
+         * Set the limiter that paces requests to each host.
+         * <p>
+         * Each request waits for a permit from the limiter before it is sent,
+         * and holds it until its response has been read or it fails.
+         * Harvesters that share a limiter share each host's limits. By
+         * default, requests are not limited.
+         * </p>
+         *
+         * @param hostLimiter
+         *            the limiter.
+         * @return this builder.
+         */
+        public Builder withHostLimiter(final HostLimiter hostLimiter) {
+            this.hostLimiter = hostLimiter;
+            return this;
+        }
+
+        /**
+         * Set whether to time the response handler separately from the
+         * parser.
+         * <p>
+         * Handler time is measured around each XML event sent to the
+         * handler, which for handlers that do little work can slow parsing
+         * noticeably. So by default, it is not measured, and the time spent
+         * in the handler is counted as parsing.
+         * </p>
+         *
+         * @param handlerTiming
+         *            whether to time the response handler.
+         * @return this builder.
+         * @see PhaseTimings.Phase#HANDLER
+         */
+        public Builder withHandlerTiming(final boolean handlerTiming) {
+            this.handlerTiming = handlerTiming;
+            return this;
+        }
+
+        /**
+         * Set the bus that delivers notifications to this harvester's
+         * listeners.
+         * <p>
+         * By default, the {@linkplain NotificationBus#defaultBus() default
+         * bus} is used.
+         * </p>
+         *
+         * @param notificationBus
+         *            the bus.
+         * @return this builder.
+         * @see Harvester#addListener(HarvestListener)
+         */
+        public Builder withNotificationBus(
+                final NotificationBus notificationBus) {
+            this.notificationBus = notificationBus;
+            return this;
+        }
+
+        public Harvester build() {
+            if (httpClient == null) {
+                httpClient = defaultHttpClient().build();
+            }
+            if (inputFactory == null) {
+                inputFactory = OAIXMLUtils.newInputFactory();
+            }
+            return new Harvester(this);
+        }
+    }
+
+
+    private final class HarvestIterable implements Iterable<InputStream> {
+        @Override
+        public Iterator<InputStream> iterator() {
+            return new Iterator<InputStream>() {
+                @Override
+                public boolean hasNext() {
+                    return harvest.hasNext();
+                }
+
+                @Override
+                public InputStream next() {
+                    try {
+                        final Map<String, String> parameters =
+                                nextRequestParameters();
+                        for (int retries = 0; ; retries++) {
+                            final HttpUriRequest request = createRequest(
+                                    parameters);
+                            requestSent(request);
+                            try {
+                                return contentOf(request,
+                                        executeRequest(request), true);
+                            } catch (final RuntimeException e) {
+                                if (!awaitRetry(request, e, retries)) {
+                                    throw e;
+                                }
+                            }
+                        }
+                    } catch (final RuntimeException e) {
+                        harvest.error(e);
+                        throw e;
+                    }
+                }
+            };
+        }
+    }
+
+
+    /**
+     * A request issued ahead of the harvest loop, whose response is being
+     * spooled by the read-ahead executor.
+     */
+    private static final class PendingResponse {
+        private final HttpUriRequest request;
+        private final Map<String, String> parameters;
+        /** The predicted token, if this is a speculative request. */
+        private final String predictedToken;
+        /** Completed when the response's headers arrive. */
+        private final CompletableFuture<Void> headers =
+                new CompletableFuture<>();
+        private Future<SpooledResponse> future;
+        private SpooledResponse response;
+        private boolean discarded;
+
+        PendingResponse(final HttpUriRequest request,
+                final Map<String, String> parameters,
+                final String predictedToken) {
+            this.request = request;
+            this.parameters = parameters;
+            this.predictedToken = predictedToken;
+        }
+
+        /**
+         * Called from the read-ahead executor once the response has been
+         * spooled. If this request has already been discarded, the response is
+         * closed immediately, so that no buffers or temporary files are leaked.
+         */
+        synchronized SpooledResponse complete(
+                final SpooledResponse response) {
+            if (discarded) {
+                response.close();
+            } else {
+                this.response = response;
+            }
+            return response;
+        }
+
+        synchronized void discard() {
+            discarded = true;
+            if (response != null) {
+                response.close();
+            }
+            request.abort();
+            future.cancel(true);
+            headers.cancel(false);
+        }
+
+        boolean hasHeaders() {
+            return headers.isDone() && !headers.isCompletedExceptionally();
+        }
+    }
+
+
+    /**
+     * Iterator that reads each response into a buffer and issues the request
+     * for the following page before returning.
+     * <p>
+     * If a token predictor is configured, the iterator also keeps requests
+     * with predicted tokens outstanding for the pages after that. These are
+     * queued in order, so that the head of the queue is always the request
+     * for the page after the pending one; it is promoted to pending only if
+     * its predicted token matches the token actually received.
+     * </p>
+     * <p>
+     * If a hedging policy is configured, the iterator sends a duplicate of a
+     * pending request whose response is slow to start, and makes whichever
+     * of the two starts first the pending request.
+     * </p>
+     *
+     * @see Builder#withReadAhead(ExecutorService)
+     * @see Builder#withTokenPredictor(TokenPredictor, int)
+     * @see Builder#withHedgingPolicy(HedgingPolicy)
+     */
+    private final class ReadAheadIterator implements Iterator<InputStream>,
+        AutoCloseable {
+        private final Deque<PendingResponse> speculative = new ArrayDeque<>();
+        private final List<ResumptionToken> chain = new ArrayList<>();
+        private boolean speculating = tokenPredictor != null;
+        private final LatencyWindow latencies = hedgingPolicy == null ? null :
+            hedgingPolicy.newLatencyWindow();
+        /** Ordinary requests sent, for the hedging budget. */
+        private long requests;
+        private long hedges;
+        private PendingResponse pending;
+
+        @Override
+        public boolean hasNext() {
+            if (harvest.hasNext()) {
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public InputStream next() {
+            try {
+                if (pending == null) {
+                    pending = sendAhead(nextRequestParameters());
+                }
+                final SpooledResponse response = awaitPending();
+                pending = null;
+                LOGGER.debug("Spooled {} bytes (spilled: {}).",
+                        response.size(), response.isSpilled());
+                if (response.hasNextPage()) {
+                    final ResumptionToken token = response.getResumptionToken();
+                    chain.add(token);
+                    pending = takeSpeculative(token.getToken());
+                    if (pending == null) {
+                        pending = sendAhead(harvest.getRequestParameters(
+                                token.getToken()));
+                    }
+                    speculate();
+                } else {
+                    discardSpeculative();
+                }
+                return response.newInputStream();
+            } catch (final RuntimeException e) {
+                harvest.error(e);
+                close();
+                throw e;
+            }
+        }
+
+        /** Discard all outstanding requests, if any. */
+        @Override
+        public void close() {
+            if (pending != null) {
+                LOGGER.debug("Discarding read-ahead request {}",
+                        pending.request);
+                pending.discard();
+                pending = null;
+            }
+            discardSpeculative();
+        }
+
+        private void discardSpeculative() {
+            for (final PendingResponse p : speculative) {
+                LOGGER.debug("Discarding speculative request {}", p.request);
+                p.discard();
+            }
+            speculative.clear();
+        }
+
+        /**
+         * Stop speculating for the rest of the harvest.
+         */
+        private void stopSpeculating() {
+            speculating = false;
+            discardSpeculative();
+        }
+
+        /**
+         * Get the speculative request for the page following the pending
+         * one, if its prediction was correct.
+         *
+         * @param token
+         *            the token actually received.
+         * @return the request, now recorded as sent, or {@code null} if
+         *         there was none or its prediction was wrong.
+         */
+        private PendingResponse takeSpeculative(final String token) {
+            final PendingResponse p = speculative.poll();
+            if (p == null) {
+                return null;
+            }
+            if (!p.predictedToken.equals(token)) {
+                LOGGER.info("Predicted resumption token {} but got {}. " +
+                        "Harvesting sequentially.", p.predictedToken, token);
+                p.discard();
+                stopSpeculating();
+                return null;
+            }
+            // Record the request as if it were being sent now.
+            harvest.getRequestParameters(token);
+            requestSent(p.request);
+            harvest.speculativeHit();
+            return p;
+        }
+
+        /**
+         * Top up the queue of speculative requests.
+         */
+        private void speculate() {
+            while (speculating &&
+                    speculative.size() < maxSpeculativeRequests) {
+                final Optional<String> predicted = tokenPredictor.predict(
+                        Collections.unmodifiableList(chain),
+                        speculative.size() + 1);
+                if (!predicted.isPresent()) {
+                    return;
+                }
+                final String token = predicted.get();
+                final Map<String, String> parameters =
+                        harvest.getSpeculativeRequestParameters(token);
+                final HttpUriRequest request = createRequest(parameters);
+                LOGGER.debug("Sending speculative request {}", request);
+                harvest.speculativeRequestSent();
+                speculative.add(submit(new PendingResponse(request,
+                        parameters, token)));
+            }
+        }
+
+        /**
+         * Wait for the pending response.
+         * <p>
+         * If the pending request was speculative and failed, it is sent again
+         * as an ordinary request, so that speculation never causes a harvest
+         * to fail that otherwise wouldn't have. Ordinary requests that fail
+         * are sent again as the retry policy allows.
+         * </p>
+         */
+        private SpooledResponse awaitPending() {
+            int retries = 0;
+            while (true) {
+                try {
+                    hedgeIfSlow();
+                    return await(pending);
+                } catch (final RuntimeException e) {
+                    if (pending.predictedToken != null) {
+                        LOGGER.info("Speculative request failed. " +
+                                "Harvesting sequentially.", e);
+                        stopSpeculating();
+                    } else if (!awaitRetry(pending.request, e, retries++)) {
+                        throw e;
+                    }
+                    pending = sendAhead(pending.parameters);
+                }
+            }
+        }
+
+        /**
+         * Hedge the pending request if its response is slow to start, and
+         * make whichever of the two requests starts first the pending one.
+         */
+        private void hedgeIfSlow() {
+            if (hedgingPolicy == null || pending.predictedToken != null) {
+                return;
+            }
+            final long delay = hedgingPolicy.hedgeDelayMillis(latencies,
+                    requests, hedges);
+            if (delay < 0 || waitFor(pending.headers, delay)) {
+                return;
+            }
+            final PendingResponse original = pending;
+            final PendingResponse hedge = submit(new PendingResponse(
+                    createRequest(original.parameters), original.parameters,
+                    null));
+            hedges++;
+            harvest.hedgeSent();
+            LOGGER.debug("No response to {} after {} ms. Sent hedge.",
+                    original.request, delay);
+            // If one fails first, give the other a chance.
+            while (!original.hasHeaders() && !hedge.hasHeaders() &&
+                    !(original.headers.isDone() && hedge.headers.isDone())) {
+                waitFor(original.headers.isDone() ? hedge.headers :
+                    hedge.headers.isDone() ? original.headers :
+                        CompletableFuture.anyOf(original.headers,
+                                hedge.headers), -1);
+            }
+            if (!original.hasHeaders() && hedge.hasHeaders()) {
+                LOGGER.debug("Hedge of {} answered first.", original.request);
+                original.discard();
+                harvest.hedgeWon();
+                pending = hedge;
+            } else {
+                hedge.discard();
+            }
+        }
+
+        /**
+         * Wait for a future to complete, deferring interrupts like
+         * {@link #await(PendingResponse)}.
+         *
+         * @param timeoutMillis
+         *            how long to wait, or a negative number to wait
+         *            indefinitely.
+         * @return {@code true} iff the future completed, normally or not.
+         */
+        private boolean waitFor(final Future<?> f, final long timeoutMillis) {
+            final long deadline = System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+            boolean interrupted = false;
+            try {
+                while (!f.isDone()) {
+                    try {
+                        if (timeoutMillis < 0) {
+                            f.get();
+                        } else {
+                            f.get(deadline - System.nanoTime(),
+                                    TimeUnit.NANOSECONDS);
+                        }
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    } catch (final ExecutionException |
+                            CancellationException e) {
+                        return true;
+                    } catch (final TimeoutException e) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private PendingResponse sendAhead(
+                final Map<String, String> parameters) {
+            final HttpUriRequest request = createRequest(parameters);
+            requestSent(request);
+            requests++;
+            return submit(new PendingResponse(request, parameters, null));
+        }
+
+        private PendingResponse submit(final PendingResponse p) {
+            p.future = readAheadExecutor.submit(() -> {
+                final long start = System.nanoTime();
+                final HttpResponse response;
+                try {
+                    response = executeRequest(p.request);
+                } catch (final RuntimeException e) {
+                    p.headers.completeExceptionally(e);
+                    throw e;
+                }
+                if (latencies != null) {
+                    latencies.add(System.nanoTime() - start);
+                }
+                p.headers.complete(null);
+                try (final InputStream in = contentOf(p.request, response,
+                        true)) {
+                    return p.complete(SpooledResponse.spool(in, bufferPool,
+                            readAheadMemoryLimit, inputFactory));
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (final RuntimeException e) {
+                    if (p.predictedToken != null) {
+                        /*
+                         * Nobody will read the body of a failed speculative
+                         * response, so release its connection now. Otherwise
+                         * wrong guesses could exhaust the connection pool.
+                         */
+                        p.request.abort();
+                    }
+                    throw e;
+                }
+            });
+            return p;
+        }
+
+        /**
+         * Wait for a pending response.
+         * <p>
+         * Interrupts are deferred until the response arrives, which matches
+         * the behavior of a harvest without read-ahead: the interrupt stops the
+         * harvest after the current response has been processed.
+         * </p>
+         */
+        private SpooledResponse await(final PendingResponse p) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return p.future.get();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new HarvesterException(cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A harvest started with
+     * {@link Harvester#startAsync(HarvestParams, OAIResponseHandler, Map)}.
+     * <p>
+     * Each step runs either on the parser executor or on the asynchronous
+     * client's I/O threads, and each step starts the next only when it is
+     * finished with the harvest state. Thus, although the harvest moves
+     * between threads, no two steps ever touch the state at once, and each
+     * hand-off (via the executor or the client's callback) establishes a
+     * happens-before relationship between them.
+     * </p>
+     */
+    private final class AsyncHarvest implements FutureCallback<HttpResponse> {
+        private final CompletableFuture<Void> future =
+                new CompletableFuture<>();
+        private HttpUriRequest request;
+        /** The number of times the current page's request was retried. */
+        private int retries;
+
+        void begin() {
+            try {
+                harvest.start();
+                sendHarvestStartNotifications();
+            } catch (final RuntimeException e) {
+                finish(e);
+                return;
+            }
+            next();
+        }
+
+        private void next() {
+            if (!harvest.hasNext()) {
+                finish(null);
+                return;
+            }
+            final HostLimiter.Permit permit;
+            if (hostLimiter == null) {
+                permit = null;
+            } else {
+                // Don't block an I/O or parser thread waiting for a permit.
+                final URI baseURI = harvest.getBaseURI();
+                permit = hostLimiter.tryAcquire(baseURI);
+                if (permit == null) {
+                    RetryTimer.INSTANCE.schedule(this::next, Math.max(1,
+                            hostLimiter.retryDelayMillis(baseURI)),
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            try {
+                request = createRequest(nextRequestParameters());
+                if (permit != null) {
+                    permits.put(request, permit);
+                }
+                requestSent(request);
+                final AtomicReference<Future<HttpResponse>> exchange =
+                        new AtomicReference<>();
+                harvest.requestStarted(request, () -> {
+                    final Future<HttpResponse> f = exchange.get();
+                    if (f != null) {
+                        f.cancel(true);
+                    }
+                });
+                LOGGER.debug("Executing request {} asynchronously", request);
+                exchange.set(asyncHttpClient.execute(
+                        HttpAsyncMethods.create(request),
+                        new BufferingAsyncResponseConsumer(bufferPool,
+                                readAheadMemoryLimit, harvest::bytesReceived,
+                                harvest::phaseTimed),
+                        this));
+                if (harvest.isCancelled()) {
+                    // Cancelled before the exchange could be aborted.
+                    exchange.get().cancel(true);
+                }
+            } catch (final RuntimeException e) {
+                if (request != null) {
+                    harvest.requestEnded(request);
+                }
+                if (permit != null) {
+                    permits.values().remove(permit);
+                    permit.release();
+                }
+                harvest.error(e);
+                finish(e);
+            }
+        }
+
+        /** Called on an I/O thread with a complete, buffered response. */
+        @Override
+        public void completed(final HttpResponse response) {
+            LOGGER.debug("Got HTTP response {} for request {}", response,
+                    request);
+            try {
+                parserExecutor.execute(() -> handle(response));
+            } catch (final RuntimeException e) {
+                closeQuietly(response);
+                requestEnded(harvest, request);
+                harvest.error(e);
+                finish(e);
+            }
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            requestEnded(harvest, request);
+            final RuntimeException e = ex instanceof IOException ?
+                    new UncheckedIOException((IOException)ex) :
+                        new HarvesterException(ex);
+            if (!scheduleRetry(e)) {
+                harvest.error(e);
+                finish(e);
             }
-            if (inputFactory == null) {
-                inputFactory = OAIXMLUtils.newInputFactory();
+        }
+
+        /**
+         * Arrange for the failed request to be sent again, if the retry policy
+         * allows.
+         *
+         * @return {@code true} iff a retry was scheduled.
+         */
+        private boolean scheduleRetry(final RuntimeException e) {
+            final long delay = retryPolicy.retryDelayMillis(e, retries);
+            if (delay < 0 || !harvest.hasNext()) {
+                return false;
             }
-            return new Harvester(httpClient, requestFactory, inputFactory);
+            LOGGER.info("Request {} failed ({}). Retrying in {} ms.",
+                    request, e.toString(), delay);
+            retries++;
+            harvest.retrying(delay);
+            RetryTimer.INSTANCE.schedule(() -> retry(e), delay,
+                    TimeUnit.MILLISECONDS);
+            return true;
         }
-    }
 
+        private void retry(final RuntimeException e) {
+            if (harvest.hasNext()) {
+                next();
+            } else {
+                // Stopped while waiting; the page was never harvested.
+                harvest.error(e);
+                finish(e);
+            }
+        }
 
-    private final class HarvestIterable implements Iterable<InputStream> {
         @Override
-        public Iterator<InputStream> iterator() {
-            return new Iterator<InputStream>() {
-                @Override
-                public boolean hasNext() {
-                    return harvest.hasNext();
+        public void cancelled() {
+            failed(new HarvesterException(String.format(
+                    "Request %s was cancelled.", request)));
+        }
+
+        private void handle(final HttpResponse response) {
+            final InputStream in;
+            try {
+                if (response.getStatusLine().getStatusCode() !=
+                        HttpStatus.SC_OK) {
+                    // Don't leave the body in pooled buffers or a temp file.
+                    response.setEntity(new BufferedHttpEntity(
+                            response.getEntity()));
+                }
+                // The body has already arrived.
+                in = contentOf(request, response, false);
+            } catch (final IOException | RuntimeException e) {
+                closeQuietly(response);
+                final RuntimeException re = e instanceof RuntimeException ?
+                        (RuntimeException)e : new UncheckedIOException(
+                                (IOException)e);
+                if (!scheduleRetry(re)) {
+                    harvest.error(re);
+                    finish(re);
                 }
+                return;
+            }
+            retries = 0;
+            try {
+                handleResponseAndNotify(in);
+            } catch (final RuntimeException e) {
+                finish(e);
+                return;
+            } catch (final Error e) {
+                // Don't leave callers waiting on a future nobody completes.
+                future.completeExceptionally(e);
+                throw e;
+            }
+            next();
+        }
 
-                @Override
-                public InputStream next() {
-                    try {
-                        final Map<String, String> parameters =
-                                harvest.getRequestParameters();
-                        final HttpResponse response = executeRequest(
-                                createRequest(parameters));
-                        return contentOf(response);
-                    } catch (final RuntimeException e) {
-                        harvest.error(e);
-                        throw e;
+        private void finish(final RuntimeException cause) {
+            try {
+                Functions.suppressExceptions(() -> {
+                    if (cause != null && !harvest.isCancelled()) {
+                        throw cause;
                     }
-                }
-            };
+                }, Harvester.this::sendHarvestEndNotifications);
+                future.complete(null);
+            } catch (final RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Timer on which asynchronous harvests wait to retry failed requests.
+     * <p>
+     * Its single daemon thread only hands retries back to the harvests, so it
+     * is shared by all harvesters, and created only when first needed.
+     * </p>
+     */
+    private static final class RetryTimer {
+        static final ScheduledExecutorService INSTANCE =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread t = new Thread(r, "oai-harvester-retry");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    private static void closeQuietly(final HttpResponse response) {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.getContent().close();
+        } catch (final IOException e) {
+            LOGGER.warn("Ignored exception closing response body.", e);
         }
     }
 
 
     private final HttpClient httpClient;
     private final OAIRequestFactory requestFactory;
+    private final XMLInputFactory inputFactory;
     private final OAIResponseParser responseParser;
+    private final ExecutorService readAheadExecutor;
+    private final long readAheadMemoryLimit;
+    private final HttpAsyncClient asyncHttpClient;
+    private final Executor parserExecutor;
+    private final TokenPredictor tokenPredictor;
+    private final int maxSpeculativeRequests;
+    private final RetryPolicy retryPolicy;
+    private final HedgingPolicy hedgingPolicy;
+    private final Duration tokenFallbackOverlap;
+    private final boolean contentCompression;
+    private final HostLimiter hostLimiter;
+    /** Permits held by requests in flight, if there's a host limiter. */
+    private final Map<HttpUriRequest, HostLimiter.Permit> permits =
+            new ConcurrentHashMap<>();
+    private final ByteBufferPool bufferPool;
+    private final NotificationBus notificationBus;
+    /** The harvester this is a session of, or {@code null}. */
+    private final Harvester parent;
+    /*
+     * Observers are kept here rather than by Observable, so that sessions
+     * can notify their parents' observers. Every Observable method that
+     * touches observers is overridden to use this list.
+     */
+    private final CopyOnWriteArrayList<Observer> observers =
+            new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<HarvestListener,
+        NotificationBus.Subscription<HarvestNotification>> listeners =
+            new ConcurrentHashMap<>();
+    /** Held while checking for and replacing the current harvest. */
+    private final Object harvestLock = new Object();
 
     /**
      * The current harvest state.
@@ -293,13 +1413,75 @@ public final class Harvester extends Observable {
     public Harvester(final HttpClient httpClient,
             final OAIRequestFactory requestFactory,
             final XMLInputFactory inputFactory) {
-        Objects.requireNonNull(httpClient, "httpClient");
-        Objects.requireNonNull(requestFactory, "requestFactory");
-        Objects.requireNonNull(inputFactory, "inputFactory");
-        requireNamespaceAware(inputFactory);
-        this.httpClient = httpClient;
-        this.requestFactory = requestFactory;
-        this.responseParser = new OAIResponseParser(inputFactory, LOGGER);
+        this(new Builder()
+                .withHttpClient(Objects.requireNonNull(httpClient,
+                        "httpClient"))
+                .withOAIRequestFactory(requestFactory)
+                .withXMLInputFactory(Objects.requireNonNull(inputFactory,
+                        "inputFactory")));
+    }
+
+    private Harvester(final Builder builder) {
+        Objects.requireNonNull(builder.requestFactory, "requestFactory");
+        requireNamespaceAware(builder.inputFactory);
+        if (builder.readAheadMemoryLimit < 0) {
+            throw new IllegalArgumentException(
+                    "Read-ahead memory limit must be nonnegative.");
+        }
+        if (builder.tokenPredictor != null &&
+                builder.readAheadExecutor == null) {
+            throw new IllegalArgumentException(
+                    "Token prediction requires read-ahead.");
+        }
+        if (builder.hedgingPolicy != null &&
+                builder.readAheadExecutor == null) {
+            throw new IllegalArgumentException(
+                    "Hedging requires read-ahead.");
+        }
+        this.httpClient = builder.httpClient;
+        this.requestFactory = builder.requestFactory;
+        this.inputFactory = builder.inputFactory;
+        this.responseParser = new OAIResponseParser(inputFactory, LOGGER,
+                builder.handlerTiming);
+        this.readAheadExecutor = builder.readAheadExecutor;
+        this.readAheadMemoryLimit = builder.readAheadMemoryLimit;
+        this.asyncHttpClient = builder.asyncHttpClient;
+        this.parserExecutor = builder.parserExecutor;
+        this.tokenPredictor = builder.tokenPredictor;
+        this.maxSpeculativeRequests = builder.maxSpeculativeRequests;
+        this.retryPolicy = builder.retryPolicy;
+        this.hedgingPolicy = builder.hedgingPolicy;
+        this.tokenFallbackOverlap = builder.tokenFallbackOverlap;
+        this.contentCompression = builder.contentCompression;
+        this.hostLimiter = builder.hostLimiter;
+        this.notificationBus = builder.notificationBus == null ?
+                NotificationBus.defaultBus() : builder.notificationBus;
+        this.bufferPool = new ByteBufferPool();
+        this.parent = null;
+    }
+
+    /**
+     * Create a session of a harvester.
+     */
+    private Harvester(final Harvester parent) {
+        this.httpClient = parent.httpClient;
+        this.requestFactory = parent.requestFactory;
+        this.inputFactory = parent.inputFactory;
+        this.responseParser = parent.responseParser;
+        this.readAheadExecutor = parent.readAheadExecutor;
+        this.readAheadMemoryLimit = parent.readAheadMemoryLimit;
+        this.asyncHttpClient = parent.asyncHttpClient;
+        this.parserExecutor = parent.parserExecutor;
+        this.tokenPredictor = parent.tokenPredictor;
+        this.maxSpeculativeRequests = parent.maxSpeculativeRequests;
+        this.retryPolicy = parent.retryPolicy;
+        this.hedgingPolicy = parent.hedgingPolicy;
+        this.tokenFallbackOverlap = parent.tokenFallbackOverlap;
+        this.contentCompression = parent.contentCompression;
+        this.hostLimiter = parent.hostLimiter;
+        this.notificationBus = parent.notificationBus;
+        this.bufferPool = parent.bufferPool;
+        this.parent = parent;
     }
 
     private static void requireNamespaceAware(
@@ -351,15 +1533,156 @@ public final class Harvester extends Observable {
     public void start(final HarvestParams params,
             final OAIResponseHandler responseHandler,
             final Map<String, String> tags) {
+        newHarvest(params, responseHandler, tags);
+        harvest();
+    }
+
+    /**
+     * Start a new asynchronous harvest with no tags.
+     * <p>
+     * Equivalent to {@code startAsync(params, responseHandler,
+     * Collections.emptyMap())}.
+     * </p>
+     * @see #startAsync(HarvestParams, OAIResponseHandler, Map)
+     */
+    public CompletableFuture<Void> startAsync(final HarvestParams params,
+            final OAIResponseHandler responseHandler) {
+        return startAsync(params, responseHandler, Collections.emptyMap());
+    }
+
+    /**
+     * Start a new harvest without waiting for it to finish.
+     * <p>
+     * The harvest behaves exactly like one started with
+     * {@link #start(HarvestParams, OAIResponseHandler, Map)}: handlers and
+     * observers receive the same notifications, and {@link #stop()} and
+     * {@link #cancel()} work as usual. However, this method returns
+     * immediately, and handlers and observers are called from the parser
+     * executor's threads.
+     * </p>
+     *
+     * @param params
+     *            the harvest parameters.
+     * @param responseHandler
+     *            the handler to use to deal with server responses.
+     * @param tags
+     *            data associated with this harvest. The given map will be
+     *            copied, and that copy attached to each notification produced
+     *            by this harvest.
+     * @return a future that is completed once the harvest has ended and all
+     *         notifications have been sent. If the harvest fails, the future
+     *         is completed with the exception that
+     *         {@link #start(HarvestParams, OAIResponseHandler, Map)} would
+     *         have thrown.
+     *
+     * @throws IllegalStateException
+     *             if this harvester was not built with an asynchronous HTTP
+     *             client, or if this method is called while another harvest is
+     *             already in progress.
+     * @throws NullPointerException
+     *             if any of the arguments to this method is {@code null}.
+     * @see Builder#withAsyncHttpClient(HttpAsyncClient, Executor)
+     */
+    public CompletableFuture<Void> startAsync(final HarvestParams params,
+            final OAIResponseHandler responseHandler,
+            final Map<String, String> tags) {
+        if (asyncHttpClient == null) {
+            throw new IllegalStateException(
+                    "No asynchronous HTTP client has been configured.");
+        }
+        newHarvest(params, responseHandler, tags);
+        final AsyncHarvest asyncHarvest = new AsyncHarvest();
+        parserExecutor.execute(asyncHarvest::begin);
+        return asyncHarvest.future;
+    }
+
+    private void newHarvest(final HarvestParams params,
+            final OAIResponseHandler responseHandler,
+            final Map<String, String> tags) {
         Objects.requireNonNull(params, "params");
         Objects.requireNonNull(responseHandler, "responseHandler");
         Objects.requireNonNull(tags, "tags");
-        if (this.harvest.hasNext()) {
-            throw new IllegalStateException(
-                    "Cannot start a new harvest while one is in progress.");
+        synchronized (harvestLock) {
+            if (this.harvest.hasNext()) {
+                throw new IllegalStateException(
+                        "Cannot start a new harvest while one is in progress.");
+            }
+            this.harvest = new Harvest(params, responseHandler, tags,
+                    tokenFallbackOverlap);
         }
-        this.harvest = new Harvest(params, responseHandler, tags);
-        harvest();
+    }
+
+    /**
+     * Create a session of this harvester, which can run a harvest at the same
+     * time as this harvester and its other sessions.
+     * <p>
+     * A session has harvest state of its own, but shares this harvester's
+     * configuration, HTTP clients, XML input factory, response parser, buffer
+     * pool, and notification bus, so creating one builds nothing heavyweight.
+     * Stopping or cancelling a session affects only its own harvest.
+     * </p>
+     * <p>
+     * This harvester's observers and listeners, including those added after
+     * the session is created, are notified of the session's harvests, with
+     * the session as the {@code Observable}. Those added to the session are
+     * notified only of its own harvests.
+     * </p>
+     *
+     * @return the new session.
+     */
+    public Harvester newSession() {
+        return new Harvester(this);
+    }
+
+    /**
+     * Add an observer, to be notified of the events of this harvester's
+     * harvests, and those of its sessions, on the harvests' threads. Adding
+     * an observer that has already been added has no effect.
+     *
+     * @param o
+     *            the observer.
+     * @throws NullPointerException
+     *             if the observer is {@code null}.
+     */
+    @Override
+    public void addObserver(final Observer o) {
+        Objects.requireNonNull(o, "o");
+        observers.addIfAbsent(o);
+    }
+
+    @Override
+    public void deleteObserver(final Observer o) {
+        observers.remove(o);
+    }
+
+    @Override
+    public void deleteObservers() {
+        observers.clear();
+    }
+
+    @Override
+    public int countObservers() {
+        return observers.size();
+    }
+
+    /**
+     * Notify this harvester's observers, and those of the harvesters it is a
+     * session of, as they are notified of harvest events.
+     * <p>
+     * Harvesters notify their observers of harvest events themselves, so
+     * this is needed only by clients that use the inherited
+     * {@code Observable} API directly. Since nothing outside this class can
+     * mark it changed, observers are notified whether or not
+     * {@link #hasChanged()}.
+     * </p>
+     *
+     * @param arg
+     *            the argument to pass to each observer.
+     */
+    @Override
+    public void notifyObservers(final Object arg) {
+        clearChanged();
+        notifyEachObserver(arg);
     }
 
     /**
@@ -379,8 +1702,10 @@ public final class Harvester extends Observable {
      * Stop the current harvest, if any, as soon as possible.
      * <p>
      * This stops the harvest without regard for any ongoing processing.
-     * Depending upon guarantees made by response handlers, the results might
-     * not be valid.
+     * Requests in flight are aborted, closing their response streams, so the
+     * harvest need not wait for a slow or stalled repository. Errors caused
+     * by the cancellation are not reported. Depending upon guarantees made by
+     * response handlers, the results might not be valid.
      * </p>
      * <p>
      * Note that the current harvest might not stop immediately. Clients
@@ -389,7 +1714,30 @@ public final class Harvester extends Observable {
      * </p>
      */
     public void cancel() {
-        harvest.cancel();
+        harvest.cancel(null);
+    }
+
+    /**
+     * Stop the current harvest, if any, as soon as possible, recording why.
+     * <p>
+     * This is the same as {@link #cancel()}, except that the reason is
+     * reported by {@link HarvestNotification#getCancelReason()}. If the
+     * harvest has already been cancelled, its original reason is kept.
+     * </p>
+     *
+     * @param reason
+     *            why the harvest is being cancelled.
+     */
+    public void cancel(final String reason) {
+        Objects.requireNonNull(reason, "reason");
+        harvest.cancel(reason);
+    }
+
+    /**
+     * @return the state of the current or most recent harvest.
+     */
+    Harvest currentHarvest() {
+        return harvest;
     }
 
     /**
@@ -421,6 +1769,66 @@ public final class Harvester extends Observable {
         return harvest.getHarvestParams();
     }
 
+    /**
+     * Get the time the current or most recent harvest's responses have spent
+     * in each phase of their handling so far.
+     * <p>
+     * This may be called from any thread.
+     * </p>
+     *
+     * @return a snapshot of the harvest's phase timings.
+     */
+    public PhaseTimings getPhaseTimings() {
+        return harvest.getPhaseTimings();
+    }
+
+    /**
+     * Add a listener, which coalesces progress notifications if it falls
+     * behind.
+     *
+     * @param listener
+     *            the listener.
+     * @see #addListener(HarvestListener, NotificationBus.OverflowPolicy)
+     */
+    public void addListener(final HarvestListener listener) {
+        addListener(listener, NotificationBus.OverflowPolicy.COALESCE);
+    }
+
+    /**
+     * Add a listener, to be notified of the events of this harvester's
+     * harvests on its notification bus's dispatcher thread. Adding a listener
+     * that has already been added has no effect.
+     *
+     * @param listener
+     *            the listener.
+     * @param policy
+     *            what to do with notifications sent while the listener is
+     *            too far behind to queue them.
+     * @see Builder#withNotificationBus(NotificationBus)
+     */
+    public void addListener(final HarvestListener listener,
+            final NotificationBus.OverflowPolicy policy) {
+        Objects.requireNonNull(listener, "listener");
+        Objects.requireNonNull(policy, "policy");
+        listeners.computeIfAbsent(listener,
+                l -> notificationBus.subscribe(l, policy));
+    }
+
+    /**
+     * Remove a listener. Notifications not yet delivered to it are
+     * discarded.
+     *
+     * @param listener
+     *            the listener.
+     */
+    public void removeListener(final HarvestListener listener) {
+        final NotificationBus.Subscription<HarvestNotification> s =
+                listeners.remove(listener);
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
     private void harvest() {
         Functions.suppressExceptions(this::harvestLoop,
                 this::sendHarvestEndNotifications);
@@ -429,13 +1837,34 @@ public final class Harvester extends Observable {
     private void harvestLoop() {
         harvest.start();
         sendHarvestStartNotifications();
-        final HarvestIterable iterable = new HarvestIterable();
-        for (final InputStream is : iterable) {
-            Functions.suppressExceptions(() -> handleResponse(is),
-                    this::sendResponseEndNotifications);
+        try {
+            if (readAheadExecutor == null) {
+                final HarvestIterable iterable = new HarvestIterable();
+                for (final InputStream is : iterable) {
+                    handleResponseAndNotify(is);
+                }
+            } else {
+                try (final ReadAheadIterator iterator =
+                        new ReadAheadIterator()) {
+                    while (iterator.hasNext()) {
+                        handleResponseAndNotify(iterator.next());
+                    }
+                }
+            }
+        } catch (final RuntimeException e) {
+            if (!harvest.isCancelled()) {
+                throw e;
+            }
+            // Most likely caused by aborting the requests in flight.
+            LOGGER.debug("Ignoring exception ending cancelled harvest.", e);
         }
     }
 
+    private void handleResponseAndNotify(final InputStream is) {
+        Functions.suppressExceptions(() -> handleResponse(is),
+                this::sendResponseEndNotifications);
+    }
+
     /**
      * Handles a single response from a repository, parsing its content and
      * triggering appropriate events.
@@ -449,8 +1878,20 @@ public final class Harvester extends Observable {
             harvest.responseReceived();
             final HarvestNotification notification =
                     sendResponseReceivedNotifcations();
-            responseParser.parse(in, harvest,
-                    harvest.getEventHandler(notification));
+            final long readBefore = readNanos(in);
+            final long start = System.nanoTime();
+            try {
+                responseParser.parse(in, harvest,
+                        harvest.getStreamHandler(notification));
+            } finally {
+                final long handler = harvest.getResponseHandlerNanos();
+                harvest.phaseTimed(PhaseTimings.Phase.PARSE,
+                        System.nanoTime() - start -
+                        (readNanos(in) - readBefore) - handler);
+                if (responseParser.isHandlerTimed()) {
+                    harvest.phaseTimed(PhaseTimings.Phase.HANDLER, handler);
+                }
+            }
         } catch (final XMLStreamException | IOException e) {
             /*
              * Note: XMLStreamExceptions thrown due to XML parsing
@@ -462,6 +1903,12 @@ public final class Harvester extends Observable {
             harvest.error(e);
             throw new HarvesterException(e);
         } catch (final RuntimeException e) {
+            if (isTokenRejection(e) && harvest.lastRequestHadToken() &&
+                    harvest.fallBack()) {
+                LOGGER.warn("Resumption token rejected. Restarting list " +
+                        "with parameters {}.", harvest.getRetryParams());
+                return;
+            }
             /*
              * Make sure anybody who's listening for notifications knows there
              * was an error.
@@ -471,15 +1918,104 @@ public final class Harvester extends Observable {
         }
     }
 
+    /**
+     * @return the time spent waiting for the network while reading a
+     *         response's content so far, or zero if the content is not read
+     *         from the network.
+     */
+    private static long readNanos(final InputStream in) {
+        return in instanceof DecodingInputStream ?
+                ((DecodingInputStream)in).getReadNanos() : 0;
+    }
+
+    private static boolean isTokenRejection(final RuntimeException e) {
+        return e instanceof OAIProtocolException &&
+                ((OAIProtocolException)e).getOAIErrors().stream().anyMatch(
+                        err -> err.getErrorCode().orElse(null) ==
+                        OAIErrorCode.BAD_RESUMPTION_TOKEN);
+    }
+
+    /**
+     * Get the parameters for the next request, first restarting the list if
+     * its resumption token has expired and fallback is enabled.
+     * <p>
+     * This must be called from the thread in which the harvest runs.
+     * </p>
+     *
+     * @return the parameters for the next request.
+     */
+    private Map<String, String> nextRequestParameters() {
+        if (harvest.isTokenExpired() && harvest.fallBack()) {
+            LOGGER.warn("Resumption token expired. Restarting list with " +
+                    "parameters {}.", harvest.getRetryParams());
+        }
+        return harvest.getRequestParameters();
+    }
+
     private HttpUriRequest createRequest(final Map<String, String> parameters) {
         final HttpUriRequest request = requestFactory.createRequest(
                 harvest.getBaseURI(), parameters);
+        if (contentCompression &&
+                !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING,
+                    DecodingInputStream.ACCEPT_ENCODING);
+        }
         LOGGER.trace("Request created: {}", request);
         return request;
     }
 
     /**
-     * Execute an {@code HttpUriRequest}.
+     * Record a request in the harvest state.
+     * <p>
+     * This must be called from the thread in which the harvest runs.
+     * </p>
+     *
+     * @param request
+     *            the request about to be executed.
+     */
+    private void requestSent(final HttpUriRequest request) {
+        harvest.setRequest(request);
+        harvest.requestSent();
+    }
+
+    /**
+     * Decide whether to send a failed request again and, if so, wait until
+     * it's time to.
+     * <p>
+     * This must be called from the thread in which the harvest runs.
+     * </p>
+     *
+     * @param request
+     *            the failed request.
+     * @param failure
+     *            the exception with which it failed.
+     * @param retries
+     *            the number of times the request has already been retried.
+     * @return {@code true} iff the request should be sent again.
+     */
+    private boolean awaitRetry(final HttpUriRequest request,
+            final RuntimeException failure, final int retries) {
+        final long delay = retryPolicy.retryDelayMillis(failure, retries);
+        if (delay < 0) {
+            return false;
+        }
+        LOGGER.info("Request {} failed ({}). Retrying in {} ms.", request,
+                failure.toString(), delay);
+        // Release the connection, which may still hold an error response.
+        request.abort();
+        harvest.retrying(delay);
+        return harvest.awaitRetry(delay);
+    }
+
+    /**
+     * Execute an {@code HttpUriRequest}, first waiting for a permit from the
+     * host limiter, if any.
+     * <p>
+     * This method touches only the thread-safe parts of the harvest state,
+     * and so may be called from threads other than the one in which the
+     * harvest runs. The request is recorded as in flight, so that cancelling
+     * the harvest aborts it, until its content stream is closed or it fails.
+     * </p>
      *
      * @param request
      *            the request to execute.
@@ -487,47 +2023,130 @@ public final class Harvester extends Observable {
      * @throws UncheckedIOException
      *             if {@link HttpClient#execute(HttpUriRequest)} throws an
      *             {@link IOException}.
+     * @throws CancellationException
+     *             if the harvest is cancelled while waiting for a permit.
+     * @throws HarvesterException
+     *             if interrupted while waiting for a permit.
      */
     private HttpResponse executeRequest(final HttpUriRequest request) {
-        harvest.setRequest(request);
-        harvest.requestSent();
+        final Harvest h = harvest;
+        acquirePermit(h, request);
+        h.requestStarted(request, request::abort);
         try {
             LOGGER.debug("Executing request {}", request);
+            final long start = System.nanoTime();
             final HttpResponse response = httpClient.execute(
                     request);
+            h.phaseTimed(PhaseTimings.Phase.TIME_TO_FIRST_BYTE,
+                    System.nanoTime() - start);
             LOGGER.debug("Got HTTP response {} for request {}",
                     response, request);
             return response;
         } catch (final IOException e) {
+            requestEnded(h, request);
             throw new UncheckedIOException(e);
+        } catch (final RuntimeException e) {
+            requestEnded(h, request);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a permit to send a request, until one is available or the
+     * harvest is cancelled.
+     *
+     * @throws CancellationException
+     *             if the harvest is cancelled while waiting.
+     * @throws HarvesterException
+     *             if interrupted while waiting.
+     */
+    private void acquirePermit(final Harvest h,
+            final HttpUriRequest request) {
+        if (hostLimiter == null) {
+            return;
+        }
+        try {
+            final HostLimiter.Permit permit = hostLimiter.acquire(
+                    request.getURI(), h::isCancelled);
+            if (permit == null) {
+                throw new CancellationException(String.format(
+                        "Harvest cancelled waiting to send request %s.",
+                        request));
+            }
+            permits.put(request, permit);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HarvesterException(String.format(
+                    "Interrupted waiting to send request %s.", request), e);
+        }
+    }
+
+    /**
+     * Record that a request is no longer in flight, releasing its permit, if
+     * any. Ending a request again has no effect.
+     */
+    private void requestEnded(final Harvest h, final HttpUriRequest request) {
+        h.requestEnded(request);
+        if (hostLimiter == null) {
+            return;
+        }
+        final HostLimiter.Permit permit = permits.remove(request);
+        if (permit != null) {
+            permit.release();
         }
     }
 
     /**
-     * Get the content of an {@code HttpResponse}.
+     * Get the content of an {@code HttpResponse}, decoded according to its
+     * content encoding.
+     * <p>
+     * The size of the content before and after decoding is added to the
+     * harvest's statistics, and the request is ended, releasing its permit,
+     * when the returned stream is closed. The request is also ended if this
+     * method throws.
+     * </p>
      *
+     * @param request
+     *            the request to which the response is a reply.
      * @param response
      *            the HTTP response.
-     * @return the content of the response's entity.
+     * @param streaming
+     *            whether the content is read from the network as the returned
+     *            stream is read, so that reading it counts as downloading.
+     * @return the decoded content of the response's entity.
      * @throws HarvesterHTTPStatusException
      *             if the response's status code is not OK.
      * @throws HarvesterException
-     *             if the response's entity is {@code null}, or if there's an
-     *             error getting the entity's content.
+     *             if the response's entity is {@code null}, if its content
+     *             encoding is not supported, or if there's an error getting
+     *             the entity's content.
      */
-    private InputStream contentOf(final HttpResponse response) {
+    private InputStream contentOf(final HttpUriRequest request,
+            final HttpResponse response, final boolean streaming) {
+        // Bodies may be read after a new harvest has started.
+        final Harvest h = harvest;
         try {
             final StatusLine statusLine = response.getStatusLine();
             LOGGER.debug("Got status line: {}", statusLine);
             final int statusCode = statusLine.getStatusCode();
             if (statusCode == HttpStatus.SC_OK) {
-                return entity(response).getContent();
+                return DecodingInputStream.decode(entity(request, response),
+                        h::bytesReceived, (wire, decoded, readNanos) -> {
+                            h.bodyRead(wire, decoded);
+                            if (streaming) {
+                                h.phaseTimed(PhaseTimings.Phase.DOWNLOAD,
+                                        readNanos);
+                            }
+                            requestEnded(h, request);
+                        });
             }
-            throw statusException(harvest.getRequest(), response);
+            throw statusException(request, response);
         } catch (final HarvesterException e) {
+            requestEnded(h, request);
             // Avoid wrapping any harvester exception we just threw.
             throw e;
         } catch (final RuntimeException | IOException e) {
+            requestEnded(h, request);
             throw new HarvesterException(e);
         }
     }
@@ -543,19 +2162,22 @@ public final class Harvester extends Observable {
     /**
      * Get the entity from a response.
      *
+     * @param request
+     *            the request to which the response is a reply.
      * @param response
      *            the response from which the entity is to be extracted.
      * @return the response's entity.
      * @throws HarvesterException
      *             if the response has no entity.
      */
-    private HttpEntity entity(final HttpResponse response) {
+    private HttpEntity entity(final HttpUriRequest request,
+            final HttpResponse response) {
         final HttpEntity entity = response.getEntity();
         if (entity == null) {
             throw new HarvesterException(
                     String.format(
                             "Got null HTTP entity in response to request %s.",
-                            harvest.getRequest()));
+                            request));
         }
         return entity;
     }
@@ -563,7 +2185,7 @@ public final class Harvester extends Observable {
     /**
      * Sends a notification first to a consumer (one of the
      * {@link OAIResponseHandler} event notification methods), then to
-     * registered observers.
+     * registered listeners and observers.
      * <p>
      * This method makes the following guarantees:
      * <ol>
@@ -596,7 +2218,7 @@ public final class Harvester extends Observable {
      * the harvest's response handler and to registered observers.
      */
     private void sendHarvestStartNotifications() {
-        final HarvestNotification notification = harvest.createNotification(
+        final HarvestNotification notification = createNotification(
                 HarvestNotificationType.HARVEST_STARTED);
         sendNotifications(notification,
                 harvest.getResponseHandler()::onHarvestStart);
@@ -607,7 +2229,7 @@ public final class Harvester extends Observable {
      * harvest's response handler and to registered observers.
      */
     private void sendHarvestEndNotifications() {
-        final HarvestNotification notification = harvest.createNotification(
+        final HarvestNotification notification = createNotification(
                 HarvestNotificationType.HARVEST_ENDED);
         sendNotifications(notification,
                 harvest.getResponseHandler()::onHarvestEnd);
@@ -618,7 +2240,7 @@ public final class Harvester extends Observable {
      * the harvest's response handler and to registered observers.
      */
     private HarvestNotification sendResponseReceivedNotifcations() {
-        final HarvestNotification notification = harvest.createNotification(
+        final HarvestNotification notification = createNotification(
                 HarvestNotificationType.RESPONSE_RECEIVED);
         sendNotifications(notification,
                 harvest.getResponseHandler()::onResponseReceived);
@@ -630,14 +2252,35 @@ public final class Harvester extends Observable {
      * the harvest's response handler and to registered observers.
      */
     private void sendResponseEndNotifications() {
-        final HarvestNotification notification = harvest.createNotification(
+        final HarvestNotification notification = createNotification(
                 HarvestNotificationType.RESPONSE_PROCESSED);
         sendNotifications(notification,
                 harvest.getResponseHandler()::onResponseProcessed);
     }
 
     /**
-     * Send a notification to registered observers.
+     * Create a notification of the current harvest's state.
+     * <p>
+     * If any listeners will receive it, its phase timings are taken now,
+     * since listeners may read them after the harvest has moved on.
+     * Otherwise, they are taken only if an observer asks for them.
+     * </p>
+     */
+    private HarvestNotification createNotification(
+            final HarvestNotificationType type) {
+        boolean listened = false;
+        for (Harvester h = this; h != null && !listened; h = h.parent) {
+            listened = !h.listeners.isEmpty();
+        }
+        return harvest.createNotification(type, listened);
+    }
+
+    /**
+     * Send a notification to registered listeners and observers.
+     * <p>
+     * Listeners are sent the notification first, since that only queues it
+     * for their dispatcher thread.
+     * </p>
      *
      * <h2>Error Handling</h2>
      * <p>
@@ -648,21 +2291,41 @@ public final class Harvester extends Observable {
      * will be logged.
      * </p>
      * <p>
-     * Because {@code Observable} makes no guarantees about notification order,
-     * we cannot either. Nor can we guarantee that an attempt is made to notify
-     * every registered observer if any one of them throws while being updated.
+     * As with {@code Observable}, observers are notified in the reverse of the
+     * order they were added, starting with this harvester's own and ending
+     * with those of its parents, but clients should not depend on this.
+     * Every observer is notified, even if one throws.
      * </p>
      *
      * @param notification
      *            the notification to send.
      */
     private void sendToObservers(final HarvestNotification notification) {
-        setChanged();
-        try {
-            notifyObservers(notification);
-        } catch (final Exception e) {
-            LOGGER.error("Caught an exception while notifying observers.",
-                    e);
+        for (Harvester h = this; h != null; h = h.parent) {
+            for (final NotificationBus.Subscription<HarvestNotification> s :
+                    h.listeners.values()) {
+                s.offer(notification);
+            }
+        }
+        notifyEachObserver(notification);
+    }
+
+    /**
+     * Notify the observers of this harvester and its parents, logging any
+     * exceptions they throw.
+     */
+    private void notifyEachObserver(final Object arg) {
+        for (Harvester h = this; h != null; h = h.parent) {
+            final ListIterator<Observer> it = h.observers.listIterator(
+                    h.observers.size());
+            while (it.hasPrevious()) {
+                try {
+                    it.previous().update(this, arg);
+                } catch (final Exception e) {
+                    LOGGER.error("Caught an exception while notifying " +
+                            "observers.", e);
+                }
+            }
         }
     }
 }
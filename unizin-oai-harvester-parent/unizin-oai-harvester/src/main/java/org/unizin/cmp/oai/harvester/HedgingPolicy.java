@@ -0,0 +1,203 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy deciding when a harvester sends a duplicate, or <em>hedge</em>, of a
+ * slow request.
+ * <p>
+ * During each harvest, the harvester learns how long the repository takes to
+ * start answering (the time until the response's headers arrive). Once it
+ * has seen enough responses, a request that hasn't started answering within
+ * the policy's percentile of those times is sent again with the same
+ * parameters. Whichever request starts answering first is used, and the
+ * other is aborted. Thus, with the default 95th percentile, at most about
+ * one request in twenty is hedged, and those are the ones likely to be stuck.
+ * </p>
+ * <p>
+ * In addition, the number of hedges in a harvest never exceeds the policy's
+ * budget, a fraction of the requests sent, so a repository that slows down
+ * across the board doesn't get twice the load.
+ * </p>
+ * <p>
+ * Instances are immutable and thread safe.
+ * </p>
+ *
+ * @see Harvester.Builder#withHedgingPolicy(HedgingPolicy)
+ */
+public final class HedgingPolicy {
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+    public static final int DEFAULT_WINDOW_SIZE = 200;
+    public static final Duration DEFAULT_MIN_DELAY = Duration.ofMillis(500);
+    public static final double DEFAULT_BUDGET = 0.05;
+
+
+    /**
+     * Builder for {@code HedgingPolicy}.
+     */
+    public static final class Builder {
+        private double percentile = DEFAULT_PERCENTILE;
+        private int minSamples = DEFAULT_MIN_SAMPLES;
+        private int windowSize = DEFAULT_WINDOW_SIZE;
+        private Duration minDelay = DEFAULT_MIN_DELAY;
+        private double budget = DEFAULT_BUDGET;
+
+        /**
+         * Set the percentile of observed times to first byte after which a
+         * request is hedged.
+         *
+         * @param percentile
+         *            the percentile, as a fraction between zero and one,
+         *            exclusive.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code percentile} is out of range.
+         */
+        public Builder withPercentile(final double percentile) {
+            if (!(percentile > 0 && percentile < 1)) {
+                throw new IllegalArgumentException(
+                        "percentile must be between 0 and 1.");
+            }
+            this.percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Set the number of responses that must be observed in a harvest
+         * before any of its requests is hedged.
+         *
+         * @param minSamples
+         *            the number of responses.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code minSamples} is not positive.
+         */
+        public Builder withMinSamples(final int minSamples) {
+            if (minSamples <= 0) {
+                throw new IllegalArgumentException(
+                        "minSamples must be positive.");
+            }
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Set the number of most recent responses from which the percentile
+         * is computed.
+         *
+         * @param windowSize
+         *            the number of responses.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code windowSize} is not positive.
+         */
+        public Builder withWindowSize(final int windowSize) {
+            if (windowSize <= 0) {
+                throw new IllegalArgumentException(
+                        "windowSize must be positive.");
+            }
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Set the shortest time to wait before hedging a request, however
+         * fast the repository usually answers.
+         *
+         * @param minDelay
+         *            the minimum delay.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code minDelay} is negative.
+         */
+        public Builder withMinDelay(final Duration minDelay) {
+            Objects.requireNonNull(minDelay, "minDelay");
+            if (minDelay.isNegative()) {
+                throw new IllegalArgumentException(
+                        "minDelay must be nonnegative.");
+            }
+            this.minDelay = minDelay;
+            return this;
+        }
+
+        /**
+         * Set the largest number of hedges in a harvest, as a fraction of the
+         * requests sent.
+         *
+         * @param budget
+         *            the fraction, between zero and one.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code budget} is out of range.
+         */
+        public Builder withBudget(final double budget) {
+            if (!(budget >= 0 && budget <= 1)) {
+                throw new IllegalArgumentException(
+                        "budget must be between 0 and 1.");
+            }
+            this.budget = budget;
+            return this;
+        }
+
+        public HedgingPolicy build() {
+            if (minSamples > windowSize) {
+                throw new IllegalArgumentException(
+                        "minSamples must not exceed windowSize.");
+            }
+            return new HedgingPolicy(this);
+        }
+    }
+
+
+    private final double percentile;
+    private final int minSamples;
+    private final int windowSize;
+    private final long minDelayNanos;
+    private final double budget;
+
+
+    private HedgingPolicy(final Builder builder) {
+        this.percentile = builder.percentile;
+        this.minSamples = builder.minSamples;
+        this.windowSize = builder.windowSize;
+        this.minDelayNanos = builder.minDelay.toNanos();
+        this.budget = builder.budget;
+    }
+
+    LatencyWindow newLatencyWindow() {
+        return new LatencyWindow(windowSize);
+    }
+
+    /**
+     * Get how long to wait for a request's response to start before hedging
+     * it.
+     *
+     * @param latencies
+     *            the times to first byte observed so far in the harvest.
+     * @param requests
+     *            the number of requests sent so far in the harvest.
+     * @param hedges
+     *            the number of hedges sent so far in the harvest.
+     * @return the delay in milliseconds, or {@code -1} if the request should
+     *         not be hedged.
+     */
+    long hedgeDelayMillis(final LatencyWindow latencies, final long requests,
+            final long hedges) {
+        if (latencies.size() < minSamples || hedges + 1 > budget * requests) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(minDelayNanos,
+                latencies.percentile(percentile)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HedgingPolicy[percentile=%s, minSamples=%d, " +
+                "windowSize=%d, minDelay=%dms, budget=%s]", percentile,
+                minSamples, windowSize,
+                TimeUnit.NANOSECONDS.toMillis(minDelayNanos), budget);
+    }
+}
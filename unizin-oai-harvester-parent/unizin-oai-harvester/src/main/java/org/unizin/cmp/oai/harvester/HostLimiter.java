@@ -0,0 +1,356 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Limits the requests harvesters send to each host.
+ * <p>
+ * Each host has a budget of requests per second, enforced by a token bucket
+ * holding up to one second's worth of requests, and a cap on the number of
+ * requests in flight at once. A request is in flight from when it is sent
+ * until its response has been read, or it fails. All harvesters given the
+ * same limiter share each host's budget, so that several harvests of one
+ * repository, or of repositories on one host, cannot overload it between
+ * them.
+ * </p>
+ * <p>
+ * Hosts are identified by name and port, as returned by
+ * {@link #hostKey(URI)}. Their limits are looked up each time a request is
+ * sent, so changes take effect without restarting harvests.
+ * </p>
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ *
+ * @see Harvester.Builder#withHostLimiter(HostLimiter)
+ */
+public final class HostLimiter {
+
+    /**
+     * The limits for one host.
+     * <p>
+     * Instances are immutable.
+     * </p>
+     */
+    public static final class Limits {
+        /** No limits at all. */
+        public static final Limits UNLIMITED = new Limits(
+                Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+
+        private final double requestsPerSecond;
+        private final int maxInFlight;
+
+        /**
+         * Create a new instance.
+         *
+         * @param requestsPerSecond
+         *            the sustained rate at which requests may be sent.
+         *            {@link Double#POSITIVE_INFINITY} for no limit.
+         * @param maxInFlight
+         *            the maximum number of requests in flight at once.
+         * @throws IllegalArgumentException
+         *             if either limit is not positive.
+         */
+        public Limits(final double requestsPerSecond, final int maxInFlight) {
+            if (!(requestsPerSecond > 0)) {
+                throw new IllegalArgumentException(
+                        "requestsPerSecond must be positive.");
+            }
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException(
+                        "maxInFlight must be positive.");
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            this.maxInFlight = maxInFlight;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(requestsPerSecond, maxInFlight);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Limits other = (Limits) obj;
+            return requestsPerSecond == other.requestsPerSecond &&
+                    maxInFlight == other.maxInFlight;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(this.getClass().getName())
+                    .append("[")
+                    .append("requestsPerSecond=")
+                    .append(requestsPerSecond)
+                    .append(", maxInFlight=")
+                    .append(maxInFlight)
+                    .append("]")
+                    .toString();
+        }
+    }
+
+
+    /**
+     * Permission to send one request. It must be released when the request
+     * is no longer in flight.
+     */
+    public static final class Permit {
+        private final Host host;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final Host host) {
+            this.host = host;
+        }
+
+        /** Release this permit. Releasing it again has no effect. */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                host.release();
+            }
+        }
+    }
+
+
+    /** The state of one host. Guarded by its own monitor. */
+    private static final class Host {
+        private Limits limits;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private int inFlight;
+
+        private Host(final Limits limits) {
+            this.limits = limits;
+            this.tokens = capacity(limits);
+        }
+
+        private static double capacity(final Limits limits) {
+            return Math.max(1, limits.requestsPerSecond);
+        }
+
+        private void refill(final Limits current) {
+            final long now = System.nanoTime();
+            if (!current.equals(limits)) {
+                limits = current;
+                tokens = Math.min(tokens, capacity(limits));
+            }
+            if (Double.isInfinite(limits.requestsPerSecond)) {
+                tokens = 1;
+            } else {
+                tokens = Math.min(capacity(limits), tokens +
+                        (now - lastRefill) * limits.requestsPerSecond /
+                        TimeUnit.SECONDS.toNanos(1));
+            }
+            lastRefill = now;
+        }
+
+        /**
+         * Take a permit if one is available.
+         *
+         * @return zero if a permit was taken, the number of nanoseconds until
+         *         one may be available if the rate limit was reached, or a
+         *         negative number if the in-flight limit was reached.
+         */
+        private synchronized long take(final Limits current) {
+            refill(current);
+            if (inFlight >= limits.maxInFlight) {
+                return -1;
+            }
+            if (tokens < 1) {
+                return Math.max(1, (long)Math.ceil((1 - tokens) *
+                        TimeUnit.SECONDS.toNanos(1) /
+                        limits.requestsPerSecond));
+            }
+            tokens--;
+            inFlight++;
+            return 0;
+        }
+
+        private synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+    }
+
+
+    /** The longest {@link #acquire(URI, BooleanSupplier)} waits at once. */
+    private static final long ABANDON_CHECK_MILLIS = 100;
+    private static final long ABANDON_CHECK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(ABANDON_CHECK_MILLIS);
+
+    private final Function<String, Limits> limits;
+    private final ConcurrentMap<String, Host> hosts =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Create a new instance with the same limits for every host.
+     *
+     * @param limits
+     *            the limits.
+     */
+    public HostLimiter(final Limits limits) {
+        this(constant(limits));
+    }
+
+    private static Function<String, Limits> constant(final Limits limits) {
+        Objects.requireNonNull(limits, "limits");
+        return host -> limits;
+    }
+
+    /**
+     * Create a new instance with limits looked up for each host.
+     *
+     * @param limits
+     *            function from a host key to the host's limits. It is called
+     *            each time a request is sent, so should be fast.
+     */
+    public HostLimiter(final Function<String, Limits> limits) {
+        Objects.requireNonNull(limits, "limits");
+        this.limits = limits;
+    }
+
+    /**
+     * Get the key identifying the host of a URI.
+     *
+     * @param uri
+     *            the URI.
+     * @return the URI's host name, in lower case, and port, separated by a
+     *         colon. Default ports are filled in for {@code http} and
+     *         {@code https}.
+     */
+    public static String hostKey(final URI uri) {
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        final String host = uri.getHost() == null ? "" :
+            uri.getHost().toLowerCase(Locale.ROOT);
+        return host + ":" + port;
+    }
+
+    private Host host(final String key, final Limits current) {
+        return hosts.computeIfAbsent(key, k -> new Host(current));
+    }
+
+    private Limits limitsFor(final String key) {
+        final Limits l = limits.apply(key);
+        return l == null ? Limits.UNLIMITED : l;
+    }
+
+    /**
+     * Take a permit to send a request to a URI's host without waiting.
+     *
+     * @param uri
+     *            the URI.
+     * @return the permit, or {@code null} if the host's limits have been
+     *         reached.
+     */
+    public Permit tryAcquire(final URI uri) {
+        final String key = hostKey(uri);
+        final Limits current = limitsFor(key);
+        final Host host = host(key, current);
+        return host.take(current) == 0 ? new Permit(host) : null;
+    }
+
+    /**
+     * Take a permit to send a request to a URI's host, waiting as long as
+     * necessary.
+     *
+     * @param uri
+     *            the URI.
+     * @return the permit.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public Permit acquire(final URI uri) throws InterruptedException {
+        return acquire(uri, () -> false);
+    }
+
+    /**
+     * Take a permit to send a request to a URI's host, waiting until one is
+     * available or the wait is abandoned.
+     * <p>
+     * A permit held by another request is released only when that request
+     * ends, which may take a long time. So, rather than waiting for that, the
+     * waiter checks whether to abandon the wait every tenth of a second.
+     * </p>
+     *
+     * @param uri
+     *            the URI.
+     * @param abandoned
+     *            whether to stop waiting, e.g., because the harvest that
+     *            would send the request has been cancelled.
+     * @return the permit, or {@code null} if the wait was abandoned first.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public Permit acquire(final URI uri, final BooleanSupplier abandoned)
+            throws InterruptedException {
+        Objects.requireNonNull(abandoned, "abandoned");
+        final String key = hostKey(uri);
+        while (!abandoned.getAsBoolean()) {
+            final Limits current = limitsFor(key);
+            final Host host = host(key, current);
+            synchronized (host) {
+                final long wait = host.take(current);
+                if (wait == 0) {
+                    return new Permit(host);
+                }
+                TimeUnit.NANOSECONDS.timedWait(host, wait < 0 ?
+                        ABANDON_CHECK_NANOS :
+                            Math.min(wait, ABANDON_CHECK_NANOS));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get how long to wait before trying again to take a permit for a URI's
+     * host without waiting.
+     *
+     * @param uri
+     *            the URI.
+     * @return an estimate, in milliseconds, of when a permit will next be
+     *         available. Zero if one is available now.
+     */
+    public long retryDelayMillis(final URI uri) {
+        final String key = hostKey(uri);
+        final Host host = hosts.get(key);
+        if (host == null) {
+            return 0;
+        }
+        synchronized (host) {
+            host.refill(limitsFor(key));
+            if (host.inFlight >= host.limits.maxInFlight) {
+                // Released permits can't be waited for without blocking.
+                return 10;
+            }
+            if (host.tokens >= 1) {
+                return 0;
+            }
+            return (long)Math.ceil((1 - host.tokens) * 1000 /
+                    host.limits.requestsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link HarvestStateStore} that keeps its state in memory, and so forgets it
+ * when the JVM exits.
+ * <p>
+ * Useful for testing, and for long-running processes that harvest the same
+ * repositories repeatedly.
+ * </p>
+ */
+public final class InMemoryHarvestStateStore implements HarvestStateStore {
+    private final ConcurrentMap<Key, Instant> state =
+            new ConcurrentHashMap<>();
+
+    @Override
+    public Optional<Instant> getLastResponseDate(final Key key) {
+        return Optional.ofNullable(state.get(key));
+    }
+
+    @Override
+    public void setLastResponseDate(final Key key,
+            final Instant responseDate) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(responseDate, "responseDate");
+        state.put(key, responseDate);
+    }
+}
@@ -0,0 +1,244 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Histogram of durations, in the style of an HDR histogram.
+ * <p>
+ * Durations are counted in nanoseconds, in buckets whose widths grow with
+ * their values, so that any duration from a nanosecond to centuries is kept
+ * to within 12.5% in a few hundred buckets. Percentiles are reported as the
+ * largest duration in the bucket containing them, so they may be slightly
+ * high, but never low. The count, total, minimum and maximum are exact.
+ * </p>
+ * <p>
+ * Instances are immutable snapshots, taken from a thread-safe recorder.
+ * </p>
+ *
+ * @see PhaseTimings
+ */
+public final class LatencyHistogram {
+    /** Bits of each value kept exactly; sets the precision. */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+    /** The empty histogram. */
+    static final LatencyHistogram EMPTY = new LatencyHistogram(new long[0], 0,
+            0, 0, 0, 0);
+
+    /**
+     * Records durations. Recording is thread safe and lock free, and
+     * snapshots may be taken at any time.
+     */
+    static final class Recorder {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final LongAccumulator min = new LongAccumulator(Math::min,
+                Long.MAX_VALUE);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos
+         *            the duration in nanoseconds. Negative durations (e.g.,
+         *            from clock adjustments) are recorded as zero.
+         */
+        void record(final long nanos) {
+            final long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucketOf(value));
+            total.addAndGet(value);
+            min.accumulate(value);
+            max.accumulate(value);
+            count.incrementAndGet();
+        }
+
+        /**
+         * @return the total of the durations recorded, in nanoseconds.
+         */
+        long getTotalNanos() {
+            return total.get();
+        }
+
+        /**
+         * Take a snapshot of the durations recorded so far.
+         * <p>
+         * Durations recorded while the snapshot is taken may be only partly
+         * included, e.g., counted in their buckets but not in the total.
+         * </p>
+         *
+         * @return the snapshot.
+         */
+        LatencyHistogram snapshot() {
+            if (count.get() == 0) {
+                return EMPTY;
+            }
+            int first = 0;
+            while (first < BUCKETS && counts.get(first) == 0) {
+                first++;
+            }
+            int last = BUCKETS - 1;
+            while (last > first && counts.get(last) == 0) {
+                last--;
+            }
+            final long[] snapshot = new long[last - first + 1];
+            long n = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(first + i);
+                n += snapshot[i];
+            }
+            return new LatencyHistogram(snapshot, first, n, total.get(),
+                    n == 0 ? 0 : min.get(), max.get());
+        }
+    }
+
+
+    /**
+     * Counts of buckets {@code firstBucket} through the last nonempty bucket.
+     */
+    private final long[] counts;
+    private final int firstBucket;
+    private final long count;
+    private final long total;
+    private final long min;
+    private final long max;
+
+    private LatencyHistogram(final long[] counts, final int firstBucket,
+            final long count, final long total, final long min,
+            final long max) {
+        this.counts = counts;
+        this.firstBucket = firstBucket;
+        this.count = count;
+        this.total = total;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Values below {@code SUB_BUCKETS} each have their own bucket. Above,
+     * each power of two is split into {@code SUB_BUCKETS} buckets of equal
+     * width.
+     */
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the largest value in a bucket. */
+    private static long highestValueIn(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long lowest = (SUB_BUCKETS + sub) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * @return the number of durations recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the total of the durations recorded.
+     */
+    public Duration getTotal() {
+        return Duration.ofNanos(total);
+    }
+
+    /**
+     * @return the shortest duration recorded, or zero if there are none.
+     */
+    public Duration getMin() {
+        return Duration.ofNanos(min);
+    }
+
+    /**
+     * @return the longest duration recorded, or zero if there are none.
+     */
+    public Duration getMax() {
+        return Duration.ofNanos(max);
+    }
+
+    /**
+     * @return the mean duration recorded, or zero if there are none.
+     */
+    public Duration getMean() {
+        return Duration.ofNanos(count == 0 ? 0 : total / count);
+    }
+
+    /**
+     * Get the duration at a percentile.
+     *
+     * @param percentile
+     *            the percentile, from 0 to 100.
+     * @return the duration no shorter than the given percentage of those
+     *         recorded, within the histogram's precision, or zero if there
+     *         are none.
+     * @throws IllegalArgumentException
+     *             if the percentile is not between 0 and 100.
+     */
+    public Duration getValueAtPercentile(final double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException(
+                    "percentile must be between 0 and 100.");
+        }
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        final long rank = Math.max(1, (long)Math.ceil(
+                percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Duration.ofNanos(Math.min(max,
+                        Math.max(min, highestValueIn(firstBucket + i))));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return a summary of this histogram, with durations in milliseconds,
+     *         suitable for serialization.
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new TreeMap<>();
+        map.put("count", count);
+        map.put("totalMillis", millis(getTotal()));
+        map.put("minMillis", millis(getMin()));
+        map.put("meanMillis", millis(getMean()));
+        map.put("p50Millis", millis(getValueAtPercentile(50)));
+        map.put("p90Millis", millis(getValueAtPercentile(90)));
+        map.put("p99Millis", millis(getValueAtPercentile(99)));
+        map.put("maxMillis", millis(getMax()));
+        return map;
+    }
+
+    private static double millis(final Duration d) {
+        return d.toNanos() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append(toMap())
+                .toString();
+    }
+}
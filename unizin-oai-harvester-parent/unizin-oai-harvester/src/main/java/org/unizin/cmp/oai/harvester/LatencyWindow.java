@@ -0,0 +1,56 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latencies observed during a harvest.
+ * <p>
+ * Instances are thread safe, since latencies are recorded by the threads that
+ * execute requests.
+ * </p>
+ */
+final class LatencyWindow {
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    /**
+     * @param size
+     *            the number of most recent samples to keep.
+     */
+    LatencyWindow(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive.");
+        }
+        this.samples = new long[size];
+    }
+
+    synchronized void add(final long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Get a percentile of the samples, by the nearest-rank method.
+     *
+     * @param percentile
+     *            the percentile, as a fraction between zero and one.
+     * @return the percentile, or {@code -1} if there are no samples.
+     */
+    synchronized long percentile(final double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int rank = (int)Math.ceil(percentile * count);
+        return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,533 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Observer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+
+/**
+ * Delivers notifications to listeners on a dispatcher thread, so that slow
+ * listeners never delay the threads that send the notifications.
+ * <p>
+ * Each listener is {@linkplain #subscribe(HarvestListener, OverflowPolicy)
+ * subscribed} with a mailbox, a bounded, lock-free ring buffer into which
+ * notifications are offered without blocking. The bus's dispatcher thread
+ * delivers the notifications in each mailbox to its listener in the order
+ * each sending thread offered them. Notifications offered at the same time
+ * by different threads may be delivered in either order. Mailboxes that are
+ * empty are not referenced by the bus, so subscriptions need not be
+ * cancelled to be garbage collected.
+ * </p>
+ * <p>
+ * When a listener falls behind and its mailbox fills, its
+ * {@link OverflowPolicy} decides what becomes of further notifications. No
+ * policy ever makes the sender wait.
+ * </p>
+ * <p>
+ * The listeners of a bus share its dispatcher thread, so a listener that
+ * blocks delays the others. Listeners that may block for long should be given
+ * a bus of their own. Exceptions thrown by listeners are logged.
+ * </p>
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ *
+ * @see Harvester#addListener(HarvestListener, OverflowPolicy)
+ */
+public final class NotificationBus implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            NotificationBus.class);
+
+    /** Default number of notifications each mailbox can hold. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final AtomicInteger BUS_COUNT = new AtomicInteger();
+
+
+    /**
+     * What to do with notifications offered to a listener whose mailbox is
+     * full.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Drop them. The listener may miss any notification, including the
+         * end of a harvest.
+         */
+        DROP,
+        /**
+         * Coalesce notifications that report progress, and never drop others.
+         * <p>
+         * When several progress notifications about the same subject are
+         * waiting, only the latest is delivered. Other notifications (e.g.,
+         * the start and end of a harvest) offered while the mailbox is full
+         * wait in an unbounded overflow queue. So that they stay in order,
+         * later notifications wait behind them in the queue until the
+         * listener has caught up with it, even if the mailbox has room.
+         * </p>
+         * <p>
+         * Progress notifications offered while the mailbox is full, or while
+         * anything is waiting in the overflow queue, are dropped, since each
+         * is superseded by the next.
+         * </p>
+         */
+        COALESCE,
+    }
+
+
+    private static final class DefaultBus {
+        private static final NotificationBus INSTANCE = new NotificationBus();
+    }
+
+    /**
+     * Get the bus used by harvesters that aren't given one.
+     * <p>
+     * Its dispatcher thread is a daemon thread, started when first needed.
+     * The default bus should not be closed.
+     * </p>
+     *
+     * @return the default bus.
+     */
+    public static NotificationBus defaultBus() {
+        return DefaultBus.INSTANCE;
+    }
+
+
+    /**
+     * Bounded multiple-producer, single-consumer queue, after Dmitry Vyukov's
+     * bounded MPMC queue. Each slot carries a sequence number telling
+     * producers and the consumer whose turn it is to use it.
+     */
+    private static final class Ring<E> {
+        private final int mask;
+        private final AtomicReferenceArray<E> elements;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        /** Used only by the dispatcher thread. */
+        private long head;
+
+        Ring(final int capacity) {
+            final int size = capacity == 1 ? 1 :
+                Integer.highestOneBit(capacity - 1) << 1;
+            mask = size - 1;
+            elements = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(final E e) {
+            long t = tail.get();
+            while (true) {
+                final int i = (int)t & mask;
+                final long diff = sequences.get(i) - t;
+                if (diff == 0) {
+                    if (tail.compareAndSet(t, t + 1)) {
+                        elements.lazySet(i, e);
+                        sequences.lazySet(i, t + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false;
+                }
+                t = tail.get();
+            }
+        }
+
+        /** Called only by the dispatcher thread. */
+        E poll() {
+            final int i = (int)head & mask;
+            if (sequences.get(i) != head + 1) {
+                return null;
+            }
+            final E e = elements.get(i);
+            elements.lazySet(i, null);
+            sequences.lazySet(i, head + mask + 1);
+            head++;
+            return e;
+        }
+
+        /** Called only by the dispatcher thread. */
+        boolean isEmpty() {
+            return sequences.get((int)head & mask) != head + 1;
+        }
+    }
+
+
+    /**
+     * A listener's subscription to a bus.
+     * <p>
+     * Notifications {@linkplain #offer(Object) offered} to a subscription are
+     * delivered to its listener on the bus's dispatcher thread.
+     * </p>
+     *
+     * @param <T>
+     *            the type of notification.
+     */
+    public final class Subscription<T> {
+        private final Consumer<? super T> listener;
+        private final OverflowPolicy policy;
+        private final Predicate<? super T> isProgress;
+        private final Function<? super T, ?> subject;
+        private final Ring<T> mailbox;
+        private final Queue<T> overflow = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean cancelled;
+
+        private Subscription(final Consumer<? super T> listener,
+                final OverflowPolicy policy,
+                final Predicate<? super T> isProgress,
+                final Function<? super T, ?> subject) {
+            this.listener = Objects.requireNonNull(listener, "listener");
+            this.policy = Objects.requireNonNull(policy, "policy");
+            this.isProgress = Objects.requireNonNull(isProgress,
+                    "isProgress");
+            this.subject = Objects.requireNonNull(subject, "subject");
+            this.mailbox = new Ring<>(capacity);
+        }
+
+        /**
+         * Offer a notification for delivery. This never blocks.
+         *
+         * @param notification
+         *            the notification.
+         * @return {@code true} iff the notification will be delivered, unless
+         *         coalesced with a later one.
+         * @throws NullPointerException
+         *             if the notification is {@code null}.
+         */
+        public boolean offer(final T notification) {
+            Objects.requireNonNull(notification, "notification");
+            if (cancelled || closed || !accept(notification)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            offered.increment();
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(this);
+            }
+            return true;
+        }
+
+        private boolean accept(final T notification) {
+            // Once anything has overflowed, keep to the overflow queue until
+            // it has been drained, so that each thread's notifications stay
+            // in order. Progress can't wait there, so is dropped meanwhile.
+            if (overflow.isEmpty() && mailbox.offer(notification)) {
+                return true;
+            }
+            if (policy == OverflowPolicy.COALESCE &&
+                    !isProgress.test(notification)) {
+                overflow.add(notification);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Cancel this subscription. Notifications not yet delivered are
+         * discarded, and those offered later are dropped.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return the number of notifications dropped because the mailbox
+         *         was full, or this subscription was cancelled or its bus
+         *         closed. Coalesced notifications are not counted.
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        /**
+         * Get an observer that offers the notifications it observes to this
+         * subscription, for use with {@code Observable}s.
+         * <p>
+         * The phase timings of {@link HarvestNotification}s are taken before
+         * they are offered, as they are for notifications sent to listeners,
+         * since the listener reads them after the harvest has moved on.
+         * </p>
+         *
+         * @param type
+         *            the type of notification to offer. Observed arguments of
+         *            other types are ignored.
+         * @return the observer.
+         */
+        public Observer asObserver(final Class<T> type) {
+            Objects.requireNonNull(type, "type");
+            return (o, arg) -> {
+                if (type.isInstance(arg)) {
+                    if (arg instanceof HarvestNotification) {
+                        ((HarvestNotification)arg).getPhaseTimings();
+                    }
+                    offer(type.cast(arg));
+                }
+            };
+        }
+
+        /**
+         * Deliver waiting notifications, then reschedule if more have
+         * arrived. Called only by the dispatcher thread.
+         */
+        private void drain() {
+            final List<T> batch = new ArrayList<>();
+            T n;
+            while (batch.size() < capacity && (n = mailbox.poll()) != null) {
+                batch.add(n);
+            }
+            if (batch.size() < capacity && mailbox.isEmpty()) {
+                while (batch.size() < capacity &&
+                        (n = overflow.poll()) != null) {
+                    batch.add(n);
+                }
+            }
+            final List<T> deliveries = policy == OverflowPolicy.COALESCE ?
+                    coalesce(batch) : batch;
+            try {
+                for (final T notification : deliveries) {
+                    if (cancelled) {
+                        break;
+                    }
+                    try {
+                        listener.accept(notification);
+                    } catch (final Exception e) {
+                        LOGGER.error("Caught an exception while notifying " +
+                                "listener.", e);
+                    }
+                }
+            } finally {
+                completed.add(batch.size());
+                scheduled.set(false);
+                if (!(mailbox.isEmpty() && overflow.isEmpty()) &&
+                        scheduled.compareAndSet(false, true)) {
+                    ready.add(this);
+                }
+            }
+        }
+
+        /**
+         * Remove progress notifications superseded by a later one about the
+         * same subject, with no other notification about the subject between
+         * them.
+         */
+        private List<T> coalesce(final List<T> batch) {
+            final Set<Object> superseded = new HashSet<>();
+            final boolean[] keep = new boolean[batch.size()];
+            int kept = 0;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                final T n = batch.get(i);
+                final Object s = subject.apply(n);
+                if (!isProgress.test(n)) {
+                    superseded.remove(s);
+                } else if (!superseded.add(s)) {
+                    continue;
+                }
+                keep[i] = true;
+                kept++;
+            }
+            if (kept == batch.size()) {
+                return batch;
+            }
+            final List<T> coalesced = new ArrayList<>(kept);
+            for (int i = 0; i < keep.length; i++) {
+                if (keep[i]) {
+                    coalesced.add(batch.get(i));
+                }
+            }
+            return coalesced;
+        }
+    }
+
+
+    private final int capacity;
+    private final String name;
+    private final Queue<Subscription<?>> ready = new ConcurrentLinkedQueue<>();
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final Object startLock = new Object();
+    private volatile Thread dispatcher;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    /**
+     * Create a new instance whose mailboxes have the default capacity.
+     */
+    public NotificationBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity
+     *            the number of notifications each mailbox can hold. It is
+     *            rounded up to a power of two.
+     * @throws IllegalArgumentException
+     *             if the capacity is not positive.
+     */
+    public NotificationBus(final int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "capacity must be positive and at most 2^30.");
+        }
+        this.capacity = capacity;
+        this.name = "notification-bus-" + BUS_COUNT.incrementAndGet();
+    }
+
+    private static boolean isProgress(final HarvestNotification n) {
+        return n.getType() == HarvestNotificationType.RESPONSE_RECEIVED ||
+                n.getType() == HarvestNotificationType.RESPONSE_PROCESSED;
+    }
+
+    /**
+     * Subscribe a harvest listener.
+     * <p>
+     * Notifications sent when responses are received or processed are
+     * progress notifications, coalesced per harvest.
+     * </p>
+     *
+     * @param listener
+     *            the listener.
+     * @param policy
+     *            what to do with notifications offered while the listener's
+     *            mailbox is full.
+     * @return the new subscription.
+     */
+    public Subscription<HarvestNotification> subscribe(
+            final HarvestListener listener, final OverflowPolicy policy) {
+        Objects.requireNonNull(listener, "listener");
+        return subscribe(listener::onNotification, policy,
+                NotificationBus::isProgress,
+                HarvestNotification::getHarvestID);
+    }
+
+    /**
+     * Subscribe a listener to notifications of any type.
+     *
+     * @param listener
+     *            the listener.
+     * @param policy
+     *            what to do with notifications offered while the listener's
+     *            mailbox is full.
+     * @param isProgress
+     *            tests whether a notification only reports progress, and so
+     *            may be coalesced with a later one about the same subject.
+     * @param subject
+     *            the subject of a notification, compared by
+     *            {@code equals()}.
+     * @return the new subscription.
+     */
+    public <T> Subscription<T> subscribe(final Consumer<? super T> listener,
+            final OverflowPolicy policy,
+            final Predicate<? super T> isProgress,
+            final Function<? super T, ?> subject) {
+        return new Subscription<>(listener, policy, isProgress, subject);
+    }
+
+    /**
+     * Wait until every notification offered before this method was called
+     * has been delivered, coalesced, or discarded.
+     *
+     * @param timeout
+     *            the longest to wait.
+     * @return {@code true} iff the notifications were delivered before the
+     *         timeout.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     * @throws IllegalStateException
+     *             if called by a listener, on the dispatcher thread.
+     */
+    public boolean flush(final Duration timeout) throws InterruptedException {
+        if (Thread.currentThread() == dispatcher) {
+            throw new IllegalStateException(
+                    "Cannot flush from the dispatcher thread.");
+        }
+        final long target = offered.sum();
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        while (completed.sum() < target) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the dispatcher thread once the notifications already offered have
+     * been delivered. Notifications offered later are dropped. This does not
+     * wait for the dispatcher thread to stop.
+     *
+     * @see #flush(Duration)
+     */
+    @Override
+    public void close() {
+        closed = true;
+        final Thread t = dispatcher;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void schedule(final Subscription<?> subscription) {
+        ready.add(subscription);
+        final Thread t = dispatcher;
+        if (t == null) {
+            start();
+        } else if (waiting) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void start() {
+        synchronized (startLock) {
+            if (dispatcher == null) {
+                final Thread t = new Thread(this::dispatch, name);
+                t.setDaemon(true);
+                dispatcher = t;
+                t.start();
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Subscription<?> s = ready.poll();
+            if (s != null) {
+                s.drain();
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            waiting = true;
+            if (ready.isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterXMLParsingException;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+
+/**
+ * Push-style parser for a single OAI-PMH response that was not requested by a
+ * {@link Harvester}, such as one read from an NIO channel, another
+ * asynchronous client, or a replayed archive.
+ * <p>
+ * The response's bytes are fed in chunks, as they become available from
+ * whatever source, and the {@code feed} methods never block waiting for more.
+ * Each complete event is sent to the event handler before the call that
+ * completed it returns, so the handler sees the same events, in the same
+ * order, that it would during a harvest. Once all of the response has been
+ * fed, {@link #endOfInput()} finishes the parse, after which the response's
+ * resumption token, {@code responseDate}, and record count are available.
+ * </p>
+ * <p>
+ * Failures are reported as they are during a harvest. OAI protocol errors are
+ * thrown as an {@link OAIProtocolException} by {@link #endOfInput()}.
+ * Malformed XML is thrown as a {@link HarvesterXMLParsingException} by the
+ * call that found it. Either way, the instance is closed, and further calls
+ * throw {@link IllegalStateException}.
+ * </p>
+ * <p>
+ * The non-blocking parser used is Aalto's, which is an optional dependency of
+ * this library; creating an instance without it on the classpath throws
+ * {@link NoClassDefFoundError}.
+ * </p>
+ * <p>
+ * Instances are not thread safe, but may be fed from different threads so
+ * long as the calls do not overlap and each is visible to the next (as it is
+ * when the calls are handed off through an executor).
+ * </p>
+ */
+public final class OAIResponseFeeder implements AutoCloseable {
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(OAIResponseFeeder.class);
+
+    /** Feeders keep their own state, so they can share one parser. */
+    private static final OAIResponseParser PARSER = new OAIResponseParser(
+            OAIXMLUtils.newInputFactory(), LOGGER);
+
+    private final Harvest harvest = new Harvest();
+    private final OAIResponseParser.Feeder feeder;
+    private HarvestNotification result;
+
+
+    /**
+     * Create a new instance for one response.
+     *
+     * @param eventHandler
+     *            the event handler to which all {@code XMLEvents} will be sent.
+     */
+    public OAIResponseFeeder(final OAIEventHandler eventHandler) {
+        Objects.requireNonNull(eventHandler, "eventHandler");
+        harvest.start();
+        feeder = PARSER.newFeeder(harvest, eventHandler);
+    }
+
+    /**
+     * Feed part of the response.
+     *
+     * @param b
+     *            the array holding the bytes.
+     * @param off
+     *            the offset of the first byte to feed.
+     * @param len
+     *            the number of bytes to feed.
+     * @throws IllegalStateException
+     *             if this instance is closed.
+     */
+    public void feed(final byte[] b, final int off, final int len) {
+        feeder.feed(b, off, len);
+    }
+
+    /**
+     * Feed part of the response.
+     * <p>
+     * All remaining bytes in the buffer are consumed. The buffer is not
+     * retained, and may be reused once this method returns.
+     * </p>
+     *
+     * @param buffer
+     *            the bytes to feed.
+     * @throws IllegalStateException
+     *             if this instance is closed.
+     */
+    public void feed(final ByteBuffer buffer) {
+        feeder.feed(buffer);
+    }
+
+    /**
+     * Signal that the whole response has been fed, and finish parsing it.
+     *
+     * @throws IllegalStateException
+     *             if this instance is closed.
+     */
+    public void endOfInput() {
+        feeder.endOfInput();
+        result = harvest.createNotification(
+                HarvestNotificationType.RESPONSE_PROCESSED);
+    }
+
+    /**
+     * Stop parsing without finishing the response. This has no effect if
+     * {@link #endOfInput()} has already been called.
+     */
+    @Override
+    public void close() {
+        feeder.close();
+    }
+
+    private HarvestNotification result() {
+        if (result == null) {
+            throw new IllegalStateException(
+                    "The response has not been parsed.");
+        }
+        return result;
+    }
+
+    /**
+     * @return the response's resumption token. The token is empty if the
+     *         response is the last page of a list, or is not a list
+     *         response.
+     * @throws IllegalStateException
+     *             if {@link #endOfInput()} has not returned normally.
+     */
+    public ResumptionToken getResumptionToken() {
+        return result().getResumptionToken().get();
+    }
+
+    /**
+     * @return the response's {@code responseDate}, if it had a valid one.
+     * @throws IllegalStateException
+     *             if {@link #endOfInput()} has not returned normally.
+     */
+    public Optional<Instant> getResponseDate() {
+        return result().getLastReponseDate();
+    }
+
+    /**
+     * @return the number of records (or headers) in the response.
+     * @throws IllegalStateException
+     *             if {@link #endOfInput()} has not returned normally.
+     */
+    public long getRecordCount() {
+        return result().getStat(HarvestStatistic.RECORD_COUNT);
+    }
+}
@@ -1,5 +1,6 @@
 package org.unizin.cmp.oai.harvester;
 
+import static org.unizin.cmp.oai.OAI2Constants.DATESTAMP;
 import static org.unizin.cmp.oai.OAI2Constants.ERROR;
 import static org.unizin.cmp.oai.OAI2Constants.ERROR_CODE_ATTR;
 import static org.unizin.cmp.oai.OAI2Constants.RESPONSE_DATE;
@@ -9,27 +10,44 @@ import static org.unizin.cmp.oai.OAI2Constants.RT_CURSOR_ATTR;
 import static org.unizin.cmp.oai.OAI2Constants.RT_EXPIRATION_DATE_ATTR;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.XMLEventAllocator;
 
 import org.slf4j.Logger;
+import org.unizin.cmp.oai.OAIDateGranularity;
 import org.unizin.cmp.oai.OAIError;
 import org.unizin.cmp.oai.OAIXMLUtils;
 import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.harvester.exception.HarvesterException;
 import org.unizin.cmp.oai.harvester.exception.HarvesterXMLParsingException;
 import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.EventOAIStreamHandler;
 import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIStreamHandler;
+import org.unizin.cmp.oai.harvester.response.RawOAIStreamHandler;
+
+import com.fasterxml.aalto.AsyncByteBufferFeeder;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.evt.EventAllocatorImpl;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
 
 
 /**
@@ -37,11 +55,21 @@ import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
  * harvester.
  * <p>
  * Instances parse {@link ResumptionToken ResumptionTokens}, stopping the
- * harvest if no token or an empty token is found in the response. Exceptions
+ * harvest if no token or an empty token is found in an error-free response,
+ * and record the datestamp of each record in the harvest state. Exceptions
  * caused by XML parsing errors are wrapped in
  * {@link HarvesterXMLParsingException}.
  * </p>
  * <p>
+ * Responses can be parsed either by pulling events from a blocking stream, or
+ * by pushing the response's bytes to a {@link Feeder} as they arrive. Both
+ * send the same events to the event handler and update the harvest state in
+ * the same way. {@link OAIResponseFeeder} makes feeders available to callers
+ * parsing responses from other sources. Blocking parses can also send the response to an
+ * {@link OAIStreamHandler}, avoiding the creation of an {@code XMLEvent} for
+ * every token.
+ * </p>
+ * <p>
  * This class is responsible for counting the number of XML events received and
  * recording that information in the harvest state.
  * </p>
@@ -65,12 +93,39 @@ final class OAIResponseParser {
     private static final ResumptionToken DEFAULT_FINAL_TOKEN =
             new ResumptionToken("");
 
+    /** Attributes of the elements whose text we need. */
+    private static final List<QName> PENDING_ATTRIBUTES = Arrays.asList(
+            ERROR_CODE_ATTR, RT_COMPLETE_LIST_SIZE_ATTR, RT_CURSOR_ATTR,
+            RT_EXPIRATION_DATE_ATTR);
+
     private final XMLInputFactory inputFactory;
     private final Logger logger;
+    private final boolean handlerTiming;
 
     OAIResponseParser(final XMLInputFactory inputFactory, final Logger logger) {
+        this(inputFactory, logger, false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param inputFactory
+     *            the factory from which to create readers.
+     * @param logger
+     *            the logger to use.
+     * @param handlerTiming
+     *            whether to time each call to the response handler, and
+     *            report the time with {@link Harvest#handlerTimed(long)}.
+     */
+    OAIResponseParser(final XMLInputFactory inputFactory, final Logger logger,
+            final boolean handlerTiming) {
         this.inputFactory = inputFactory;
         this.logger = logger;
+        this.handlerTiming = handlerTiming;
+    }
+
+    boolean isHandlerTimed() {
+        return handlerTiming;
     }
 
     /**
@@ -112,190 +167,514 @@ final class OAIResponseParser {
             final OAIEventHandler eventHandler)
                     throws XMLStreamException {
         final XMLEventReader reader = inputFactory.createXMLEventReader(in);
-        final List<OAIError> errorList = new ArrayList<>();
-        /*
-         * Here, we need some gymnastics to ensure that protocol exceptions have
-         * "priority", i.e., that other exceptions encountered are suppressed in
-         * favor of protocol exceptions.
-         *
-         * If there were protocol errors, any exception thrown in the try block
-         * will be added to the protocol exception as a suppressed exception.
-         * Otherwise, the exception thrown from the try block, if any, will be
-         * thrown.
-         *
-         * This is basically the opposite of the priority handling used to
-         * suppress exceptions thrown in finally blocks in the harvester proper.
-         */
+        final ResponseState state = new ResponseState(harvest);
         RuntimeException tryException = null;
         try {
-            final ResumptionToken resumptionToken = nonNullToken(readEvents(
-                    reader, errorList, harvest, eventHandler));
-            logger.debug("Got resumption token {}", resumptionToken);
-            final String token = resumptionToken.getToken();
-            if ("".equals(token)) {
-                /*
-                 * Harvest is done. We never add this final token to the harvest
-                 * state.
-                 */
-                harvest.stop();
-            }
-            if (errorList.isEmpty()) {
-                /*
-                 * In the case of errors, the resumption token is probably our
-                 * own empty string token, or possibly some garbage from a
-                 * non-standard-compliant server. Either way, don't set it so
-                 * the client has the option to retry the request from the
-                 * parameters available from the harvester.
-                 */
-                harvest.setResumptionToken(resumptionToken);
+            while (reader.hasNext() && !harvest.isCancelled()) {
+                state.onEvent(reader.nextEvent(), eventHandler);
             }
+            state.endOfInput();
         } catch (final XMLStreamException e) {
             tryException = new HarvesterXMLParsingException(e);
         } catch (final RuntimeException e) {
             tryException = e;
         } finally {
-            if (!errorList.isEmpty()) {
-                final OAIProtocolException e = new OAIProtocolException(
-                        errorList);
-                if (tryException != null) {
-                    e.addSuppressed(tryException);
-                }
-                throw e;
-            } else if (tryException != null) {
-                throw tryException;
-            }
+            OAIXMLUtils.closeQuietly(reader);
         }
+        finish(state, tryException);
     }
 
-    private boolean hasNext(final XMLEventReader reader,
-            final Harvest harvest) {
-        return reader.hasNext() && !harvest.isCancelled();
-    }
-
-    private XMLEvent nextEvent(final XMLEventReader reader,
-            final OAIEventHandler eventHandler, final Harvest harvest)
+    /**
+     * Parse a response from an OAI repository, sending it to a stream handler,
+     * and update the harvest state appropriately.
+     * <p>
+     * Responses are read with an {@link XMLStreamReader}, and no
+     * {@code XMLEvent} is created unless the handler creates it. The exception
+     * is an {@link EventOAIStreamHandler}, whose wrapped event handler is sent
+     * the events from
+     * {@link #parse(InputStream, Harvest, OAIEventHandler)} instead.
+     * </p>
+     * <p>
+     * If the handler is a {@link RawOAIStreamHandler}, the response is read
+     * with Aalto's reader instead of this instance's input factory, so that
+     * the handler can be given the response's bytes.
+     * </p>
+     *
+     * @param in
+     *            stream of the response content.
+     * @param harvest
+     *            the current harvest state.
+     * @param streamHandler
+     *            the stream handler to which every event will be sent.
+     * @throws XMLStreamException
+     *             if there's an error creating a reader from this instance's
+     *             input factory.
+     */
+    void parse(final InputStream in, final Harvest harvest,
+            final OAIStreamHandler streamHandler)
                     throws XMLStreamException {
-        final XMLEvent event = reader.nextEvent();
-        harvest.xmlEventReceived();
-        logger.trace("Read event {}", event);
+        if (streamHandler instanceof EventOAIStreamHandler) {
+            parse(in, harvest,
+                    ((EventOAIStreamHandler)streamHandler).getEventHandler());
+            return;
+        }
+        final XMLStreamReader reader;
+        if (streamHandler instanceof RawOAIStreamHandler) {
+            final RawResponseReader raw = new RawResponseReader(in);
+            reader = raw.getReader();
+            try {
+                ((RawOAIStreamHandler)streamHandler).onResponseStart(raw);
+            } catch (final RuntimeException e) {
+                OAIXMLUtils.closeQuietly(reader);
+                throw e;
+            }
+        } else {
+            reader = inputFactory.createXMLStreamReader(in);
+        }
+        final ResponseState state = new ResponseState(harvest);
+        RuntimeException tryException = null;
         try {
-            eventHandler.onEvent(event);
+            // The reader starts positioned at the start of the document.
+            while (!harvest.isCancelled()) {
+                state.onEvent(reader, streamHandler);
+                if (!reader.hasNext()) {
+                    break;
+                }
+                reader.next();
+            }
+            state.endOfInput();
         } catch (final XMLStreamException e) {
-            /*
-             * Errors thrown during event handling are, by definition, not
-             * parse errors, and so need to be treated specially here.
-             */
-            throw new HarvesterException(e);
+            tryException = new HarvesterXMLParsingException(e);
+        } catch (final RuntimeException e) {
+            tryException = e;
+        } finally {
+            OAIXMLUtils.closeQuietly(reader);
         }
-        return event;
+        finish(state, tryException);
     }
 
     /**
-     * Read the text content of a node until non-text is seen.
+     * Create a push-style parser for a single response.
      * <p>
-     * This is used in preference to {@link XMLEventReader#getElementText()},
-     * because we want to pass all events from the input to the
-     * {@code OAIEventHandler}, and that method eats the text events.
+     * Unlike {@link #parse(InputStream, Harvest, OAIEventHandler)}, which
+     * blocks pulling events from a stream, the returned instance is fed the
+     * response's bytes in chunks, as they become available from whatever
+     * source, and never blocks waiting for more. It sends the same events to
+     * the handler and updates the harvest state in the same way.
      * </p>
      * <p>
-     * There is also no mixed content in any of the nodes we care about, so this
-     * doesn't handle such cases, instead simply stopping at the first non-text
-     * node.
+     * The non-blocking parser used is Aalto's, which is an optional
+     * dependency of this library; calling this method without it on the
+     * classpath throws {@link NoClassDefFoundError}.
      * </p>
      *
-     * @param reader
-     *            the event reader from which to read events.
-     * @param eventHandler
-     *            the handler to which any events read should be sent.
      * @param harvest
      *            the current harvest state.
-     * @return a string containing the character content of all text children of
-     *         the reader's current {@link StartElement}, up to and <em>not</em>
-     *         including the first non-text event.
-     * @throws XMLStreamException
+     * @param eventHandler
+     *            the event handler to which all {@code XMLEvents} will be sent.
+     * @return a new feeder for one response.
+     * @see OAIResponseFeeder
      */
-    private String readText(final XMLEventReader reader,
-            final OAIEventHandler eventHandler, final Harvest harvest)
-                    throws XMLStreamException {
-        final StringBuilder sb = new StringBuilder();
-        while (hasNext(reader, harvest) && reader.peek().isCharacters()) {
-            final XMLEvent event = nextEvent(reader, eventHandler, harvest);
-            sb.append(event.asCharacters().getData());
-        }
-        return sb.toString();
+    Feeder newFeeder(final Harvest harvest,
+            final OAIEventHandler eventHandler) {
+        return new Feeder(new ResponseState(harvest), eventHandler);
     }
 
-
-    private ResumptionToken readEvents(final XMLEventReader reader,
-            final List<OAIError> errorList, final Harvest harvest,
-            final OAIEventHandler eventHandler)
-                    throws XMLStreamException {
+    /**
+     * Update the harvest state once a response has been parsed.
+     * <p>
+     * Here, we need some gymnastics to ensure that protocol exceptions have
+     * "priority", i.e., that other exceptions encountered are suppressed in
+     * favor of protocol exceptions.
+     * </p>
+     * <p>
+     * If there were protocol errors, any exception thrown while parsing will
+     * be added to the protocol exception as a suppressed exception.
+     * Otherwise, the exception thrown while parsing, if any, will be thrown.
+     * </p>
+     * <p>
+     * This is basically the opposite of the priority handling used to
+     * suppress exceptions thrown in finally blocks in the harvester proper.
+     * </p>
+     *
+     * @param state
+     *            the state of the parsed response.
+     * @param parseException
+     *            the exception thrown while parsing, or {@code null} if there
+     *            was none.
+     */
+    private void finish(final ResponseState state,
+            final RuntimeException parseException) {
+        RuntimeException tryException = parseException;
         try {
-            ResumptionToken resumptionToken = null;
-            while (hasNext(reader, harvest)) {
-                final XMLEvent event = nextEvent(reader, eventHandler,
-                        harvest);
-                if (event.isStartElement()) {
-                    final StartElement startElement = event.asStartElement();
-                    if (isError(startElement)) {
-                        final String message = readText(reader, eventHandler,
-                                harvest);
-                        final String code = OAIXMLUtils.attributeValue(
-                                startElement, ERROR_CODE_ATTR);
-                        final OAIError error = new OAIError(code, message);
-                        errorList.add(error);
-                    } else if (isResumptionToken(startElement)) {
-                        final String token = readText(reader, eventHandler,
-                                harvest);
-                        final Long completeListSize = optionalAttributeValue(
-                                startElement, RT_COMPLETE_LIST_SIZE_ATTR,
-                                Long::parseLong);
-                        final Long cursor = optionalAttributeValue(startElement,
-                                RT_CURSOR_ATTR, Long::parseLong);
-                        final Instant expirationDate = optionalAttributeValue(
-                                startElement, RT_EXPIRATION_DATE_ATTR,
-                                Instant::parse);
-                        resumptionToken = new ResumptionToken(token,
-                                completeListSize, cursor, expirationDate);
-                    } else if (isResponseDate(startElement)) {
-                        final String date = readText(reader, eventHandler,
-                                harvest);
-                        try {
-                            final Instant responseDate = Instant.parse(date);
-                            harvest.setLastResponseDate(responseDate);
-                        } catch (final DateTimeParseException e) {
-                            logger.warn("Invalid responseDate.", e);
-                        }
+            if (tryException == null) {
+                final ResumptionToken resumptionToken = nonNullToken(
+                        state.resumptionToken);
+                logger.debug("Got resumption token {}", resumptionToken);
+                final String token = resumptionToken.getToken();
+                if (state.errorList.isEmpty()) {
+                    if ("".equals(token)) {
+                        /*
+                         * Harvest is done. We never add this final token to
+                         * the harvest state.
+                         */
+                        state.harvest.stop();
                     }
+                    /*
+                     * In the case of errors, the resumption token is probably
+                     * our own empty string token, or possibly some garbage from
+                     * a non-standard-compliant server. Either way, don't set it
+                     * so the client has the option to retry the request from
+                     * the parameters available from the harvester.
+                     */
+                    state.harvest.setResumptionToken(resumptionToken);
                 }
             }
-            return resumptionToken;
+        } catch (final RuntimeException e) {
+            tryException = e;
         } finally {
-            OAIXMLUtils.closeQuietly(reader);
+            if (!state.errorList.isEmpty()) {
+                final OAIProtocolException e = new OAIProtocolException(
+                        state.errorList);
+                if (tryException != null) {
+                    e.addSuppressed(tryException);
+                }
+                throw e;
+            } else if (tryException != null) {
+                throw tryException;
+            }
         }
     }
 
-    private static boolean isError(final StartElement se) {
-        return ERROR.equals(se.getName());
-    }
+    /**
+     * The state of a single response, built up one event at a time.
+     * <p>
+     * Since events may arrive either from a blocking reader or from a
+     * non-blocking parser that has run out of input partway through an
+     * element, this class never reads ahead. Instead, the text of an element
+     * of interest is collected from the character events that follow its
+     * start, and the element is handled at the first event that is not
+     * characters.
+     * </p>
+     */
+    private final class ResponseState {
+        private final Harvest harvest;
+        private final List<OAIError> errorList = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private final Map<QName, String> pendingAttributes = new HashMap<>();
+        private ResumptionToken resumptionToken;
+        private QName pending;
 
-    private static boolean isResumptionToken(final StartElement se) {
-        return RESUMPTION_TOKEN.equals(se.getName());
-    }
+        ResponseState(final Harvest harvest) {
+            this.harvest = harvest;
+        }
+
+        void onEvent(final XMLEvent event,
+                final OAIEventHandler eventHandler) {
+            harvest.xmlEventReceived();
+            logger.trace("Read event {}", event);
+            try {
+                if (handlerTiming) {
+                    final long start = System.nanoTime();
+                    eventHandler.onEvent(event);
+                    harvest.handlerTimed(System.nanoTime() - start);
+                } else {
+                    eventHandler.onEvent(event);
+                }
+            } catch (final XMLStreamException e) {
+                /*
+                 * Errors thrown during event handling are, by definition, not
+                 * parse errors, and so need to be treated specially here.
+                 */
+                throw new HarvesterException(e);
+            }
+            if (pending != null) {
+                if (event.isCharacters()) {
+                    text.append(event.asCharacters().getData());
+                    return;
+                }
+                endPending();
+            }
+            if (event.isStartElement()) {
+                final StartElement startElement = event.asStartElement();
+                final QName name = startElement.getName();
+                if (isPending(name)) {
+                    startPending(name, attr -> OAIXMLUtils.attributeValue(
+                            startElement, attr));
+                }
+            }
+        }
+
+        void onEvent(final XMLStreamReader reader,
+                final OAIStreamHandler streamHandler) {
+            harvest.xmlEventReceived();
+            try {
+                if (handlerTiming) {
+                    final long start = System.nanoTime();
+                    streamHandler.onEvent(reader);
+                    harvest.handlerTimed(System.nanoTime() - start);
+                } else {
+                    streamHandler.onEvent(reader);
+                }
+            } catch (final XMLStreamException e) {
+                // As above, these are not parse errors.
+                throw new HarvesterException(e);
+            }
+            final int type = reader.getEventType();
+            if (pending != null) {
+                if (type == XMLStreamConstants.CHARACTERS ||
+                        type == XMLStreamConstants.CDATA ||
+                        type == XMLStreamConstants.SPACE) {
+                    text.append(reader.getTextCharacters(),
+                            reader.getTextStart(), reader.getTextLength());
+                    return;
+                }
+                endPending();
+            }
+            if (type == XMLStreamConstants.START_ELEMENT) {
+                final QName name = pendingName(reader);
+                if (name != null) {
+                    startPending(name, attr -> OAIXMLUtils.attributeValue(
+                            reader, attr));
+                }
+            }
+        }
+
+        void endOfInput() {
+            if (pending != null) {
+                endPending();
+            }
+        }
+
+        private void startPending(final QName name,
+                final Function<QName, String> attributes) {
+            pending = name;
+            text.setLength(0);
+            pendingAttributes.clear();
+            for (final QName attr : PENDING_ATTRIBUTES) {
+                final String value = attributes.apply(attr);
+                if (value != null) {
+                    pendingAttributes.put(attr, value);
+                }
+            }
+        }
 
-    private static boolean isResponseDate(final StartElement se) {
-        return RESPONSE_DATE.equals(se.getName());
+        private void endPending() {
+            final QName name = pending;
+            final String value = text.toString();
+            pending = null;
+            if (ERROR.equals(name)) {
+                final String code = pendingAttributes.get(ERROR_CODE_ATTR);
+                errorList.add(new OAIError(code, value));
+            } else if (RESUMPTION_TOKEN.equals(name)) {
+                final Long completeListSize = optionalAttributeValue(
+                        RT_COMPLETE_LIST_SIZE_ATTR, Long::parseLong);
+                final Long cursor = optionalAttributeValue(RT_CURSOR_ATTR,
+                        Long::parseLong);
+                final Instant expirationDate = optionalAttributeValue(
+                        RT_EXPIRATION_DATE_ATTR, Instant::parse);
+                resumptionToken = new ResumptionToken(value,
+                        completeListSize, cursor, expirationDate);
+            } else if (DATESTAMP.equals(name)) {
+                final String datestamp = value.trim();
+                harvest.recordSeen();
+                final OAIDateGranularity granularity = OAIDateGranularity.of(
+                        datestamp);
+                try {
+                    harvest.datestampSeen(granularity,
+                            granularity.parseInstant(datestamp));
+                } catch (final DateTimeParseException e) {
+                    logger.debug("Ignoring invalid datestamp {}.", datestamp);
+                }
+            } else {
+                try {
+                    harvest.setLastResponseDate(Instant.parse(value));
+                } catch (final DateTimeParseException e) {
+                    logger.warn("Invalid responseDate.", e);
+                }
+            }
+        }
+
+        private <T> T optionalAttributeValue(final QName name,
+                final Function<String, T> fun) {
+            final String value = pendingAttributes.get(name);
+            if (value != null) {
+                try {
+                    return fun.apply(value);
+                } catch (final RuntimeException e) {
+                    logger.warn("Exception parsing attribute " + name, e);
+                }
+            }
+            return null;
+        }
     }
 
-    private <T> T optionalAttributeValue(final StartElement se,
-            final QName name, final Function<String, T> fun) {
-        final String value = OAIXMLUtils.attributeValue(se, name);
-        if (value != null) {
+    /**
+     * Push-style parser for a single response, created by
+     * {@link OAIResponseParser#newFeeder(Harvest, OAIEventHandler)}.
+     * <p>
+     * Each call to one of the {@code feed} methods parses as much of the
+     * response as the bytes given so far allow, sending each complete event
+     * to the event handler before returning. Once all of the response has
+     * been fed, {@link #endOfInput()} must be called to finish the parse and
+     * update the harvest state.
+     * </p>
+     * <p>
+     * If parsing or event handling fails, the failing call throws the same
+     * exception that a blocking parse would have (including any OAI protocol
+     * errors seen so far), and the instance is closed. Calls after the end of
+     * the document is reached, or after the harvest is cancelled, are
+     * ignored.
+     * </p>
+     * <p>
+     * Instances are not thread safe, but may be fed from different threads
+     * so long as the calls do not overlap.
+     * </p>
+     */
+    final class Feeder implements AutoCloseable {
+        private final ResponseState state;
+        private final OAIEventHandler eventHandler;
+        private final AsyncXMLStreamReader<AsyncByteBufferFeeder> reader;
+        private final XMLEventAllocator allocator;
+        private boolean done;
+        private boolean finished;
+
+        private Feeder(final ResponseState state,
+                final OAIEventHandler eventHandler) {
+            this.state = state;
+            this.eventHandler = eventHandler;
+            final AsyncXMLInputFactory factory = new InputFactoryImpl();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            this.reader = factory.createAsyncForByteBuffer();
+            this.allocator = EventAllocatorImpl.getDefaultInstance();
+        }
+
+        /**
+         * Feed part of the response.
+         *
+         * @param b
+         *            the array holding the bytes.
+         * @param off
+         *            the offset of the first byte to feed.
+         * @param len
+         *            the number of bytes to feed.
+         */
+        void feed(final byte[] b, final int off, final int len) {
+            feed(ByteBuffer.wrap(b, off, len));
+        }
+
+        /**
+         * Feed part of the response.
+         * <p>
+         * All remaining bytes in the buffer are consumed. The buffer is not
+         * retained, and may be reused once this method returns.
+         * </p>
+         *
+         * @param buffer
+         *            the bytes to feed.
+         */
+        void feed(final ByteBuffer buffer) {
+            checkNotFinished();
+            if (done || !buffer.hasRemaining()) {
+                buffer.position(buffer.limit());
+                return;
+            }
             try {
-                return fun.apply(value);
+                reader.getInputFeeder().feedInput(buffer);
+                drain();
+            } catch (final XMLStreamException e) {
+                fail(new HarvesterXMLParsingException(e));
+            } catch (final RuntimeException e) {
+                fail(e);
+            }
+            buffer.position(buffer.limit());
+        }
+
+        /**
+         * Signal that the whole response has been fed, finish parsing it, and
+         * update the harvest state.
+         */
+        void endOfInput() {
+            checkNotFinished();
+            RuntimeException tryException = null;
+            try {
+                if (!done) {
+                    reader.getInputFeeder().endOfInput();
+                    drain();
+                }
+                state.endOfInput();
+            } catch (final XMLStreamException e) {
+                tryException = new HarvesterXMLParsingException(e);
             } catch (final RuntimeException e) {
-                logger.warn("Exception parsing attribute " + name, e);
+                tryException = e;
+            } finally {
+                close();
             }
+            finish(state, tryException);
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                finished = true;
+                try {
+                    reader.close();
+                } catch (final XMLStreamException e) {
+                    logger.warn("Ignored exception closing reader.", e);
+                }
+            }
+        }
+
+        private void drain() throws XMLStreamException {
+            while (!done) {
+                if (state.harvest.isCancelled()) {
+                    done = true;
+                    return;
+                }
+                final int type = reader.next();
+                if (type == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+                    return;
+                }
+                state.onEvent(allocator.allocate(reader), eventHandler);
+                done = type == XMLStreamConstants.END_DOCUMENT;
+            }
+        }
+
+        private void fail(final RuntimeException e) {
+            close();
+            finish(state, e);
+        }
+
+        private void checkNotFinished() {
+            if (finished) {
+                throw new IllegalStateException("Feeder is closed.");
+            }
+        }
+    }
+
+    /** Is this the name of an element whose text we need? */
+    private static boolean isPending(final QName name) {
+        return ERROR.equals(name) || RESUMPTION_TOKEN.equals(name) ||
+                RESPONSE_DATE.equals(name) || DATESTAMP.equals(name);
+    }
+
+    /**
+     * Get the name of the element at which a reader is positioned, if it is
+     * one whose text we need, without creating a {@code QName} for every
+     * element.
+     */
+    private static QName pendingName(final XMLStreamReader reader) {
+        if (OAIXMLUtils.hasName(reader, ERROR)) {
+            return ERROR;
+        } else if (OAIXMLUtils.hasName(reader, RESUMPTION_TOKEN)) {
+            return RESUMPTION_TOKEN;
+        } else if (OAIXMLUtils.hasName(reader, RESPONSE_DATE)) {
+            return RESPONSE_DATE;
+        } else if (OAIXMLUtils.hasName(reader, DATESTAMP)) {
+            return DATESTAMP;
         }
         return null;
     }
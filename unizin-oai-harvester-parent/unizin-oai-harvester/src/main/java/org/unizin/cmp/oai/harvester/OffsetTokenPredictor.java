@@ -0,0 +1,183 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.unizin.cmp.oai.ResumptionToken;
+
+/**
+ * Predicts resumption tokens that encode an offset into the list.
+ * <p>
+ * Many repositories (e.g., OJS and some versions of DSpace) issue tokens such
+ * as {@code oai_dc/2016-01-01//100}, in which exactly one number grows by the
+ * page size from one token to the next and everything else stays the same.
+ * Instances look for that pattern in the most recent tokens and, if every one
+ * of them fits it, predict later tokens by extending the sequence. Zero-padded
+ * numbers keep their width.
+ * </p>
+ * <p>
+ * If the tokens carry {@code cursor} and {@code completeListSize}, no token is
+ * predicted for pages past the end of the list.
+ * </p>
+ * <p>
+ * Instances are immutable and thread safe.
+ * </p>
+ */
+public final class OffsetTokenPredictor implements TokenPredictor {
+    /** Default number of tokens that must fit the pattern. */
+    public static final int DEFAULT_SAMPLE_SIZE = 3;
+
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+    /** Longer numbers could overflow a {@code long}. */
+    private static final int MAX_DIGITS = 18;
+
+    private final int sampleSize;
+
+    /**
+     * Create a new instance that learns from the last
+     * {@value #DEFAULT_SAMPLE_SIZE} tokens.
+     */
+    public OffsetTokenPredictor() {
+        this(DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param sampleSize
+     *            the number of most recent tokens that must fit the pattern
+     *            before any prediction is made.
+     * @throws IllegalArgumentException
+     *             if {@code sampleSize} is less than 2.
+     */
+    public OffsetTokenPredictor(final int sampleSize) {
+        if (sampleSize < 2) {
+            throw new IllegalArgumentException(
+                    "sampleSize must be at least 2.");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /** A token split into the text between numbers and the numbers. */
+    private static final class Split {
+        final List<String> text = new ArrayList<>();
+        final List<String> numbers = new ArrayList<>();
+
+        Split(final String token) {
+            final Matcher m = DIGITS.matcher(token);
+            int end = 0;
+            while (m.find()) {
+                text.add(token.substring(end, m.start()));
+                numbers.add(m.group());
+                end = m.end();
+            }
+            text.add(token.substring(end));
+        }
+    }
+
+    private static String format(final long value, final String like) {
+        final String s = Long.toString(value);
+        if (like.length() > 1 && like.charAt(0) == '0' &&
+                s.length() < like.length()) {
+            final StringBuilder sb = new StringBuilder(like.length());
+            for (int i = s.length(); i < like.length(); i++) {
+                sb.append('0');
+            }
+            return sb.append(s).toString();
+        }
+        return s;
+    }
+
+    /**
+     * Check that the list won't have ended before the page carrying the
+     * predicted token.
+     */
+    private static boolean withinList(final List<ResumptionToken> sample,
+            final int pagesAhead) {
+        final ResumptionToken last = sample.get(sample.size() - 1);
+        final ResumptionToken previous = sample.get(sample.size() - 2);
+        if (!last.getCursor().isPresent() ||
+                !previous.getCursor().isPresent() ||
+                !last.getCompleteListSize().isPresent()) {
+            return true;
+        }
+        final long pageSize = last.getCursor().get() -
+                previous.getCursor().get();
+        if (pageSize <= 0) {
+            return true;
+        }
+        /*
+         * The page carrying the predicted token starts pagesAhead pages after
+         * the last token's page. The token exists only if yet another page
+         * follows that one.
+         */
+        return last.getCursor().get() + pageSize * (pagesAhead + 1) <
+                last.getCompleteListSize().get();
+    }
+
+    @Override
+    public Optional<String> predict(final List<ResumptionToken> chain,
+            final int pagesAhead) {
+        if (chain.size() < sampleSize || pagesAhead < 1) {
+            return Optional.empty();
+        }
+        final List<ResumptionToken> sample = chain.subList(
+                chain.size() - sampleSize, chain.size());
+        final List<Split> splits = new ArrayList<>(sampleSize);
+        for (final ResumptionToken token : sample) {
+            splits.add(new Split(token.getToken()));
+        }
+        final Split first = splits.get(0);
+        for (final Split split : splits) {
+            if (!split.text.equals(first.text)) {
+                return Optional.empty();
+            }
+        }
+        // Find the one number that changes.
+        int changing = -1;
+        for (int i = 0; i < first.numbers.size(); i++) {
+            for (final Split split : splits) {
+                if (!split.numbers.get(i).equals(first.numbers.get(i))) {
+                    if (changing >= 0 && changing != i) {
+                        return Optional.empty();
+                    }
+                    changing = i;
+                }
+            }
+        }
+        if (changing < 0) {
+            return Optional.empty();
+        }
+        final long[] values = new long[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            final String n = splits.get(i).numbers.get(changing);
+            if (n.length() > MAX_DIGITS) {
+                return Optional.empty();
+            }
+            values[i] = Long.parseLong(n);
+        }
+        final long step = values[1] - values[0];
+        for (int i = 2; i < sampleSize; i++) {
+            if (values[i] - values[i - 1] != step) {
+                return Optional.empty();
+            }
+        }
+        if (step <= 0 || !withinList(sample, pagesAhead)) {
+            return Optional.empty();
+        }
+        final Split last = splits.get(sampleSize - 1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < last.numbers.size(); i++) {
+            sb.append(last.text.get(i));
+            sb.append(i == changing ?
+                    format(values[sampleSize - 1] + step * pagesAhead,
+                            last.numbers.get(i)) :
+                        last.numbers.get(i));
+        }
+        sb.append(last.text.get(last.numbers.size()));
+        return Optional.of(sb.toString());
+    }
+}
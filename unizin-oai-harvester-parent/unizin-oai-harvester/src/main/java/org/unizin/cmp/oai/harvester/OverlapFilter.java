@@ -0,0 +1,132 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.unizin.cmp.oai.OAIDateGranularity;
+
+/**
+ * Filter that drops records delivered again after a harvest falls back from a
+ * rejected resumption token.
+ * <p>
+ * When a harvester built with
+ * {@link Harvester.Builder#withTokenExpiryFallback(Duration)} falls back, it
+ * restarts the list from its datestamp high-water mark, less an overlap, and
+ * so sends records already harvested to the response handler again. Handlers
+ * that should see each record only once can pass the identifier and datestamp
+ * of each record they receive to {@link #accept(String, String)}, created
+ * with the same overlap, and drop those it rejects.
+ * </p>
+ * <p>
+ * Instances remember every record whose datestamp is within the overlap of
+ * the latest datestamp seen, truncated to that datestamp's granularity, which
+ * is exactly the range a fallback repeats. A record is rejected only if it
+ * has the same identifier and datestamp as one remembered; a record that has
+ * changed since it was first harvested is accepted again. Memory use is
+ * proportional to the number of records in the overlap.
+ * </p>
+ * <p>
+ * Instances are safe for use in multiple threads.
+ * </p>
+ */
+public final class OverlapFilter {
+    private final Duration overlap;
+    private final Map<String, Instant> datestamps = new HashMap<>();
+    private final SortedMap<Instant, Set<String>> identifiers =
+            new TreeMap<>();
+    private Instant highWaterMark;
+
+
+    /**
+     * Create a new instance.
+     *
+     * @param overlap
+     *            the overlap given to the harvester's fallback.
+     * @throws IllegalArgumentException
+     *             if the overlap is negative.
+     */
+    public OverlapFilter(final Duration overlap) {
+        Objects.requireNonNull(overlap, "overlap");
+        if (overlap.isNegative()) {
+            throw new IllegalArgumentException(
+                    "Overlap must be nonnegative.");
+        }
+        this.overlap = overlap;
+    }
+
+    /**
+     * Record that a record has been received, and decide whether it is new.
+     *
+     * @param identifier
+     *            the record's identifier.
+     * @param datestamp
+     *            the record's datestamp.
+     * @return {@code false} iff the same version of the record has already
+     *         been accepted. Records without an identifier or with an
+     *         unparseable datestamp are always accepted.
+     */
+    public synchronized boolean accept(final String identifier,
+            final String datestamp) {
+        if (identifier == null || datestamp == null) {
+            return true;
+        }
+        final OAIDateGranularity granularity = OAIDateGranularity.of(
+                datestamp);
+        final Instant instant;
+        try {
+            instant = granularity.parseInstant(datestamp);
+        } catch (final DateTimeParseException e) {
+            return true;
+        }
+        final Instant previous = datestamps.put(identifier, instant);
+        if (instant.equals(previous)) {
+            return false;
+        }
+        if (previous != null) {
+            forget(identifier, previous);
+        }
+        identifiers.computeIfAbsent(instant, k -> new HashSet<>())
+            .add(identifier);
+        if (highWaterMark == null || instant.isAfter(highWaterMark)) {
+            highWaterMark = instant;
+            prune(granularity.truncate(highWaterMark.minus(overlap)));
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records remembered.
+     */
+    public synchronized int size() {
+        return datestamps.size();
+    }
+
+    private void forget(final String identifier, final Instant datestamp) {
+        final Set<String> ids = identifiers.get(datestamp);
+        if (ids != null) {
+            ids.remove(identifier);
+            if (ids.isEmpty()) {
+                identifiers.remove(datestamp);
+            }
+        }
+    }
+
+    /** Forget every record with a datestamp before a cutoff. */
+    private void prune(final Instant cutoff) {
+        final Iterator<Set<String>> it = identifiers.headMap(cutoff).values()
+                .iterator();
+        while (it.hasNext()) {
+            it.next().forEach(datestamps::remove);
+            it.remove();
+        }
+    }
+}
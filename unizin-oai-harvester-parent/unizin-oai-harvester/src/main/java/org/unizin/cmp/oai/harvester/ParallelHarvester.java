@@ -0,0 +1,572 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observer;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.xml.stream.events.XMLEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIError;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+
+/**
+ * Runs a single list harvest as several concurrent harvests over disjoint
+ * datestamp windows.
+ * <p>
+ * The harvest's {@code from} and {@code until} bounds are divided into a
+ * configurable number of equal windows, each of which is harvested by its own
+ * {@link Harvester}. Before a window is harvested, its size is probed with a
+ * single {@code ListIdentifiers} request. If the {@code completeListSize}
+ * reported in that response exceeds the target partition size, the window is
+ * bisected, and each half is probed in turn, until every window is reasonably
+ * sized or cannot be divided further at the configured
+ * {@link OAIDateGranularity granularity}. Repositories that don't report
+ * {@code completeListSize} are not bisected.
+ * </p>
+ * <p>
+ * Windows meet at whole units of the configured granularity, but the first
+ * and last windows keep the harvest's own bounds, so a harvest whose bounds
+ * are more precise than the configured granularity is neither widened nor
+ * narrowed.
+ * </p>
+ * <p>
+ * A window whose harvest fails is retried on its own, resuming from its last
+ * resumption token, up to a configurable number of attempts. Failures of other
+ * windows do not affect it.
+ * </p>
+ * <p>
+ * Windows containing no records ({@code noRecordsMatch}) are not considered
+ * failures.
+ * </p>
+ * <h2>Use in Multiple Threads</h2>
+ * <p>
+ * {@link #harvest(HarvestParams, Function)} blocks until all windows are
+ * finished, while the windows themselves are harvested by the configured
+ * executor. Because of this, the calling thread should not be one of the
+ * executor's threads unless the executor can always start new threads.
+ * {@link #stop()} and {@link #cancel()} may be called from any thread.
+ * </p>
+ */
+public final class ParallelHarvester {
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ParallelHarvester.class);
+
+    /** Tag added to each window's harvest giving the window's lower bound. */
+    public static final String WINDOW_FROM_TAG = "windowFrom";
+
+    /** Tag added to each window's harvest giving the window's upper bound. */
+    public static final String WINDOW_UNTIL_TAG = "windowUntil";
+
+    public static final int DEFAULT_PARTITIONS = 4;
+    public static final long DEFAULT_TARGET_PARTITION_SIZE = 50_000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** Handler used for probe requests, which discards all events. */
+    private static final OAIResponseHandler DISCARDING_HANDLER =
+            new AbstractOAIResponseHandler() {
+        private final OAIEventHandler eventHandler = new OAIEventHandler() {
+            @Override
+            public void onEvent(final XMLEvent e) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        @Override
+        public OAIEventHandler getEventHandler(
+                final HarvestNotification notification) {
+            return eventHandler;
+        }
+    };
+
+
+    /**
+     * Builder for {@code ParallelHarvester} instances.
+     */
+    public static final class Builder {
+        private final Supplier<Harvester> harvesterFactory;
+        private final ExecutorService executor;
+        private int partitions = DEFAULT_PARTITIONS;
+        private long targetPartitionSize = DEFAULT_TARGET_PARTITION_SIZE;
+        private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private OAIDateGranularity granularity = OAIDateGranularity.DAY;
+        private List<Observer> observers = Collections.emptyList();
+
+        /**
+         * Create a new builder.
+         *
+         * @param harvesterFactory
+         *            supplier of harvesters, one of which is used for each
+         *            window, and for each request probing a window's size.
+         *            So that probes aren't reported as harvests, these
+         *            harvesters (and, for sessions, their parents) should
+         *            have no observers or listeners. Typically this is
+         *            {@code unobserved::newSession} for a harvester with
+         *            none, so that window harvests share its clients and
+         *            parser, and the windows' observers are given to
+         *            {@link #withHarvestObservers(Collection)}.
+         * @param executor
+         *            the executor service that will run window harvests.
+         */
+        public Builder(final Supplier<Harvester> harvesterFactory,
+                final ExecutorService executor) {
+            this.harvesterFactory = harvesterFactory;
+            this.executor = executor;
+        }
+
+        /**
+         * Set the number of windows into which the date range is initially
+         * divided.
+         *
+         * @param partitions
+         *            the initial number of windows.
+         * @return this builder.
+         */
+        public Builder withPartitions(final int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * Set the largest number of records a window should contain before it
+         * is bisected.
+         *
+         * @param targetPartitionSize
+         *            the target window size, in records.
+         * @return this builder.
+         */
+        public Builder withTargetPartitionSize(final long targetPartitionSize) {
+            this.targetPartitionSize = targetPartitionSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of times a single window will be attempted.
+         *
+         * @param maxAttempts
+         *            the maximum number of attempts per window.
+         * @return this builder.
+         */
+        public Builder withMaxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Set the granularity used to format window bounds.
+         * <p>
+         * Windows never divide a unit of this granularity. If this
+         * method is not called, {@link OAIDateGranularity#DAY} is used, which
+         * all compliant repositories support.
+         * </p>
+         *
+         * @param granularity
+         *            the granularity to use.
+         * @return this builder.
+         */
+        public Builder withGranularity(final OAIDateGranularity granularity) {
+            this.granularity = granularity;
+            return this;
+        }
+
+        /**
+         * Set observers to add to each window's harvester. They are not added
+         * to the harvesters that probe windows' sizes.
+         *
+         * @param observers
+         *            the observers.
+         * @return this builder.
+         */
+        public Builder withHarvestObservers(
+                final Collection<Observer> observers) {
+            this.observers = new ArrayList<>(observers);
+            return this;
+        }
+
+        public ParallelHarvester build() {
+            return new ParallelHarvester(this);
+        }
+    }
+
+
+    /**
+     * A range of datestamps, from an inclusive lower bound to an exclusive
+     * upper bound.
+     * <p>
+     * Bounds inside the harvest's range fall on whole units of the configured
+     * granularity. The outermost bounds are the caller's own, which may be
+     * more precise. A window with such a bound is formatted in the more
+     * precise granularity, since a request's bounds must share one.
+     * </p>
+     */
+    private final class Window {
+        private final Instant from;
+        private final Instant end;
+        private final OAIDateGranularity precise;
+
+        Window(final Instant from, final Instant end,
+                final OAIDateGranularity precise) {
+            this.from = from;
+            this.end = end;
+            this.precise = precise;
+        }
+
+        /** @return the number of configured units the window touches. */
+        long units() {
+            return unit.between(from.truncatedTo(unit),
+                    end.minusNanos(1).truncatedTo(unit)) + 1;
+        }
+
+        List<Window> split(final int n) {
+            final long units = units();
+            final int count = (int)Math.min(n, units);
+            final Instant first = from.truncatedTo(unit);
+            final List<Window> windows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final Instant start = i == 0 ? from :
+                    first.plus(i * units / count, unit);
+                final Instant stop = i == count - 1 ? end :
+                    first.plus((i + 1) * units / count, unit);
+                windows.add(new Window(start, stop, precise));
+            }
+            return windows;
+        }
+
+        private OAIDateGranularity format() {
+            return from.truncatedTo(unit).equals(from) &&
+                    end.truncatedTo(unit).equals(end) ? granularity : precise;
+        }
+
+        String fromBound() {
+            return format().format(from);
+        }
+
+        String untilBound() {
+            final OAIDateGranularity format = format();
+            return format.format(end.minus(1, format.getUnit()));
+        }
+
+        HarvestParams apply(final HarvestParams params) {
+            return apply(params.toBuilder());
+        }
+
+        HarvestParams apply(final HarvestParams.Builder builder) {
+            return builder.withFrom(fromBound())
+                    .withUntil(untilBound())
+                    .build();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s, %s]", fromBound(), untilBound());
+        }
+    }
+
+
+    private final Supplier<Harvester> harvesterFactory;
+    private final ExecutorService executor;
+    private final int partitions;
+    private final long targetPartitionSize;
+    private final int maxAttempts;
+    private final OAIDateGranularity granularity;
+    private final ChronoUnit unit;
+    private final List<Observer> observers;
+    private final Set<Harvester> running = new HashSet<>();
+    private volatile boolean stopped;
+    private volatile boolean cancelled;
+
+
+    private ParallelHarvester(final Builder builder) {
+        Objects.requireNonNull(builder.harvesterFactory, "harvesterFactory");
+        Objects.requireNonNull(builder.executor, "executor");
+        Objects.requireNonNull(builder.granularity, "granularity");
+        if (builder.partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive.");
+        }
+        if (builder.maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "maxAttempts must be positive.");
+        }
+        this.harvesterFactory = builder.harvesterFactory;
+        this.executor = builder.executor;
+        this.partitions = builder.partitions;
+        this.targetPartitionSize = builder.targetPartitionSize;
+        this.maxAttempts = builder.maxAttempts;
+        this.granularity = builder.granularity;
+        this.unit = granularity.getUnit();
+        this.observers = builder.observers;
+    }
+
+    private static Instant parseBound(final String datestamp) {
+        return OAIDateGranularity.of(datestamp).parseInstant(datestamp);
+    }
+
+    /**
+     * @return the instant just after the last one covered by an inclusive
+     *         upper bound, which covers all of its own granularity's unit.
+     */
+    private static Instant parseEnd(final String datestamp) {
+        return parseBound(datestamp).plus(1,
+                OAIDateGranularity.of(datestamp).getUnit());
+    }
+
+    private static OAIDateGranularity finer(final OAIDateGranularity x,
+            final OAIDateGranularity y) {
+        return x.getUnit().compareTo(y.getUnit()) <= 0 ? x : y;
+    }
+
+    private static boolean isNoRecordsMatch(final Exception e) {
+        if (e instanceof OAIProtocolException) {
+            final List<OAIError> errors =
+                    ((OAIProtocolException)e).getOAIErrors();
+            return !errors.isEmpty() && errors.stream().allMatch(x ->
+                x.getErrorCode().equals(
+                        Optional.of(OAIErrorCode.NO_RECORDS_MATCH)));
+        }
+        return false;
+    }
+
+    /**
+     * Run a harvest over disjoint datestamp windows, blocking until all windows
+     * are finished.
+     *
+     * @param params
+     *            the parameters of the harvest to divide. The verb must be
+     *            {@code ListRecords} or {@code ListIdentifiers}, and a
+     *            {@code from} parameter must be present. If there's no
+     *            {@code until} parameter, the current time is used. Each
+     *            bound covers all of its own granularity's unit, so an
+     *            {@code until} given as a day includes that whole day.
+     * @param handlerFactory
+     *            function returning the response handler to use for a window.
+     *            It is called with the parameters of each attempt at each
+     *            window, and so may be called concurrently.
+     *
+     * @throws HarvesterException
+     *             if any window still failed after the maximum number of
+     *             attempts. The exceptions from each failed window are attached
+     *             as suppressed exceptions.
+     * @throws IllegalArgumentException
+     *             if the parameters have the wrong verb or lack a {@code from}
+     *             parameter.
+     */
+    public void harvest(final HarvestParams params,
+            final Function<HarvestParams, OAIResponseHandler> handlerFactory) {
+        Objects.requireNonNull(params, "params");
+        Objects.requireNonNull(handlerFactory, "handlerFactory");
+        if (params.getVerb() != OAIVerb.LIST_RECORDS &&
+                params.getVerb() != OAIVerb.LIST_IDENTIFIERS) {
+            throw new IllegalArgumentException(
+                    "Only ListRecords and ListIdentifiers can be partitioned.");
+        }
+        final String from = params.get(OAIRequestParameter.FROM);
+        if (from == null) {
+            throw new IllegalArgumentException(
+                    "A from parameter is required to partition a harvest.");
+        }
+        final String until = params.get(OAIRequestParameter.UNTIL);
+        final Instant start = parseBound(from);
+        final Instant end = until == null ?
+                Instant.now().truncatedTo(unit).plus(1, unit) :
+                parseEnd(until);
+        if (!end.isAfter(start)) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid range: from %s until %s.", from, until));
+        }
+        OAIDateGranularity precise = finer(granularity,
+                OAIDateGranularity.of(from));
+        if (until != null) {
+            precise = finer(precise, OAIDateGranularity.of(until));
+        }
+        stopped = false;
+        cancelled = false;
+        final List<Exception> failures = Collections.synchronizedList(
+                new ArrayList<>());
+        final Phaser phaser = new Phaser(1);
+        new Window(start, end, precise).split(partitions).forEach(w ->
+            submit(w, params, handlerFactory, phaser, failures));
+        phaser.arriveAndAwaitAdvance();
+        if (!failures.isEmpty()) {
+            final HarvesterException e = new HarvesterException(String.format(
+                    "%d window(s) of harvest %s failed.", failures.size(),
+                    params));
+            failures.forEach(e::addSuppressed);
+            throw e;
+        }
+    }
+
+    /**
+     * Stop all running windows after their current responses are processed,
+     * and start no new windows.
+     */
+    public void stop() {
+        stopped = true;
+        forEachRunning(Harvester::stop);
+    }
+
+    /**
+     * Cancel all running windows, and start no new windows.
+     */
+    public void cancel() {
+        stopped = true;
+        cancelled = true;
+        forEachRunning(Harvester::cancel);
+    }
+
+    private void forEachRunning(
+            final Consumer<Harvester> action) {
+        synchronized (running) {
+            running.forEach(action);
+        }
+    }
+
+    private void submit(final Window window, final HarvestParams params,
+            final Function<HarvestParams, OAIResponseHandler> handlerFactory,
+            final Phaser phaser, final List<Exception> failures) {
+        phaser.register();
+        try {
+            executor.submit(() -> {
+                try {
+                    runWindow(window, params, handlerFactory, phaser,
+                            failures);
+                } catch (final Exception e) {
+                    LOGGER.error("Window {} failed.", window, e);
+                    failures.add(e);
+                } finally {
+                    phaser.arriveAndDeregister();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            phaser.arriveAndDeregister();
+            failures.add(e);
+        }
+    }
+
+    private void runWindow(final Window window, final HarvestParams params,
+            final Function<HarvestParams, OAIResponseHandler> handlerFactory,
+            final Phaser phaser, final List<Exception> failures) {
+        if (stopped) {
+            return;
+        }
+        if (window.units() > 1) {
+            final Optional<Long> size = probe(window, params);
+            if (!size.isPresent()) {
+                LOGGER.debug("Window {} is empty.", window);
+                return;
+            }
+            if (size.get() > targetPartitionSize) {
+                LOGGER.debug("Bisecting window {} of size {}.", window,
+                        size.get());
+                window.split(2).forEach(w -> submit(w, params, handlerFactory,
+                        phaser, failures));
+                return;
+            }
+        }
+        harvestWindow(window, params, handlerFactory);
+    }
+
+    /**
+     * Get the size of a window by requesting the first page of a
+     * {@code ListIdentifiers} harvest over it.
+     *
+     * @return the {@code completeListSize} reported by the repository, or
+     *         {@code 0} if none was reported, or empty if the window contains
+     *         no records.
+     */
+    private Optional<Long> probe(final Window window,
+            final HarvestParams params) {
+        final HarvestParams probeParams = window.apply(
+                params.toBuilder(OAIVerb.LIST_IDENTIFIERS));
+        final Harvester harvester = harvesterFactory.get();
+        final Long[] size = {0L};
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HarvestNotificationType.RESPONSE_PROCESSED) {
+                size[0] = hn.getResumptionToken()
+                        .flatMap(ResumptionToken::getCompleteListSize)
+                        .orElse(0L);
+                harvester.stop();
+            }
+        });
+        try {
+            harvester.start(probeParams, DISCARDING_HANDLER);
+        } catch (final RuntimeException e) {
+            if (isNoRecordsMatch(e)) {
+                return Optional.empty();
+            }
+            LOGGER.warn("Probe of window {} failed. Harvesting it whole.",
+                    window, e);
+        }
+        return Optional.of(size[0]);
+    }
+
+    private void harvestWindow(final Window window, final HarvestParams params,
+            final Function<HarvestParams, OAIResponseHandler> handlerFactory) {
+        final Map<String, String> tags = new HashMap<>(2);
+        tags.put(WINDOW_FROM_TAG, window.fromBound());
+        tags.put(WINDOW_UNTIL_TAG, window.untilBound());
+        HarvestParams attemptParams = window.apply(params);
+        RuntimeException lastException = null;
+        for (int attempt = 1; attempt <= maxAttempts && !stopped; attempt++) {
+            final Harvester harvester = harvesterFactory.get();
+            observers.forEach(harvester::addObserver);
+            synchronized (running) {
+                running.add(harvester);
+            }
+            try {
+                if (cancelled) {
+                    return;
+                }
+                harvester.start(attemptParams,
+                        handlerFactory.apply(attemptParams), tags);
+                return;
+            } catch (final RuntimeException e) {
+                if (isNoRecordsMatch(e)) {
+                    LOGGER.debug("Window {} is empty.", window);
+                    return;
+                }
+                LOGGER.warn("Attempt {} of window {} failed.", attempt,
+                        window, e);
+                lastException = e;
+                attemptParams = harvester.getRetryParams();
+            } finally {
+                synchronized (running) {
+                    running.remove(harvester);
+                }
+            }
+        }
+        if (lastException != null && !stopped) {
+            throw lastException;
+        }
+    }
+}
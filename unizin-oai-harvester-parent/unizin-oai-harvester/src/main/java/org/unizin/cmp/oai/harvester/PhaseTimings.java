@@ -0,0 +1,158 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How long the responses of a harvest spent in each phase of their handling,
+ * showing whether a slow harvest is waiting on the repository, the network,
+ * the parser, or the response handler.
+ * <p>
+ * Each phase has a {@linkplain LatencyHistogram histogram} with one entry per
+ * response. The totals are also reported as harvest statistics.
+ * </p>
+ * <p>
+ * Instances are immutable snapshots.
+ * </p>
+ *
+ * @see HarvestNotification#getPhaseTimings()
+ * @see Harvester#getPhaseTimings()
+ */
+public final class PhaseTimings {
+    /**
+     * The phases of handling a response.
+     */
+    public static enum Phase {
+        /**
+         * From sending a request until its response's headers arrive,
+         * including connecting, but not waiting for a permit from a host
+         * limiter. Requests sent speculatively or as hedges are included.
+         */
+        TIME_TO_FIRST_BYTE,
+        /**
+         * Time spent waiting for a response's body to arrive.
+         * <p>
+         * When responses are streamed to the parser, this is the time the
+         * parser spends blocked reading from the network. With read-ahead, it
+         * is the time spent reading the body on the read-ahead thread. With an
+         * asynchronous client, it is the time from the response's headers to
+         * the end of its body.
+         * </p>
+         */
+        DOWNLOAD,
+        /**
+         * Time spent parsing a response, including decoding any content
+         * encoding, but not waiting for the body to arrive or running the
+         * response handler.
+         * <p>
+         * Unless handler timing is enabled, this includes the time spent in
+         * the response handler.
+         * </p>
+         *
+         * @see Harvester.Builder#withHandlerTiming(boolean)
+         */
+        PARSE,
+        /**
+         * Time spent in the response handler's event callbacks while a
+         * response is parsed. This is recorded only if handler timing is
+         * enabled.
+         *
+         * @see Harvester.Builder#withHandlerTiming(boolean)
+         */
+        HANDLER,
+    }
+
+    /** Snapshot of a harvest in which no response has been handled. */
+    static final PhaseTimings EMPTY = new Recorder().snapshot();
+
+
+    /**
+     * Records the phase timings of a harvest. Recording is thread safe.
+     */
+    static final class Recorder {
+        private final Map<Phase, LatencyHistogram.Recorder> recorders =
+                new EnumMap<>(Phase.class);
+
+        Recorder() {
+            for (final Phase phase : Phase.values()) {
+                recorders.put(phase, new LatencyHistogram.Recorder());
+            }
+        }
+
+        void record(final Phase phase, final long nanos) {
+            recorders.get(phase).record(nanos);
+        }
+
+        /**
+         * @return the total time recorded for a phase, in nanoseconds.
+         */
+        long getTotalNanos(final Phase phase) {
+            return recorders.get(phase).getTotalNanos();
+        }
+
+        PhaseTimings snapshot() {
+            final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(
+                    Phase.class);
+            recorders.forEach((phase, r) -> histograms.put(phase,
+                    r.snapshot()));
+            return new PhaseTimings(histograms);
+        }
+    }
+
+
+    private final Map<Phase, LatencyHistogram> histograms;
+
+    private PhaseTimings(final Map<Phase, LatencyHistogram> histograms) {
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @param phase
+     *            the phase.
+     * @return the histogram of the time responses spent in the phase.
+     */
+    public LatencyHistogram get(final Phase phase) {
+        return histograms.get(phase);
+    }
+
+    /**
+     * @param phase
+     *            the phase.
+     * @return the total time responses spent in the phase.
+     */
+    public Duration getTotal(final Phase phase) {
+        return get(phase).getTotal();
+    }
+
+    /**
+     * @return an immutable map of the histograms of every phase.
+     */
+    public Map<Phase, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return a summary of each phase with any time recorded, suitable for
+     *         serialization.
+     * @see LatencyHistogram#toMap()
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new TreeMap<>();
+        histograms.forEach((phase, h) -> {
+            if (h.getCount() > 0) {
+                map.put(phase.name(), h.toMap());
+            }
+        });
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append(toMap())
+                .toString();
+    }
+}
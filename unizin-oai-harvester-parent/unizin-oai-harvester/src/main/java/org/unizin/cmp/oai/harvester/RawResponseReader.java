@@ -0,0 +1,91 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.codehaus.stax2.LocationInfo;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.unizin.cmp.oai.harvester.exception.HarvesterXMLParsingException;
+import org.unizin.cmp.oai.harvester.response.RawResponse;
+
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+/**
+ * Reader for responses sent to a
+ * {@link org.unizin.cmp.oai.harvester.response.RawOAIStreamHandler}.
+ * <p>
+ * The JDK's StAX implementation reports only character offsets, so Aalto,
+ * which reports the exact byte offsets of each event, reads the response
+ * through a {@link RetainingInputStream}. All use of Aalto is confined to this
+ * class, so that it is only loaded if raw handlers are used.
+ * </p>
+ */
+final class RawResponseReader implements RawResponse {
+    private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+
+    private final RetainingInputStream in;
+    private final XMLStreamReader2 reader;
+    private final Charset encoding;
+
+    private static XMLInputFactory newInputFactory() {
+        final XMLInputFactory factory = new InputFactoryImpl();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+        return factory;
+    }
+
+    RawResponseReader(final InputStream in) throws XMLStreamException {
+        this.in = new RetainingInputStream(in);
+        this.reader = (XMLStreamReader2)INPUT_FACTORY.createXMLStreamReader(
+                this.in);
+        final String name = reader.getEncoding();
+        this.encoding = name == null ? StandardCharsets.UTF_8 :
+            Charset.forName(name);
+    }
+
+    XMLStreamReader getReader() {
+        return reader;
+    }
+
+    private LocationInfo location() {
+        return reader.getLocationInfo();
+    }
+
+    @Override
+    public long getStartOffset() {
+        return location().getStartingByteOffset();
+    }
+
+    @Override
+    public long getEndOffset() {
+        try {
+            return location().getEndingByteOffset();
+        } catch (final XMLStreamException e) {
+            // Only thrown if the rest of the event can't be parsed.
+            throw new HarvesterXMLParsingException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(final long from, final long to) {
+        return in.slice(from, to);
+    }
+
+    @Override
+    public void release(final long offset) {
+        in.release(offset);
+    }
+
+    @Override
+    public Charset getEncoding() {
+        return encoding;
+    }
+}
@@ -0,0 +1,183 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIIdentity;
+import org.unizin.cmp.oai.OAIMetadataFormat;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.IdentifyOAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.ListMetadataFormatsOAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.ListSetsOAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+
+/**
+ * What a repository says about itself in its responses to {@code Identify},
+ * {@code ListSets}, and {@code ListMetadataFormats} requests.
+ * <p>
+ * These rarely change, and are useful when planning harvests: for example,
+ * to choose the granularity of {@code from} and {@code until}, or to
+ * partition a harvest by set. Clients can fetch them once and cache them,
+ * rather than making these requests for each harvest.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class RepositoryMetadata implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final OAIIdentity identity;
+    private final List<OAISet> sets;
+    private final List<OAIMetadataFormat> metadataFormats;
+
+    /**
+     * Create a new instance.
+     *
+     * @param identity
+     *            the repository's identity.
+     * @param sets
+     *            the repository's sets. Empty if it has no set hierarchy.
+     * @param metadataFormats
+     *            the metadata formats the repository supports.
+     */
+    public RepositoryMetadata(final OAIIdentity identity,
+            final List<OAISet> sets,
+            final List<OAIMetadataFormat> metadataFormats) {
+        Objects.requireNonNull(identity, "identity");
+        Objects.requireNonNull(sets, "sets");
+        Objects.requireNonNull(metadataFormats, "metadataFormats");
+        this.identity = identity;
+        this.sets = Collections.unmodifiableList(new ArrayList<>(sets));
+        this.metadataFormats = Collections.unmodifiableList(
+                new ArrayList<>(metadataFormats));
+    }
+
+    private static void harvest(final Harvester harvester, final URI baseURI,
+            final OAIVerb verb, final OAIEventHandler eventHandler) {
+        harvester.start(new HarvestParams.Builder(baseURI, verb).build(),
+                new AbstractOAIResponseHandler() {
+            @Override
+            public OAIEventHandler getEventHandler(
+                    final HarvestNotification notification) {
+                return eventHandler;
+            }
+        });
+    }
+
+    private static boolean isNoSetHierarchy(final OAIProtocolException e) {
+        return e.getOAIErrors().stream().anyMatch(x ->
+            x.getErrorCode().equals(
+                    Optional.of(OAIErrorCode.NO_SET_HIERARCHY)));
+    }
+
+    /**
+     * Fetch a repository's metadata.
+     * <p>
+     * This makes an {@code Identify}, a {@code ListSets}, and a
+     * {@code ListMetadataFormats} request, one after another. A repository
+     * that reports {@code noSetHierarchy} is given no sets.
+     * </p>
+     *
+     * @param harvester
+     *            the harvester with which to make the requests.
+     * @param baseURI
+     *            the repository's base URI.
+     * @return the repository's metadata.
+     * @throws org.unizin.cmp.oai.harvester.exception.HarvesterException
+     *             if any of the requests fails.
+     */
+    public static RepositoryMetadata fetch(final Harvester harvester,
+            final URI baseURI) {
+        final List<OAIIdentity> identities = new ArrayList<>(1);
+        harvest(harvester, baseURI, OAIVerb.IDENTIFY,
+                new IdentifyOAIEventHandler(identities::add));
+        if (identities.isEmpty()) {
+            throw new IllegalStateException(
+                    "No Identify response from " + baseURI + ".");
+        }
+        final List<OAISet> sets = new ArrayList<>();
+        try {
+            harvest(harvester, baseURI, OAIVerb.LIST_SETS,
+                    new ListSetsOAIEventHandler(sets::add));
+        } catch (final OAIProtocolException e) {
+            if (!isNoSetHierarchy(e)) {
+                throw e;
+            }
+            sets.clear();
+        }
+        final List<OAIMetadataFormat> formats = new ArrayList<>();
+        harvest(harvester, baseURI, OAIVerb.LIST_METADATA_FORMATS,
+                new ListMetadataFormatsOAIEventHandler(formats::add));
+        return new RepositoryMetadata(identities.get(0), sets, formats);
+    }
+
+    public OAIIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * @return the repository's sets. Empty if it has no set hierarchy.
+     */
+    public List<OAISet> getSets() {
+        return sets;
+    }
+
+    public List<OAIMetadataFormat> getMetadataFormats() {
+        return metadataFormats;
+    }
+
+    /**
+     * Does the repository support a metadata format?
+     *
+     * @param metadataPrefix
+     *            the format's prefix.
+     * @return {@code true} iff the repository listed a format with the given
+     *         prefix.
+     */
+    public boolean supportsMetadataPrefix(final String metadataPrefix) {
+        return metadataFormats.stream().anyMatch(f ->
+            f.getMetadataPrefix().equals(metadataPrefix));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(identity, sets, metadataFormats);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final RepositoryMetadata other = (RepositoryMetadata) obj;
+        return identity.equals(other.identity) && sets.equals(other.sets) &&
+                metadataFormats.equals(other.metadataFormats);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                .append("[")
+                .append("identity=")
+                .append(identity)
+                .append(", sets=")
+                .append(sets)
+                .append(", metadataFormats=")
+                .append(metadataFormats)
+                .append("]")
+                .toString();
+    }
+}
@@ -0,0 +1,319 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Internal-use-only buffer holding the complete body of a single response.
+ * <p>
+ * Bytes are held in pooled direct buffers until the configured memory limit is
+ * reached, after which any remaining bytes are spilled to a temporary file.
+ * Once writing is finished, the contents can be read back any number of times
+ * with {@link #newInputStream()}.
+ * </p>
+ * <p>
+ * Instances must be {@link #close() closed} when no longer needed, so that
+ * pooled buffers are returned and any temporary file is deleted.
+ * </p>
+ * <p>
+ * Instances are not safe for use in multiple threads. They may, however, be
+ * written in one thread and then handed off to another for reading, provided
+ * the handoff itself establishes a happens-before relationship (as e.g.,
+ * {@link java.util.concurrent.Future#get()} does).
+ * </p>
+ */
+final class ResponseBuffer implements Closeable {
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ResponseBuffer.class);
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final ByteBufferPool pool;
+    private final long memoryLimit;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long memorySize;
+    private long size;
+    private Path spillFile;
+    private OutputStream spillOut;
+    private boolean closed;
+
+
+    /**
+     * Create a new instance.
+     *
+     * @param pool
+     *            the pool from which to obtain memory buffers.
+     * @param memoryLimit
+     *            the maximum number of bytes to hold in memory before spilling
+     *            to a temporary file.
+     */
+    ResponseBuffer(final ByteBufferPool pool, final long memoryLimit) {
+        Objects.requireNonNull(pool, "pool");
+        if (memoryLimit < 0) {
+            throw new IllegalArgumentException(
+                    "memoryLimit must be nonnegative.");
+        }
+        this.pool = pool;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Copy the entire content of a stream into this buffer.
+     * <p>
+     * The stream is not closed by this method.
+     * </p>
+     *
+     * @param in
+     *            the stream to read.
+     * @throws IOException
+     *             if there's an error reading the stream or writing to the
+     *             temporary file.
+     */
+    void readFrom(final InputStream in) throws IOException {
+        final byte[] buf = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            write(buf, 0, read);
+        }
+        finishWriting();
+    }
+
+    void write(final byte[] b, final int off, final int len)
+            throws IOException {
+        ensureOpen();
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0 && memorySize < memoryLimit) {
+            ByteBuffer chunk = chunks.isEmpty() ? null :
+                chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = pool.acquire();
+                chunks.add(chunk);
+            }
+            final int n = (int)Math.min(Math.min(remaining,
+                    chunk.remaining()), memoryLimit - memorySize);
+            chunk.put(b, offset, n);
+            offset += n;
+            remaining -= n;
+            memorySize += n;
+            size += n;
+        }
+        if (remaining > 0) {
+            spillStream().write(b, offset, remaining);
+            size += remaining;
+        }
+    }
+
+    /**
+     * Indicate that no more bytes will be written.
+     *
+     * @throws IOException
+     *             if there's an error closing the temporary file.
+     */
+    void finishWriting() throws IOException {
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+    }
+
+    private OutputStream spillStream() throws IOException {
+        if (spillOut == null) {
+            spillFile = Files.createTempFile("oai-response-", ".xml");
+            LOGGER.debug("Spilling response bytes beyond {} to {}.",
+                    memoryLimit, spillFile);
+            spillOut = Files.newOutputStream(spillFile);
+        }
+        return spillOut;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Buffer is closed.");
+        }
+    }
+
+    /** @return the total number of bytes held by this buffer. */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} iff some of this buffer's content has been spilled
+     *         to a temporary file.
+     */
+    boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Get a new stream reading this buffer's content from the beginning.
+     * <p>
+     * Closing the returned stream does <em>not</em> close this buffer.
+     * </p>
+     *
+     * @return a new stream reading this buffer's content.
+     */
+    InputStream newInputStream() {
+        ensureOpen();
+        if (spillOut != null) {
+            throw new IllegalStateException(
+                    "Cannot read a buffer that is still being written.");
+        }
+        return new BufferInputStream();
+    }
+
+    /**
+     * Get the last bytes of this buffer's content, without reading the rest.
+     *
+     * @param max
+     *            the greatest number of bytes to get.
+     * @return the last {@code max} bytes, or all of the content if there are
+     *         fewer.
+     * @throws IOException
+     *             if there's an error reading the temporary file.
+     */
+    byte[] tail(final int max) throws IOException {
+        ensureOpen();
+        if (spillOut != null) {
+            throw new IllegalStateException(
+                    "Cannot read a buffer that is still being written.");
+        }
+        final byte[] tail = new byte[(int)Math.min(max, size)];
+        final long start = size - tail.length;
+        int filled = 0;
+        long offset = 0;
+        for (final ByteBuffer chunk : chunks) {
+            final int length = chunk.position();
+            if (offset + length > start) {
+                final ByteBuffer dup = chunk.duplicate();
+                dup.flip();
+                dup.position((int)Math.max(0, start - offset));
+                final int n = dup.remaining();
+                dup.get(tail, filled, n);
+                filled += n;
+            }
+            offset += length;
+        }
+        if (filled < tail.length) {
+            try (final SeekableByteChannel in = Files.newByteChannel(
+                    spillFile)) {
+                in.position(Math.max(0, start - memorySize));
+                final ByteBuffer dst = ByteBuffer.wrap(tail, filled,
+                        tail.length - filled);
+                while (dst.hasRemaining()) {
+                    if (in.read(dst) == -1) {
+                        break;
+                    }
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Return memory buffers to the pool and delete the temporary file, if any.
+     * <p>
+     * Calling this method more than once has no additional effect.
+     * </p>
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks.forEach(pool::release);
+        chunks.clear();
+        try {
+            finishWriting();
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Ignored exception deleting temporary file.", e);
+        }
+    }
+
+
+    private final class BufferInputStream extends InputStream {
+        private final Iterator<ByteBuffer> chunkIterator;
+        private ByteBuffer current;
+        private InputStream fileStream;
+        private boolean fileOpened;
+
+        BufferInputStream() {
+            final List<ByteBuffer> readable = new ArrayList<>(chunks.size());
+            chunks.forEach(x -> {
+                final ByteBuffer dup = x.duplicate();
+                dup.flip();
+                readable.add(dup);
+            });
+            chunkIterator = readable.iterator();
+        }
+
+        private boolean advanceChunk() {
+            while (current == null || !current.hasRemaining()) {
+                if (!chunkIterator.hasNext()) {
+                    return false;
+                }
+                current = chunkIterator.next();
+            }
+            return true;
+        }
+
+        private InputStream fileStream() throws IOException {
+            if (!fileOpened) {
+                fileOpened = true;
+                if (spillFile != null) {
+                    fileStream = Files.newInputStream(spillFile);
+                }
+            }
+            return fileStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (advanceChunk()) {
+                return current.get() & 0xff;
+            }
+            final InputStream in = fileStream();
+            return in == null ? -1 : in.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (advanceChunk()) {
+                final int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+            final InputStream in = fileStream();
+            return in == null ? -1 : in.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null) {
+                fileStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Input stream that keeps a copy of the bytes read through it until they are
+ * explicitly released.
+ * <p>
+ * Retained bytes are addressed by their absolute offset in the stream, so
+ * that ranges reported by a parser reading from this stream can be sliced
+ * out of the original input. Released bytes are discarded lazily, when room
+ * is needed for more input, so releasing is cheap enough to do after every
+ * event.
+ * </p>
+ */
+final class RetainingInputStream extends FilterInputStream {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    /** Stream offset of {@code buffer[0]}. */
+    private long base;
+    /** Number of bytes in the buffer. */
+    private int length;
+    /** Stream offset before which bytes may be discarded. */
+    private long released;
+
+    RetainingInputStream(final InputStream in) {
+        super(in);
+    }
+
+    private void retain(final byte[] b, final int off, final int len) {
+        if (length + len > buffer.length) {
+            final int discard = (int)(released - base);
+            if (discard > 0) {
+                System.arraycopy(buffer, discard, buffer, 0,
+                        length - discard);
+                length -= discard;
+                base = released;
+            }
+            if (length + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length + len,
+                        buffer.length * 2));
+            }
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    private void checkRetained(final long from, final long to) {
+        if (from < base || to > base + length || from > to) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "Range [%d, %d) is not retained; retained range is " +
+                            "[%d, %d).", from, to, base, base + length));
+        }
+    }
+
+    /**
+     * Allow bytes before the given offset to be discarded.
+     *
+     * @param offset
+     *            the stream offset of the first byte still needed.
+     */
+    void release(final long offset) {
+        if (offset > released) {
+            released = Math.min(offset, base + length);
+        }
+    }
+
+    /**
+     * Get a view of retained bytes.
+     * <p>
+     * The view is valid only until the next read from this stream, and must
+     * not be modified. It is backed by an accessible array, so that it can be
+     * written to a stream without copying.
+     * </p>
+     *
+     * @param from
+     *            the stream offset of the first byte, inclusive.
+     * @param to
+     *            the stream offset of the last byte, exclusive.
+     * @return a buffer whose position is zero and whose limit is the length
+     *         of the range.
+     * @throws IndexOutOfBoundsException
+     *             if any byte in the range has been discarded or not yet read.
+     */
+    ByteBuffer slice(final long from, final long to) {
+        checkRetained(from, to);
+        return ByteBuffer.wrap(buffer, (int)(from - base), (int)(to - from))
+                .slice();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b >= 0) {
+            retain(new byte[] {(byte)b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        final int n = in.read(b, off, len);
+        if (n > 0) {
+            retain(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        final byte[] skipped = new byte[(int)Math.min(n, 8192)];
+        final int read = read(skipped, 0, skipped.length);
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) { }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported.");
+    }
+}
@@ -0,0 +1,317 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.utils.DateUtils;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
+
+/**
+ * Policy deciding whether, and when, a harvester sends a failed request again.
+ * <p>
+ * A request is retried if the repository replies with one of the policy's
+ * retryable HTTP status codes (by default, those that usually mean the
+ * repository is briefly overloaded or unavailable), or if sending it or
+ * reading its response fails with an {@code IOException} that isn't obviously
+ * permanent, such as a reset connection or a socket timeout. Only the failed
+ * request is sent again, with the same parameters, so a harvest continues
+ * from the page at which it failed.
+ * </p>
+ * <p>
+ * If the response has a {@code Retry-After} header, the harvester waits as
+ * long as it asks (but gives up if it asks for longer than the maximum
+ * delay). Otherwise, the delay grows exponentially from the initial delay,
+ * up to the maximum delay, and is randomly shortened by up to the jitter
+ * fraction so that harvests failing together don't all retry together.
+ * </p>
+ * <p>
+ * Instances are immutable and thread safe.
+ * </p>
+ *
+ * @see Harvester.Builder#withRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final Duration DEFAULT_INITIAL_DELAY = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofMinutes(2);
+    public static final double DEFAULT_BACKOFF_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.5;
+    /**
+     * Status codes retried by default: 429 Too Many Requests, 502 Bad Gateway,
+     * 503 Service Unavailable, and 504 Gateway Timeout.
+     */
+    public static final Set<Integer> DEFAULT_RETRYABLE_STATUS_CODES =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                    429, 502, 503, 504)));
+
+    /** Policy that never retries. This is the harvester's default. */
+    public static final RetryPolicy NONE = new Builder()
+            .withMaxRetries(0)
+            .build();
+
+
+    /**
+     * Builder for {@code RetryPolicy}.
+     */
+    public static final class Builder {
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private Duration initialDelay = DEFAULT_INITIAL_DELAY;
+        private Duration maxDelay = DEFAULT_MAX_DELAY;
+        private double backoffMultiplier = DEFAULT_BACKOFF_MULTIPLIER;
+        private double jitter = DEFAULT_JITTER;
+        private Set<Integer> retryableStatusCodes =
+                DEFAULT_RETRYABLE_STATUS_CODES;
+
+        /**
+         * Set the maximum number of times any one request is retried.
+         *
+         * @param maxRetries
+         *            the maximum number of retries. Zero disables retrying.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code maxRetries} is negative.
+         */
+        public Builder withMaxRetries(final int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException(
+                        "maxRetries must be nonnegative.");
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Set the delay before the first retry of a request, when the
+         * response doesn't say how long to wait.
+         *
+         * @param initialDelay
+         *            the initial delay.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code initialDelay} is negative.
+         */
+        public Builder withInitialDelay(final Duration initialDelay) {
+            Objects.requireNonNull(initialDelay, "initialDelay");
+            if (initialDelay.isNegative()) {
+                throw new IllegalArgumentException(
+                        "initialDelay must be nonnegative.");
+            }
+            this.initialDelay = initialDelay;
+            return this;
+        }
+
+        /**
+         * Set the longest delay before any retry.
+         * <p>
+         * Requests whose responses ask for a longer delay via
+         * {@code Retry-After} are not retried.
+         * </p>
+         *
+         * @param maxDelay
+         *            the maximum delay.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code maxDelay} is negative.
+         */
+        public Builder withMaxDelay(final Duration maxDelay) {
+            Objects.requireNonNull(maxDelay, "maxDelay");
+            if (maxDelay.isNegative()) {
+                throw new IllegalArgumentException(
+                        "maxDelay must be nonnegative.");
+            }
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * Set the factor by which the delay grows with each retry of a
+         * request.
+         *
+         * @param multiplier
+         *            the multiplier.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code multiplier} is less than one.
+         */
+        public Builder withBackoffMultiplier(final double multiplier) {
+            if (!(multiplier >= 1)) {
+                throw new IllegalArgumentException(
+                        "multiplier must be at least 1.");
+            }
+            this.backoffMultiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Set the largest fraction by which a computed delay may be randomly
+         * shortened.
+         *
+         * @param jitter
+         *            the fraction, from zero (no randomness) to one.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if {@code jitter} is not between zero and one.
+         */
+        public Builder withJitter(final double jitter) {
+            if (!(jitter >= 0 && jitter <= 1)) {
+                throw new IllegalArgumentException(
+                        "jitter must be between 0 and 1.");
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Set the HTTP status codes of responses whose requests are retried.
+         *
+         * @param statusCodes
+         *            the status codes.
+         * @return this builder.
+         */
+        public Builder withRetryableStatusCodes(
+                final Integer... statusCodes) {
+            this.retryableStatusCodes = Collections.unmodifiableSet(
+                    new HashSet<>(Arrays.asList(statusCodes)));
+            return this;
+        }
+
+        public RetryPolicy build() {
+            if (initialDelay.compareTo(maxDelay) > 0) {
+                throw new IllegalArgumentException(
+                        "initialDelay must not exceed maxDelay.");
+            }
+            return new RetryPolicy(this);
+        }
+    }
+
+
+    private final int maxRetries;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double backoffMultiplier;
+    private final double jitter;
+    private final Set<Integer> retryableStatusCodes;
+
+
+    private RetryPolicy(final Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.initialDelayMillis = builder.initialDelay.toMillis();
+        this.maxDelayMillis = builder.maxDelay.toMillis();
+        this.backoffMultiplier = builder.backoffMultiplier;
+        this.jitter = builder.jitter;
+        this.retryableStatusCodes = builder.retryableStatusCodes;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Is a failed request's exception one that might not happen again?
+     */
+    private boolean isRetryable(final Exception failure) {
+        if (failure instanceof HarvesterHTTPStatusException) {
+            return retryableStatusCodes.contains(
+                    ((HarvesterHTTPStatusException)failure).getStatusLine()
+                    .getStatusCode());
+        }
+        final Throwable cause = failure.getCause();
+        if (!(cause instanceof IOException) ||
+                !(failure instanceof UncheckedIOException ||
+                        failure.getClass() == HarvesterException.class)) {
+            return false;
+        }
+        return !(cause instanceof UnknownHostException ||
+                cause instanceof SSLException ||
+                cause instanceof ClientProtocolException);
+    }
+
+    /**
+     * Get the delay a {@code Retry-After} header asks for.
+     *
+     * @return the delay in milliseconds, or {@code -1} if there's no valid
+     *         header.
+     */
+    private static long retryAfterMillis(final Exception failure,
+            final Instant now) {
+        if (!(failure instanceof HarvesterHTTPStatusException)) {
+            return -1;
+        }
+        for (final Header header :
+            ((HarvesterHTTPStatusException)failure).getHeaders()) {
+            if (!HttpHeaders.RETRY_AFTER.equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            final String value = header.getValue().trim();
+            try {
+                return Math.max(0, Long.parseLong(value) * 1000);
+            } catch (final NumberFormatException e) {
+                final Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    return Math.max(0, date.getTime() - now.toEpochMilli());
+                }
+            }
+        }
+        return -1;
+    }
+
+    private long backoffMillis(final int retries) {
+        final double delay = Math.min(maxDelayMillis,
+                initialDelayMillis * Math.pow(backoffMultiplier, retries));
+        final double shortenBy = jitter == 0 ? 0 :
+            ThreadLocalRandom.current().nextDouble(jitter);
+        return (long)(delay * (1 - shortenBy));
+    }
+
+    /**
+     * Decide whether to retry a failed request, and when.
+     *
+     * @param failure
+     *            the exception with which the request failed.
+     * @param retries
+     *            the number of times the request has already been retried.
+     * @param now
+     *            the current time.
+     * @return the number of milliseconds to wait before retrying, or
+     *         {@code -1} if the request should not be retried.
+     */
+    long retryDelayMillis(final Exception failure, final int retries,
+            final Instant now) {
+        if (retries >= maxRetries || !isRetryable(failure)) {
+            return -1;
+        }
+        final long retryAfter = retryAfterMillis(failure, now);
+        if (retryAfter > maxDelayMillis) {
+            return -1;
+        }
+        return retryAfter >= 0 ? retryAfter : backoffMillis(retries);
+    }
+
+    long retryDelayMillis(final Exception failure, final int retries) {
+        return retryDelayMillis(failure, retries, Instant.now());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy[maxRetries=%d, initialDelay=%dms, " +
+                "maxDelay=%dms, multiplier=%s, jitter=%s, statusCodes=%s]",
+                maxRetries, initialDelayMillis, maxDelayMillis,
+                backoffMultiplier, jitter, retryableStatusCodes);
+    }
+}
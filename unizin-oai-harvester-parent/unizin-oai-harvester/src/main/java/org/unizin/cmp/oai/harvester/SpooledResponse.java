@@ -0,0 +1,347 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.OAI2Constants.ERROR;
+import static org.unizin.cmp.oai.OAI2Constants.OAI_PMH;
+import static org.unizin.cmp.oai.OAI2Constants.REQUEST;
+import static org.unizin.cmp.oai.OAI2Constants.RESPONSE_DATE;
+import static org.unizin.cmp.oai.OAI2Constants.RESUMPTION_TOKEN;
+import static org.unizin.cmp.oai.OAI2Constants.RT_COMPLETE_LIST_SIZE_ATTR;
+import static org.unizin.cmp.oai.OAI2Constants.RT_CURSOR_ATTR;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.ResumptionToken;
+
+/**
+ * Internal-use-only container for a response body that has been read
+ * completely into a {@link ResponseBuffer}.
+ * <p>
+ * When a response is spooled, its content is scanned for a resumption token
+ * and for OAI-PMH errors, so that the harvester can decide whether to issue the
+ * next request before the response itself is parsed and handled. The scan
+ * parses only the start of the document, up to the first error or the element
+ * holding the list. A list's resumption token is its last child, so it is then
+ * looked for in the last few kilobytes of the document, and only the token
+ * element itself is parsed. Only if the end of the document isn't laid out
+ * that way (e.g., a list without a token, or a token too long to be found) is
+ * the rest of the document scanned, stopping at the token or the end of the
+ * list.
+ * </p>
+ * <p>
+ * The scan is deliberately lenient. It checks only the parts it reads, so a
+ * malformed list may still yield a token; if the content can't be scanned,
+ * the scan simply finds no token. Either way, reporting the problem is left
+ * to the real parse.
+ * </p>
+ */
+final class SpooledResponse implements AutoCloseable {
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(SpooledResponse.class);
+
+    /** The number of bytes at the end of a list searched for its token. */
+    private static final int TAIL_BYTES = 16 * 1024;
+
+    /** An optional namespace prefix, followed by a name's local part. */
+    private static final String NAME = "(?:[^\\s<>/:]+:)?([^\\s<>/:]+)";
+
+    /** Whitespace and comments, which may come between end tags. */
+    private static final String SKIPPED = "(?:\\s|<!--.*?-->)*";
+
+    private static final Pattern TOKEN_START = Pattern.compile(
+            "<(?:[^\\s<>/:]+:)?resumptionToken(?=[\\s/>])");
+
+    private static final Pattern TOKEN_END = Pattern.compile(
+            "</(?:[^\\s<>/:]+:)?resumptionToken\\s*>");
+
+    /** The end tags of the list and of the document. */
+    private static final Pattern TRAILER = Pattern.compile("(?s)" + SKIPPED +
+            "</" + NAME + "\\s*>" + SKIPPED + "</" + NAME + "\\s*>" + SKIPPED);
+
+    /**
+     * Reads token elements cut from a document, whose prefixes are declared
+     * elsewhere, without namespaces.
+     */
+    private static final XMLInputFactory FRAGMENT_FACTORY =
+            newFragmentFactory();
+
+    private final ResponseBuffer buffer;
+    private ResumptionToken resumptionToken;
+    private boolean hasErrors;
+
+    private SpooledResponse(final ResponseBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Read a response body into a buffer and scan it.
+     *
+     * @param in
+     *            the response body. The stream is not closed by this method.
+     * @param pool
+     *            the pool from which to obtain memory buffers.
+     * @param memoryLimit
+     *            the maximum number of bytes to hold in memory before spilling
+     *            to a temporary file.
+     * @param inputFactory
+     *            the factory to use to create the reader used for scanning.
+     * @return the spooled response.
+     * @throws UncheckedIOException
+     *             if there's an error reading the body.
+     */
+    static SpooledResponse spool(final InputStream in,
+            final ByteBufferPool pool, final long memoryLimit,
+            final XMLInputFactory inputFactory) {
+        final ResponseBuffer buffer = new ResponseBuffer(pool, memoryLimit);
+        try {
+            buffer.readFrom(in);
+        } catch (final IOException e) {
+            buffer.close();
+            throw new UncheckedIOException(e);
+        } catch (final RuntimeException | Error e) {
+            buffer.close();
+            throw e;
+        }
+        final SpooledResponse response = new SpooledResponse(buffer);
+        response.scan(inputFactory);
+        return response;
+    }
+
+    private static XMLInputFactory newFragmentFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+        return factory;
+    }
+
+    private static Long longAttribute(final XMLStreamReader reader,
+            final QName name) {
+        return longValue(OAIXMLUtils.attributeValue(reader, name), name);
+    }
+
+    private static Long longValue(final String value, final QName name) {
+        if (value != null) {
+            try {
+                return Long.valueOf(value.trim());
+            } catch (final NumberFormatException e) {
+                LOGGER.debug("Ignoring invalid {} attribute.", name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is this a child of the root element that holds a response's content,
+     * and so is named for the request's verb?
+     */
+    private static boolean isVerbElement(final QName name) {
+        return !(RESPONSE_DATE.equals(name) || REQUEST.equals(name) ||
+                ERROR.equals(name));
+    }
+
+    /**
+     * Scan for a resumption token and errors. See the class documentation.
+     */
+    private void scan(final XMLInputFactory inputFactory) {
+        try {
+            final String list = scanFromStart(inputFactory, true);
+            // Only the list verbs' responses have tokens.
+            if (list != null && list.startsWith("List") &&
+                    !scanTail(list)) {
+                scanFromStart(inputFactory, false);
+            }
+        } catch (final XMLStreamException | IOException e) {
+            LOGGER.debug("Ignoring exception scanning spooled response.", e);
+            resumptionToken = null;
+        }
+    }
+
+    /**
+     * Scan the document from the start for errors and, unless stopping at the
+     * element named for the verb, for a resumption token. The scan stops at
+     * the first error, since no page follows an error, at the resumption
+     * token, or at the end of the element named for the verb, which has no
+     * token if none was found.
+     *
+     * @return the local name of the element named for the verb, or
+     *         {@code null} if the scan stopped before reaching it.
+     */
+    private String scanFromStart(final XMLInputFactory inputFactory,
+            final boolean headOnly) throws XMLStreamException, IOException {
+        try (final InputStream in = buffer.newInputStream()) {
+            final XMLStreamReader reader = inputFactory.createXMLStreamReader(
+                    in);
+            try {
+                String verbElement = null;
+                int depth = 0;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamReader.END_ELEMENT) {
+                        depth--;
+                        if (depth == 1 && isVerbElement(reader.getName())) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (event != XMLStreamReader.START_ELEMENT) {
+                        continue;
+                    }
+                    depth++;
+                    if (ERROR.equals(reader.getName())) {
+                        hasErrors = true;
+                        break;
+                    } else if (depth == 2 &&
+                            isVerbElement(reader.getName())) {
+                        verbElement = reader.getLocalName();
+                        if (headOnly) {
+                            break;
+                        }
+                    } else if (RESUMPTION_TOKEN.equals(reader.getName())) {
+                        final Long completeListSize = longAttribute(reader,
+                                RT_COMPLETE_LIST_SIZE_ATTR);
+                        final Long cursor = longAttribute(reader,
+                                RT_CURSOR_ATTR);
+                        resumptionToken = new ResumptionToken(
+                                reader.getElementText(), completeListSize,
+                                cursor, null);
+                        break;
+                    }
+                }
+                return verbElement;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Look for a list's resumption token at the end of the document, where
+     * it is followed only by the end tags of the list and the document.
+     * <p>
+     * The document is searched as ISO-8859-1, which maps each byte to one
+     * character, so that the token element's bytes can be cut out and parsed
+     * in the document's own encoding (which OAI-PMH requires to be UTF-8).
+     * </p>
+     *
+     * @param list
+     *            the local name of the element holding the list.
+     * @return {@code true} iff the outcome is known: a token was found, or
+     *         the list ends without one.
+     */
+    private boolean scanTail(final String list)
+            throws XMLStreamException, IOException {
+        final byte[] bytes = buffer.tail(TAIL_BYTES);
+        final String tail = new String(bytes, StandardCharsets.ISO_8859_1);
+        final Matcher start = TOKEN_START.matcher(tail);
+        int from = -1;
+        while (start.find()) {
+            from = start.start();
+        }
+        if (from == -1) {
+            return false;
+        }
+        final int startTagEnd = tail.indexOf('>', from);
+        if (startTagEnd == -1) {
+            return false;
+        }
+        final int to;
+        if (tail.charAt(startTagEnd - 1) == '/') {
+            to = startTagEnd + 1;
+        } else {
+            final Matcher end = TOKEN_END.matcher(tail);
+            if (!end.find(startTagEnd)) {
+                return false;
+            }
+            to = end.end();
+        }
+        final Matcher trailer = TRAILER.matcher(tail).region(to,
+                tail.length());
+        if (!trailer.matches() || !list.equals(trailer.group(1)) ||
+                !OAI_PMH.getLocalPart().equals(trailer.group(2))) {
+            return false;
+        }
+        final XMLStreamReader reader = FRAGMENT_FACTORY.createXMLStreamReader(
+                new ByteArrayInputStream(bytes, from, to - from),
+                StandardCharsets.UTF_8.name());
+        try {
+            reader.nextTag();
+            final String completeListSize = reader.getAttributeValue(null,
+                    RT_COMPLETE_LIST_SIZE_ATTR.getLocalPart());
+            final String cursor = reader.getAttributeValue(null,
+                    RT_CURSOR_ATTR.getLocalPart());
+            resumptionToken = new ResumptionToken(reader.getElementText(),
+                    longValue(completeListSize, RT_COMPLETE_LIST_SIZE_ATTR),
+                    longValue(cursor, RT_CURSOR_ATTR), null);
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} iff the scan found a nonempty resumption token and
+     *         no OAI-PMH errors, meaning that another request should follow
+     *         this one.
+     */
+    boolean hasNextPage() {
+        return !hasErrors && resumptionToken != null &&
+                !resumptionToken.getToken().isEmpty();
+    }
+
+    /**
+     * @return the resumption token found by the scan, with its
+     *         {@code completeListSize} and {@code cursor}, or {@code null} if
+     *         none was found.
+     */
+    ResumptionToken getResumptionToken() {
+        return resumptionToken;
+    }
+
+    long size() {
+        return buffer.size();
+    }
+
+    boolean isSpilled() {
+        return buffer.isSpilled();
+    }
+
+    /**
+     * Get a stream reading the buffered response.
+     *
+     * @return a stream reading the buffered response. Closing the stream
+     *         closes this instance.
+     */
+    InputStream newInputStream() {
+        return new FilterInputStream(buffer.newInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    SpooledResponse.this.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        buffer.close();
+    }
+}
@@ -0,0 +1,43 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.unizin.cmp.oai.ResumptionToken;
+
+/**
+ * Strategy for guessing the resumption tokens a repository will issue, so that
+ * requests for later pages can be sent before the responses carrying those
+ * tokens arrive.
+ * <p>
+ * Predictions needn't be right. The harvester checks each predicted token
+ * against the token the repository actually sends before using the predicted
+ * page, and stops speculating for the rest of the harvest at the first wrong
+ * guess. A predictor that can't tell what comes next should return
+ * {@link Optional#empty()} rather than guess.
+ * </p>
+ * <p>
+ * Implementations must be thread safe if shared between harvesters.
+ * </p>
+ *
+ * @see Harvester.Builder#withTokenPredictor(TokenPredictor, int)
+ * @see OffsetTokenPredictor
+ */
+@FunctionalInterface
+public interface TokenPredictor {
+    /**
+     * Predict a future resumption token.
+     *
+     * @param chain
+     *            the tokens received so far in the current harvest, oldest
+     *            first. Never empty.
+     * @param pagesAhead
+     *            how far past the last token in the chain to predict: 1 for
+     *            the token that the next response will carry, 2 for the token
+     *            after that, and so on.
+     * @return the predicted token, or nothing if this instance can't (or
+     *         shouldn't) make a prediction, e.g., because there are too few
+     *         tokens to learn from, or because the list will have ended.
+     */
+    Optional<String> predict(List<ResumptionToken> chain, int pagesAhead);
+}
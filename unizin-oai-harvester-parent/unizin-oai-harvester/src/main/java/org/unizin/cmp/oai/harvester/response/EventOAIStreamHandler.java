@@ -0,0 +1,139 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+
+import org.unizin.cmp.oai.OAIXMLUtils;
+
+/**
+ * Adapter that lets an {@link OAIEventHandler} be used where an
+ * {@link OAIStreamHandler} is expected.
+ * <p>
+ * Each cursor position is converted to an {@link XMLEvent} and sent to the
+ * wrapped handler, so none of the savings of the stream contract are realized.
+ * This is the stream handler that
+ * {@link OAIResponseHandler#getStreamHandler(
+ * org.unizin.cmp.oai.harvester.HarvestNotification)} returns by default. The
+ * harvester recognizes it and, rather than converting events one at a time,
+ * sends the wrapped handler the events produced by the StAX implementation's
+ * own event reader, exactly as if no adapter were involved.
+ * </p>
+ */
+public final class EventOAIStreamHandler implements OAIStreamHandler {
+    private final OAIEventHandler eventHandler;
+    private final XMLEventFactory eventFactory = OAIXMLUtils.newEventFactory();
+
+    public EventOAIStreamHandler(final OAIEventHandler eventHandler) {
+        Objects.requireNonNull(eventHandler, "eventHandler");
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * Get the wrapped event handler.
+     *
+     * @return the event handler to which events are sent.
+     */
+    public OAIEventHandler getEventHandler() {
+        return eventHandler;
+    }
+
+    private static String nonNull(final String s) {
+        return s == null ? "" : s;
+    }
+
+    private List<Namespace> namespaces(final XMLStreamReader reader) {
+        final int count = reader.getNamespaceCount();
+        final List<Namespace> namespaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String prefix = reader.getNamespacePrefix(i);
+            final String uri = nonNull(reader.getNamespaceURI(i));
+            namespaces.add(prefix == null || prefix.isEmpty() ?
+                    eventFactory.createNamespace(uri) :
+                        eventFactory.createNamespace(prefix, uri));
+        }
+        return namespaces;
+    }
+
+    private List<Attribute> attributes(final XMLStreamReader reader) {
+        final int count = reader.getAttributeCount();
+        final List<Attribute> attributes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            attributes.add(eventFactory.createAttribute(
+                    nonNull(reader.getAttributePrefix(i)),
+                    nonNull(reader.getAttributeNamespace(i)),
+                    reader.getAttributeLocalName(i),
+                    reader.getAttributeValue(i)));
+        }
+        return attributes;
+    }
+
+    private XMLEvent allocate(final XMLStreamReader reader)
+            throws XMLStreamException {
+        eventFactory.setLocation(reader.getLocation());
+        switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+            return eventFactory.createStartElement(
+                    nonNull(reader.getPrefix()),
+                    nonNull(reader.getNamespaceURI()), reader.getLocalName(),
+                    attributes(reader).iterator(),
+                    namespaces(reader).iterator(),
+                    reader.getNamespaceContext());
+        case XMLStreamConstants.END_ELEMENT:
+            return eventFactory.createEndElement(nonNull(reader.getPrefix()),
+                    nonNull(reader.getNamespaceURI()), reader.getLocalName(),
+                    namespaces(reader).iterator());
+        case XMLStreamConstants.CHARACTERS:
+            return eventFactory.createCharacters(reader.getText());
+        case XMLStreamConstants.CDATA:
+            return eventFactory.createCData(reader.getText());
+        case XMLStreamConstants.SPACE:
+            return eventFactory.createIgnorableSpace(reader.getText());
+        case XMLStreamConstants.COMMENT:
+            return eventFactory.createComment(reader.getText());
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            return eventFactory.createProcessingInstruction(
+                    reader.getPITarget(), reader.getPIData());
+        case XMLStreamConstants.START_DOCUMENT:
+            final String encoding = reader.getCharacterEncodingScheme();
+            final String version = reader.getVersion();
+            if (reader.standaloneSet()) {
+                return eventFactory.createStartDocument(nonNull(encoding),
+                        version == null ? "1.0" : version,
+                        reader.isStandalone());
+            }
+            return encoding == null ? eventFactory.createStartDocument() :
+                eventFactory.createStartDocument(encoding,
+                        version == null ? "1.0" : version);
+        case XMLStreamConstants.END_DOCUMENT:
+            return eventFactory.createEndDocument();
+        case XMLStreamConstants.ENTITY_REFERENCE:
+            return eventFactory.createEntityReference(reader.getLocalName(),
+                    null);
+        case XMLStreamConstants.DTD:
+            return eventFactory.createDTD(reader.getText());
+        default:
+            throw new XMLStreamException("Unsupported event type " +
+                    reader.getEventType(), reader.getLocation());
+        }
+    }
+
+    @Override
+    public void onEvent(final XMLStreamReader reader)
+            throws XMLStreamException {
+        eventHandler.onEvent(allocate(reader));
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        eventHandler.close();
+    }
+}
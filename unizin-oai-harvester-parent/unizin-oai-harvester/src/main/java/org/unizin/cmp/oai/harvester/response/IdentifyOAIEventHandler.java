@@ -0,0 +1,92 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.XMLEvent;
+
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIDeletedRecord;
+import org.unizin.cmp.oai.OAIIdentity;
+
+/**
+ * Event handler that produces an {@link OAIIdentity} from the response to an
+ * {@code Identify} request.
+ * <p>
+ * The identity is sent to a {@link Consumer} when the closing
+ * {@code </Identify>} tag is seen. Descriptions are ignored. Unrecognized
+ * granularities are treated as {@link OAIDateGranularity#DAY}, which all
+ * repositories must support.
+ * </p>
+ */
+public final class IdentifyOAIEventHandler implements OAIEventHandler {
+    private final Consumer<OAIIdentity> identityConsumer;
+    private final StringBuilder charBuffer = new StringBuilder();
+    private OAIIdentity.Builder builder;
+    private boolean bufferChars;
+    private boolean inDescription;
+
+    public IdentifyOAIEventHandler(
+            final Consumer<OAIIdentity> identityConsumer) {
+        Objects.requireNonNull(identityConsumer, "identityConsumer");
+        this.identityConsumer = identityConsumer;
+    }
+
+    private void onValue(final QName name, final String value) {
+        if (OAI2Constants.REPOSITORY_NAME.equals(name)) {
+            builder.withRepositoryName(value);
+        } else if (OAI2Constants.BASE_URL.equals(name)) {
+            builder.withBaseURL(value);
+        } else if (OAI2Constants.PROTOCOL_VERSION.equals(name)) {
+            builder.withProtocolVersion(value);
+        } else if (OAI2Constants.ADMIN_EMAIL.equals(name)) {
+            builder.withAdminEmail(value);
+        } else if (OAI2Constants.EARLIEST_DATESTAMP.equals(name)) {
+            builder.withEarliestDatestamp(value);
+        } else if (OAI2Constants.DELETED_RECORD.equals(name)) {
+            builder.withDeletedRecord(OAIDeletedRecord.fromValue(value));
+        } else if (OAI2Constants.GRANULARITY.equals(name)) {
+            final OAIDateGranularity granularity =
+                    OAIDateGranularity.fromFormat(value);
+            if (granularity != null) {
+                builder.withGranularity(granularity);
+            }
+        } else if (OAI2Constants.COMPRESSION.equals(name)) {
+            builder.withCompression(value);
+        }
+    }
+
+    @Override
+    public void onEvent(final XMLEvent e) {
+        if (e.isStartElement()) {
+            final QName name = e.asStartElement().getName();
+            if (OAI2Constants.IDENTIFY.equals(name)) {
+                builder = new OAIIdentity.Builder();
+            } else if (OAI2Constants.DESCRIPTION.equals(name)) {
+                inDescription = true;
+            } else if (builder != null && !inDescription) {
+                bufferChars = true;
+                charBuffer.setLength(0);
+            }
+        } else if (e.isEndElement()) {
+            final QName name = e.asEndElement().getName();
+            if (OAI2Constants.IDENTIFY.equals(name) && builder != null) {
+                identityConsumer.accept(builder.build());
+                builder = null;
+            } else if (OAI2Constants.DESCRIPTION.equals(name)) {
+                inDescription = false;
+            } else if (bufferChars) {
+                onValue(name, charBuffer.toString().trim());
+            }
+            bufferChars = false;
+        } else if (e.isCharacters() && bufferChars) {
+            charBuffer.append(e.asCharacters().getData());
+        }
+    }
+
+    /** Does nothing. */
+    @Override
+    public void close() { }
+}
@@ -0,0 +1,70 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.XMLEvent;
+
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIMetadataFormat;
+
+/**
+ * Event handler that produces {@link OAIMetadataFormat} instances from the
+ * response to a {@code ListMetadataFormats} request.
+ * <p>
+ * Each format is sent to a {@link Consumer} when its closing tag is seen.
+ * </p>
+ */
+public final class ListMetadataFormatsOAIEventHandler
+implements OAIEventHandler {
+    private final Consumer<OAIMetadataFormat> formatConsumer;
+    private final StringBuilder charBuffer = new StringBuilder();
+    private boolean bufferChars;
+    private String metadataPrefix;
+    private String schema;
+    private String metadataNamespace;
+
+    public ListMetadataFormatsOAIEventHandler(
+            final Consumer<OAIMetadataFormat> formatConsumer) {
+        Objects.requireNonNull(formatConsumer, "formatConsumer");
+        this.formatConsumer = formatConsumer;
+    }
+
+    @Override
+    public void onEvent(final XMLEvent e) {
+        if (e.isStartElement()) {
+            final QName name = e.asStartElement().getName();
+            if (OAI2Constants.METADATA_FORMAT.equals(name)) {
+                metadataPrefix = null;
+                schema = null;
+                metadataNamespace = null;
+            } else if (OAI2Constants.METADATA_PREFIX.equals(name) ||
+                    OAI2Constants.SCHEMA.equals(name) ||
+                    OAI2Constants.METADATA_NAMESPACE.equals(name)) {
+                bufferChars = true;
+                charBuffer.setLength(0);
+            }
+        } else if (e.isEndElement()) {
+            final QName name = e.asEndElement().getName();
+            if (OAI2Constants.METADATA_PREFIX.equals(name)) {
+                metadataPrefix = charBuffer.toString().trim();
+            } else if (OAI2Constants.SCHEMA.equals(name)) {
+                schema = charBuffer.toString().trim();
+            } else if (OAI2Constants.METADATA_NAMESPACE.equals(name)) {
+                metadataNamespace = charBuffer.toString().trim();
+            } else if (OAI2Constants.METADATA_FORMAT.equals(name) &&
+                    metadataPrefix != null) {
+                formatConsumer.accept(new OAIMetadataFormat(metadataPrefix,
+                        schema, metadataNamespace));
+            }
+            bufferChars = false;
+        } else if (e.isCharacters() && bufferChars) {
+            charBuffer.append(e.asCharacters().getData());
+        }
+    }
+
+    /** Does nothing. */
+    @Override
+    public void close() { }
+}
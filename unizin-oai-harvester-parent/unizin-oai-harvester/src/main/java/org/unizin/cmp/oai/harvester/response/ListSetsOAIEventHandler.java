@@ -0,0 +1,62 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.XMLEvent;
+
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAISet;
+
+/**
+ * Event handler that produces {@link OAISet} instances from the responses to a
+ * {@code ListSets} harvest.
+ * <p>
+ * Each set is sent to a {@link Consumer} when its closing tag is seen. Set
+ * descriptions are ignored.
+ * </p>
+ */
+public final class ListSetsOAIEventHandler implements OAIEventHandler {
+    private final Consumer<OAISet> setConsumer;
+    private final StringBuilder charBuffer = new StringBuilder();
+    private boolean bufferChars;
+    private String setSpec;
+    private String setName;
+
+    public ListSetsOAIEventHandler(final Consumer<OAISet> setConsumer) {
+        Objects.requireNonNull(setConsumer, "setConsumer");
+        this.setConsumer = setConsumer;
+    }
+
+    @Override
+    public void onEvent(final XMLEvent e) {
+        if (e.isStartElement()) {
+            final QName name = e.asStartElement().getName();
+            if (OAI2Constants.SET.equals(name)) {
+                setSpec = null;
+                setName = null;
+            } else if (OAI2Constants.SET_SPEC.equals(name) ||
+                    OAI2Constants.SET_NAME.equals(name)) {
+                bufferChars = true;
+                charBuffer.setLength(0);
+            }
+        } else if (e.isEndElement()) {
+            final QName name = e.asEndElement().getName();
+            if (OAI2Constants.SET_SPEC.equals(name)) {
+                setSpec = charBuffer.toString().trim();
+            } else if (OAI2Constants.SET_NAME.equals(name)) {
+                setName = charBuffer.toString().trim();
+            } else if (OAI2Constants.SET.equals(name) && setSpec != null) {
+                setConsumer.accept(new OAISet(setSpec, setName));
+            }
+            bufferChars = false;
+        } else if (e.isCharacters() && bufferChars) {
+            charBuffer.append(e.asCharacters().getData());
+        }
+    }
+
+    /** Does nothing. */
+    @Override
+    public void close() { }
+}
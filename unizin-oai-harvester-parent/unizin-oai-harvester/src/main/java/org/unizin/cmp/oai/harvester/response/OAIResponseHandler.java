@@ -13,6 +13,11 @@ import org.unizin.cmp.oai.harvester.HarvestNotification;
  * {@link #onResponseReceived(HarvestNotification)} method and returning that
  * instance from {@link #getEventHandler(HarvestNotification)}.
  * </p>
+ * <p>
+ * Implementations that want to avoid the cost of an {@code XMLEvent} per
+ * token may override {@link #getStreamHandler(HarvestNotification)} to
+ * consume responses through an {@link OAIStreamHandler} instead.
+ * </p>
  *
  */
 public interface OAIResponseHandler {
@@ -31,6 +36,28 @@ public interface OAIResponseHandler {
      */
     OAIEventHandler getEventHandler(HarvestNotification notification);
 
+    /**
+     * Get the {@link OAIStreamHandler} to which this response should be sent.
+     * <p>
+     * This is what the harvester actually calls, in place of
+     * {@link #getEventHandler(HarvestNotification)}, and with the same
+     * notification. The default implementation wraps the event handler in an
+     * {@link EventOAIStreamHandler}, in which case events are delivered
+     * exactly as they would be to the event handler directly. Override this
+     * method to use the low-allocation stream contract; implementations that
+     * do so may simply throw {@link UnsupportedOperationException} from
+     * {@link #getEventHandler(HarvestNotification)}.
+     * </p>
+     *
+     * @param notification
+     *            the current state of the harvest.
+     * @return the stream handler to use for this response.
+     */
+    default OAIStreamHandler getStreamHandler(
+            final HarvestNotification notification) {
+        return new EventOAIStreamHandler(getEventHandler(notification));
+    }
+
     /**
      * Called whenever a harvest starts.
      * <p>
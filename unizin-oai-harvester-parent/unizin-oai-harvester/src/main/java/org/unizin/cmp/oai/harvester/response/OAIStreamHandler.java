@@ -0,0 +1,55 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unizin.cmp.oai.harvester.exception.HarvesterXMLParsingException;
+
+/**
+ * Instances receive each response as a series of {@link XMLStreamReader}
+ * cursor positions, rather than as {@link javax.xml.stream.events.XMLEvent
+ * XMLEvents}.
+ * <p>
+ * This is the low-allocation alternative to {@link OAIEventHandler}. No object
+ * is created per event on the harvester's behalf; handlers read only what they
+ * need from the reader, e.g., comparing element names with
+ * {@link org.unizin.cmp.oai.OAIXMLUtils#hasName(XMLStreamReader,
+ * javax.xml.namespace.QName)} and fetching text only inside elements of
+ * interest.
+ * </p>
+ * <p>
+ * Instances are created or dispensed per-response by
+ * {@link OAIResponseHandler#getStreamHandler(
+ * org.unizin.cmp.oai.harvester.HarvestNotification)}. Existing event handlers
+ * are supported through {@link EventOAIStreamHandler}.
+ * </p>
+ */
+public interface OAIStreamHandler {
+    /**
+     * Called once for each XML event in the repository's response, with the
+     * reader positioned at that event.
+     * <p>
+     * Implementations must not move the reader (e.g., by calling
+     * {@link XMLStreamReader#next()} or
+     * {@link XMLStreamReader#getElementText()}), and must not keep any
+     * reference to it after returning.
+     * </p>
+     *
+     * @param reader
+     *            the reader, positioned at the current event.
+     * @throws XMLStreamException
+     *             if there's an error handling the event.
+     * @throws HarvesterXMLParsingException
+     *             if the handler detects invalid incoming XML, e.g., malformed
+     *             record metadata.
+     */
+    void onEvent(XMLStreamReader reader) throws XMLStreamException;
+
+    /**
+     * Dispose of any underlying resources associated with this instance.
+     *
+     * @throws XMLStreamException
+     *             if there's an error disposing of resources.
+     */
+    void close() throws XMLStreamException;
+}
@@ -0,0 +1,25 @@
+package org.unizin.cmp.oai.harvester.response;
+
+/**
+ * A stream handler that can also see the original bytes of each response.
+ * <p>
+ * When the harvester is given a stream handler of this type, it parses the
+ * response with a reader that reports the byte offsets of each event, and
+ * calls {@link #onResponseStart(RawResponse)} before sending the first event.
+ * The reader used is Aalto's, which is an optional dependency of this library;
+ * harvesting with a handler of this type without it on the classpath throws
+ * {@link NoClassDefFoundError}.
+ * </p>
+ *
+ * @see RawRecordOAIStreamHandler
+ */
+public interface RawOAIStreamHandler extends OAIStreamHandler {
+    /**
+     * Called once per response, before any events are sent.
+     *
+     * @param response
+     *            the bytes of the response, valid for use while handling
+     *            this response's events.
+     */
+    void onResponseStart(RawResponse response);
+}
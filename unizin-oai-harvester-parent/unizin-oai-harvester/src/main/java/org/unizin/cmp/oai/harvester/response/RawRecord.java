@@ -0,0 +1,146 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import org.unizin.cmp.oai.OAI2Constants;
+
+/**
+ * A {@code <record>} element exactly as the repository sent it, with its
+ * parsed header fields.
+ * <p>
+ * The record's bytes are slices of the response, except for any namespace
+ * declarations inherited from its ancestors, which are added to the
+ * {@code <record>} start tag so that the bytes are a well-formed document on
+ * their own. The bytes are always UTF-8; if the response used another
+ * encoding, they are transcoded.
+ * </p>
+ * <p>
+ * Instances are views of the response buffer, and are valid only during the
+ * call in which they are received. Use {@link #writeTo(OutputStream)} or
+ * {@link #toByteArray()} to keep the bytes; the header fields may be kept.
+ * </p>
+ */
+public final class RawRecord {
+    private final String identifier;
+    private final String datestamp;
+    private final List<String> sets;
+    private final String status;
+    private final ByteBuffer[] parts;
+
+    RawRecord(final String identifier, final String datestamp,
+            final List<String> sets, final String status,
+            final ByteBuffer head, final byte[] namespaces,
+            final ByteBuffer tail, final Charset encoding) {
+        this.identifier = identifier;
+        this.datestamp = datestamp;
+        this.sets = Collections.unmodifiableList(sets);
+        this.status = status;
+        if (StandardCharsets.UTF_8.equals(encoding) ||
+                StandardCharsets.US_ASCII.equals(encoding)) {
+            this.parts = new ByteBuffer[] {head, ByteBuffer.wrap(namespaces),
+                    tail};
+        } else {
+            final String text = encoding.decode(head) +
+                    new String(namespaces, StandardCharsets.UTF_8) +
+                    encoding.decode(tail);
+            this.parts = new ByteBuffer[] {ByteBuffer.wrap(
+                    text.getBytes(StandardCharsets.UTF_8))};
+        }
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getDatestamp() {
+        return datestamp;
+    }
+
+    /**
+     * Get the set specs from the record's header.
+     *
+     * @return an unmodifiable list of the record's sets, in document order.
+     */
+    public List<String> getSets() {
+        return sets;
+    }
+
+    /**
+     * Get the value of the header's {@code status} attribute.
+     *
+     * @return the status, or {@code null} if the header has none.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isDeleted() {
+        return OAI2Constants.DELETED_STATUS.equals(status);
+    }
+
+    /**
+     * Get the length of the record's bytes.
+     *
+     * @return the number of bytes that {@link #writeTo(OutputStream)} writes.
+     */
+    public int size() {
+        int size = 0;
+        for (final ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Write the record's bytes to a stream.
+     *
+     * @param out
+     *            the stream to which to write.
+     * @throws IOException
+     *             if there's an error writing to the stream.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        for (final ByteBuffer part : parts) {
+            final ByteBuffer b = part.duplicate();
+            if (b.hasArray()) {
+                out.write(b.array(), b.arrayOffset() + b.position(),
+                        b.remaining());
+            } else {
+                final byte[] bytes = new byte[b.remaining()];
+                b.get(bytes);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Copy the record's bytes.
+     *
+     * @return a new array holding the record's bytes.
+     */
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(size());
+        try {
+            writeTo(baos);
+        } catch (final IOException e) {
+            // ByteArrayOutputStream doesn't throw.
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "RawRecord [identifier=" + identifier + ", datestamp=" +
+                datestamp + ", sets=" + sets + ", status=" + status +
+                ", size=" + size() + "]";
+    }
+}
@@ -0,0 +1,280 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+
+/**
+ * Stream handler that produces each {@code <record>} of a response as a
+ * {@link RawRecord}, without serializing any XML.
+ * <p>
+ * The bytes of each record are sliced out of the response as the repository
+ * sent them, with the namespace declarations in scope from the record's
+ * ancestors added to the record's start tag. Only the header fields are
+ * parsed into strings. Compared with buffering a record's events and writing
+ * them out again, as {@link RecordOAIEventHandler} subclasses typically do,
+ * this creates almost no garbage and preserves the record byte for byte.
+ * </p>
+ * <p>
+ * Responses must be in an encoding in which ASCII characters are single bytes,
+ * e.g., UTF-8 or ISO-8859-1. Bytes before each record are released as soon as
+ * they are parsed, so only the current record is held in memory.
+ * </p>
+ */
+public final class RawRecordOAIStreamHandler implements RawOAIStreamHandler {
+    private final Consumer<RawRecord> recordConsumer;
+
+    /**
+     * Prefixes and URIs of the namespaces declared by open elements outside
+     * any record, as alternating entries, outermost first.
+     */
+    private final List<String> declarations = new ArrayList<>();
+    /** Size of {@link #declarations} before each open element's. */
+    private final Deque<Integer> marks = new ArrayDeque<>();
+    private final StringBuilder text = new StringBuilder();
+
+    private RawResponse response;
+    /** Inherited declarations for a record that declares none of its own. */
+    private byte[] inherited;
+
+    private boolean inRecord;
+    private boolean inHeader;
+    private int depth;
+    private long recordStart;
+    private int nameLength;
+    private byte[] recordNamespaces;
+    private QName collecting;
+    private String identifier;
+    private String datestamp;
+    private List<String> sets;
+    private String status;
+
+
+    public RawRecordOAIStreamHandler(
+            final Consumer<RawRecord> recordConsumer) {
+        Objects.requireNonNull(recordConsumer, "recordConsumer");
+        this.recordConsumer = recordConsumer;
+    }
+
+    private static boolean isAsciiCompatible(final Charset charset) {
+        final byte[] b = "<".getBytes(charset);
+        return b.length == 1 && b[0] == '<';
+    }
+
+    private static String nonNull(final String s) {
+        return s == null ? "" : s;
+    }
+
+    private static void appendEscaped(final StringBuilder sb,
+            final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '&': sb.append("&amp;"); break;
+            case '<': sb.append("&lt;"); break;
+            case '"': sb.append("&quot;"); break;
+            case '\t': sb.append("&#9;"); break;
+            case '\n': sb.append("&#10;"); break;
+            case '\r': sb.append("&#13;"); break;
+            default: sb.append(c); break;
+            }
+        }
+    }
+
+    @Override
+    public void onResponseStart(final RawResponse response) {
+        if (!isAsciiCompatible(response.getEncoding())) {
+            throw new HarvesterException(String.format(
+                    "Cannot extract raw records from a response encoded in %s.",
+                    response.getEncoding()));
+        }
+        this.response = response;
+        declarations.clear();
+        marks.clear();
+        inherited = null;
+        inRecord = false;
+    }
+
+    /**
+     * Get the declarations in scope from the record's ancestors that the
+     * record doesn't itself redeclare, as they should be written in its start
+     * tag.
+     */
+    private byte[] inheritedNamespaces(final XMLStreamReader reader) {
+        final int count = reader.getNamespaceCount();
+        if (count == 0 && inherited != null) {
+            return inherited;
+        }
+        final Set<String> seen = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            seen.add(nonNull(reader.getNamespacePrefix(i)));
+        }
+        final StringBuilder sb = new StringBuilder();
+        // Innermost declarations take precedence.
+        for (int i = declarations.size() - 2; i >= 0; i -= 2) {
+            final String prefix = declarations.get(i);
+            final String uri = declarations.get(i + 1);
+            if (!seen.add(prefix) || uri.isEmpty()) {
+                continue;
+            }
+            sb.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix)
+                .append("=\"");
+            appendEscaped(sb, uri);
+            sb.append('"');
+        }
+        final byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        if (count == 0) {
+            inherited = bytes;
+        }
+        return bytes;
+    }
+
+    private void startRecord(final XMLStreamReader reader) {
+        inRecord = true;
+        inHeader = false;
+        depth = 0;
+        recordStart = response.getStartOffset();
+        final String prefix = nonNull(reader.getPrefix());
+        final String name = prefix.isEmpty() ? reader.getLocalName() :
+            prefix + ":" + reader.getLocalName();
+        nameLength = name.getBytes(response.getEncoding()).length;
+        recordNamespaces = inheritedNamespaces(reader);
+        collecting = null;
+        identifier = null;
+        datestamp = null;
+        sets = new ArrayList<>();
+        status = null;
+    }
+
+    private void endRecord() {
+        final long end = response.getEndOffset();
+        final ByteBuffer bytes = response.slice(recordStart, end);
+        // The start offset may include whitespace before the tag.
+        int lt = 0;
+        while (bytes.get(lt) != '<') {
+            lt++;
+        }
+        final int split = lt + 1 + nameLength;
+        final ByteBuffer head = bytes.duplicate();
+        head.position(lt).limit(split);
+        final ByteBuffer tail = bytes.duplicate();
+        tail.position(split);
+        inRecord = false;
+        recordConsumer.accept(new RawRecord(identifier, datestamp, sets,
+                status, head.slice(), recordNamespaces, tail.slice(),
+                response.getEncoding()));
+        response.release(end);
+    }
+
+    private void startRecordChild(final XMLStreamReader reader) {
+        if (depth == 1 && OAIXMLUtils.hasName(reader,
+                OAI2Constants.HEADER)) {
+            inHeader = true;
+            status = OAIXMLUtils.attributeValue(reader,
+                    OAI2Constants.HEADER_STATUS_ATTR);
+        } else if (depth == 2 && inHeader) {
+            if (OAIXMLUtils.hasName(reader, OAI2Constants.IDENTIFIER)) {
+                collecting = OAI2Constants.IDENTIFIER;
+            } else if (OAIXMLUtils.hasName(reader, OAI2Constants.DATESTAMP)) {
+                collecting = OAI2Constants.DATESTAMP;
+            } else if (OAIXMLUtils.hasName(reader, OAI2Constants.SET_SPEC)) {
+                collecting = OAI2Constants.SET_SPEC;
+            }
+            text.setLength(0);
+        }
+    }
+
+    private void endRecordChild() {
+        if (depth == 1) {
+            inHeader = false;
+        } else if (collecting != null) {
+            final String value = text.toString();
+            if (collecting == OAI2Constants.IDENTIFIER) {
+                identifier = value;
+            } else if (collecting == OAI2Constants.DATESTAMP) {
+                datestamp = value;
+            } else {
+                sets.add(value);
+            }
+            collecting = null;
+        }
+    }
+
+    private void pushNamespaces(final XMLStreamReader reader) {
+        marks.push(declarations.size());
+        final int count = reader.getNamespaceCount();
+        for (int i = 0; i < count; i++) {
+            declarations.add(nonNull(reader.getNamespacePrefix(i)));
+            declarations.add(nonNull(reader.getNamespaceURI(i)));
+        }
+        if (count > 0) {
+            inherited = null;
+        }
+    }
+
+    private void popNamespaces() {
+        final int mark = marks.pop();
+        if (declarations.size() > mark) {
+            declarations.subList(mark, declarations.size()).clear();
+            inherited = null;
+        }
+    }
+
+    @Override
+    public void onEvent(final XMLStreamReader reader) {
+        switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+            if (inRecord) {
+                depth++;
+                startRecordChild(reader);
+            } else if (OAIXMLUtils.hasName(reader, OAI2Constants.RECORD)) {
+                startRecord(reader);
+            } else {
+                response.release(response.getStartOffset());
+                pushNamespaces(reader);
+            }
+            break;
+        case XMLStreamConstants.END_ELEMENT:
+            if (!inRecord) {
+                popNamespaces();
+            } else if (depth == 0) {
+                endRecord();
+            } else {
+                endRecordChild();
+                depth--;
+            }
+            break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+            if (collecting != null) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(),
+                        reader.getTextLength());
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void close() {
+        response = null;
+    }
+}
@@ -0,0 +1,73 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The original bytes of a response being parsed for a
+ * {@link RawOAIStreamHandler}.
+ * <p>
+ * Offsets are absolute byte offsets from the start of the response. The
+ * harvester retains every byte of the response from the lowest offset not yet
+ * released, so handlers should release bytes as soon as they no longer need
+ * them; a handler that never releases anything holds the whole response in
+ * memory.
+ * </p>
+ */
+public interface RawResponse {
+    /**
+     * Get the offset of the first byte of the current event.
+     * <p>
+     * For a start element, this may be the offset of whitespace preceding the
+     * element's {@code <} if that whitespace was not itself reported as an
+     * event, e.g., whitespace before the document element.
+     * </p>
+     *
+     * @return the offset of the first byte of the event at which the reader
+     *         is positioned.
+     */
+    long getStartOffset();
+
+    /**
+     * Get the offset just past the last byte of the current event.
+     *
+     * @return the offset just past the last byte of the event at which the
+     *         reader is positioned.
+     */
+    long getEndOffset();
+
+    /**
+     * Get a view of part of the response.
+     * <p>
+     * The view must not be modified. It is valid only until the handler's
+     * current call returns, and must be copied if needed after that.
+     * </p>
+     *
+     * @param from
+     *            the offset of the first byte, inclusive.
+     * @param to
+     *            the offset of the last byte, exclusive.
+     * @return a buffer whose position is zero and whose limit is
+     *         {@code to - from}.
+     * @throws IndexOutOfBoundsException
+     *             if any part of the range has been released or has not yet
+     *             been parsed.
+     */
+    ByteBuffer slice(long from, long to);
+
+    /**
+     * Tell the harvester that bytes before the given offset will not be
+     * needed again.
+     *
+     * @param offset
+     *            the offset of the first byte that may still be needed.
+     */
+    void release(long offset);
+
+    /**
+     * Get the character encoding of the response.
+     *
+     * @return the encoding of the response's bytes.
+     */
+    Charset getEncoding();
+}
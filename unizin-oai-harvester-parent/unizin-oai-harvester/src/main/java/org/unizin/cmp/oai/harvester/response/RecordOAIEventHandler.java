@@ -6,6 +6,7 @@ import java.util.Objects;
 import java.util.function.Consumer;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
@@ -30,6 +31,18 @@ import org.unizin.cmp.oai.OAIXMLUtils;
  * cancelled.
  * </p>
  *
+ * <h2>Headers</h2>
+ * <p>
+ * {@code ListIdentifiers} responses contain bare {@code <header>} elements
+ * rather than records. Each is treated as a record containing only that
+ * header: a {@code <record>} start element is created and passed to
+ * {@link #createRecord(StartElement)}, and the events passed to
+ * {@link #onRecordEnd(Object, List)} are wrapped in {@code <record>} and
+ * {@code </record>}. Handlers therefore produce the same objects for a
+ * header as for a {@code ListRecords} record without metadata, such as a
+ * deleted record.
+ * </p>
+ *
  * @param <T>
  *            the type of the record object.
  */
@@ -38,11 +51,14 @@ implements OAIEventHandler {
     private static final Logger LOGGER = LoggerFactory.getLogger(
             RecordOAIEventHandler.class);
 
+    private final XMLEventFactory eventFactory =
+            OAIXMLUtils.newEventFactory();
     private List<XMLEvent> eventBuffer = new ArrayList<>();
     private final StringBuilder charBuffer = new StringBuilder();
     private final Consumer<T> recordConsumer;
     private T currentRecord;
     private boolean inRecord;
+    private boolean inHeaderOnlyRecord;
     private boolean bufferChars;
     private QName currentStartElementQName;
 
@@ -76,6 +92,9 @@ implements OAIEventHandler {
                 inRecord = true;
                 currentRecord = createRecord(se);
             } else if (currentElementIs(OAI2Constants.HEADER)) {
+                if (!inRecord) {
+                    startHeaderOnlyRecord();
+                }
                 final String status = OAIXMLUtils.attributeValue(se,
                         OAI2Constants.HEADER_STATUS_ATTR);
                 onStatus(currentRecord, status);
@@ -91,6 +110,15 @@ implements OAIEventHandler {
                 eventBuffer.add(e);
                 onRecordEnd(currentRecord, copyAndClearBuffer());
                 recordConsumer.accept(currentRecord);
+            } else if (OAI2Constants.HEADER.equals(name) &&
+                    inHeaderOnlyRecord) {
+                inRecord = false;
+                inHeaderOnlyRecord = false;
+                eventBuffer.add(e);
+                eventBuffer.add(eventFactory.createEndElement(
+                        OAI2Constants.RECORD, null));
+                onRecordEnd(currentRecord, copyAndClearBuffer());
+                recordConsumer.accept(currentRecord);
             } else if (OAI2Constants.IDENTIFIER.equals(name)) {
                 final String identifier = getBufferedChars();
                 LOGGER.trace("Setting identifier {}", identifier);
@@ -111,6 +139,7 @@ implements OAIEventHandler {
             charBuffer.append(e.asCharacters().getData());
         } else if (e.isStartDocument() || e.isEndDocument()) {
             inRecord = false;
+            inHeaderOnlyRecord = false;
             bufferChars = false;
             charBuffer.setLength(0);
         }
@@ -119,6 +148,16 @@ implements OAIEventHandler {
         }
     }
 
+    private void startHeaderOnlyRecord() {
+        final StartElement se = eventFactory.createStartElement(
+                OAI2Constants.RECORD, null, null);
+        inRecord = true;
+        inHeaderOnlyRecord = true;
+        eventBuffer.clear();
+        eventBuffer.add(se);
+        currentRecord = createRecord(se);
+    }
+
     // following are left empty for handlers that don't care
     protected void onDatestamp(T currentRecord, String datestamp) {}
     protected void onIdentifier(T currentRecord, String identifier) {}
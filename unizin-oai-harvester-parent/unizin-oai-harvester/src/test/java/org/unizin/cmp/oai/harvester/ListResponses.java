@@ -8,8 +8,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.IntFunction;
 
 import org.apache.http.HttpStatus;
+import org.unizin.cmp.oai.OAI2Constants;
 import org.unizin.cmp.oai.ResumptionToken;
 import org.unizin.cmp.oai.mocks.WireMockUtils;
 import org.unizin.cmp.oai.templates.ListRecordsTemplate;
@@ -118,6 +120,59 @@ public final class ListResponses {
     }
 
 
+    /**
+     * Set up a list of pages of minimal records.
+     *
+     * @param pages
+     *            the number of pages.
+     * @param pageSize
+     *            the number of records on each page.
+     * @param tokens
+     *            gives the token carried by each page but the last (pages are
+     *            numbered from 1).
+     * @param withCursor
+     *            whether tokens have {@code cursor} and
+     *            {@code completeListSize} attributes.
+     * @return the identifiers of the records, in order.
+     */
+    public static List<String> setupPages(final int pages,
+            final int pageSize, final IntFunction<String> tokens,
+            final boolean withCursor) {
+        final List<String> identifiers = new ArrayList<>();
+        String first = null;
+        final Map<String, String> subsequent = new HashMap<>();
+        for (int page = 1; page <= pages; page++) {
+            final StringBuilder sb = new StringBuilder()
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<OAI-PMH xmlns=\"").append(OAI2Constants.OAI_2_NS_URI)
+                .append("\"><responseDate>2016-01-01T00:00:00Z</responseDate>")
+                .append("<request verb=\"ListRecords\">http://example.org/oai")
+                .append("</request><ListRecords>");
+            for (int i = 0; i < pageSize; i++) {
+                final String identifier = "oai:example.org:" + page + "." + i;
+                identifiers.add(identifier);
+                sb.append("<record><header><identifier>").append(identifier)
+                    .append("</identifier><datestamp>2016-01-01</datestamp>")
+                    .append("</header></record>");
+            }
+            sb.append("<resumptionToken");
+            if (withCursor) {
+                sb.append(" cursor=\"").append((page - 1) * pageSize)
+                    .append("\" completeListSize=\"")
+                    .append(pages * pageSize).append("\"");
+            }
+            sb.append(">").append(page < pages ? tokens.apply(page) : "")
+                .append("</resumptionToken></ListRecords></OAI-PMH>");
+            if (page == 1) {
+                first = sb.toString();
+            } else {
+                subsequent.put(tokens.apply(page - 1), sb.toString());
+            }
+        }
+        ListResponses.setupResponses(first, subsequent);
+        return identifiers;
+    }
+
     /** No instances allowed. */
     private ListResponses() { }
 }
@@ -0,0 +1,221 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.harvester.response.EventOAIStreamHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIStreamHandler;
+import org.unizin.cmp.oai.harvester.response.RawRecordOAIStreamHandler;
+
+/**
+ * Compares the throughput and allocation rate of parsing a large ListRecords
+ * response with an {@link OAIEventHandler}, with an
+ * {@link OAIStreamHandler}, and with a {@link RawRecordOAIStreamHandler}.
+ * <p>
+ * This is not a unit test, and is not run by the build. Run it from the test
+ * classpath, e.g., from an IDE, or with
+ * </p>
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     org.unizin.cmp.oai.harvester.ParserBenchmark [records [iterations]]
+ * </pre>
+ * <p>
+ * Each handler does the same trivial work, counting records, so the
+ * difference is the cost of delivering events (and, for raw records, of
+ * slicing out each record's bytes). Allocation is measured with
+ * HotSpot's per-thread allocation counter, and is reported as {@code n/a} on
+ * other JVMs. Since Aalto is on the test classpath, name the StAX
+ * implementation to measure with the {@code javax.xml.stream.XMLInputFactory}
+ * and {@code javax.xml.stream.XMLEventFactory} system properties, as the
+ * build does for the tests.
+ * </p>
+ */
+public final class ParserBenchmark {
+    private static final int DEFAULT_RECORDS = 20_000;
+    private static final int DEFAULT_ITERATIONS = 10;
+    private static final int WARMUP_ITERATIONS = 5;
+
+    private static final OAIResponseParser PARSER = new OAIResponseParser(
+            OAIXMLUtils.newInputFactory(),
+            LoggerFactory.getLogger(ParserBenchmark.class));
+
+    private interface HandlerFactory {
+        Object newHandler(long[] count);
+    }
+
+    private static String response(final int records) {
+        final StringBuilder sb = new StringBuilder(records * 700);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">")
+            .append("<responseDate>2016-01-01T00:00:00Z</responseDate>")
+            .append("<request verb=\"ListRecords\">http://example.org/oai")
+            .append("</request><ListRecords>");
+        for (int i = 0; i < records; i++) {
+            sb.append("<record><header><identifier>oai:example.org:")
+                .append(i).append("</identifier>")
+                .append("<datestamp>2016-01-01</datestamp>")
+                .append("<setSpec>a</setSpec><setSpec>b</setSpec>")
+                .append("</header><metadata>")
+                .append("<oai_dc:dc xmlns:oai_dc=")
+                .append("\"http://www.openarchives.org/OAI/2.0/oai_dc/\" ")
+                .append("xmlns:dc=\"http://purl.org/dc/elements/1.1/\">")
+                .append("<dc:title>Title ").append(i).append("</dc:title>")
+                .append("<dc:creator>Some Creator</dc:creator>")
+                .append("<dc:creator>Another Creator</dc:creator>")
+                .append("<dc:subject>Subject one</dc:subject>")
+                .append("<dc:subject>Subject two</dc:subject>")
+                .append("<dc:description>A description of record ")
+                .append(i).append(", long enough to be typical.")
+                .append("</dc:description>")
+                .append("<dc:date>2015-10-31</dc:date>")
+                .append("<dc:type>Text</dc:type>")
+                .append("<dc:identifier>http://example.org/")
+                .append(i).append("</dc:identifier>")
+                .append("</oai_dc:dc></metadata></record>");
+        }
+        sb.append("<resumptionToken cursor=\"0\">next</resumptionToken>")
+            .append("</ListRecords></OAI-PMH>");
+        return sb.toString();
+    }
+
+    private static OAIEventHandler eventHandler(final long[] count) {
+        return new OAIEventHandler() {
+            @Override
+            public void onEvent(final XMLEvent e) {
+                if (e.isStartElement() && OAI2Constants.RECORD.equals(
+                        e.asStartElement().getName())) {
+                    count[0]++;
+                }
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    private static OAIStreamHandler streamHandler(final long[] count) {
+        return new OAIStreamHandler() {
+            @Override
+            public void onEvent(final XMLStreamReader reader) {
+                if (reader.getEventType() ==
+                        XMLStreamConstants.START_ELEMENT &&
+                        OAIXMLUtils.hasName(reader, OAI2Constants.RECORD)) {
+                    count[0]++;
+                }
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    private static OAIStreamHandler rawHandler(final long[] count) {
+        return new RawRecordOAIStreamHandler(r -> count[0]++);
+    }
+
+    /**
+     * An adapted event handler, hidden so that the parser cannot bypass the
+     * adapter.
+     */
+    private static OAIStreamHandler adaptedHandler(final long[] count) {
+        final OAIStreamHandler adapter = new EventOAIStreamHandler(
+                eventHandler(count));
+        return new OAIStreamHandler() {
+            @Override
+            public void onEvent(final XMLStreamReader reader)
+                    throws XMLStreamException {
+                adapter.onEvent(reader);
+            }
+
+            @Override
+            public void close() throws XMLStreamException {
+                adapter.close();
+            }
+        };
+    }
+
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long parseOnce(final byte[] response,
+            final HandlerFactory factory) throws XMLStreamException {
+        final long[] count = new long[1];
+        final Harvest harvest = new Harvest();
+        harvest.start();
+        final Object handler = factory.newHandler(count);
+        final ByteArrayInputStream in = new ByteArrayInputStream(response);
+        if (handler instanceof OAIEventHandler) {
+            PARSER.parse(in, harvest, (OAIEventHandler)handler);
+        } else {
+            PARSER.parse(in, harvest, (OAIStreamHandler)handler);
+        }
+        return count[0];
+    }
+
+    private static void run(final String name, final byte[] response,
+            final int records, final int iterations,
+            final HandlerFactory factory) throws XMLStreamException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parseOnce(response, factory);
+        }
+        final long startAllocated = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final long count = parseOnce(response, factory);
+            if (count != records) {
+                throw new IllegalStateException("Expected " + records +
+                        " records, but counted " + count + ".");
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - startAllocated;
+        final double seconds = elapsed / 1e9;
+        final double totalRecords = (double)records * iterations;
+        System.out.printf("%-8s %10.1f MB/s %12.0f records/s %12s%n", name,
+                response.length * (double)iterations / seconds / 1e6,
+                totalRecords / seconds,
+                startAllocated < 0 ? "n/a" : String.format(
+                        "%.0f B/record", allocated / totalRecords));
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int records = args.length > 0 ? Integer.parseInt(args[0]) :
+            DEFAULT_RECORDS;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) :
+            DEFAULT_ITERATIONS;
+        final byte[] response = response(records).getBytes(
+                StandardCharsets.UTF_8);
+        System.out.printf("%d records, %.1f MB per response, %d iterations%n",
+                records, response.length / 1e6, iterations);
+        run("event", response, records, iterations,
+                ParserBenchmark::eventHandler);
+        run("stream", response, records, iterations,
+                ParserBenchmark::streamHandler);
+        run("adapted", response, records, iterations,
+                ParserBenchmark::adaptedHandler);
+        run("raw", response, records, iterations,
+                ParserBenchmark::rawHandler);
+    }
+
+    /** No instances allowed. */
+    private ParserBenchmark() { }
+}
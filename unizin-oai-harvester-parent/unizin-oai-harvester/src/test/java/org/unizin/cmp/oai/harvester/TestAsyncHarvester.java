@@ -0,0 +1,155 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests harvests started with
+ * {@link Harvester#startAsync(HarvestParams,
+ * org.unizin.cmp.oai.harvester.response.OAIResponseHandler)}.
+ */
+public final class TestAsyncHarvester {
+    private static final int HARVESTS = 10;
+
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private final ExecutorService parserExecutor =
+            Executors.newSingleThreadExecutor();
+    private final String expected;
+    private CloseableHttpAsyncClient client;
+
+    public TestAsyncHarvester() throws IOException {
+        expected = IOUtils.stringFromClasspathFile(
+                "/oai-expected/merged-list-records.xml");
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    @Before
+    public void startClient() {
+        client = Harvester.defaultAsyncHttpClient()
+                .setMaxConnPerRoute(HARVESTS)
+                .setMaxConnTotal(HARVESTS)
+                .build();
+        client.start();
+    }
+
+    @After
+    public void shutdown() throws IOException {
+        client.close();
+        parserExecutor.shutdownNow();
+    }
+
+    private Harvester newHarvester() {
+        return new Harvester.Builder()
+                .withAsyncHttpClient(client, parserExecutor)
+                .build();
+    }
+
+    /**
+     * Tests that handlers see the same output asynchronously as they do
+     * synchronously.
+     */
+    @Test
+    public void testAsync() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        newHarvester().startAsync(newParams().build(),
+                new MergingOAIResponseHandler(
+                        Tests.simpleMergingHandler(baos))).get();
+        XMLAssert.assertXMLEqual(expected, new String(baos.toByteArray(),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that many harvests can run at once on a single parser thread.
+     */
+    @Test
+    public void testConcurrentHarvests() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final List<HarvestNotification> ended = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < HARVESTS; i++) {
+            final Harvester harvester = newHarvester();
+            harvester.addObserver((o, arg) -> {
+                final HarvestNotification hn = (HarvestNotification)arg;
+                if (hn.getType() == HARVEST_ENDED) {
+                    ended.add(hn);
+                }
+            });
+            futures.add(harvester.startAsync(newParams().build(),
+                    Mocks.newResponseHandler()));
+        }
+        CompletableFuture.allOf(futures.toArray(
+                new CompletableFuture<?>[futures.size()])).get();
+        Assert.assertEquals(HARVESTS, ended.size());
+        ended.forEach(hn -> {
+            Assert.assertFalse(hn.hasError());
+            Assert.assertEquals(Long.valueOf(
+                    ListResponses.DEFAULT_RESPONSE_COUNT),
+                    hn.getStat(HarvestStatistic.RESPONSE_COUNT));
+        });
+    }
+
+    /**
+     * Tests that HTTP errors complete the future exceptionally with the same
+     * exception a synchronous harvest would throw.
+     */
+    @Test
+    public void testHTTPError() throws Exception {
+        WireMockUtils.getStub(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Oops");
+        try {
+            newHarvester().startAsync(newParams().build(),
+                    Mocks.newResponseHandler()).get();
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof
+                    HarvesterHTTPStatusException);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ((HarvesterHTTPStatusException)e.getCause())
+                .writeResponseBodyTo(baos);
+            Assert.assertEquals("Oops", new String(baos.toByteArray(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Tests that a harvester without an asynchronous client refuses to start
+     * an asynchronous harvest.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testNoAsyncClient() {
+        new Harvester.Builder().build().startAsync(newParams().build(),
+                Mocks.newResponseHandler());
+    }
+}
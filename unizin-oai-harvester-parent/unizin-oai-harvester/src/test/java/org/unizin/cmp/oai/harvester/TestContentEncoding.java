@@ -0,0 +1,224 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIIdentity;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.IdentifyOAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+
+/**
+ * Tests that harvesters ask for compressed responses, decode them, and count
+ * the bytes received before and after decoding.
+ */
+public final class TestContentEncoding {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+
+    private static final String REPOSITORY_NAME = "Example Repository";
+
+    private static final String IDENTIFY_RESPONSE;
+    static {
+        final StringBuilder sb = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+                "<request verb=\"Identify\">http://example.org/oai</request>" +
+                "<Identify><repositoryName>" + REPOSITORY_NAME +
+                "</repositoryName>");
+        // Descriptions are ignored, but make the response compressible.
+        for (int i = 0; i < 200; i++) {
+            sb.append("<description><note>A repetitive description.</note>" +
+                    "</description>");
+        }
+        IDENTIFY_RESPONSE = sb.append("</Identify></OAI-PMH>").toString();
+    }
+
+    private static final byte[] IDENTIFY_BYTES = IDENTIFY_RESPONSE.getBytes(
+            StandardCharsets.UTF_8);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private interface Encoder {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(final Encoder encoder) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = encoder.wrap(bytes)) {
+            out.write(IDENTIFY_BYTES);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void stub(final byte[] body, final String encoding) {
+        stubFor(get(urlMatching(".*")).willReturn(aResponse()
+                .withStatus(HttpStatus.SC_OK)
+                .withHeader(HttpHeaders.CONTENT_ENCODING, encoding)
+                .withBody(body)));
+    }
+
+    private static final class Result {
+        private final List<OAIIdentity> identities = new ArrayList<>();
+        private Map<HarvestStatistic, Long> stats;
+    }
+
+    private static OAIResponseHandler handler(final Result result) {
+        final OAIEventHandler eventHandler = new IdentifyOAIEventHandler(
+                result.identities::add);
+        return new AbstractOAIResponseHandler() {
+            @Override
+            public OAIEventHandler getEventHandler(
+                    final HarvestNotification notification) {
+                return eventHandler;
+            }
+        };
+    }
+
+    private static Result harvest(final Harvester harvester) {
+        final Result result = new Result();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HarvestNotificationType.HARVEST_ENDED) {
+                result.stats = hn.getStats();
+            }
+        });
+        harvester.start(Tests.newParams(OAIVerb.IDENTIFY).build(),
+                handler(result));
+        return result;
+    }
+
+    private static void checkResult(final Result result,
+            final long wireBytes) {
+        Assert.assertEquals(1, result.identities.size());
+        Assert.assertEquals(REPOSITORY_NAME,
+                result.identities.get(0).getRepositoryName());
+        Assert.assertEquals(Long.valueOf(wireBytes),
+                result.stats.get(HarvestStatistic.WIRE_BYTES));
+        Assert.assertEquals(Long.valueOf(IDENTIFY_BYTES.length),
+                result.stats.get(HarvestStatistic.DECODED_BYTES));
+    }
+
+    private static List<LoggedRequest> requests() {
+        return findAll(getRequestedFor(urlMatching(".*")));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        final byte[] body = encode(GZIPOutputStream::new);
+        Assert.assertTrue(body.length < IDENTIFY_BYTES.length / 4);
+        stub(body, "gzip");
+        checkResult(harvest(new Harvester.Builder().build()), body.length);
+        final List<LoggedRequest> requests = requests();
+        Assert.assertEquals(1, requests.size());
+        Assert.assertTrue(requests.get(0).getHeader(
+                HttpHeaders.ACCEPT_ENCODING).contains("gzip"));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        final byte[] body = encode(DeflaterOutputStream::new);
+        stub(body, "deflate");
+        checkResult(harvest(new Harvester.Builder().build()), body.length);
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        stub(IDENTIFY_BYTES, "identity");
+        checkResult(harvest(new Harvester.Builder().build()),
+                IDENTIFY_BYTES.length);
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        final byte[] body = encode(GZIPOutputStream::new);
+        stub(body, "gzip");
+        checkResult(harvest(new Harvester.Builder()
+                .withReadAhead(executor)
+                .build()), body.length);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final byte[] body = encode(GZIPOutputStream::new);
+        stub(body, "gzip");
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient().build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .build();
+            final Result result = new Result();
+            harvester.addObserver((o, arg) -> {
+                final HarvestNotification hn = (HarvestNotification)arg;
+                if (hn.getType() == HarvestNotificationType.HARVEST_ENDED) {
+                    result.stats = hn.getStats();
+                }
+            });
+            harvester.startAsync(Tests.newParams(OAIVerb.IDENTIFY).build(),
+                    handler(result)).get();
+            checkResult(result, body.length);
+        }
+    }
+
+    /**
+     * Tests that no compression is asked for when disabled, but that
+     * compressed responses are still decoded.
+     */
+    @Test
+    public void testCompressionDisabled() throws Exception {
+        final byte[] body = encode(GZIPOutputStream::new);
+        stub(body, "gzip");
+        checkResult(harvest(new Harvester.Builder()
+                .withContentCompression(false)
+                .build()), body.length);
+        Assert.assertFalse(requests().get(0).containsHeader(
+                HttpHeaders.ACCEPT_ENCODING));
+    }
+
+    @Test(expected = HarvesterException.class)
+    public void testUnsupportedEncoding() throws Exception {
+        stub(IDENTIFY_BYTES, "br");
+        harvest(new Harvester.Builder().build());
+    }
+}
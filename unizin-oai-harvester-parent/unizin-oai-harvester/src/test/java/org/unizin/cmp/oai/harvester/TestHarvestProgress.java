@@ -0,0 +1,132 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_PROCESSED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link HarvestProgress} and its reporting by harvesters.
+ */
+public final class TestHarvestProgress {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final int PAGES = 4;
+    private static final int PAGE_SIZE = 5;
+    private static final long LIST_SIZE = PAGES * PAGE_SIZE;
+
+    private static String token(final int page) {
+        return String.format("token.%02d", page);
+    }
+
+    /**
+     * Run a harvest of the test list, returning the progress reported after
+     * each response and at the end.
+     */
+    private static List<HarvestNotification> harvest(
+            final HarvestParams params) throws Exception {
+        final List<HarvestNotification> notifications = new ArrayList<>();
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == RESPONSE_PROCESSED ||
+                    hn.getType() == HARVEST_ENDED) {
+                notifications.add(hn);
+            }
+        });
+        harvester.start(params, new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(new ByteArrayOutputStream())));
+        return notifications;
+    }
+
+    @Test
+    public void testCompleteListSize() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE,
+                TestHarvestProgress::token, true);
+        final List<HarvestNotification> notifications = harvest(
+                newParams().build());
+        Assert.assertEquals(PAGES + 1, notifications.size());
+        for (int i = 0; i < PAGES; i++) {
+            final HarvestProgress progress = notifications.get(i)
+                    .getProgress();
+            Assert.assertEquals((i + 1) * PAGE_SIZE, progress.getPosition());
+            Assert.assertEquals(Optional.of(LIST_SIZE),
+                    progress.getListSize());
+            Assert.assertFalse(progress.isListSizeEstimated());
+            Assert.assertEquals((i + 1) / (double)PAGES,
+                    progress.getFractionComplete().get(), 0.0);
+        }
+        final HarvestNotification ended = notifications.get(PAGES);
+        Assert.assertEquals(Long.valueOf(LIST_SIZE),
+                ended.getStat(HarvestStatistic.RECORD_COUNT));
+        Assert.assertEquals(Optional.of(Duration.ZERO),
+                ended.getProgress().getEstimatedTimeRemaining());
+        Assert.assertTrue(ended.getProgress().getRecordsPerSecond() > 0);
+    }
+
+    /**
+     * Tests that a harvest resumed partway through a list counts the records
+     * received before it started, when tokens carry cursors.
+     */
+    @Test
+    public void testResumedHarvest() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE,
+                TestHarvestProgress::token, true);
+        final List<HarvestNotification> notifications = harvest(
+                newParams().withResumptionToken(token(2)).build());
+        final HarvestNotification ended = notifications.get(
+                notifications.size() - 1);
+        Assert.assertEquals(Long.valueOf(LIST_SIZE - 2 * PAGE_SIZE),
+                ended.getStat(HarvestStatistic.RECORD_COUNT));
+        Assert.assertEquals(LIST_SIZE, ended.getProgress().getPosition());
+        Assert.assertEquals(1.0,
+                ended.getProgress().getFractionComplete().get(), 0.0);
+    }
+
+    /**
+     * Tests that progress through lists of unknown size can be estimated.
+     */
+    @Test
+    public void testEstimatedListSize() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE,
+                TestHarvestProgress::token, false);
+        final HarvestProgress progress = harvest(newParams().build())
+                .get(0).getProgress();
+        Assert.assertEquals(PAGE_SIZE, progress.getPosition());
+        Assert.assertFalse(progress.getListSize().isPresent());
+        Assert.assertFalse(progress.getFractionComplete().isPresent());
+        Assert.assertFalse(progress.getEstimatedTimeRemaining().isPresent());
+
+        final HarvestProgress estimated = progress.withEstimatedListSize(
+                LIST_SIZE);
+        Assert.assertTrue(estimated.isListSizeEstimated());
+        Assert.assertEquals(0.25, estimated.getFractionComplete().get(), 0.0);
+        Assert.assertSame(estimated, estimated.withEstimatedListSize(1));
+    }
+
+    @Test
+    public void testEstimatedTimeRemaining() {
+        final HarvestProgress progress = new HarvestProgress(20, 100L, 4.0);
+        Assert.assertEquals(Optional.of(Duration.ofSeconds(20)),
+                progress.getEstimatedTimeRemaining());
+        Assert.assertFalse(new HarvestProgress(20, 100L, 0)
+                .getEstimatedTimeRemaining().isPresent());
+        Assert.assertEquals("PT20S", progress.toMap().get(
+                "estimatedTimeRemaining"));
+    }
+}
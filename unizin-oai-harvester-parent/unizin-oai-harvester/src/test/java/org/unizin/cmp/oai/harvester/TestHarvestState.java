@@ -0,0 +1,157 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_PROCESSED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIError;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.unizin.cmp.oai.templates.ErrorsTemplate;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link HarvestStateRecorder} and
+ * {@link HarvestParams.Builder#withIncrementalFrom(HarvestStateStore, Duration, OAIDateGranularity)}.
+ */
+public final class TestHarvestState {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    /** The {@code responseDate} in the default templates. */
+    private static final Instant TEMPLATE_RESPONSE_DATE =
+            Instant.parse("2002-05-01T19:20:30Z");
+
+    private final HarvestStateStore store = new InMemoryHarvestStateStore();
+
+    private static HarvestStateStore.Key key(final HarvestParams params) {
+        return HarvestStateStore.Key.of(params);
+    }
+
+    private void harvest(final HarvestParams params) throws Exception {
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver(new HarvestStateRecorder(store));
+        final OAIResponseHandler handler = new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(new ByteArrayOutputStream()));
+        try {
+            harvester.start(params, handler);
+        } catch (final OAIProtocolException e) {
+            // Checked through the store.
+        }
+    }
+
+    /**
+     * Tests that a complete harvest is recorded with its first
+     * {@code responseDate}.
+     */
+    @Test
+    public void testRecordsCompleteHarvest() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final HarvestParams params = newParams().withSet("aSet").build();
+        harvest(params);
+        Assert.assertEquals(Optional.of(TEMPLATE_RESPONSE_DATE),
+                store.getLastResponseDate(key(params)));
+        Assert.assertEquals(Optional.empty(), store.getLastResponseDate(
+                key(newParams().build())));
+    }
+
+    /** Tests that harvests ended by errors are not recorded. */
+    @Test
+    public void testErrorNotRecorded() throws Exception {
+        WireMockUtils.oaiErrorResponseStub();
+        final HarvestParams params = newParams().build();
+        harvest(params);
+        Assert.assertEquals(Optional.empty(),
+                store.getLastResponseDate(key(params)));
+    }
+
+    /**
+     * Tests that {@code noRecordsMatch} is recorded, since it means the
+     * harvest was complete.
+     */
+    @Test
+    public void testNoRecordsMatchRecorded() throws Exception {
+        WireMockUtils.getStub(ErrorsTemplate.process(Collections.singletonList(
+                new OAIError(OAIErrorCode.NO_RECORDS_MATCH.code())),
+                "2016-01-10T00:00:00Z"));
+        final HarvestParams params = newParams().build();
+        harvest(params);
+        Assert.assertEquals(Optional.of(Instant.parse("2016-01-10T00:00:00Z")),
+                store.getLastResponseDate(key(params)));
+    }
+
+    /**
+     * Tests that harvests started from a resumption token are not recorded,
+     * since they do not list the records before that token.
+     */
+    @Test
+    public void testResumedHarvestNotRecorded() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final HarvestParams params = newParams()
+                .withResumptionToken(ListResponses.FIRST_TOKEN.getToken())
+                .build();
+        harvest(params);
+        Assert.assertEquals(Optional.empty(),
+                store.getLastResponseDate(key(params)));
+    }
+
+    /** Tests that stopped harvests are not recorded. */
+    @Test
+    public void testStoppedHarvestNotRecorded() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final HarvestParams params = newParams().build();
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver(new HarvestStateRecorder(store));
+        harvester.addObserver((o, arg) -> {
+            if (((HarvestNotification)arg).getType() == RESPONSE_PROCESSED) {
+                harvester.stop();
+            }
+        });
+        harvester.start(params, new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(new ByteArrayOutputStream())));
+        Assert.assertEquals(Optional.empty(),
+                store.getLastResponseDate(key(params)));
+    }
+
+    @Test
+    public void testIncrementalFrom() {
+        final HarvestParams.Builder builder = newParams().withSet("aSet");
+        final Duration overlap = Duration.ofHours(1);
+        // Nothing recorded: from is left unset.
+        Assert.assertNull(builder.withIncrementalFrom(store, overlap,
+                OAIDateGranularity.SECOND).build().get(
+                        OAIRequestParameter.FROM));
+
+        store.setLastResponseDate(key(builder.build()),
+                Instant.parse("2016-01-10T00:30:00Z"));
+        Assert.assertEquals("2016-01-09T23:30:00Z", builder
+                .withIncrementalFrom(store, overlap, OAIDateGranularity.SECOND)
+                .build().get(OAIRequestParameter.FROM));
+        Assert.assertEquals("2016-01-09", newParams().withSet("aSet")
+                .withIncrementalFrom(store, overlap, OAIDateGranularity.DAY)
+                .build().get(OAIRequestParameter.FROM));
+        // A later from is kept.
+        Assert.assertEquals("2016-02-01", newParams().withSet("aSet")
+                .withFrom("2016-02-01")
+                .withIncrementalFrom(store, overlap, OAIDateGranularity.DAY)
+                .build().get(OAIRequestParameter.FROM));
+        // Other sets are unaffected.
+        Assert.assertNull(newParams().withSet("anotherSet")
+                .withIncrementalFrom(store, overlap, OAIDateGranularity.DAY)
+                .build().get(OAIRequestParameter.FROM));
+    }
+}
@@ -0,0 +1,192 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link HarvestWatchdog}.
+ */
+public final class TestHarvestWatchdog {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    /** How long the repository takes to respond in stalled harvests. */
+    private static final int STALL_MILLIS = 10 * 1000;
+    /** How long a watched harvest may take to be cancelled. */
+    private static final long MAX_CANCEL_MILLIS = 3 * 1000;
+    private static final long CHECK_PERIOD_MILLIS = 50;
+
+    private final ScheduledExecutorService executor =
+            Executors.newScheduledThreadPool(2);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static CloseableHttpClient patientClient() {
+        return Harvester.defaultHttpClient()
+                .setDefaultSocketConfig(SocketConfig.custom()
+                        .setSoTimeout(2 * STALL_MILLIS)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setSocketTimeout(2 * STALL_MILLIS)
+                        .build())
+                .build();
+    }
+
+    private static void stall() {
+        stubFor(get(urlMatching(".*")).willReturn(aResponse()
+                .withStatus(HttpStatus.SC_OK)
+                .withBody("<OAI-PMH/>")
+                .withFixedDelay(STALL_MILLIS)));
+    }
+
+    private static List<HarvestNotification> observeEnd(
+            final Harvester harvester) {
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        return ended;
+    }
+
+    private HarvestWatchdog schedule(final HarvestWatchdog watchdog) {
+        executor.scheduleAtFixedRate(watchdog, CHECK_PERIOD_MILLIS,
+                CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        return watchdog;
+    }
+
+    /**
+     * Run a watched harvest of a repository that never responds in time, and
+     * check that the watchdog cancels it promptly, giving a reason.
+     */
+    private void stalledTest(final HarvestWatchdog watchdog,
+            final String expectedReason) throws Exception {
+        stall();
+        try (final CloseableHttpClient client = patientClient()) {
+            final Harvester harvester = new Harvester.Builder()
+                    .withHttpClient(client)
+                    .build();
+            harvester.addObserver(schedule(watchdog));
+            final List<HarvestNotification> ended = observeEnd(harvester);
+            final Future<?> f = executor.submit(() -> harvester.start(
+                    newParams().build(), Mocks.newResponseHandler()));
+            f.get(MAX_CANCEL_MILLIS, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(1, ended.size());
+            final HarvestNotification hn = ended.get(0);
+            Assert.assertTrue(hn.isCancelled());
+            Assert.assertFalse(hn.hasError());
+            Assert.assertTrue(hn.getCancelReason().get(),
+                    hn.getCancelReason().get().startsWith(expectedReason));
+            Assert.assertEquals(0, watchdog.getWatchedCount());
+        }
+    }
+
+    @Test
+    public void testStalled() throws Exception {
+        stalledTest(new HarvestWatchdog.Builder()
+                .withStallWindow(Duration.ofMillis(300))
+                .build(), "Harvest stalled");
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        stalledTest(new HarvestWatchdog.Builder()
+                .withDeadline(Duration.ofMillis(300))
+                .withStallWindow(null)
+                .build(), "Harvest exceeded its deadline");
+    }
+
+    @Test
+    public void testStalledAsync() throws Exception {
+        stall();
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient()
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setSoTimeout(2 * STALL_MILLIS)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setSocketTimeout(2 * STALL_MILLIS)
+                        .build())
+                .build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .build();
+            harvester.addObserver(schedule(new HarvestWatchdog.Builder()
+                    .withStallWindow(Duration.ofMillis(300))
+                    .build()));
+            final List<HarvestNotification> ended = observeEnd(harvester);
+            harvester.startAsync(newParams().build(),
+                    Mocks.newResponseHandler())
+                .get(MAX_CANCEL_MILLIS, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(1, ended.size());
+            Assert.assertTrue(ended.get(0).isCancelled());
+            Assert.assertTrue(ended.get(0).getCancelReason().isPresent());
+        }
+    }
+
+    /**
+     * Tests that a harvest making progress is left alone, and is no longer
+     * watched once it ends.
+     */
+    @Test
+    public void testProgressing() throws Exception {
+        ListResponses.setupPages(20, 1,
+                page -> String.format("token.%02d", page), false);
+        final HarvestWatchdog watchdog = schedule(new HarvestWatchdog.Builder()
+                .withDeadline(Duration.ofMinutes(1))
+                .withStallWindow(Duration.ofSeconds(5))
+                .withMinProgressBytes(100)
+                .build());
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver(watchdog);
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        harvester.start(newParams().build(), new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(new ByteArrayOutputStream())));
+        Assert.assertEquals(1, ended.size());
+        Assert.assertFalse(ended.get(0).isCancelled());
+        Assert.assertFalse(ended.get(0).getCancelReason().isPresent());
+        Assert.assertEquals(Long.valueOf(20), ended.get(0).getStat(
+                HarvestNotification.HarvestStatistic.REQUEST_COUNT));
+        Assert.assertEquals(0, watchdog.getWatchedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStallWindow() {
+        new HarvestWatchdog.Builder().withStallWindow(Duration.ZERO);
+    }
+}
@@ -0,0 +1,174 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_RECEIVED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests running many harvests at once with {@link Harvester#newSession()}.
+ */
+public final class TestHarvesterSessions {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final int SESSIONS = 4;
+    private static final int PAGES = 3;
+    private static final int PAGE_SIZE = 5;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static String token(final int page) {
+        return String.format("token.%02d", page);
+    }
+
+    private static Map<String, String> tags(final int session) {
+        return Collections.singletonMap("session", String.valueOf(session));
+    }
+
+    /**
+     * Tests that sessions run harvests concurrently, each with its own state,
+     * and that the parent's observers and listeners see every harvest, from
+     * the session that ran it.
+     */
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestHarvesterSessions::token,
+                false);
+        // Each session holds a connection while it waits for the others.
+        final Harvester harvester = new Harvester.Builder()
+                .withHttpClient(Harvester.defaultHttpClient()
+                        .setMaxConnPerRoute(SESSIONS)
+                        .build())
+                .build();
+        final Map<String, Observable> endedBy = Collections.synchronizedMap(
+                new HashMap<>());
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                endedBy.put(hn.getTag("session"), o);
+            }
+        });
+        final NotificationBus bus = NotificationBus.defaultBus();
+        final List<HarvestNotification> heard = Collections.synchronizedList(
+                new ArrayList<>());
+        harvester.addListener(hn -> {
+            if (hn.getType() == HARVEST_ENDED) {
+                heard.add(hn);
+            }
+        });
+
+        final List<Harvester> sessions = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(harvester.newSession());
+        }
+        // All sessions wait at the first response, so they run at once.
+        final CountDownLatch started = new CountDownLatch(SESSIONS);
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                SESSIONS);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < SESSIONS; i++) {
+                final Harvester session = sessions.get(i);
+                final Map<String, String> tags = tags(i);
+                session.addObserver((o, arg) -> {
+                    final HarvestNotification hn = (HarvestNotification)arg;
+                    if (hn.getType() == RESPONSE_RECEIVED &&
+                            hn.getStat(HarvestStatistic.RESPONSE_COUNT) == 1) {
+                        started.countDown();
+                        try {
+                            started.await(TIMEOUT.toMillis(),
+                                    TimeUnit.MILLISECONDS);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                futures.add(executor.submit(() -> session.start(
+                        newParams().build(), Mocks.newResponseHandler(),
+                        tags)));
+            }
+            for (final Future<?> f : futures) {
+                f.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(0, started.getCount());
+        for (int i = 0; i < SESSIONS; i++) {
+            final Harvester session = sessions.get(i);
+            Assert.assertSame(session, endedBy.get(String.valueOf(i)));
+            Assert.assertNotSame(harvester.currentHarvest(),
+                    session.currentHarvest());
+            Assert.assertEquals(PAGES, session.getPhaseTimings().get(
+                    PhaseTimings.Phase.PARSE).getCount());
+        }
+        Assert.assertTrue(bus.flush(TIMEOUT));
+        Assert.assertEquals(SESSIONS, heard.size());
+        for (final HarvestNotification hn : heard) {
+            Assert.assertEquals(Long.valueOf(PAGES),
+                    hn.getStat(HarvestStatistic.RESPONSE_COUNT));
+        }
+    }
+
+    /**
+     * Tests that observers of a session see only its own harvests, and that
+     * each observer is notified even if another throws.
+     */
+    @Test
+    public void testSessionObservers() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestHarvesterSessions::token,
+                false);
+        final Harvester harvester = new Harvester.Builder().build();
+        final Harvester session = harvester.newSession();
+        final List<Observable> parentSaw = new ArrayList<>();
+        final List<Observable> sessionSaw = new ArrayList<>();
+        harvester.addObserver((o, arg) -> parentSaw.add(o));
+        session.addObserver((o, arg) -> sessionSaw.add(o));
+        session.addObserver((o, arg) -> {
+            throw new IllegalStateException("Expected.");
+        });
+        Assert.assertEquals(2, session.countObservers());
+
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        final int perHarvest = parentSaw.size();
+        Assert.assertEquals(2 + 2 * PAGES, perHarvest);
+        Assert.assertTrue(sessionSaw.isEmpty());
+
+        session.start(newParams().build(), Mocks.newResponseHandler());
+        Assert.assertEquals(perHarvest, sessionSaw.size());
+        Assert.assertEquals(2 * perHarvest, parentSaw.size());
+        Assert.assertSame(session, parentSaw.get(perHarvest));
+        Assert.assertTrue(sessionSaw.stream().allMatch(o -> o == session));
+
+        // The inherited Observable API uses the same observers.
+        session.notifyObservers();
+        Assert.assertEquals(perHarvest + 1, sessionSaw.size());
+        Assert.assertEquals(2 * perHarvest + 1, parentSaw.size());
+        session.deleteObservers();
+        Assert.assertEquals(0, session.countObservers());
+        session.notifyObservers("arg");
+        Assert.assertEquals(perHarvest + 1, sessionSaw.size());
+        Assert.assertEquals(2 * perHarvest + 2, parentSaw.size());
+    }
+}
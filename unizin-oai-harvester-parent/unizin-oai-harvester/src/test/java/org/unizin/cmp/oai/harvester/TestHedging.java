@@ -0,0 +1,177 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+/**
+ * Tests hedged requests enabled by
+ * {@link Harvester.Builder#withHedgingPolicy(HedgingPolicy)}.
+ */
+public final class TestHedging {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final int PAGES = 8;
+    private static final int PAGE_SIZE = 2;
+    private static final int SLOW_PAGE = 5;
+    private static final int SLOW_MILLIS = 5000;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static String token(final int page) {
+        return "token." + page;
+    }
+
+    private static HarvestNotification harvest(final Harvester harvester) {
+        final List<HarvestNotification> ended = new CopyOnWriteArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    private static void assertStat(final long expected,
+            final HarvestNotification hn, final HarvestStatistic stat) {
+        Assert.assertEquals(stat.toString(), Long.valueOf(expected),
+                hn.getStat(stat));
+    }
+
+    /**
+     * Tests that a request that is much slower than those before it is hedged,
+     * and that the harvest uses the hedge's response instead of waiting.
+     */
+    @Test
+    public void testSlowRequestIsHedged() {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestHedging::token, false);
+        // Only the first request for the slow page is slow.
+        stubFor(get(urlMatching(Tests.urlResmptionTokenPattern(
+                token(SLOW_PAGE - 1))))
+                .atPriority(1)
+                .inScenario("hedge")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willSetStateTo("slow")
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withFixedDelay(SLOW_MILLIS)));
+        final Harvester harvester = new Harvester.Builder()
+                .withReadAhead(executor)
+                .withHedgingPolicy(new HedgingPolicy.Builder()
+                        .withPercentile(0.5)
+                        .withMinSamples(2)
+                        .withWindowSize(10)
+                        .withMinDelay(Duration.ofMillis(200))
+                        .withBudget(1)
+                        .build())
+                .build();
+        final long start = System.nanoTime();
+        final HarvestNotification hn = harvest(harvester);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertTrue("Took " + elapsed + "ms.", elapsed < SLOW_MILLIS);
+        assertStat(PAGES, hn, HarvestStatistic.RESPONSE_COUNT);
+        assertStat(PAGES, hn, HarvestStatistic.REQUEST_COUNT);
+        assertStat(1, hn, HarvestStatistic.HEDGE_REQUEST_COUNT);
+        assertStat(1, hn, HarvestStatistic.HEDGE_WIN_COUNT);
+    }
+
+    /**
+     * Tests that nothing is hedged when the repository answers consistently.
+     */
+    @Test
+    public void testNoHedgeWhenFast() {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestHedging::token, false);
+        final Harvester harvester = new Harvester.Builder()
+                .withReadAhead(executor)
+                .withHedgingPolicy(new HedgingPolicy.Builder()
+                        .withMinSamples(2)
+                        .withBudget(1)
+                        .build())
+                .build();
+        final HarvestNotification hn = harvest(harvester);
+        Assert.assertFalse(hn.hasError());
+        assertStat(PAGES, hn, HarvestStatistic.RESPONSE_COUNT);
+        assertStat(0, hn, HarvestStatistic.HEDGE_REQUEST_COUNT);
+        assertStat(0, hn, HarvestStatistic.HEDGE_WIN_COUNT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresReadAhead() {
+        new Harvester.Builder()
+            .withHedgingPolicy(new HedgingPolicy.Builder().build())
+            .build();
+    }
+
+    @Test
+    public void testHedgeDelay() {
+        final HedgingPolicy policy = new HedgingPolicy.Builder()
+                .withPercentile(0.9)
+                .withMinSamples(5)
+                .withWindowSize(10)
+                .withMinDelay(Duration.ofMillis(100))
+                .withBudget(0.1)
+                .build();
+        final LatencyWindow latencies = policy.newLatencyWindow();
+        for (int i = 1; i <= 4; i++) {
+            latencies.add(TimeUnit.MILLISECONDS.toNanos(i * 100));
+        }
+        // Too few samples.
+        Assert.assertEquals(-1, policy.hedgeDelayMillis(latencies, 100, 0));
+        for (int i = 5; i <= 20; i++) {
+            latencies.add(TimeUnit.MILLISECONDS.toNanos(i * 100));
+        }
+        // Only the ten most recent samples, 1100 through 2000, are kept.
+        Assert.assertEquals(10, latencies.size());
+        Assert.assertEquals(1900, policy.hedgeDelayMillis(latencies, 100, 0));
+        // Budget used up.
+        Assert.assertEquals(-1, policy.hedgeDelayMillis(latencies, 100, 10));
+        Assert.assertEquals(-1, policy.hedgeDelayMillis(latencies, 5, 0));
+
+        final LatencyWindow fast = policy.newLatencyWindow();
+        for (int i = 0; i < 5; i++) {
+            fast.add(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        Assert.assertEquals(100, policy.hedgeDelayMillis(fast, 100, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinSamplesExceedsWindow() {
+        new HedgingPolicy.Builder()
+            .withMinSamples(10)
+            .withWindowSize(5)
+            .build();
+    }
+}
@@ -0,0 +1,229 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.HostLimiter.Limits;
+import org.unizin.cmp.oai.harvester.HostLimiter.Permit;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link HostLimiter}, and harvesters built with
+ * {@link Harvester.Builder#withHostLimiter(HostLimiter)}.
+ */
+public final class TestHostLimiter {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final URI BASE_URI = WireMockUtils.MOCK_OAI_BASE_URI;
+    private static final int PAGES = 13;
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHostKey() {
+        Assert.assertEquals("example.org:80",
+                HostLimiter.hostKey(URI.create(
+                        "http://Example.ORG/oai")));
+        Assert.assertEquals("example.org:443",
+                HostLimiter.hostKey(URI.create(
+                        "https://example.org/oai")));
+        Assert.assertEquals("example.org:8080",
+                HostLimiter.hostKey(URI.create(
+                        "http://example.org:8080/oai")));
+    }
+
+    /**
+     * Tests that no more than the maximum number of permits are held at once,
+     * and that releasing a permit twice frees only one.
+     */
+    @Test
+    public void testMaxInFlight() {
+        final HostLimiter limiter = new HostLimiter(new Limits(
+                Double.POSITIVE_INFINITY, 2));
+        final Permit first = limiter.tryAcquire(BASE_URI);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(limiter.tryAcquire(BASE_URI));
+        Assert.assertNull(limiter.tryAcquire(BASE_URI));
+        Assert.assertTrue(limiter.retryDelayMillis(BASE_URI) > 0);
+        first.release();
+        first.release();
+        Assert.assertNotNull(limiter.tryAcquire(BASE_URI));
+        Assert.assertNull(limiter.tryAcquire(BASE_URI));
+        // Other hosts have their own limits.
+        Assert.assertNotNull(limiter.tryAcquire(URI.create(
+                "http://example.org/oai")));
+    }
+
+    /**
+     * Tests that a burst of up to one second's worth of requests is allowed,
+     * and that later requests are paced.
+     */
+    @Test
+    public void testRate() throws Exception {
+        final HostLimiter limiter = new HostLimiter(new Limits(10, 100));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(limiter.tryAcquire(BASE_URI));
+        }
+        Assert.assertNull(limiter.tryAcquire(BASE_URI));
+        final long delay = limiter.retryDelayMillis(BASE_URI);
+        Assert.assertTrue(delay > 0 && delay <= 100);
+        final long start = System.nanoTime();
+        limiter.acquire(BASE_URI);
+        Assert.assertTrue(System.nanoTime() - start >=
+                TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testPerHostLimits() {
+        final HostLimiter limiter = new HostLimiter(host ->
+            host.startsWith("localhost:") ? new Limits(100, 1) : null);
+        Assert.assertNotNull(limiter.tryAcquire(BASE_URI));
+        Assert.assertNull(limiter.tryAcquire(BASE_URI));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNotNull(limiter.tryAcquire(URI.create(
+                    "http://example.org/oai")));
+        }
+    }
+
+    /**
+     * Tests that a wait for a permit held elsewhere ends once abandoned.
+     */
+    @Test
+    public void testAbandonedWait() throws Exception {
+        final HostLimiter limiter = new HostLimiter(new Limits(
+                Double.POSITIVE_INFINITY, 1));
+        Assert.assertNotNull(limiter.tryAcquire(BASE_URI));
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        final Future<Permit> waiter = executor.submit(() ->
+            limiter.acquire(BASE_URI, abandoned::get));
+        Thread.sleep(100);
+        Assert.assertFalse(waiter.isDone());
+        abandoned.set(true);
+        Assert.assertNull(waiter.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that cancelling a harvest waiting for a permit held elsewhere
+     * ends it promptly.
+     */
+    @Test
+    public void testCancelWhileWaiting() throws Exception {
+        ListResponses.setupPages(PAGES, 1,
+                page -> String.format("token.%02d", page), false);
+        final HostLimiter limiter = new HostLimiter(new Limits(
+                Double.POSITIVE_INFINITY, 1));
+        final Permit held = limiter.tryAcquire(BASE_URI);
+        Assert.assertNotNull(held);
+        final Harvester harvester = new Harvester.Builder()
+                .withHostLimiter(limiter)
+                .build();
+        final CountDownLatch started = new CountDownLatch(1);
+        harvester.addObserver((o, arg) -> started.countDown());
+        final Future<HarvestNotification> f = executor.submit(() ->
+            harvest(harvester, false));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        final long start = System.nanoTime();
+        harvester.cancel();
+        final HarvestNotification hn = f.get(1, TimeUnit.SECONDS);
+        Assert.assertTrue(System.nanoTime() - start <
+                TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertTrue(hn.isCancelled());
+        Assert.assertEquals(Long.valueOf(0),
+                hn.getStat(HarvestStatistic.RESPONSE_COUNT));
+        held.release();
+        Assert.assertNotNull("A permit was not released.",
+                limiter.tryAcquire(BASE_URI));
+    }
+
+    private static HarvestNotification harvest(final Harvester harvester,
+            final boolean async) throws Exception {
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        final MergingOAIResponseHandler handler = new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(new ByteArrayOutputStream()));
+        if (async) {
+            harvester.startAsync(newParams().build(), handler).get();
+        } else {
+            harvester.start(newParams().build(), handler);
+        }
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    /**
+     * Run a harvest of more pages than the limiter allows in a second, check
+     * that it took long enough, and that every permit was released.
+     */
+    private static void limitedHarvest(final Harvester.Builder builder,
+            final boolean async) throws Exception {
+        ListResponses.setupPages(PAGES, 1,
+                page -> String.format("token.%02d", page), false);
+        final HostLimiter limiter = new HostLimiter(new Limits(10, 1));
+        final long start = System.nanoTime();
+        final HarvestNotification hn = harvest(builder
+                .withHostLimiter(limiter).build(), async);
+        final long elapsed = System.nanoTime() - start;
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(Long.valueOf(PAGES),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+        // Ten requests in the initial burst, then one per 100 ms.
+        Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(
+                (PAGES - 10 - 1) * 100));
+        Thread.sleep(100);
+        Assert.assertNotNull("A permit was not released.",
+                limiter.tryAcquire(BASE_URI));
+    }
+
+    @Test
+    public void testHarvest() throws Exception {
+        limitedHarvest(new Harvester.Builder(), false);
+    }
+
+    @Test
+    public void testReadAheadHarvest() throws Exception {
+        limitedHarvest(new Harvester.Builder().withReadAhead(executor), false);
+    }
+
+    @Test
+    public void testAsyncHarvest() throws Exception {
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient().build()) {
+            client.start();
+            limitedHarvest(new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor), true);
+        }
+    }
+}
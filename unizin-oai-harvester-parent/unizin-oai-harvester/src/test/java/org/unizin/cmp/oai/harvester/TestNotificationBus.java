@@ -0,0 +1,308 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_STARTED;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_RECEIVED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.NotificationBus.OverflowPolicy;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link NotificationBus} and harvest listeners.
+ */
+public final class TestNotificationBus {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final int PAGES = 4;
+    private static final int PAGE_SIZE = 5;
+
+    private final NotificationBus bus = new NotificationBus(4);
+
+    @After
+    public void closeBus() {
+        bus.close();
+    }
+
+    private static String token(final int page) {
+        return String.format("token.%02d", page);
+    }
+
+    /**
+     * Messages for the generic tests, which report progress if their text
+     * starts with "p".
+     */
+    private static final class Message {
+        private final String subject;
+        private final String text;
+
+        Message(final String subject, final String text) {
+            this.subject = subject;
+            this.text = text;
+        }
+
+        boolean isProgress() {
+            return text.startsWith("p");
+        }
+
+        @Override
+        public String toString() {
+            return subject + ":" + text;
+        }
+    }
+
+    private NotificationBus.Subscription<Message> subscribe(
+            final Consumer<Message> listener, final OverflowPolicy policy) {
+        return bus.subscribe(listener, policy, Message::isProgress,
+                m -> m.subject);
+    }
+
+    /**
+     * Listener that blocks on its first message until released.
+     */
+    private static final class BlockingListener implements Consumer<Message> {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> received = Collections.synchronizedList(
+                new ArrayList<>());
+
+        @Override
+        public void accept(final Message m) {
+            received.add(m.toString());
+            started.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Tests that a slow listener doesn't slow the harvest, and still receives
+     * its notifications in order, on another thread.
+     */
+    @Test
+    public void testSlowListener() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestNotificationBus::token,
+                false);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<HarvestNotification> received = Collections
+                .synchronizedList(new ArrayList<>());
+        final List<Thread> threads = Collections.synchronizedList(
+                new ArrayList<>());
+        final NotificationBus big = new NotificationBus();
+        final Harvester harvester = new Harvester.Builder()
+                .withNotificationBus(big)
+                .build();
+        harvester.addListener(hn -> {
+            received.add(hn);
+            threads.add(Thread.currentThread());
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, OverflowPolicy.DROP);
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        // The harvest has ended, while the listener is stuck on its first.
+        Assert.assertTrue(received.size() <= 1);
+        release.countDown();
+        Assert.assertTrue(big.flush(TIMEOUT));
+        big.close();
+        Assert.assertEquals(2 + 2 * PAGES, received.size());
+        Assert.assertEquals(HARVEST_STARTED, received.get(0).getType());
+        final HarvestNotification ended = received.get(received.size() - 1);
+        Assert.assertEquals(HARVEST_ENDED, ended.getType());
+        Assert.assertEquals(Long.valueOf(PAGES),
+                ended.getStat(HarvestStatistic.RESPONSE_COUNT));
+        Assert.assertEquals(ended.getStat(HarvestStatistic.RESPONSE_COUNT),
+                ended.getStats().get(HarvestStatistic.RESPONSE_COUNT));
+        Assert.assertFalse(threads.contains(Thread.currentThread()));
+        // Timings are those when each notification was sent.
+        for (final HarvestNotification hn : received) {
+            if (hn.getType() == RESPONSE_RECEIVED) {
+                Assert.assertEquals(hn.getStat(
+                        HarvestStatistic.RESPONSE_COUNT).longValue(),
+                        hn.getPhaseTimings().get(
+                                PhaseTimings.Phase.TIME_TO_FIRST_BYTE)
+                        .getCount());
+            }
+        }
+    }
+
+    /**
+     * Tests that notifications offered by a subscription's observer keep the
+     * phase timings of when they were sent, however far behind its listener
+     * falls.
+     */
+    @Test
+    public void testObserverTimings() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestNotificationBus::token,
+                false);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<HarvestNotification> received = Collections
+                .synchronizedList(new ArrayList<>());
+        final NotificationBus big = new NotificationBus();
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver(big.subscribe((Object n) -> {
+            received.add((HarvestNotification)n);
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, OverflowPolicy.DROP, n -> false, n -> n)
+                .asObserver(Object.class));
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        release.countDown();
+        Assert.assertTrue(big.flush(TIMEOUT));
+        big.close();
+        Assert.assertEquals(2 + 2 * PAGES, received.size());
+        for (final HarvestNotification hn : received) {
+            if (hn.getType() == RESPONSE_RECEIVED) {
+                Assert.assertEquals(hn.getStat(
+                        HarvestStatistic.RESPONSE_COUNT).longValue(),
+                        hn.getPhaseTimings().get(
+                                PhaseTimings.Phase.TIME_TO_FIRST_BYTE)
+                        .getCount());
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveListener() throws Exception {
+        ListResponses.setupPages(PAGES, PAGE_SIZE, TestNotificationBus::token,
+                false);
+        final List<HarvestNotification> received = Collections
+                .synchronizedList(new ArrayList<>());
+        final HarvestListener listener = received::add;
+        final Harvester harvester = new Harvester.Builder()
+                .withNotificationBus(bus)
+                .build();
+        harvester.addListener(listener);
+        harvester.addListener(listener);
+        harvester.removeListener(listener);
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        Assert.assertTrue(bus.flush(TIMEOUT));
+        Assert.assertTrue(received.isEmpty());
+    }
+
+    /**
+     * Tests that notifications offered while a mailbox is full are dropped.
+     */
+    @Test
+    public void testDrop() throws Exception {
+        final BlockingListener listener = new BlockingListener();
+        final NotificationBus.Subscription<Message> s = subscribe(listener,
+                OverflowPolicy.DROP);
+        s.offer(new Message("a", "first"));
+        Assert.assertTrue(listener.started.await(TIMEOUT.toMillis(),
+                TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; i++) {
+            s.offer(new Message("a", "x" + i));
+        }
+        Assert.assertEquals(6, s.getDroppedCount());
+        listener.release.countDown();
+        Assert.assertTrue(bus.flush(TIMEOUT));
+        Assert.assertEquals("[a:first, a:x0, a:x1, a:x2, a:x3]",
+                listener.received.toString());
+    }
+
+    /**
+     * Tests that progress is coalesced per subject, but other notifications
+     * are kept, in order, even when the mailbox is full.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final BlockingListener listener = new BlockingListener();
+        final NotificationBus.Subscription<Message> s = subscribe(listener,
+                OverflowPolicy.COALESCE);
+        s.offer(new Message("a", "first"));
+        Assert.assertTrue(listener.started.await(TIMEOUT.toMillis(),
+                TimeUnit.MILLISECONDS));
+        s.offer(new Message("a", "p1"));
+        s.offer(new Message("b", "p1"));
+        s.offer(new Message("a", "p2"));
+        s.offer(new Message("a", "end"));
+        // Full: progress is dropped, the rest overflows.
+        s.offer(new Message("b", "p2"));
+        s.offer(new Message("b", "end"));
+        s.offer(new Message("a", "start"));
+        Assert.assertEquals(1, s.getDroppedCount());
+        listener.release.countDown();
+        Assert.assertTrue(bus.flush(TIMEOUT));
+        Assert.assertEquals("[a:first, b:p1, a:p2, a:end, b:end, a:start]",
+                listener.received.toString());
+    }
+
+    /**
+     * Tests that messages from many threads all arrive, in the order each
+     * thread sent them, and that a listener's exceptions don't stop delivery.
+     */
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        final int senders = 4;
+        final int messages = 10000;
+        final NotificationBus big = new NotificationBus();
+        final List<List<Integer>> received = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            received.add(new ArrayList<>());
+        }
+        final NotificationBus.Subscription<int[]> s = big.subscribe(
+                (int[] m) -> {
+                    received.get(m[0]).add(m[1]);
+                    if (m[1] == 0) {
+                        throw new IllegalStateException("Expected.");
+                    }
+                }, OverflowPolicy.DROP, m -> false, m -> m[0]);
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                senders);
+        try {
+            for (int i = 0; i < senders; i++) {
+                final int sender = i;
+                executor.submit(() -> {
+                    for (int j = 0; j < messages; j++) {
+                        while (!s.offer(new int[] {sender, j})) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                });
+            }
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(TIMEOUT.toMillis(),
+                    TimeUnit.MILLISECONDS));
+            Assert.assertTrue(big.flush(TIMEOUT));
+        } finally {
+            executor.shutdownNow();
+            big.close();
+        }
+        for (final List<Integer> r : received) {
+            Assert.assertEquals(messages, r.size());
+            for (int j = 0; j < messages; j++) {
+                Assert.assertEquals(Integer.valueOf(j), r.get(j));
+            }
+        }
+    }
+}
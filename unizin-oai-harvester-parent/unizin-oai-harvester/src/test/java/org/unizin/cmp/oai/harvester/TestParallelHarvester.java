@@ -0,0 +1,216 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.unizin.cmp.oai.templates.ListRecordsTemplate;
+import org.unizin.cmp.oai.templates.RecordMetadataTemplate;
+
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+import freemarker.template.TemplateException;
+
+public final class TestParallelHarvester {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<HarvestParams> harvested =
+            new CopyOnWriteArrayList<>();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static String singleRecordResponse(final ResumptionToken token)
+            throws TemplateException, IOException {
+        final ListRecordsTemplate template = new ListRecordsTemplate();
+        if (token != null) {
+            template.withResumptionToken(token.toMap());
+        }
+        final Map<String, Object> record = new HashMap<>(2);
+        record.put("identifier", "1");
+        record.put("metadata", new RecordMetadataTemplate()
+                .addTitle("A Title").process());
+        template.addRecord(record);
+        return template.process();
+    }
+
+    private static MappingBuilder window(final OAIVerb verb, final String from,
+            final String until) {
+        final Map<String, String> params = new HashMap<>();
+        params.put("verb", verb.localPart());
+        params.put(OAIRequestParameter.FROM.paramName(), from);
+        params.put(OAIRequestParameter.UNTIL.paramName(), until);
+        return WireMockUtils.matchingQueryParams(get(urlMatching(".*")),
+                params);
+    }
+
+    private ParallelHarvester.Builder builder() {
+        final Harvester.Builder harvesterBuilder = new Harvester.Builder();
+        return new ParallelHarvester.Builder(harvesterBuilder::build,
+                executor);
+    }
+
+    private void harvest(final ParallelHarvester harvester) {
+        harvest(harvester, "2015-01-01", "2015-01-04");
+    }
+
+    private void harvest(final ParallelHarvester harvester, final String from,
+            final String until) {
+        harvester.harvest(newParams()
+                .withFrom(from)
+                .withUntil(until)
+                .build(),
+                p -> {
+                    harvested.add(p);
+                    return Mocks.newResponseHandler();
+                });
+    }
+
+    private Set<String> harvestedWindows() {
+        return harvested.stream()
+                .map(p -> p.get(OAIRequestParameter.FROM) + "/" +
+                        p.get(OAIRequestParameter.UNTIL))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Tests that the date range is divided into the requested number of
+     * disjoint windows.
+     */
+    @Test
+    public void testPartitions() throws Exception {
+        WireMockUtils.getStub(singleRecordResponse(null));
+        harvest(builder().withPartitions(2).build());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                "2015-01-01/2015-01-02", "2015-01-03/2015-01-04")),
+                harvestedWindows());
+    }
+
+    /**
+     * Tests that bounds in a granularity other than the configured one are
+     * neither widened nor narrowed.
+     */
+    @Test
+    public void testMixedGranularities() throws Exception {
+        WireMockUtils.getStub(singleRecordResponse(null));
+        harvest(builder().withPartitions(2).build(),
+                "2015-01-01T12:00:00Z", "2015-01-04");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                "2015-01-01T12:00:00Z/2015-01-02T23:59:59Z",
+                "2015-01-03/2015-01-04")),
+                harvestedWindows());
+        harvested.clear();
+        harvest(builder()
+                .withPartitions(2)
+                .withGranularity(OAIDateGranularity.SECOND)
+                .build(), "2015-01-01", "2015-01-02");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                "2015-01-01T00:00:00Z/2015-01-01T23:59:59Z",
+                "2015-01-02T00:00:00Z/2015-01-02T23:59:59Z")),
+                harvestedWindows());
+    }
+
+    /**
+     * Tests that windows reporting a {@code completeListSize} above the target
+     * are bisected.
+     */
+    @Test
+    public void testBisection() throws Exception {
+        WireMockUtils.getStub(singleRecordResponse(null));
+        final ResumptionToken big = new ResumptionToken("more", 10L, 0L, null);
+        final MappingBuilder mb = window(OAIVerb.LIST_IDENTIFIERS,
+                "2015-01-01", "2015-01-04");
+        WireMockUtils.returning(mb, HttpStatus.SC_OK,
+                singleRecordResponse(big));
+        stubFor(mb);
+        harvest(builder()
+                .withPartitions(1)
+                .withTargetPartitionSize(5)
+                .build());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                "2015-01-01/2015-01-02", "2015-01-03/2015-01-04")),
+                harvestedWindows());
+    }
+
+    /**
+     * Tests that a failed window is retried on its own.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        final String body = singleRecordResponse(null);
+        WireMockUtils.getStub(body);
+        final String scenario = "retry";
+        final MappingBuilder fail = window(OAIVerb.LIST_RECORDS,
+                "2015-01-03", "2015-01-04")
+                .inScenario(scenario)
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willSetStateTo("failed");
+        WireMockUtils.returning(fail, HttpStatus.SC_SERVICE_UNAVAILABLE);
+        stubFor(fail);
+        final MappingBuilder succeed = window(OAIVerb.LIST_RECORDS,
+                "2015-01-03", "2015-01-04")
+                .inScenario(scenario)
+                .whenScenarioStateIs("failed");
+        WireMockUtils.returning(succeed, HttpStatus.SC_OK, body);
+        stubFor(succeed);
+        harvest(builder().withPartitions(2).build());
+        Assert.assertEquals(3, harvested.size());
+        Assert.assertEquals(2, Collections.frequency(harvested.stream()
+                .map(p -> p.get(OAIRequestParameter.FROM))
+                .collect(Collectors.toList()), "2015-01-03"));
+    }
+
+    /**
+     * Tests that windows that still fail after the maximum number of attempts
+     * are reported.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        WireMockUtils.getStub(singleRecordResponse(null));
+        final MappingBuilder fail = window(OAIVerb.LIST_RECORDS,
+                "2015-01-01", "2015-01-02");
+        WireMockUtils.returning(fail, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        stubFor(fail);
+        exception.expect(HarvesterException.class);
+        try {
+            harvest(builder().withPartitions(2).withMaxAttempts(2).build());
+        } finally {
+            Assert.assertEquals(3, harvested.size());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.PhaseTimings.Phase;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link PhaseTimings} and {@link LatencyHistogram}.
+ */
+public final class TestPhaseTimings {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final int PAGES = 3;
+    private static final int RECORDS = 5;
+    private static final int DELAY_MILLIS = 200;
+    private static final int HANDLER_MILLIS = 20;
+
+    private static String token(final int page) {
+        return String.format("token.%02d", page);
+    }
+
+    /** A single-page list that is slow to start. */
+    private static void setupSlowResponse() {
+        final StringBuilder sb = new StringBuilder()
+            .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<OAI-PMH xmlns=\"").append(OAI2Constants.OAI_2_NS_URI)
+            .append("\"><responseDate>2016-01-01T00:00:00Z</responseDate>")
+            .append("<request verb=\"ListRecords\">http://example.org/oai")
+            .append("</request><ListRecords>");
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append("<record><header><identifier>oai:example.org:")
+                .append(i).append("</identifier><datestamp>2016-01-01")
+                .append("</datestamp></header></record>");
+        }
+        sb.append("<resumptionToken/></ListRecords></OAI-PMH>");
+        stubFor(get(urlMatching(".*")).willReturn(aResponse()
+                .withStatus(HttpStatus.SC_OK)
+                .withBody(sb.toString())
+                .withFixedDelay(DELAY_MILLIS)));
+    }
+
+    private static HarvestNotification harvestEnd(final Harvester harvester,
+            final OAIResponseHandler handler) throws Exception {
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        harvester.start(newParams().build(), handler);
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    private static void assertCounts(final PhaseTimings timings,
+            final long responses, final long handled) {
+        Assert.assertEquals(responses,
+                timings.get(Phase.TIME_TO_FIRST_BYTE).getCount());
+        Assert.assertEquals(responses, timings.get(Phase.DOWNLOAD).getCount());
+        Assert.assertEquals(responses, timings.get(Phase.PARSE).getCount());
+        Assert.assertEquals(handled, timings.get(Phase.HANDLER).getCount());
+    }
+
+    /**
+     * Tests that every phase but handling is timed once per response by
+     * default.
+     */
+    @Test
+    public void testPhasesCounted() throws Exception {
+        ListResponses.setupPages(PAGES, RECORDS, TestPhaseTimings::token,
+                false);
+        final Harvester harvester = new Harvester.Builder().build();
+        final HarvestNotification hn = harvestEnd(harvester,
+                Mocks.newResponseHandler());
+        assertCounts(hn.getPhaseTimings(), PAGES, 0);
+        Assert.assertEquals(Long.valueOf(0),
+                hn.getStat(HarvestStatistic.HANDLER_MILLIS));
+        assertCounts(harvester.getPhaseTimings(), PAGES, 0);
+    }
+
+    @Test
+    public void testTimeToFirstByte() throws Exception {
+        setupSlowResponse();
+        final PhaseTimings timings = harvestEnd(new Harvester.Builder()
+                .build(), Mocks.newResponseHandler()).getPhaseTimings();
+        final LatencyHistogram ttfb = timings.get(Phase.TIME_TO_FIRST_BYTE);
+        Assert.assertEquals(1, ttfb.getCount());
+        Assert.assertTrue(ttfb.toString(), ttfb.getValueAtPercentile(50)
+                .compareTo(Duration.ofMillis(DELAY_MILLIS)) >= 0);
+    }
+
+    /**
+     * Tests that time spent in a slow handler is counted as handling, not
+     * parsing, when handler timing is enabled.
+     */
+    @Test
+    public void testHandlerTiming() throws Exception {
+        setupSlowResponse();
+        final OAIEventHandler eventHandler = mock(OAIEventHandler.class);
+        doAnswer(invocation -> {
+            final XMLEvent event = invocation.getArgumentAt(0,
+                    XMLEvent.class);
+            if (event.isStartElement() && "record".equals(
+                    event.asStartElement().getName().getLocalPart())) {
+                Thread.sleep(HANDLER_MILLIS);
+            }
+            return null;
+        }).when(eventHandler).onEvent(any());
+        final OAIResponseHandler handler = Mocks.newResponseHandler();
+        doAnswer(invocation -> eventHandler).when(handler)
+            .getEventHandler(any());
+        final HarvestNotification hn = harvestEnd(new Harvester.Builder()
+                .withHandlerTiming(true)
+                .build(), handler);
+        final PhaseTimings timings = hn.getPhaseTimings();
+        assertCounts(timings, 1, 1);
+        final Duration handled = timings.getTotal(Phase.HANDLER);
+        Assert.assertTrue(timings.toString(), handled.compareTo(
+                Duration.ofMillis(RECORDS * HANDLER_MILLIS)) >= 0);
+        Assert.assertTrue(timings.toString(),
+                timings.getTotal(Phase.PARSE).compareTo(handled) < 0);
+        Assert.assertEquals(Long.valueOf(handled.toMillis()),
+                hn.getStat(HarvestStatistic.HANDLER_MILLIS));
+    }
+
+    /**
+     * Tests that responses received by an asynchronous client are timed
+     * once per phase.
+     */
+    @Test
+    public void testAsync() throws Exception {
+        ListResponses.setupPages(PAGES, RECORDS, TestPhaseTimings::token,
+                false);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient().build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .build();
+            final List<HarvestNotification> ended = new ArrayList<>();
+            harvester.addObserver((o, arg) -> {
+                final HarvestNotification hn = (HarvestNotification)arg;
+                if (hn.getType() == HARVEST_ENDED) {
+                    ended.add(hn);
+                }
+            });
+            harvester.startAsync(newParams().build(),
+                    Mocks.newResponseHandler()).get();
+            Assert.assertEquals(1, ended.size());
+            assertCounts(ended.get(0).getPhaseTimings(), PAGES, 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        final LatencyHistogram.Recorder recorder =
+                new LatencyHistogram.Recorder();
+        Assert.assertSame(LatencyHistogram.EMPTY, recorder.snapshot());
+        for (long i = 1; i <= 1000; i++) {
+            recorder.record(i * 1000);
+        }
+        final LatencyHistogram h = recorder.snapshot();
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(Duration.ofNanos(1000), h.getMin());
+        Assert.assertEquals(Duration.ofNanos(1000 * 1000), h.getMax());
+        Assert.assertEquals(Duration.ofNanos(500500 * 1000), h.getTotal());
+        for (final double p : new double[] {1, 50, 90, 99, 100}) {
+            final long exact = (long)Math.ceil(p * 10) * 1000;
+            final long reported = h.getValueAtPercentile(p).toNanos();
+            Assert.assertTrue(p + ": " + reported, reported >= exact &&
+                    reported <= exact * 1.125);
+        }
+        recorder.record(Long.MAX_VALUE);
+        Assert.assertEquals(Duration.ofNanos(Long.MAX_VALUE),
+                recorder.snapshot().getValueAtPercentile(100));
+    }
+}
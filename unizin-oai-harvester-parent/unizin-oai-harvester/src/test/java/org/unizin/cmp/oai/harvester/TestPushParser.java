@@ -0,0 +1,208 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.OAIError;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterXMLParsingException;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.unizin.cmp.oai.templates.ErrorsTemplate;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link OAIResponseParser#newFeeder(Harvest, OAIEventHandler)} and
+ * {@link OAIResponseFeeder}.
+ */
+public final class TestPushParser {
+    private static final List<Integer> CHUNK_SIZES = Arrays.asList(1, 7,
+            64 * 1024);
+
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private final OAIResponseParser parser = new OAIResponseParser(
+            OAIXMLUtils.newInputFactory(), LoggerFactory.getLogger(
+                    TestPushParser.class));
+
+    public TestPushParser() {
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    private static Harvest newHarvest() {
+        final Harvest harvest = new Harvest();
+        harvest.start();
+        return harvest;
+    }
+
+    private void push(final byte[] response, final int chunkSize,
+            final Harvest harvest, final OAIEventHandler eventHandler) {
+        final OAIResponseParser.Feeder feeder = parser.newFeeder(harvest,
+                eventHandler);
+        for (int i = 0; i < response.length; i += chunkSize) {
+            feeder.feed(response, i, Math.min(chunkSize,
+                    response.length - i));
+        }
+        feeder.endOfInput();
+    }
+
+    private static HarvestNotification notification(final Harvest harvest) {
+        return harvest.createNotification(
+                HarvestNotificationType.HARVEST_ENDED);
+    }
+
+    /**
+     * Tests that pushing a response in chunks of any size produces the same
+     * events and harvest state as parsing it from a stream.
+     */
+    @Test
+    public void testMatchesBlockingParse() throws Exception {
+        final String response = ListResponses
+                .setupWithDefaultListRecordsResponse(true).get(0);
+        final Harvest expectedHarvest = newHarvest();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final OAIEventHandler expectedHandler = Tests.simpleMergingHandler(
+                expected);
+        parser.parse(IOUtils.streamFromString(response), expectedHarvest,
+                expectedHandler);
+        expectedHandler.close();
+        final HarvestNotification expectedState = notification(
+                expectedHarvest);
+
+        for (final int chunkSize : CHUNK_SIZES) {
+            final Harvest harvest = newHarvest();
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            final OAIEventHandler handler = Tests.simpleMergingHandler(actual);
+            push(response.getBytes(StandardCharsets.UTF_8), chunkSize,
+                    harvest, handler);
+            handler.close();
+            final HarvestNotification state = notification(harvest);
+            XMLAssert.assertXMLEqual(new String(expected.toByteArray(),
+                    StandardCharsets.UTF_8), new String(actual.toByteArray(),
+                            StandardCharsets.UTF_8));
+            Assert.assertEquals(Optional.of(ListResponses.FIRST_TOKEN),
+                    state.getResumptionToken());
+            Assert.assertEquals(expectedState.getResumptionToken(),
+                    state.getResumptionToken());
+            Assert.assertTrue(state.getLastReponseDate().isPresent());
+            Assert.assertEquals(expectedState.getLastReponseDate(),
+                    state.getLastReponseDate());
+            Assert.assertTrue(state.isRunning());
+        }
+    }
+
+    /**
+     * Tests that a response fed through the public API, with no harvest,
+     * produces the same events and results as parsing it from a stream.
+     */
+    @Test
+    public void testPublicFeeder() throws Exception {
+        final String response = ListResponses
+                .setupWithDefaultListRecordsResponse(true).get(0);
+        final Harvest expectedHarvest = newHarvest();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final OAIEventHandler expectedHandler = Tests.simpleMergingHandler(
+                expected);
+        parser.parse(IOUtils.streamFromString(response), expectedHarvest,
+                expectedHandler);
+        expectedHandler.close();
+        final HarvestNotification expectedState = notification(
+                expectedHarvest);
+
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final OAIEventHandler handler = Tests.simpleMergingHandler(actual);
+        final OAIResponseFeeder feeder = new OAIResponseFeeder(handler);
+        for (int i = 0; i < bytes.length; i += 7) {
+            feeder.feed(ByteBuffer.wrap(bytes, i,
+                    Math.min(7, bytes.length - i)));
+        }
+        try {
+            feeder.getResumptionToken();
+            Assert.fail("Expected an IllegalStateException.");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        feeder.endOfInput();
+        handler.close();
+        XMLAssert.assertXMLEqual(new String(expected.toByteArray(),
+                StandardCharsets.UTF_8), new String(actual.toByteArray(),
+                        StandardCharsets.UTF_8));
+        Assert.assertEquals(ListResponses.FIRST_TOKEN,
+                feeder.getResumptionToken());
+        Assert.assertEquals(expectedState.getLastReponseDate(),
+                feeder.getResponseDate());
+        Assert.assertTrue(feeder.getResponseDate().isPresent());
+        Assert.assertEquals(expectedState.getStat(
+                HarvestStatistic.RECORD_COUNT).longValue(),
+                feeder.getRecordCount());
+    }
+
+    /**
+     * Tests that OAI protocol errors split across chunks are reported.
+     */
+    @Test
+    public void testProtocolErrors() throws Exception {
+        final List<OAIError> errors = Arrays.asList(
+                new OAIError(OAIErrorCode.BAD_RESUMPTION_TOKEN.code(),
+                        "Some message."),
+                new OAIError(OAIErrorCode.BAD_ARGUMENT.code()));
+        final byte[] response = ErrorsTemplate.process(errors).getBytes(
+                StandardCharsets.UTF_8);
+        for (final int chunkSize : CHUNK_SIZES) {
+            try {
+                push(response, chunkSize, newHarvest(),
+                        Mockito.mock(OAIEventHandler.class));
+                Assert.fail("Expected an OAIProtocolException.");
+            } catch (final OAIProtocolException e) {
+                Assert.assertEquals(errors, e.getOAIErrors());
+            }
+        }
+    }
+
+    /**
+     * Tests that malformed XML fails the parse, and that the feeder refuses
+     * further input afterward.
+     */
+    @Test
+    public void testMalformedXML() throws XMLStreamException {
+        final byte[] response = "<OAI-PMH><oops></OAI-PMH>".getBytes(
+                StandardCharsets.UTF_8);
+        final OAIResponseParser.Feeder feeder = parser.newFeeder(newHarvest(),
+                Mockito.mock(OAIEventHandler.class));
+        try {
+            feeder.feed(response, 0, response.length);
+            feeder.endOfInput();
+            Assert.fail("Expected a HarvesterXMLParsingException.");
+        } catch (final HarvesterXMLParsingException e) {
+            // Expected.
+        }
+        try {
+            feeder.feed(response, 0, response.length);
+            Assert.fail("Expected an IllegalStateException.");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_PROCESSED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpStatus;
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
+import org.unizin.cmp.oai.harvester.response.MergingOAIResponseHandler;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests the pipelined read-ahead mode enabled by
+ * {@link Harvester.Builder#withReadAhead(ExecutorService)}.
+ */
+public final class TestReadAhead {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+    private final String expected;
+
+    public TestReadAhead() throws IOException {
+        expected = IOUtils.stringFromClasspathFile(
+                "/oai-expected/merged-list-records.xml");
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void mergeTest(final Harvester harvester) throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        harvester.start(newParams().build(), new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(baos)));
+        XMLAssert.assertXMLEqual(expected, new String(baos.toByteArray(),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that handlers see the same output with read-ahead as without.
+     */
+    @Test
+    public void testReadAhead() throws Exception {
+        mergeTest(new Harvester.Builder().withReadAhead(executor).build());
+    }
+
+    /**
+     * Tests that responses larger than the memory limit are spilled to disk
+     * and read back correctly.
+     */
+    @Test
+    public void testSpill() throws Exception {
+        mergeTest(new Harvester.Builder()
+                .withReadAhead(executor)
+                .withReadAheadMemoryLimit(16)
+                .build());
+    }
+
+    /**
+     * Tests that stopping a harvest discards the request already sent for the
+     * next page, without processing its response.
+     */
+    @Test
+    public void testStopDiscardsReadAhead() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final Harvester harvester = new Harvester.Builder()
+                .withReadAhead(executor).build();
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == RESPONSE_PROCESSED) {
+                harvester.stop();
+            } else if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        Assert.assertEquals(1, ended.size());
+        final HarvestNotification hn = ended.get(0);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(Long.valueOf(1),
+                hn.getStat(HarvestStatistic.RESPONSE_COUNT));
+        Assert.assertEquals(Long.valueOf(2),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+    }
+
+    private static SpooledResponse spool(final String content) {
+        return spool(content, Long.MAX_VALUE);
+    }
+
+    private static SpooledResponse spool(final String content,
+            final long memoryLimit) {
+        return SpooledResponse.spool(new ByteArrayInputStream(
+                content.getBytes(StandardCharsets.UTF_8)),
+                new ByteBufferPool(1024, 4), memoryLimit,
+                OAIXMLUtils.newInputFactory());
+    }
+
+    /**
+     * Tests that the scan of a spooled response stops at the resumption
+     * token, the first error, or the end of the list, never reaching content
+     * after them.
+     */
+    @Test
+    public void testScanStopsEarly() {
+        final String start = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+                "<request verb=\"ListIdentifiers\">http://example.org/oai" +
+                "</request>";
+        final String list = "<ListIdentifiers><header><identifier>" +
+                "oai:example.org:1</identifier><datestamp>2016-01-01" +
+                "</datestamp></header>";
+        // A scan that reached this would find the wrong token.
+        final String after = "<resumptionToken>wrong</resumptionToken>" +
+                "</OAI-PMH>";
+        try (final SpooledResponse r = spool(start + list +
+                "<resumptionToken cursor=\"0\">next</resumptionToken>" +
+                "</ListIdentifiers>" + after)) {
+            Assert.assertTrue(r.hasNextPage());
+            Assert.assertEquals("next", r.getResumptionToken().getToken());
+            Assert.assertEquals(Long.valueOf(0),
+                    r.getResumptionToken().getCursor().get());
+        }
+        try (final SpooledResponse r = spool(start + list +
+                "</ListIdentifiers>" + after)) {
+            Assert.assertFalse(r.hasNextPage());
+            Assert.assertNull(r.getResumptionToken());
+        }
+        try (final SpooledResponse r = spool(start +
+                "<error code=\"badArgument\"/>" + after)) {
+            Assert.assertFalse(r.hasNextPage());
+        }
+    }
+
+    /**
+     * Tests that a list's resumption token is found at the end of the
+     * document, without scanning the records before it, even when the end
+     * has been spilled to disk.
+     */
+    @Test
+    public void testScanFindsTokenInTail() {
+        final String start = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\" " +
+                "xmlns:oai=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+                "<request verb=\"ListRecords\">http://example.org/oai" +
+                "</request><ListRecords>";
+        final StringBuilder records = new StringBuilder();
+        while (records.length() < 64 * 1024) {
+            records.append("<record><header><identifier>oai:example.org:1" +
+                    "</identifier></header></record>\n");
+        }
+        // A scan that reached this would fail, and find no token.
+        records.append("<record><<</record>");
+        final String content = start + records +
+                "<oai:resumptionToken completeListSize=\"10\" cursor=\"5\">" +
+                "a&amp;b\u00e9</oai:resumptionToken>\n</ListRecords>\n" +
+                "<!-- end -->\n</OAI-PMH>\n";
+        for (final long memoryLimit : new long[] {Long.MAX_VALUE,
+                content.length() - 4096}) {
+            try (final SpooledResponse r = spool(content, memoryLimit)) {
+                Assert.assertEquals(memoryLimit != Long.MAX_VALUE,
+                        r.isSpilled());
+                Assert.assertTrue(r.hasNextPage());
+                Assert.assertEquals("a&b\u00e9",
+                        r.getResumptionToken().getToken());
+                Assert.assertEquals(Long.valueOf(10),
+                        r.getResumptionToken().getCompleteListSize().get());
+                Assert.assertEquals(Long.valueOf(5),
+                        r.getResumptionToken().getCursor().get());
+            }
+        }
+        // A token of a record's metadata is not the list's.
+        try (final SpooledResponse r = spool(start + "<record><metadata>" +
+                "<x xmlns=\"urn:x\"><resumptionToken>wrong</resumptionToken>" +
+                "</x></metadata></record></ListRecords></OAI-PMH>")) {
+            Assert.assertFalse(r.hasNextPage());
+        }
+    }
+
+    /**
+     * Tests that an HTTP error fetching a page ahead is reported when the
+     * harvest reaches that page.
+     */
+    @Test
+    public void testErrorOnReadAheadPage() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        WireMockUtils.getStub(HttpStatus.SC_INTERNAL_SERVER_ERROR, "",
+                Tests.urlResmptionTokenPattern(
+                        ListResponses.FIRST_TOKEN.getToken()));
+        final Harvester harvester = new Harvester.Builder()
+                .withReadAhead(executor).build();
+        exception.expect(HarvesterHTTPStatusException.class);
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+    }
+}
@@ -0,0 +1,127 @@
+package org.unizin.cmp.oai.harvester;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIDateGranularity;
+import org.unizin.cmp.oai.OAIDeletedRecord;
+import org.unizin.cmp.oai.OAIError;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIIdentity;
+import org.unizin.cmp.oai.OAIMetadataFormat;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.unizin.cmp.oai.templates.ErrorsTemplate;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests {@link RepositoryMetadata#fetch(Harvester, java.net.URI)} and the
+ * {@code Identify} and {@code ListMetadataFormats} event handlers it uses.
+ */
+public final class TestRepositoryMetadata {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static String response(final String verb, final String content) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+                "<request verb=\"" + verb + "\">http://example.org/oai" +
+                "</request><" + verb + ">" + content + "</" + verb +
+                "></OAI-PMH>";
+    }
+
+    private static final String IDENTIFY_RESPONSE = response("Identify",
+            "<repositoryName>Example Repository</repositoryName>" +
+            "<baseURL>http://example.org/oai</baseURL>" +
+            "<protocolVersion>2.0</protocolVersion>" +
+            "<adminEmail>a@example.org</adminEmail>" +
+            "<adminEmail>b@example.org</adminEmail>" +
+            "<earliestDatestamp>1990-02-01T12:00:00Z</earliestDatestamp>" +
+            "<deletedRecord>persistent</deletedRecord>" +
+            "<granularity>YYYY-MM-DDThh:mm:ssZ</granularity>" +
+            "<compression>gzip</compression>" +
+            "<description><oai-identifier xmlns=" +
+            "\"http://www.openarchives.org/OAI/2.0/oai-identifier\">" +
+            "<repositoryIdentifier>example.org</repositoryIdentifier>" +
+            "</oai-identifier></description>");
+
+    private static final String LIST_SETS_RESPONSE = response("ListSets",
+            "<set><setSpec>music</setSpec><setName>Music</setName></set>");
+
+    private static final String LIST_METADATA_FORMATS_RESPONSE = response(
+            "ListMetadataFormats",
+            "<metadataFormat><metadataPrefix>oai_dc</metadataPrefix>" +
+            "<schema>http://www.openarchives.org/OAI/2.0/oai_dc.xsd</schema>" +
+            "<metadataNamespace>http://www.openarchives.org/OAI/2.0/oai_dc/" +
+            "</metadataNamespace></metadataFormat>" +
+            "<metadataFormat><metadataPrefix>marc21</metadataPrefix>" +
+            "</metadataFormat>");
+
+    private static void stub(final String verb, final String body) {
+        WireMockUtils.getStub(HttpStatus.SC_OK, body,
+                ".*verb=" + verb + ".*");
+    }
+
+    private static RepositoryMetadata fetch() {
+        return RepositoryMetadata.fetch(new Harvester.Builder().build(),
+                WireMockUtils.MOCK_OAI_BASE_URI);
+    }
+
+    @Test
+    public void testFetch() {
+        stub("Identify", IDENTIFY_RESPONSE);
+        stub("ListSets", LIST_SETS_RESPONSE);
+        stub("ListMetadataFormats", LIST_METADATA_FORMATS_RESPONSE);
+        final RepositoryMetadata metadata = fetch();
+
+        final OAIIdentity expected = new OAIIdentity.Builder()
+                .withRepositoryName("Example Repository")
+                .withBaseURL("http://example.org/oai")
+                .withProtocolVersion("2.0")
+                .withAdminEmail("a@example.org")
+                .withAdminEmail("b@example.org")
+                .withEarliestDatestamp("1990-02-01T12:00:00Z")
+                .withDeletedRecord(OAIDeletedRecord.PERSISTENT)
+                .withGranularity(OAIDateGranularity.SECOND)
+                .withCompression("gzip")
+                .build();
+        Assert.assertEquals(expected, metadata.getIdentity());
+        Assert.assertEquals(Collections.singletonList(
+                new OAISet("music", "Music")), metadata.getSets());
+        Assert.assertEquals(Arrays.asList(
+                new OAIMetadataFormat("oai_dc",
+                        "http://www.openarchives.org/OAI/2.0/oai_dc.xsd",
+                        OAI2Constants.OAI_DC_NS_URI),
+                new OAIMetadataFormat("marc21", null, null)),
+                metadata.getMetadataFormats());
+        Assert.assertTrue(metadata.supportsMetadataPrefix("marc21"));
+        Assert.assertFalse(metadata.supportsMetadataPrefix("mods"));
+    }
+
+    /**
+     * Tests that repositories without sets are given none, and that the
+     * granularity defaults to days.
+     */
+    @Test
+    public void testNoSetHierarchy() throws Exception {
+        stub("Identify", response("Identify",
+                "<repositoryName>Example Repository</repositoryName>"));
+        stub("ListSets", ErrorsTemplate.process(Collections.singletonList(
+                new OAIError(OAIErrorCode.NO_SET_HIERARCHY.code())),
+                "2016-01-01T00:00:00Z"));
+        stub("ListMetadataFormats", LIST_METADATA_FORMATS_RESPONSE);
+        final RepositoryMetadata metadata = fetch();
+        Assert.assertEquals(OAIDateGranularity.DAY,
+                metadata.getIdentity().getGranularity());
+        Assert.assertNull(metadata.getIdentity().getDeletedRecord());
+        Assert.assertEquals(Collections.emptyList(), metadata.getSets());
+        Assert.assertEquals(2, metadata.getMetadataFormats().size());
+    }
+}
@@ -0,0 +1,337 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.HarvesterException;
+import org.unizin.cmp.oai.harvester.exception.HarvesterHTTPStatusException;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+/**
+ * Tests {@link RetryPolicy} and its use by {@link Harvester}.
+ */
+public final class TestRetries {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+
+    /** Policy that retries quickly, for tests. */
+    private static final RetryPolicy FAST = new RetryPolicy.Builder()
+            .withMaxRetries(2)
+            .withInitialDelay(Duration.ofMillis(1))
+            .withJitter(0)
+            .build();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Set up the default list, with the request for the second page failing
+     * once.
+     */
+    private static void setupFailingSecondPage(final int status,
+            final String retryAfter) throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        stubFor(get(urlMatching(Tests.urlResmptionTokenPattern(
+                ListResponses.FIRST_TOKEN.getToken())))
+                .atPriority(1)
+                .inScenario("retry")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willSetStateTo("failed")
+                .willReturn(aResponse()
+                        .withStatus(status)
+                        .withHeader(HttpHeaders.RETRY_AFTER, retryAfter)));
+    }
+
+    private static List<HarvestNotification> observeEnd(
+            final Harvester harvester) {
+        final List<HarvestNotification> ended = new CopyOnWriteArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        return ended;
+    }
+
+    private static void assertStat(final long expected,
+            final HarvestNotification hn, final HarvestStatistic stat) {
+        Assert.assertEquals(stat.toString(), Long.valueOf(expected),
+                hn.getStat(stat));
+    }
+
+    private static void assertRetriedOnce(
+            final List<HarvestNotification> ended) {
+        Assert.assertEquals(1, ended.size());
+        final HarvestNotification hn = ended.get(0);
+        Assert.assertFalse(hn.hasError());
+        assertStat(ListResponses.DEFAULT_RESPONSE_COUNT, hn,
+                HarvestStatistic.RESPONSE_COUNT);
+        assertStat(ListResponses.DEFAULT_RESPONSE_COUNT + 1, hn,
+                HarvestStatistic.REQUEST_COUNT);
+        assertStat(1, hn, HarvestStatistic.RETRY_COUNT);
+        assertStat(0, hn, HarvestStatistic.RETRY_WAIT_MILLIS);
+    }
+
+    private void testRetry(final Harvester.Builder builder) throws Exception {
+        setupFailingSecondPage(HttpStatus.SC_SERVICE_UNAVAILABLE, "0");
+        final Harvester harvester = builder.withRetryPolicy(
+                new RetryPolicy.Builder().build()).build();
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        harvester.start(newParams().build(), Mocks.newResponseHandler());
+        assertRetriedOnce(ended);
+    }
+
+    /**
+     * Tests that a failed request is sent again, after the delay asked for by
+     * {@code Retry-After}, and that the harvest continues from that page.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        testRetry(new Harvester.Builder());
+    }
+
+    @Test
+    public void testRetryWithReadAhead() throws Exception {
+        testRetry(new Harvester.Builder().withReadAhead(executor));
+    }
+
+    @Test
+    public void testAsyncRetry() throws Exception {
+        setupFailingSecondPage(HttpStatus.SC_SERVICE_UNAVAILABLE, "0");
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient().build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .withRetryPolicy(new RetryPolicy.Builder().build())
+                    .build();
+            final List<HarvestNotification> ended = observeEnd(harvester);
+            harvester.startAsync(newParams().build(),
+                    Mocks.newResponseHandler()).get();
+            assertRetriedOnce(ended);
+        }
+    }
+
+    /**
+     * Tests that harvests still fail with the original error once the policy
+     * allows no more retries.
+     */
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        WireMockUtils.getStub(HttpStatus.SC_BAD_GATEWAY, "");
+        final Harvester harvester = new Harvester.Builder()
+                .withRetryPolicy(FAST).build();
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        try {
+            harvester.start(newParams().build(), Mocks.newResponseHandler());
+            Assert.fail("Expected harvest to fail.");
+        } catch (final HarvesterHTTPStatusException e) {
+            Assert.assertEquals(HttpStatus.SC_BAD_GATEWAY,
+                    e.getStatusLine().getStatusCode());
+        }
+        final HarvestNotification hn = ended.get(0);
+        Assert.assertTrue(hn.hasError());
+        assertStat(3, hn, HarvestStatistic.REQUEST_COUNT);
+        assertStat(2, hn, HarvestStatistic.RETRY_COUNT);
+        assertStat(1 + 2, hn, HarvestStatistic.RETRY_WAIT_MILLIS);
+    }
+
+    @Test
+    public void testAsyncRetriesExhausted() throws Exception {
+        WireMockUtils.getStub(HttpStatus.SC_BAD_GATEWAY, "");
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient().build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .withRetryPolicy(FAST)
+                    .build();
+            final List<HarvestNotification> ended = observeEnd(harvester);
+            try {
+                harvester.startAsync(newParams().build(),
+                        Mocks.newResponseHandler()).get();
+                Assert.fail("Expected harvest to fail.");
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof
+                        HarvesterHTTPStatusException);
+            }
+            assertStat(3, ended.get(0), HarvestStatistic.REQUEST_COUNT);
+            assertStat(2, ended.get(0), HarvestStatistic.RETRY_COUNT);
+        }
+    }
+
+    /**
+     * Tests that requests aren't retried by default, or when their status
+     * isn't retryable.
+     */
+    @Test
+    public void testNoRetry() throws Exception {
+        WireMockUtils.getStub(HttpStatus.SC_SERVICE_UNAVAILABLE, "");
+        testNoRetry(new Harvester.Builder().build());
+        WireMockUtils.getStub(HttpStatus.SC_NOT_FOUND, "");
+        testNoRetry(new Harvester.Builder().withRetryPolicy(FAST).build());
+    }
+
+    private static void testNoRetry(final Harvester harvester) {
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        try {
+            harvester.start(newParams().build(), Mocks.newResponseHandler());
+            Assert.fail("Expected harvest to fail.");
+        } catch (final HarvesterHTTPStatusException e) {
+            // Expected.
+        }
+        assertStat(1, ended.get(0), HarvestStatistic.REQUEST_COUNT);
+        assertStat(0, ended.get(0), HarvestStatistic.RETRY_COUNT);
+    }
+
+    /**
+     * Tests that stopping a harvest ends its wait to retry.
+     */
+    @Test(timeout = 10000)
+    public void testStopWhileWaiting() throws Exception {
+        stubFor(WireMockUtils.getAnyURL().willReturn(aResponse()
+                .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE)
+                .withHeader(HttpHeaders.RETRY_AFTER, "60")));
+        final Harvester harvester = new Harvester.Builder()
+                .withRetryPolicy(new RetryPolicy.Builder().build())
+                .build();
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        final Thread t = new Thread(() -> {
+            try {
+                harvester.start(newParams().build(),
+                        Mocks.newResponseHandler());
+            } catch (final HarvesterHTTPStatusException e) {
+                // Expected.
+            }
+        });
+        t.start();
+        while (findAll(getRequestedFor(urlMatching(".*"))).isEmpty()) {
+            Thread.sleep(10);
+        }
+        harvester.stop();
+        t.join();
+        Assert.assertTrue(ended.get(0).hasError());
+        assertStat(1, ended.get(0), HarvestStatistic.REQUEST_COUNT);
+    }
+
+    private static HarvesterHTTPStatusException statusException(
+            final int status, final String retryAfter) {
+        final HttpResponse response = new BasicHttpResponse(
+                HttpVersion.HTTP_1_1, status, null);
+        response.setEntity(new StringEntity("", (String)null));
+        if (retryAfter != null) {
+            response.addHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+        }
+        return new HarvesterHTTPStatusException("test", response);
+    }
+
+    @Test
+    public void testDelays() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .withMaxRetries(4)
+                .withInitialDelay(Duration.ofMillis(100))
+                .withMaxDelay(Duration.ofMillis(500))
+                .withJitter(0)
+                .build();
+        final Exception e = statusException(HttpStatus.SC_GATEWAY_TIMEOUT,
+                null);
+        Assert.assertEquals(100, policy.retryDelayMillis(e, 0));
+        Assert.assertEquals(200, policy.retryDelayMillis(e, 1));
+        Assert.assertEquals(400, policy.retryDelayMillis(e, 2));
+        Assert.assertEquals(500, policy.retryDelayMillis(e, 3));
+        Assert.assertEquals(-1, policy.retryDelayMillis(e, 4));
+
+        final Instant now = Instant.now();
+        Assert.assertEquals(0, policy.retryDelayMillis(
+                statusException(429, "0"), 0, now));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                statusException(429, "1"), 0, now));
+        final String date = DateUtils.formatDate(
+                Date.from(now.plusSeconds(10)));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                statusException(429, date), 0, now));
+        Assert.assertEquals(0, policy.retryDelayMillis(
+                statusException(429, DateUtils.formatDate(
+                        Date.from(now.minusSeconds(10)))), 0, now));
+        // Unparseable values are ignored.
+        Assert.assertEquals(100, policy.retryDelayMillis(
+                statusException(429, "soon"), 0, now));
+    }
+
+    @Test
+    public void testJitter() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .withInitialDelay(Duration.ofMillis(1000))
+                .withJitter(0.25)
+                .build();
+        final Exception e = statusException(HttpStatus.SC_BAD_GATEWAY, null);
+        for (int i = 0; i < 100; i++) {
+            final long delay = policy.retryDelayMillis(e, 0);
+            Assert.assertTrue(String.valueOf(delay),
+                    delay >= 750 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void testRetryableFailures() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .withJitter(0).build();
+        Assert.assertEquals(1000, policy.retryDelayMillis(
+                new UncheckedIOException(new SocketTimeoutException()), 0));
+        Assert.assertEquals(1000, policy.retryDelayMillis(
+                new HarvesterException(new IOException()), 0));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                new UncheckedIOException(new UnknownHostException()), 0));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                new HarvesterException("not I/O"), 0));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                new IllegalStateException(new IOException()), 0));
+        Assert.assertEquals(-1, policy.retryDelayMillis(
+                statusException(HttpStatus.SC_INTERNAL_SERVER_ERROR, null),
+                0));
+        Assert.assertEquals(-1, RetryPolicy.NONE.retryDelayMillis(
+                statusException(HttpStatus.SC_SERVICE_UNAVAILABLE, null), 0));
+    }
+}
@@ -1,5 +1,9 @@
 package org.unizin.cmp.oai.harvester;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.mockito.Matchers.eq;
 import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
 import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.RESPONSE_PROCESSED;
@@ -7,11 +11,24 @@ import static org.unizin.cmp.oai.harvester.ListResponses.setupWithDefaultListRec
 import static org.unizin.cmp.oai.harvester.Tests.newParams;
 import static org.unizin.cmp.oai.mocks.Mocks.inOrderVerify;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Observer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,6 +50,18 @@ public final class TestStopAndCancel {
     @Rule
     public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
 
+    /** How long the repository takes to respond in stalled harvests. */
+    private static final int STALL_MILLIS = 10 * 1000;
+    /** How long a stalled harvest may take to stop once cancelled. */
+    private static final long MAX_CANCEL_MILLIS = 2 * 1000;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
     private void observerTest(final Consumer<Harvester> action,
             final Predicate<HarvestNotification> lastNotificationCheck)
                     throws Exception {
@@ -138,4 +167,116 @@ public final class TestStopAndCancel {
          */
         Assert.assertTrue(Thread.interrupted());
     }
+
+    /** Timeouts long enough that only cancellation ends stalled harvests. */
+    private static final RequestConfig PATIENT = RequestConfig.custom()
+            .setSocketTimeout(2 * STALL_MILLIS)
+            .build();
+
+    private static CloseableHttpClient patientClient() {
+        return Harvester.defaultHttpClient()
+                .setDefaultSocketConfig(SocketConfig.custom()
+                        .setSoTimeout(2 * STALL_MILLIS)
+                        .build())
+                .setDefaultRequestConfig(PATIENT)
+                .build();
+    }
+
+    private static void stall() {
+        stubFor(get(urlMatching(".*")).willReturn(aResponse()
+                .withStatus(HttpStatus.SC_OK)
+                .withBody("<OAI-PMH/>")
+                .withFixedDelay(STALL_MILLIS)));
+    }
+
+    private static List<HarvestNotification> observeEnd(
+            final Harvester harvester) {
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        return ended;
+    }
+
+    private static void checkCancelled(final List<HarvestNotification> ended,
+            final long startNanos) {
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - startNanos);
+        Assert.assertTrue("Took " + elapsed + " ms to cancel.",
+                elapsed < MAX_CANCEL_MILLIS);
+        Assert.assertEquals(1, ended.size());
+        final HarvestNotification hn = ended.get(0);
+        Assert.assertTrue(hn.isCancelled());
+        Assert.assertFalse(hn.hasError());
+        final long latency = hn.getStat(
+                HarvestStatistic.CANCEL_LATENCY_MILLIS);
+        Assert.assertTrue(latency >= 0 && latency <= elapsed);
+    }
+
+    /**
+     * Start a harvest of a repository that never responds in time, cancel
+     * it, and check that it stops promptly.
+     */
+    private void cancelStalledTest(final Harvester harvester)
+            throws Exception {
+        stall();
+        final List<HarvestNotification> ended = observeEnd(harvester);
+        final Future<?> f = executor.submit(() -> harvester.start(
+                newParams().build(), Mocks.newResponseHandler()));
+        Thread.sleep(500);
+        final long start = System.nanoTime();
+        harvester.cancel();
+        f.get(MAX_CANCEL_MILLIS, TimeUnit.MILLISECONDS);
+        checkCancelled(ended, start);
+    }
+
+    /**
+     * Tests that cancelling aborts a request waiting for a response.
+     */
+    @Test
+    public void testCancelStalled() throws Exception {
+        try (final CloseableHttpClient client = patientClient()) {
+            cancelStalledTest(new Harvester.Builder()
+                    .withHttpClient(client)
+                    .build());
+        }
+    }
+
+    @Test
+    public void testCancelStalledReadAhead() throws Exception {
+        try (final CloseableHttpClient client = patientClient()) {
+            cancelStalledTest(new Harvester.Builder()
+                    .withHttpClient(client)
+                    .withReadAhead(executor)
+                    .build());
+        }
+    }
+
+    @Test
+    public void testCancelStalledAsync() throws Exception {
+        stall();
+        try (final CloseableHttpAsyncClient client =
+                Harvester.defaultAsyncHttpClient()
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setSoTimeout(2 * STALL_MILLIS)
+                        .build())
+                .setDefaultRequestConfig(PATIENT)
+                .build()) {
+            client.start();
+            final Harvester harvester = new Harvester.Builder()
+                    .withAsyncHttpClient(client, executor)
+                    .build();
+            final List<HarvestNotification> ended = observeEnd(harvester);
+            final Future<Void> f = harvester.startAsync(newParams().build(),
+                    Mocks.newResponseHandler());
+            Thread.sleep(500);
+            final long start = System.nanoTime();
+            harvester.cancel();
+            f.get(MAX_CANCEL_MILLIS, TimeUnit.MILLISECONDS);
+            checkCancelled(ended, start);
+        }
+    }
 }
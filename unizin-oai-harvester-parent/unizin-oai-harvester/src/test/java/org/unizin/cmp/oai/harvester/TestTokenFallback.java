@@ -0,0 +1,284 @@
+package org.unizin.cmp.oai.harvester;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIError;
+import org.unizin.cmp.oai.OAIErrorCode;
+import org.unizin.cmp.oai.OAIRequestParameter;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.exception.OAIProtocolException;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.RecordOAIEventHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.unizin.cmp.oai.templates.ErrorsTemplate;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import freemarker.template.TemplateException;
+
+/**
+ * Tests restarting lists from their datestamp high-water marks, enabled by
+ * {@link Harvester.Builder#withTokenExpiryFallback(Duration)}, and
+ * {@link OverlapFilter}.
+ */
+public final class TestTokenFallback {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final Duration OVERLAP = Duration.ofDays(1);
+
+    private static final class Header {
+        String identifier;
+        String datestamp;
+    }
+
+    /** Collects the identifiers of records accepted by a filter. */
+    private static final class IdentifierHandler
+    extends AbstractOAIResponseHandler {
+        final List<String> identifiers = new ArrayList<>();
+        private final OverlapFilter filter;
+
+        IdentifierHandler(final OverlapFilter filter) {
+            this.filter = filter;
+        }
+
+        private void accept(final Header header) {
+            if (filter == null || filter.accept(header.identifier,
+                    header.datestamp)) {
+                identifiers.add(header.identifier);
+            }
+        }
+
+        @Override
+        public OAIEventHandler getEventHandler(
+                final HarvestNotification notification) {
+            final Consumer<Header> consumer = this::accept;
+            return new RecordOAIEventHandler<Header>(consumer) {
+                @Override
+                protected Header createRecord(final StartElement se) {
+                    return new Header();
+                }
+
+                @Override
+                protected void onIdentifier(final Header record,
+                        final String identifier) {
+                    record.identifier = identifier;
+                }
+
+                @Override
+                protected void onDatestamp(final Header record,
+                        final String datestamp) {
+                    record.datestamp = datestamp;
+                }
+
+                @Override
+                protected void onRecordEnd(final Header record,
+                        final List<XMLEvent> events) {
+                }
+            };
+        }
+    }
+
+    /**
+     * Create a page of records.
+     *
+     * @param token
+     *            the page's resumption token element, or {@code null} for
+     *            none.
+     * @param records
+     *            identifiers and datestamps, alternating.
+     */
+    private static String page(final String token,
+            final String... records) {
+        final StringBuilder sb = new StringBuilder()
+            .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<OAI-PMH xmlns=\"").append(OAI2Constants.OAI_2_NS_URI)
+            .append("\"><responseDate>2016-01-10T00:00:00Z</responseDate>")
+            .append("<request verb=\"ListRecords\">http://example.org/oai")
+            .append("</request><ListRecords>");
+        for (int i = 0; i < records.length; i += 2) {
+            sb.append("<record><header><identifier>").append(records[i])
+                .append("</identifier><datestamp>").append(records[i + 1])
+                .append("</datestamp></header></record>");
+        }
+        if (token != null) {
+            sb.append(token);
+        }
+        return sb.append("</ListRecords></OAI-PMH>").toString();
+    }
+
+    private static String token(final String token) {
+        return "<resumptionToken>" + token + "</resumptionToken>";
+    }
+
+    private static String badResumptionToken()
+            throws TemplateException, IOException {
+        return ErrorsTemplate.process(Collections.singletonList(
+                new OAIError(OAIErrorCode.BAD_RESUMPTION_TOKEN.code())));
+    }
+
+    private static void stubFrom(final String from, final String body) {
+        stubFor(get(urlMatching("^.*from=" + from + ".*$"))
+                .atPriority(1)
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withBody(body)));
+    }
+
+    private static HarvestNotification harvest(
+            final IdentifierHandler handler) {
+        final Harvester harvester = new Harvester.Builder()
+                .withTokenExpiryFallback(OVERLAP)
+                .build();
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        try {
+            harvester.start(newParams().build(), handler);
+        } catch (final OAIProtocolException e) {
+            // Checked by callers through the notification.
+        }
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    private void setupRejectedToken() throws Exception {
+        ListResponses.setupResponses(
+                page(token("t1"), "a", "2016-01-01", "b", "2016-01-02"),
+                Collections.singletonMap("t1", badResumptionToken()));
+        // Restarted from the high-water mark, 2016-01-02, less a day.
+        stubFrom("2016-01-01", page(token(""), "a", "2016-01-01",
+                "b", "2016-01-02", "c", "2016-01-03"));
+    }
+
+    /**
+     * Tests that a rejected token restarts the list from the latest datestamp
+     * seen, less the overlap, and that the filter drops repeated records.
+     */
+    @Test
+    public void testRejectedToken() throws Exception {
+        setupRejectedToken();
+        final IdentifierHandler handler = new IdentifierHandler(
+                new OverlapFilter(OVERLAP));
+        final HarvestNotification hn = harvest(handler);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(Arrays.asList("a", "b", "c"),
+                handler.identifiers);
+        Assert.assertEquals(Long.valueOf(1),
+                hn.getStat(HarvestStatistic.TOKEN_FALLBACK_COUNT));
+        Assert.assertEquals(Long.valueOf(3),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+        Assert.assertEquals("2016-01-01", hn.getHarvestParameters().get(
+                OAIRequestParameter.FROM));
+    }
+
+    /** Tests that, without a filter, records in the overlap are repeated. */
+    @Test
+    public void testOverlapRepeatedWithoutFilter() throws Exception {
+        setupRejectedToken();
+        final IdentifierHandler handler = new IdentifierHandler(null);
+        harvest(handler);
+        Assert.assertEquals(Arrays.asList("a", "b", "a", "b", "c"),
+                handler.identifiers);
+    }
+
+    /**
+     * Tests that a token known to have expired is never sent.
+     */
+    @Test
+    public void testExpiredToken() throws Exception {
+        ListResponses.setupResponses(page(
+                "<resumptionToken expirationDate=\"2016-01-01T00:00:00Z\">" +
+                        "t1</resumptionToken>",
+                "a", "2016-01-03", "b", "2016-01-05"),
+                Collections.singletonMap("t1", badResumptionToken()));
+        stubFrom("2016-01-04", page(token(""), "b", "2016-01-05",
+                "c", "2016-01-06"));
+        final IdentifierHandler handler = new IdentifierHandler(
+                new OverlapFilter(OVERLAP));
+        final HarvestNotification hn = harvest(handler);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(Arrays.asList("a", "b", "c"),
+                handler.identifiers);
+        Assert.assertEquals(Long.valueOf(2),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+        verify(0, getRequestedFor(urlMatching(
+                Tests.urlResmptionTokenPattern("t1"))));
+    }
+
+    /**
+     * Tests that a list is not restarted again when no newer records have
+     * been seen since it was last restarted.
+     */
+    @Test
+    public void testNoRestartWithoutProgress() throws Exception {
+        ListResponses.setupResponses(
+                page(token("t1"), "a", "2016-01-01", "b", "2016-01-02"),
+                Collections.singletonMap("t1", badResumptionToken()));
+        stubFrom("2016-01-01", page(token("t1"), "a", "2016-01-01",
+                "b", "2016-01-02"));
+        final HarvestNotification hn = harvest(new IdentifierHandler(null));
+        Assert.assertTrue(hn.hasError());
+        Assert.assertTrue(hn.getException().get()
+                instanceof OAIProtocolException);
+        Assert.assertEquals(Long.valueOf(1),
+                hn.getStat(HarvestStatistic.TOKEN_FALLBACK_COUNT));
+    }
+
+    /**
+     * Tests that a rejected token still ends a harvest when fallback is not
+     * enabled.
+     */
+    @Test(expected = OAIProtocolException.class)
+    public void testDisabledByDefault() throws Exception {
+        setupRejectedToken();
+        new Harvester.Builder().build().start(newParams().build(),
+                new IdentifierHandler(null));
+    }
+
+    @Test
+    public void testOverlapFilter() {
+        final OverlapFilter filter = new OverlapFilter(Duration.ofHours(1));
+        Assert.assertTrue(filter.accept("a", "2016-01-01T00:00:00Z"));
+        Assert.assertFalse(filter.accept("a", "2016-01-01T00:00:00Z"));
+        // A changed record is accepted again.
+        Assert.assertTrue(filter.accept("a", "2016-01-01T00:30:00Z"));
+        Assert.assertTrue(filter.accept("b", "2016-01-01T01:00:00Z"));
+        Assert.assertEquals(2, filter.size());
+        // Records more than an hour older than the latest are forgotten.
+        Assert.assertTrue(filter.accept("c", "2016-01-01T02:00:00Z"));
+        Assert.assertEquals(2, filter.size());
+        Assert.assertTrue(filter.accept("a", "2016-01-01T00:30:00Z"));
+        // Unparseable datestamps are always accepted.
+        Assert.assertTrue(filter.accept("d", "yesterday"));
+        Assert.assertTrue(filter.accept("d", "yesterday"));
+    }
+}
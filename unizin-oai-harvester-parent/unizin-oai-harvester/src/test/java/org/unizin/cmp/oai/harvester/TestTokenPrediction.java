@@ -0,0 +1,207 @@
+package org.unizin.cmp.oai.harvester;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.ResumptionToken;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.response.AbstractOAIResponseHandler;
+import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
+import org.unizin.cmp.oai.harvester.response.OAIStreamHandler;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Tests speculative requests enabled by
+ * {@link Harvester.Builder#withTokenPredictor(TokenPredictor, int)}, and
+ * {@link OffsetTokenPredictor}.
+ */
+public final class TestTokenPrediction {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final int PAGES = 8;
+    private static final int PAGE_SIZE = 2;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static String offsetToken(final int page) {
+        return String.format("oai_dc.%04d", page * PAGE_SIZE);
+    }
+
+    private static final class IdentifierHandler
+    extends AbstractOAIResponseHandler implements OAIStreamHandler {
+        final List<String> identifiers = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private boolean inIdentifier;
+
+        @Override
+        public OAIEventHandler getEventHandler(
+                final HarvestNotification notification) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OAIStreamHandler getStreamHandler(
+                final HarvestNotification notification) {
+            return this;
+        }
+
+        @Override
+        public void onEvent(final XMLStreamReader reader) {
+            switch (reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                inIdentifier = OAIXMLUtils.hasName(reader,
+                        OAI2Constants.IDENTIFIER);
+                text.setLength(0);
+                break;
+            case XMLStreamConstants.CHARACTERS:
+                if (inIdentifier) {
+                    text.append(reader.getText());
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (inIdentifier) {
+                    identifiers.add(text.toString());
+                }
+                inIdentifier = false;
+                break;
+            default:
+                break;
+            }
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    private HarvestNotification harvest(final IdentifierHandler handler) {
+        final Harvester harvester = new Harvester.Builder()
+                .withReadAhead(executor)
+                .withTokenPredictor(new OffsetTokenPredictor(), 3)
+                .build();
+        final List<HarvestNotification> ended = new ArrayList<>();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        harvester.start(newParams().build(), handler);
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    /**
+     * Tests that correctly predicted pages are used, in order, and that no
+     * page past the end of the list is requested when the list size is known.
+     */
+    @Test
+    public void testPredictedPages() {
+        final List<String> expected = ListResponses.setupPages(
+                PAGES, PAGE_SIZE, TestTokenPrediction::offsetToken, true);
+        final IdentifierHandler handler = new IdentifierHandler();
+        final HarvestNotification hn = harvest(handler);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(expected, handler.identifiers);
+        Assert.assertEquals(Long.valueOf(PAGES),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+        // Three tokens to learn from, then every later page is predicted.
+        Assert.assertEquals(Long.valueOf(PAGES - 4),
+                hn.getStat(HarvestStatistic.SPECULATIVE_HIT_COUNT));
+        Assert.assertEquals(Long.valueOf(PAGES - 4),
+                hn.getStat(HarvestStatistic.SPECULATIVE_REQUEST_COUNT));
+    }
+
+    /**
+     * Tests that a wrong prediction falls back to sequential harvesting
+     * without affecting what handlers see.
+     */
+    @Test
+    public void testMisprediction() {
+        final List<String> expected = ListResponses.setupPages(
+                PAGES, PAGE_SIZE, page -> page <= 3 ? offsetToken(page) :
+                    "other." + page, false);
+        final IdentifierHandler handler = new IdentifierHandler();
+        final HarvestNotification hn = harvest(handler);
+        Assert.assertFalse(hn.hasError());
+        Assert.assertEquals(expected, handler.identifiers);
+        Assert.assertEquals(Long.valueOf(PAGES),
+                hn.getStat(HarvestStatistic.REQUEST_COUNT));
+        Assert.assertEquals(Long.valueOf(0),
+                hn.getStat(HarvestStatistic.SPECULATIVE_HIT_COUNT));
+        Assert.assertEquals(Long.valueOf(3),
+                hn.getStat(HarvestStatistic.SPECULATIVE_REQUEST_COUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresReadAhead() {
+        new Harvester.Builder()
+            .withTokenPredictor(new OffsetTokenPredictor(), 1)
+            .build();
+    }
+
+    private static List<ResumptionToken> chain(final String... tokens) {
+        final List<ResumptionToken> chain = new ArrayList<>();
+        for (final String token : tokens) {
+            chain.add(new ResumptionToken(token));
+        }
+        return chain;
+    }
+
+    @Test
+    public void testOffsetTokenPredictor() {
+        final TokenPredictor p = new OffsetTokenPredictor();
+        Assert.assertEquals(Optional.of("2016-01-01|dc|0400"), p.predict(
+                chain("2016-01-01|dc|0100", "2016-01-01|dc|0200",
+                        "2016-01-01|dc|0300"), 1));
+        Assert.assertEquals(Optional.of("x1050y"), p.predict(
+                chain("x950y", "x975y", "x1000y"), 2));
+        // Too few tokens.
+        Assert.assertEquals(Optional.empty(), p.predict(
+                chain("a100", "a200"), 1));
+        // Uneven steps.
+        Assert.assertEquals(Optional.empty(), p.predict(
+                chain("a100", "a200", "a350"), 1));
+        // More than one number changes.
+        Assert.assertEquals(Optional.empty(), p.predict(
+                chain("a1b100", "a2b200", "a3b300"), 1));
+        // Text changes.
+        Assert.assertEquals(Optional.empty(), p.predict(
+                chain("a100", "b200", "a300"), 1));
+        // No numbers at all.
+        Assert.assertEquals(Optional.empty(), p.predict(
+                chain("abc", "def", "ghi"), 1));
+        // Pages 1 through 3 carried these tokens, so "t40" would be carried
+        // by page 4, which holds records 30 through 39.
+        final List<ResumptionToken> sized = Arrays.asList(
+                new ResumptionToken("t10", 45L, 0L, null),
+                new ResumptionToken("t20", 45L, 10L, null),
+                new ResumptionToken("t30", 45L, 20L, null));
+        Assert.assertEquals(Optional.of("t40"), p.predict(sized, 1));
+        // Page 5 is the last, so it carries no token.
+        Assert.assertEquals(Optional.empty(), p.predict(sized, 2));
+    }
+}
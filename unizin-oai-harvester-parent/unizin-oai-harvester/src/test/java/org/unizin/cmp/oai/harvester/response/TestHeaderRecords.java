@@ -0,0 +1,147 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+
+/**
+ * Tests that {@link RecordOAIEventHandler} treats the bare headers of
+ * {@code ListIdentifiers} responses as records.
+ */
+public final class TestHeaderRecords {
+    private static final String DELETED_HEADER =
+            "<header status=\"deleted\">" +
+            "<identifier>oai:example.org:1</identifier>" +
+            "<datestamp>2016-01-01</datestamp>" +
+            "<setSpec>a</setSpec></header>";
+
+    private static final String HEADER =
+            "<header><identifier>oai:example.org:2</identifier>" +
+            "<datestamp>2016-01-02</datestamp></header>";
+
+    private static final class Record {
+        String identifier;
+        String datestamp;
+        String status;
+        final List<String> sets = new ArrayList<>();
+        String xml;
+    }
+
+    private static final class Handler extends RecordOAIEventHandler<Record> {
+        Handler(final List<Record> records) {
+            super(records::add);
+        }
+
+        @Override
+        protected Record createRecord(final StartElement se) {
+            Assert.assertEquals(OAI2Constants.RECORD, se.getName());
+            return new Record();
+        }
+
+        @Override
+        protected void onIdentifier(final Record record,
+                final String identifier) {
+            record.identifier = identifier;
+        }
+
+        @Override
+        protected void onDatestamp(final Record record,
+                final String datestamp) {
+            record.datestamp = datestamp;
+        }
+
+        @Override
+        protected void onSet(final Record record, final String set) {
+            record.sets.add(set);
+        }
+
+        @Override
+        protected void onStatus(final Record record, final String status) {
+            record.status = status;
+        }
+
+        @Override
+        protected void onRecordEnd(final Record record,
+                final List<XMLEvent> events) {
+            final XMLOutputFactory factory = OAIXMLUtils.newOutputFactory();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES,
+                    true);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                final XMLEventWriter writer = OAIXMLUtils.createEventWriter(
+                        factory, out);
+                for (final XMLEvent event : events) {
+                    writer.add(event);
+                }
+                writer.close();
+            } catch (final XMLStreamException e) {
+                throw new AssertionError(e);
+            }
+            record.xml = new String(out.toByteArray(),
+                    StandardCharsets.UTF_8);
+        }
+    }
+
+    public TestHeaderRecords() {
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    private static List<Record> handle(final String verb,
+            final String content) throws XMLStreamException {
+        final String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OAI-PMH xmlns=\"" + OAI2Constants.OAI_2_NS_URI + "\">" +
+                "<responseDate>2016-01-10T00:00:00Z</responseDate>" +
+                "<request verb=\"" + verb + "\">http://example.org/oai" +
+                "</request><" + verb + ">" + content + "</" + verb +
+                "></OAI-PMH>";
+        final List<Record> records = new ArrayList<>();
+        final Handler handler = new Handler(records);
+        final XMLEventReader reader = OAIXMLUtils.newInputFactory()
+                .createXMLEventReader(new StringReader(response));
+        while (reader.hasNext()) {
+            handler.onEvent(reader.nextEvent());
+        }
+        return records;
+    }
+
+    @Test
+    public void testListIdentifiers() throws Exception {
+        final List<Record> records = handle("ListIdentifiers",
+                DELETED_HEADER + HEADER);
+        Assert.assertEquals(2, records.size());
+        final Record deleted = records.get(0);
+        Assert.assertEquals("oai:example.org:1", deleted.identifier);
+        Assert.assertEquals("2016-01-01", deleted.datestamp);
+        Assert.assertEquals("deleted", deleted.status);
+        Assert.assertEquals(1, deleted.sets.size());
+        final Record record = records.get(1);
+        Assert.assertEquals("oai:example.org:2", record.identifier);
+        Assert.assertEquals("2016-01-02", record.datestamp);
+        Assert.assertNull(record.status);
+
+        // Headers are stored just as records without metadata would be.
+        final List<Record> listed = handle("ListRecords",
+                "<record>" + DELETED_HEADER + "</record>" +
+                "<record>" + HEADER + "</record>");
+        Assert.assertEquals(2, listed.size());
+        for (int i = 0; i < listed.size(); i++) {
+            XMLAssert.assertXMLEqual(listed.get(i).xml, records.get(i).xml);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAISet;
+import org.unizin.cmp.oai.OAIVerb;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public final class TestListSetsHandler {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final String LIST_SETS_RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">" +
+            "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+            "<request verb=\"ListSets\">http://example.org/oai</request>" +
+            "<ListSets>" +
+            "<set><setSpec>music</setSpec><setName>Music</setName></set>" +
+            "<set><setSpec>music:jazz</setSpec>" +
+            "<setName> Jazz </setName>" +
+            "<setDescription><p>Ignored</p></setDescription></set>" +
+            "<set><setSpec>maps</setSpec></set>" +
+            "</ListSets>" +
+            "</OAI-PMH>";
+
+    /**
+     * Tests that each set in a response is reported, with nested sets
+     * distinguished from top-level ones.
+     */
+    @Test
+    public void testListSets() {
+        WireMockUtils.getStub(LIST_SETS_RESPONSE);
+        final List<OAISet> sets = new ArrayList<>();
+        final OAIEventHandler eventHandler = new ListSetsOAIEventHandler(
+                sets::add);
+        new Harvester.Builder().build().start(
+                newParams(OAIVerb.LIST_SETS).build(),
+                new AbstractOAIResponseHandler() {
+                    @Override
+                    public OAIEventHandler getEventHandler(
+                            final HarvestNotification notification) {
+                        return eventHandler;
+                    }
+                });
+        Assert.assertEquals(Arrays.asList(new OAISet("music", "Music"),
+                new OAISet("music:jazz", "Jazz"), new OAISet("maps", null)),
+                sets);
+        Assert.assertTrue(sets.get(0).isTopLevel());
+        Assert.assertFalse(sets.get(1).isTopLevel());
+    }
+}
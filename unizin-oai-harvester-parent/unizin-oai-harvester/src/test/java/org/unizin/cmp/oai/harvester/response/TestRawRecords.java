@@ -0,0 +1,178 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.http.HttpStatus;
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+import org.w3c.dom.Document;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public final class TestRawRecords {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private static final String NAMESPACES =
+            "xmlns=\"http://www.openarchives.org/OAI/2.0/\" " +
+            "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+            "xmlns:ex=\"urn:example:a&amp;b\"";
+
+    private static final String FIRST_RECORD =
+            "<record><header status=\"deleted\">" +
+            "<identifier>oai:example.org:1</identifier>" +
+            "<datestamp>2016-01-01</datestamp>" +
+            "<setSpec>a</setSpec><setSpec>b</setSpec>" +
+            "</header></record>";
+
+    private static final String SECOND_RECORD_TAIL =
+            " xmlns:o=\"http://www.openarchives.org/OAI/2.0/\">" +
+            "<o:header><o:identifier>oai:example.org:é2</o:identifier>" +
+            "<o:datestamp>2016-01-02</o:datestamp></o:header>" +
+            "<o:metadata><dc:dc xmlns:dc=\"http://purl.org/dc/elements/1.1/\">" +
+            "<dc:title>Café ☃ 𝄞</dc:title>" +
+            "<ex:note xsi:type=\"ex:t\">&lt;kept&gt;</ex:note>" +
+            "</dc:dc></o:metadata></o:record>";
+
+    private static final String SECOND_RECORD = "<o:record" +
+            SECOND_RECORD_TAIL;
+
+    public TestRawRecords() {
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    private static String response(final String encoding) {
+        return "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n" +
+                "<OAI-PMH " + NAMESPACES + ">" +
+                "<responseDate>2016-01-01T00:00:00Z</responseDate>" +
+                "<request verb=\"ListRecords\">http://example.org/oai" +
+                "</request><ListRecords>\n  " + FIRST_RECORD + "\n  " +
+                SECOND_RECORD + "\n</ListRecords></OAI-PMH>";
+    }
+
+    private static final class Harvested {
+        final RawRecord record;
+        final byte[] bytes;
+
+        Harvested(final RawRecord record) {
+            this.record = record;
+            this.bytes = record.toByteArray();
+        }
+    }
+
+    private static List<Harvested> harvest(final String encoding) {
+        final Charset charset = Charset.forName(encoding);
+        stubFor(WireMockUtils.getAnyURL().willReturn(aResponse()
+                .withStatus(HttpStatus.SC_OK)
+                .withBody(response(encoding).getBytes(charset))));
+        final List<Harvested> harvested = new ArrayList<>();
+        final OAIStreamHandler streamHandler = new RawRecordOAIStreamHandler(
+                r -> harvested.add(new Harvested(r)));
+        new Harvester.Builder().build().start(newParams().build(),
+                new AbstractOAIResponseHandler() {
+                    @Override
+                    public OAIEventHandler getEventHandler(
+                            final HarvestNotification notification) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public OAIStreamHandler getStreamHandler(
+                            final HarvestNotification notification) {
+                        return streamHandler;
+                    }
+                });
+        return harvested;
+    }
+
+    private static Document parse(final byte[] bytes) throws Exception {
+        final DocumentBuilderFactory factory =
+                DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(bytes));
+    }
+
+    private static String utf8(final byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tests that each record's header is parsed, and that its bytes are the
+     * original bytes plus the inherited namespace declarations.
+     */
+    @Test
+    public void testRawRecords() throws Exception {
+        final List<Harvested> harvested = harvest("UTF-8");
+        Assert.assertEquals(2, harvested.size());
+
+        final RawRecord first = harvested.get(0).record;
+        Assert.assertEquals("oai:example.org:1", first.getIdentifier());
+        Assert.assertEquals("2016-01-01", first.getDatestamp());
+        Assert.assertEquals(Arrays.asList("a", "b"), first.getSets());
+        Assert.assertTrue(first.isDeleted());
+        final String firstXML = utf8(harvested.get(0).bytes);
+        Assert.assertEquals(harvested.get(0).bytes.length, first.size());
+        Assert.assertTrue(firstXML.startsWith("<record "));
+        Assert.assertTrue(firstXML.endsWith(FIRST_RECORD.substring(
+                "<record".length())));
+        XMLAssert.assertXMLEqual(FIRST_RECORD.replace("<record>",
+                "<record " + NAMESPACES + ">"), firstXML);
+
+        final RawRecord second = harvested.get(1).record;
+        Assert.assertEquals("oai:example.org:é2",
+                second.getIdentifier());
+        Assert.assertEquals("2016-01-02", second.getDatestamp());
+        Assert.assertTrue(second.getSets().isEmpty());
+        Assert.assertNull(second.getStatus());
+        final String secondXML = utf8(harvested.get(1).bytes);
+        Assert.assertTrue(secondXML.startsWith("<o:record "));
+        Assert.assertTrue(secondXML.endsWith(SECOND_RECORD_TAIL));
+        XMLAssert.assertXMLEqual(SECOND_RECORD.replace("<o:record",
+                "<o:record " + NAMESPACES), secondXML);
+
+        final Document doc = parse(harvested.get(1).bytes);
+        Assert.assertEquals("Café ☃ 𝄞",
+                doc.getElementsByTagNameNS(OAI2Constants.DC_NS_URI, "title")
+                .item(0).getTextContent());
+        Assert.assertEquals("urn:example:a&b",
+                doc.getDocumentElement().lookupNamespaceURI("ex"));
+    }
+
+    /**
+     * Tests that records from responses in other encodings are transcoded to
+     * UTF-8.
+     */
+    @Test
+    public void testTranscoding() throws Exception {
+        final List<Harvested> harvested = harvest("ISO-8859-1");
+        Assert.assertEquals(2, harvested.size());
+        Assert.assertEquals("oai:example.org:é2",
+                harvested.get(1).record.getIdentifier());
+        final byte[] bytes = harvested.get(1).bytes;
+        Assert.assertEquals(bytes.length, harvested.get(1).record.size());
+        // The title's characters outside Latin-1 arrive as '?'.
+        Assert.assertTrue(utf8(bytes).contains("<dc:title>Café ? ?"));
+        Assert.assertNotNull(parse(bytes));
+    }
+}
@@ -0,0 +1,198 @@
+package org.unizin.cmp.oai.harvester.response;
+
+import static org.unizin.cmp.oai.harvester.HarvestNotification.HarvestNotificationType.HARVEST_ENDED;
+import static org.unizin.cmp.oai.harvester.Tests.newParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.unizin.cmp.oai.OAI2Constants;
+import org.unizin.cmp.oai.OAIXMLUtils;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.HarvestNotification.HarvestStatistic;
+import org.unizin.cmp.oai.harvester.Harvester;
+import org.unizin.cmp.oai.harvester.IOUtils;
+import org.unizin.cmp.oai.harvester.ListResponses;
+import org.unizin.cmp.oai.harvester.Tests;
+import org.unizin.cmp.oai.mocks.Mocks;
+import org.unizin.cmp.oai.mocks.WireMockUtils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public final class TestStreamHandler {
+    @Rule
+    public final WireMockRule wireMock = WireMockUtils.newWireMockRule();
+
+    private final String expected;
+
+    public TestStreamHandler() throws IOException {
+        expected = IOUtils.stringFromClasspathFile(
+                "/oai-expected/merged-list-records.xml");
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    /**
+     * Response handler that sends responses to a stream handler, using
+     * another response handler for everything else.
+     */
+    private static class StreamResponseHandler implements OAIResponseHandler {
+        private final OAIResponseHandler delegate;
+        private final OAIStreamHandler streamHandler;
+
+        StreamResponseHandler(final OAIResponseHandler delegate,
+                final OAIStreamHandler streamHandler) {
+            this.delegate = delegate;
+            this.streamHandler = streamHandler;
+        }
+
+        @Override
+        public OAIEventHandler getEventHandler(
+                final HarvestNotification notification) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OAIStreamHandler getStreamHandler(
+                final HarvestNotification notification) {
+            return streamHandler;
+        }
+
+        @Override
+        public void onHarvestStart(final HarvestNotification notification) {
+            delegate.onHarvestStart(notification);
+        }
+
+        @Override
+        public void onHarvestEnd(final HarvestNotification notification) {
+            delegate.onHarvestEnd(notification);
+        }
+
+        @Override
+        public void onResponseReceived(
+                final HarvestNotification notification) {
+            delegate.onResponseReceived(notification);
+        }
+
+        @Override
+        public void onResponseProcessed(
+                final HarvestNotification notification) {
+            delegate.onResponseProcessed(notification);
+        }
+    }
+
+    private static HarvestNotification harvest(
+            final OAIResponseHandler handler) {
+        final List<HarvestNotification> ended = new ArrayList<>();
+        final Harvester harvester = new Harvester.Builder().build();
+        harvester.addObserver((o, arg) -> {
+            final HarvestNotification hn = (HarvestNotification)arg;
+            if (hn.getType() == HARVEST_ENDED) {
+                ended.add(hn);
+            }
+        });
+        harvester.start(newParams().build(), handler);
+        Assert.assertEquals(1, ended.size());
+        return ended.get(0);
+    }
+
+    /**
+     * Tests that a stream handler sees every response of a list harvest, and
+     * that the harvest counts the same events it would for an event handler.
+     */
+    @Test
+    public void testStreamHandler() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final List<String> identifiers = new ArrayList<>();
+        final StringBuilder text = new StringBuilder();
+        final OAIStreamHandler streamHandler = new OAIStreamHandler() {
+            private boolean inIdentifier;
+
+            @Override
+            public void onEvent(final XMLStreamReader reader) {
+                switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    inIdentifier = OAIXMLUtils.hasName(reader,
+                            OAI2Constants.IDENTIFIER);
+                    text.setLength(0);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                    if (inIdentifier) {
+                        text.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (inIdentifier) {
+                        identifiers.add(text.toString());
+                    }
+                    inIdentifier = false;
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            @Override
+            public void close() { }
+        };
+        final HarvestNotification streamed = harvest(
+                new StreamResponseHandler(Mocks.newResponseHandler(),
+                        streamHandler));
+        Assert.assertFalse(streamed.hasError());
+        Assert.assertEquals(3, identifiers.size());
+        Assert.assertEquals(Long.valueOf(
+                ListResponses.DEFAULT_RESPONSE_COUNT),
+                streamed.getStat(HarvestStatistic.RESPONSE_COUNT));
+
+        final HarvestNotification evented = harvest(
+                Mocks.newResponseHandler());
+        Assert.assertEquals(evented.getStat(
+                HarvestStatistic.XML_EVENT_COUNT),
+                streamed.getStat(HarvestStatistic.XML_EVENT_COUNT));
+    }
+
+    /**
+     * Tests that an event handler adapted to a stream handler produces the
+     * same output when driven by the cursor.
+     */
+    @Test
+    public void testAdapter() throws Exception {
+        ListResponses.setupWithDefaultListRecordsResponse(true);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final OAIResponseHandler merging = new MergingOAIResponseHandler(
+                Tests.simpleMergingHandler(baos));
+        final OAIStreamHandler adapter = new EventOAIStreamHandler(
+                merging.getEventHandler(null));
+        // Hide the adapter so the harvester can't bypass it.
+        final OAIStreamHandler hidden = new OAIStreamHandler() {
+            @Override
+            public void onEvent(final XMLStreamReader reader)
+                    throws XMLStreamException {
+                adapter.onEvent(reader);
+            }
+
+            @Override
+            public void close() throws XMLStreamException {
+                adapter.close();
+            }
+        };
+        final HarvestNotification hn = harvest(new StreamResponseHandler(
+                merging, hidden));
+        Assert.assertFalse(hn.hasError());
+        XMLAssert.assertXMLEqual(expected, new String(baos.toByteArray(),
+                StandardCharsets.UTF_8));
+    }
+}
@@ -14,6 +14,8 @@ import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.unizin.cmp.oai.harvester.HarvestNotification;
+import org.unizin.cmp.oai.harvester.response.EventOAIStreamHandler;
 import org.unizin.cmp.oai.harvester.response.OAIEventHandler;
 import org.unizin.cmp.oai.harvester.response.OAIResponseHandler;
 import org.unizin.cmp.oai.mocks.ForwardingInputStream.BasicForwardingInputStream;
@@ -48,6 +50,10 @@ public final class Mocks {
     public static OAIResponseHandler newResponseHandler() {
         final OAIResponseHandler m = mock(OAIResponseHandler.class);
         when(m.getEventHandler(any())).thenReturn(mock(OAIEventHandler.class));
+        // Mocks don't run default methods, so do what the default would.
+        when(m.getStreamHandler(any())).thenAnswer(invocation ->
+            new EventOAIStreamHandler(m.getEventHandler(
+                    invocation.getArgumentAt(0, HarvestNotification.class))));
         return m;
     }
 